@@ -36,4 +36,13 @@ public interface MassList {
     @Nonnull
     public DataPoint[] getDataPoints();
 
+    /**
+     * Fills the given buffer with the m/z and intensity values of this mass
+     * list, replacing its previous content. No DataPoint objects are created.
+     * 
+     * @param buffer
+     *            Buffer to fill, its capacity is increased if necessary
+     */
+    public void getDataPoints(@Nonnull SpectrumBuffer buffer);
+
 }
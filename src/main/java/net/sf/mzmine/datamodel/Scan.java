@@ -87,6 +87,17 @@ public interface Scan extends MassSpectrum {
      */
     public int[] getFragmentScanNumbers();
 
+    /**
+     * Fills the given buffer with the m/z and intensity values of this scan,
+     * sorted in m/z order. The previous content of the buffer is replaced.
+     * Unlike getDataPoints(), this method does not create a DataPoint object
+     * for each value, so it should be preferred when processing many scans.
+     * 
+     * @param buffer
+     *            Buffer to fill, its capacity is increased if necessary
+     */
+    public void getDataPoints(@Nonnull SpectrumBuffer buffer);
+
     @Nonnull
     public MassList[] getMassLists();
 
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Reusable, column-oriented container of m/z and intensity values. Unlike
+ * DataPoint arrays, filling a SpectrumBuffer does not create an object per data
+ * point, so modules processing many scans should keep one buffer and pass it
+ * to Scan.getDataPoints(SpectrumBuffer) or MassList.getDataPoints(
+ * SpectrumBuffer) for each scan.
+ *
+ * The arrays returned by getMZValues() and getIntensityValues() may be longer
+ * than the number of stored values, only the first getSize() values are
+ * valid. The arrays are reallocated when the capacity is exceeded, therefore
+ * they should be obtained again after the buffer is refilled. A SpectrumBuffer
+ * is not thread-safe.
+ */
+public class SpectrumBuffer {
+
+    private double mzValues[], intensityValues[];
+    private int size;
+
+    public SpectrumBuffer() {
+	this(128);
+    }
+
+    public SpectrumBuffer(int initialCapacity) {
+	mzValues = new double[initialCapacity];
+	intensityValues = new double[initialCapacity];
+	size = 0;
+    }
+
+    /**
+     * @return Number of valid values in this buffer
+     */
+    public int getSize() {
+	return size;
+    }
+
+    /**
+     * Sets the number of valid values, after the arrays were filled directly.
+     * The capacity must have been ensured by ensureCapacity() before.
+     */
+    public void setSize(int size) {
+	if (size > mzValues.length)
+	    throw new IllegalArgumentException("Size " + size
+		    + " exceeds buffer capacity " + mzValues.length);
+	this.size = size;
+    }
+
+    /**
+     * @return m/z values, sorted in m/z order. Only the first getSize() values
+     *         are valid.
+     */
+    public @Nonnull double[] getMZValues() {
+	return mzValues;
+    }
+
+    /**
+     * @return Intensity values. Only the first getSize() values are valid.
+     */
+    public @Nonnull double[] getIntensityValues() {
+	return intensityValues;
+    }
+
+    public double getMZ(int index) {
+	return mzValues[index];
+    }
+
+    public double getIntensity(int index) {
+	return intensityValues[index];
+    }
+
+    /**
+     * Makes sure the buffer can hold given number of values without
+     * reallocation. Already stored values are preserved.
+     */
+    public void ensureCapacity(int capacity) {
+	if (mzValues.length >= capacity)
+	    return;
+	int newCapacity = Math.max(capacity, mzValues.length * 2);
+	double newMZValues[] = new double[newCapacity];
+	double newIntensityValues[] = new double[newCapacity];
+	System.arraycopy(mzValues, 0, newMZValues, 0, size);
+	System.arraycopy(intensityValues, 0, newIntensityValues, 0, size);
+	mzValues = newMZValues;
+	intensityValues = newIntensityValues;
+    }
+
+    public void clear() {
+	size = 0;
+    }
+
+    /**
+     * Appends one m/z and intensity pair at the end of the buffer
+     */
+    public void add(double mz, double intensity) {
+	if (size == mzValues.length)
+	    ensureCapacity(size + 1);
+	mzValues[size] = mz;
+	intensityValues[size] = intensity;
+	size++;
+    }
+
+    /**
+     * Replaces the content of this buffer with given data points
+     */
+    public void setDataPoints(@Nonnull DataPoint dataPoints[]) {
+	size = 0;
+	ensureCapacity(dataPoints.length);
+	for (int i = 0; i < dataPoints.length; i++) {
+	    mzValues[i] = dataPoints[i].getMZ();
+	    intensityValues[i] = dataPoints[i].getIntensity();
+	}
+	size = dataPoints.length;
+    }
+
+    /**
+     * Returns the indexes of stored values ordered by descending intensity.
+     * Values with the same intensity are ordered by descending m/z, which is
+     * the same order as produced by DataPointSorter(SortingProperty.Intensity,
+     * SortingDirection.Descending).
+     */
+    public @Nonnull int[] getIndexesByDescendingIntensity() {
+	int indexes[] = new int[size];
+	for (int i = 0; i < size; i++)
+	    indexes[i] = i;
+	if (size > 1)
+	    mergeSort(indexes, new int[size], 0, size);
+	return indexes;
+    }
+
+    private void mergeSort(int indexes[], int temp[], int from, int to) {
+
+	if (to - from < 2)
+	    return;
+
+	final int middle = (from + to) >>> 1;
+	mergeSort(indexes, temp, from, middle);
+	mergeSort(indexes, temp, middle, to);
+
+	int left = from, right = middle, target = from;
+	while ((left < middle) && (right < to)) {
+	    if (precedes(indexes[right], indexes[left]))
+		temp[target++] = indexes[right++];
+	    else
+		temp[target++] = indexes[left++];
+	}
+	while (left < middle)
+	    temp[target++] = indexes[left++];
+	while (right < to)
+	    temp[target++] = indexes[right++];
+
+	System.arraycopy(temp, from, indexes, from, to - from);
+    }
+
+    private boolean precedes(int i1, int i2) {
+	int result = Double.compare(intensityValues[i1], intensityValues[i2]);
+	if (result == 0)
+	    result = Double.compare(mzValues[i1], mzValues[i2]);
+	return result > 0;
+    }
+
+}
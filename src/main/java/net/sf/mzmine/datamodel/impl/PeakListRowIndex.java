@@ -0,0 +1,374 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+import com.google.common.collect.Range;
+
+/**
+ * Index of the rows of a SimplePeakList, sorted by m/z and by retention time,
+ * for range queries in logarithmic time. The index either uses the average m/z
+ * and RT of each row, or the m/z and RT of the peak of one raw data file.
+ *
+ * Rows are indexed with the values they had when the index was last rebuilt.
+ * Rows which were added or changed since then are kept in a small set of
+ * pending rows, which is checked linearly, and their old entries in the
+ * sorted arrays are ignored. When the pending set grows too large, the index
+ * is rebuilt. This keeps the index correct while rows are modified, e.g.
+ * when the alignment adds peaks to already aligned rows.
+ *
+ * Queries are answered by an immutable Snapshot of the index, so that many
+ * threads can query the same peak list at once. The snapshot is created on
+ * the first query after a change and shared by all following queries. All
+ * methods of the index itself must be called while holding the lock of the
+ * owning peak list, see SimplePeakList, but the returned snapshot can be
+ * queried without it.
+ */
+class PeakListRowIndex {
+
+    private final @Nullable RawDataFile dataFile;
+
+    // Rows and their values when the index was last rebuilt, with the order
+    // of each row in the peak list. The arrays are replaced, never modified.
+    private PeakListRow rows[] = new PeakListRow[0];
+    private int rowOrders[] = new int[0];
+    private double mzValues[] = new double[0], rtValues[] = new double[0];
+
+    // Positions in the rebuilt arrays, sorted by m/z and by RT, and the
+    // corresponding sorted values for binary search
+    private int mzOrder[] = new int[0], rtOrder[] = new int[0];
+    private double sortedMZValues[] = new double[0],
+            sortedRTValues[] = new double[0];
+
+    // Rows added or changed after the index was rebuilt
+    private final Set<PeakListRow> pendingRows = Collections
+            .newSetFromMap(new IdentityHashMap<PeakListRow, Boolean>());
+
+    // Rows whose entries in the rebuilt arrays are no longer valid
+    private final Set<PeakListRow> invalidRows = Collections
+            .newSetFromMap(new IdentityHashMap<PeakListRow, Boolean>());
+
+    // Snapshot for queries, null if the index changed since it was created
+    private Snapshot snapshot;
+
+    /**
+     * @param dataFile
+     *            Raw data file whose peaks are indexed, or null to index the
+     *            average values of the rows
+     */
+    PeakListRowIndex(@Nullable RawDataFile dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    @Nullable
+    RawDataFile getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Rebuilds the index from all rows of the peak list
+     * 
+     * @param rowOrder
+     *            Order of each row in the peak list, used to return query
+     *            results in the order of the rows
+     */
+    void rebuild(List<PeakListRow> peakListRows,
+            Map<PeakListRow, Integer> rowOrder) {
+
+        pendingRows.clear();
+        invalidRows.clear();
+        snapshot = null;
+
+        ArrayList<PeakListRow> indexedRows = new ArrayList<PeakListRow>(
+                peakListRows.size());
+        int orders[] = new int[peakListRows.size()];
+        double mz[] = new double[peakListRows.size()];
+        double rt[] = new double[peakListRows.size()];
+        for (PeakListRow row : peakListRows) {
+            if (dataFile == null) {
+                mz[indexedRows.size()] = row.getAverageMZ();
+                rt[indexedRows.size()] = row.getAverageRT();
+            } else {
+                Feature peak = row.getPeak(dataFile);
+                if (peak == null)
+                    continue;
+                mz[indexedRows.size()] = peak.getMZ();
+                rt[indexedRows.size()] = peak.getRT();
+            }
+            orders[indexedRows.size()] = rowOrder.get(row);
+            indexedRows.add(row);
+        }
+
+        final int size = indexedRows.size();
+        rows = indexedRows.toArray(new PeakListRow[size]);
+        rowOrders = orders;
+        mzValues = mz;
+        rtValues = rt;
+        mzOrder = sortPositions(mzValues, size);
+        rtOrder = sortPositions(rtValues, size);
+        sortedMZValues = new double[size];
+        sortedRTValues = new double[size];
+        for (int i = 0; i < size; i++) {
+            sortedMZValues[i] = mzValues[mzOrder[i]];
+            sortedRTValues[i] = rtValues[rtOrder[i]];
+        }
+
+    }
+
+    /**
+     * Returns true if there are so many pending rows that checking them for
+     * each query is more expensive than rebuilding the index
+     */
+    boolean needsRebuild() {
+        final int limit = 64 + 6 * (int) Math.sqrt(rows.length);
+        return (pendingRows.size() > limit) || (invalidRows.size() > limit);
+    }
+
+    /**
+     * Called when a row was added to the peak list, or its values changed
+     */
+    void rowChanged(PeakListRow row) {
+        pendingRows.add(row);
+        invalidRows.add(row);
+        snapshot = null;
+    }
+
+    void rowRemoved(PeakListRow row) {
+        pendingRows.remove(row);
+        invalidRows.add(row);
+        snapshot = null;
+    }
+
+    /**
+     * Returns an immutable snapshot of the current state of the index
+     * 
+     * @param rowOrder
+     *            Order of each row in the peak list
+     */
+    Snapshot getSnapshot(Map<PeakListRow, Integer> rowOrder) {
+        if (snapshot == null)
+            snapshot = new Snapshot(this, rowOrder);
+        return snapshot;
+    }
+
+    /**
+     * Immutable state of the index at one point in time, which can be queried
+     * by any number of threads without locking
+     */
+    static final class Snapshot {
+
+        private final @Nullable RawDataFile dataFile;
+        private final PeakListRow rows[];
+        private final int rowOrders[];
+        private final double mzValues[], rtValues[];
+        private final int mzOrder[], rtOrder[];
+        private final double sortedMZValues[], sortedRTValues[];
+        private final PeakListRow pendingRows[];
+        private final int pendingRowOrders[];
+        private final Set<PeakListRow> invalidRows;
+
+        private Snapshot(PeakListRowIndex index,
+                Map<PeakListRow, Integer> rowOrder) {
+            this.dataFile = index.dataFile;
+            this.rows = index.rows;
+            this.rowOrders = index.rowOrders;
+            this.mzValues = index.mzValues;
+            this.rtValues = index.rtValues;
+            this.mzOrder = index.mzOrder;
+            this.rtOrder = index.rtOrder;
+            this.sortedMZValues = index.sortedMZValues;
+            this.sortedRTValues = index.sortedRTValues;
+            this.pendingRows = index.pendingRows
+                    .toArray(new PeakListRow[index.pendingRows.size()]);
+            this.pendingRowOrders = new int[pendingRows.length];
+            for (int i = 0; i < pendingRows.length; i++)
+                pendingRowOrders[i] = rowOrder.get(pendingRows[i]);
+            if (index.invalidRows.isEmpty()) {
+                this.invalidRows = Collections.emptySet();
+            } else {
+                this.invalidRows = Collections
+                        .newSetFromMap(new IdentityHashMap<PeakListRow, Boolean>());
+                this.invalidRows.addAll(index.invalidRows);
+            }
+        }
+
+        /**
+         * Adds all rows inside given ranges to the result list, in the order
+         * of the rows in the peak list
+         */
+        void findRows(Range<Double> rtRange, Range<Double> mzRange,
+                List<PeakListRow> result) {
+
+            final int size = rows.length;
+
+            // Use the order which gives the smaller number of candidates
+            final int mzStart = lowerBound(sortedMZValues, mzRange);
+            final int mzEnd = upperBound(sortedMZValues, mzRange);
+            final int rtStart = lowerBound(sortedRTValues, rtRange);
+            final int rtEnd = upperBound(sortedRTValues, rtRange);
+            final boolean useMZOrder = (mzEnd - mzStart) <= (rtEnd - rtStart);
+            final int order[] = useMZOrder ? mzOrder : rtOrder;
+            final int start = useMZOrder ? mzStart : rtStart;
+            final int end = useMZOrder ? mzEnd : rtEnd;
+
+            // Found rows, sorted at the end by the row order kept in the
+            // upper 32 bits of each key, the lower 32 bits are the position
+            // in the found list
+            final ArrayList<PeakListRow> found = new ArrayList<PeakListRow>();
+            long keys[] = new long[16];
+
+            final boolean checkInvalid = !invalidRows.isEmpty();
+            for (int i = start; (i < end) && (i < size); i++) {
+                final int position = order[i];
+                if (!rtRange.contains(rtValues[position])
+                        || !mzRange.contains(mzValues[position]))
+                    continue;
+                if (checkInvalid && invalidRows.contains(rows[position]))
+                    continue;
+                keys = addFound(found, keys, rows[position],
+                        rowOrders[position]);
+            }
+
+            for (int i = 0; i < pendingRows.length; i++) {
+                final PeakListRow row = pendingRows[i];
+                double mz, rt;
+                if (dataFile == null) {
+                    mz = row.getAverageMZ();
+                    rt = row.getAverageRT();
+                } else {
+                    Feature peak = row.getPeak(dataFile);
+                    if (peak == null)
+                        continue;
+                    mz = peak.getMZ();
+                    rt = peak.getRT();
+                }
+                if (rtRange.contains(rt) && mzRange.contains(mz))
+                    keys = addFound(found, keys, row, pendingRowOrders[i]);
+            }
+
+            final int numOfFound = found.size();
+            Arrays.sort(keys, 0, numOfFound);
+            for (int i = 0; i < numOfFound; i++)
+                result.add(found.get((int) keys[i]));
+
+        }
+
+        private static long[] addFound(ArrayList<PeakListRow> found,
+                long keys[], PeakListRow row, int rowOrder) {
+            final int position = found.size();
+            if (position == keys.length)
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            keys[position] = ((long) rowOrder << 32) | position;
+            found.add(row);
+            return keys;
+        }
+
+    }
+
+    /**
+     * Returns the position of the first sorted value which may be inside the
+     * range
+     */
+    private static int lowerBound(double sortedValues[], Range<Double> range) {
+        if (!range.hasLowerBound())
+            return 0;
+        final double lower = range.lowerEndpoint();
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (Double.compare(sortedValues[middle], lower) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position after the last sorted value which may be inside the
+     * range
+     */
+    private static int upperBound(double sortedValues[], Range<Double> range) {
+        if (!range.hasUpperBound())
+            return sortedValues.length;
+        final double upper = range.upperEndpoint();
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (Double.compare(sortedValues[middle], upper) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the positions 0..size-1 sorted by given values, using the same
+     * ordering as Double.compare()
+     */
+    private static int[] sortPositions(double values[], int size) {
+        int positions[] = new int[size];
+        for (int i = 0; i < size; i++)
+            positions[i] = i;
+        mergeSort(values, positions, new int[size], 0, size);
+        return positions;
+    }
+
+    private static void mergeSort(double values[], int positions[],
+            int temp[], int from, int to) {
+
+        if (to - from < 2)
+            return;
+
+        final int middle = (from + to) >>> 1;
+        mergeSort(values, positions, temp, from, middle);
+        mergeSort(values, positions, temp, middle, to);
+
+        int left = from, right = middle, target = from;
+        while ((left < middle) && (right < to)) {
+            if (Double.compare(values[positions[right]],
+                    values[positions[left]]) < 0)
+                temp[target++] = positions[right++];
+            else
+                temp[target++] = positions[left++];
+        }
+        while (left < middle)
+            temp[target++] = positions[left++];
+        while (right < to)
+            temp[target++] = positions[right++];
+
+        System.arraycopy(temp, from, positions, from, to - from);
+    }
+
+}
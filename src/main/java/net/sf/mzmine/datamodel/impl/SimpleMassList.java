@@ -24,6 +24,7 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 
 /**
  * This class represent detected masses (ions) in one mass spectrum
@@ -59,6 +60,11 @@ public class SimpleMassList implements MassList {
 	return mzPeaks;
     }
 
+    @Override
+    public void getDataPoints(@Nonnull SpectrumBuffer buffer) {
+	buffer.setDataPoints(mzPeaks);
+    }
+
     public void setDataPoints(DataPoint mzPeaks[]) {
 	this.mzPeaks = mzPeaks;
     }
@@ -24,6 +24,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Vector;
 
@@ -39,6 +40,11 @@ import com.google.common.collect.Range;
 
 /**
  * Simple implementation of the PeakList interface.
+ *
+ * Range queries (getRowsInside... and getPeaksInside... methods) use sorted
+ * indexes of the rows, which are created on the first query and kept up to
+ * date when rows are added or removed, and when the peaks of a
+ * SimplePeakListRow change.
  */
 public class SimplePeakList implements PeakList {
 
@@ -50,6 +56,16 @@ public class SimplePeakList implements PeakList {
     private String dateCreated;
     private Range<Double> mzRange, rtRange;
 
+    // Indexes for range queries, one for the average row values (data file
+    // null) and one for each data file whose peaks were queried. Also used
+    // as a lock for the indexes and rowOrder.
+    private final ArrayList<PeakListRowIndex> indexes = new ArrayList<PeakListRowIndex>();
+
+    // Order of the rows, so that query results can be returned in the same
+    // order as the rows
+    private final IdentityHashMap<PeakListRow, Integer> rowOrder = new IdentityHashMap<PeakListRow, Integer>();
+    private int nextRowOrder = 0;
+
     public static DateFormat dateFormat = new SimpleDateFormat(
 	    "yyyy/MM/dd HH:mm:ss");
 
@@ -161,15 +177,49 @@ public class SimplePeakList implements PeakList {
 
     public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange,
 	    Range<Double> mzRange) {
-	Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
+	List<PeakListRow> rowsInside = findRows(null, rtRange, mzRange);
+	return rowsInside.toArray(new PeakListRow[0]);
+    }
 
-	for (PeakListRow row : peakListRows) {
-	    if (rtRange.contains(row.getAverageRT())
-		    && mzRange.contains(row.getAverageMZ()))
-		rowsInside.add(row);
+    /**
+     * Finds the rows whose average values (if dataFile is null) or whose peak
+     * of given data file are inside given ranges, in the order of the rows.
+     * Only the snapshot of the index is obtained under the lock, the query
+     * itself runs without it, so concurrent queries do not block each other.
+     */
+    private List<PeakListRow> findRows(RawDataFile dataFile,
+	    Range<Double> rtRange, Range<Double> mzRange) {
+	PeakListRowIndex.Snapshot snapshot;
+	synchronized (indexes) {
+	    PeakListRowIndex index = null;
+	    for (PeakListRowIndex testIndex : indexes) {
+		if (testIndex.getDataFile() == dataFile) {
+		    index = testIndex;
+		    break;
+		}
+	    }
+	    if (index == null) {
+		index = new PeakListRowIndex(dataFile);
+		index.rebuild(peakListRows, rowOrder);
+		indexes.add(index);
+	    } else if (index.needsRebuild()) {
+		index.rebuild(peakListRows, rowOrder);
+	    }
+	    snapshot = index.getSnapshot(rowOrder);
 	}
+	ArrayList<PeakListRow> rowsInside = new ArrayList<PeakListRow>();
+	snapshot.findRows(rtRange, mzRange, rowsInside);
+	return rowsInside;
+    }
 
-	return rowsInside.toArray(new PeakListRow[0]);
+    /**
+     * Called by SimplePeakListRow when its average values or peaks changed
+     */
+    void rowChanged(PeakListRow row) {
+	synchronized (indexes) {
+	    for (PeakListRowIndex index : indexes)
+		index.rowChanged(row);
+	}
     }
 
     public void addRow(PeakListRow row) {
@@ -181,6 +231,14 @@ public class SimplePeakList implements PeakList {
 	}
 
 	peakListRows.add(row);
+	synchronized (indexes) {
+	    rowOrder.put(row, nextRowOrder++);
+	    for (PeakListRowIndex index : indexes)
+		index.rowChanged(row);
+	}
+	if (row instanceof SimplePeakListRow)
+	    ((SimplePeakListRow) row).addPeakList(this);
+
 	if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
 	    maxDataPointIntensity = row.getDataPointMaxIntensity();
 	}
@@ -225,15 +283,11 @@ public class SimplePeakList implements PeakList {
      */
     public Feature[] getPeaksInsideScanAndMZRange(RawDataFile file,
 	    Range<Double> rtRange, Range<Double> mzRange) {
-	Vector<Feature> peaksInside = new Vector<Feature>();
-
-	Feature[] peaks = getPeaks(file);
-	for (Feature p : peaks) {
-	    if (rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ()))
-		peaksInside.add(p);
-	}
-
-	return peaksInside.toArray(new Feature[0]);
+	List<PeakListRow> rowsInside = findRows(file, rtRange, mzRange);
+	Feature peaksInside[] = new Feature[rowsInside.size()];
+	for (int i = 0; i < peaksInside.length; i++)
+	    peaksInside[i] = rowsInside.get(i).getPeak(file);
+	return peaksInside;
     }
 
     /**
@@ -241,6 +295,20 @@ public class SimplePeakList implements PeakList {
      */
     public void removeRow(PeakListRow row) {
 	peakListRows.remove(row);
+	synchronized (indexes) {
+	    // The same row may have been added more than once
+	    final boolean stillContained = peakListRows.contains(row);
+	    if (!stillContained)
+		rowOrder.remove(row);
+	    for (PeakListRowIndex index : indexes) {
+		if (stillContained)
+		    index.rowChanged(row);
+		else
+		    index.rowRemoved(row);
+	    }
+	}
+	if (row instanceof SimplePeakListRow)
+	    ((SimplePeakListRow) row).removePeakList(this);
 
 	// We have to update the project tree model
 	MZmineProjectImpl project = (MZmineProjectImpl) MZmineCore
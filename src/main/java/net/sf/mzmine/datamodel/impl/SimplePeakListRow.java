@@ -19,7 +19,9 @@
 
 package net.sf.mzmine.datamodel.impl;
 
+import java.lang.ref.WeakReference;
 import java.text.Format;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -58,6 +60,15 @@ public class SimplePeakListRow implements PeakListRow {
     private double averageRT, averageMZ, averageHeight, averageArea;
     private int rowCharge;
 
+    /**
+     * Peak lists containing this row, which are notified when the peaks or
+     * average values change, so they can update their range indexes. Weak
+     * references, so that a row shared by several peak lists does not keep
+     * discarded peak lists in memory.
+     */
+    private final ArrayList<WeakReference<SimplePeakList>> peakLists = new ArrayList<WeakReference<SimplePeakList>>(
+	    1);
+
     public SimplePeakListRow(int myID) {
 	this.myID = myID;
 	peaks = new Hashtable<RawDataFile, Feature>();
@@ -83,6 +94,7 @@ public class SimplePeakListRow implements PeakListRow {
     public void removePeak(RawDataFile file) {
 	this.peaks.remove(file);
 	calculateAverageValues();
+	notifyPeakLists();
     }
 
     /**
@@ -112,6 +124,7 @@ public class SimplePeakListRow implements PeakListRow {
 	    maxDataPointIntensity = peak.getRawDataPointsIntensityRange()
 		    .upperEndpoint();
 	calculateAverageValues();
+	notifyPeakLists();
     }
 
     public double getAverageMZ() {
@@ -198,6 +211,7 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public void setAverageMZ(double mz) {
 	this.averageMZ = mz;
+	notifyPeakLists();
     }
 
     /**
@@ -205,6 +219,48 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public void setAverageRT(double rt) {
 	this.averageRT = rt;
+	notifyPeakLists();
+    }
+
+    /**
+     * Called by SimplePeakList when this row is added to it
+     */
+    void addPeakList(SimplePeakList peakList) {
+	synchronized (peakLists) {
+	    peakLists.add(new WeakReference<SimplePeakList>(peakList));
+	}
+    }
+
+    /**
+     * Called by SimplePeakList when this row is removed from it
+     */
+    void removePeakList(SimplePeakList peakList) {
+	synchronized (peakLists) {
+	    for (int i = 0; i < peakLists.size(); i++) {
+		SimplePeakList testList = peakLists.get(i).get();
+		if ((testList == null) || (testList == peakList)) {
+		    peakLists.remove(i);
+		    if (testList == peakList)
+			break;
+		    i--;
+		}
+	    }
+	}
+    }
+
+    private void notifyPeakLists() {
+	SimplePeakList notifiedLists[];
+	synchronized (peakLists) {
+	    if (peakLists.isEmpty())
+		return;
+	    notifiedLists = new SimplePeakList[peakLists.size()];
+	    for (int i = 0; i < notifiedLists.length; i++)
+		notifiedLists[i] = peakLists.get(i).get();
+	}
+	for (SimplePeakList peakList : notifiedLists) {
+	    if (peakList != null)
+		peakList.rowChanged(this);
+	}
     }
 
     /**
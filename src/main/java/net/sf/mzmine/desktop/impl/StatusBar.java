@@ -32,6 +32,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.border.EtchedBorder;
 
+import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.util.components.LabeledProgressBar;
 
 public class StatusBar extends JPanel implements Runnable, MouseListener {
@@ -152,8 +153,9 @@ public class StatusBar extends JPanel implements Runnable, MouseListener {
 	    double fullMem = ((double) (totalMem - freeMem)) / totalMem;
 
 	    memoryLabel.setValue(fullMem, freeMem + "MB free");
-	    memoryLabel.setToolTipText("JVM memory: " + freeMem + "MB, "
-		    + totalMem + "MB total");
+	    memoryLabel.setToolTipText("<html>JVM memory: " + freeMem
+		    + "MB, " + totalMem + "MB total<br>"
+		    + RawDataFileImpl.getDataPointsCache() + "</html>");
 
 	    try {
 		wait(MEMORY_LABEL_UPDATE_FREQUENCY);
@@ -27,9 +27,11 @@ import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalModuleParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.util.ExitCode;
 
 import org.w3c.dom.Element;
@@ -50,6 +52,11 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+    public static final IntegerParameter spectraCacheSize = new IntegerParameter(
+            "Spectra cache size (MB)",
+            "Maximum memory used to keep recently read scans and mass lists in decoded form. Set to 0 to disable the cache.",
+            RawDataFileImpl.DEFAULT_CACHE_SIZE_MB, 0, null);
+
     public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
             "Use proxy", "Use proxy for internet connection?",
             new ProxySettings());
@@ -67,7 +74,7 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public MZminePreferences() {
         super(new Parameter[] { mzFormat, rtFormat, intensityFormat,
-                numOfThreads, proxySettings, rExecPath, sendStatistics,
+                numOfThreads, spectraCacheSize, proxySettings, rExecPath, sendStatistics,
                 windowSetttings });
     }
 
@@ -81,6 +88,9 @@ public class MZminePreferences extends SimpleParameterSet {
             // Update proxy settings
             updateSystemProxySettings();
 
+            // Update the size of the spectra cache
+            updateSpectraCacheSize();
+
             // Repaint windows to update number formats
             MZmineCore.getDesktop().getMainWindow().repaint();
         }
@@ -91,6 +101,15 @@ public class MZminePreferences extends SimpleParameterSet {
     public void loadValuesFromXML(Element xmlElement) {
         super.loadValuesFromXML(xmlElement);
         updateSystemProxySettings();
+        updateSpectraCacheSize();
+    }
+
+    private void updateSpectraCacheSize() {
+        Integer cacheSize = getParameter(spectraCacheSize).getValue();
+        if (cacheSize == null)
+            cacheSize = RawDataFileImpl.DEFAULT_CACHE_SIZE_MB;
+        RawDataFileImpl.getDataPointsCache()
+                .setMaxSize(cacheSize * 1024L * 1024L);
     }
 
     private void updateSystemProxySettings() {
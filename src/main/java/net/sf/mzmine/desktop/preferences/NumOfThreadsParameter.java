@@ -33,6 +33,12 @@ import org.w3c.dom.Element;
 public class NumOfThreadsParameter implements
 	UserParameter<Integer, NumOfThreadsEditor> {
 
+    /**
+     * System property which overrides the configured number of threads, e.g.
+     * -Dmzmine.numOfThreads=4. It is set for batch worker processes.
+     */
+    public static final String THREADS_PROPERTY = "mzmine.numOfThreads";
+
     private String name, description;
     private boolean automatic;
     private Integer value;
@@ -76,6 +82,20 @@ public class NumOfThreadsParameter implements
 	return automatic;
     }
 
+    /**
+     * Returns the number of threads to use, which is the value of the
+     * THREADS_PROPERTY system property if it is set, otherwise the number of
+     * available processors if the value is set to automatic or not set
+     */
+    public int getNumberOfThreads() {
+	Integer override = Integer.getInteger(THREADS_PROPERTY);
+	if ((override != null) && (override > 0))
+	    return override;
+	if (automatic || (value == null))
+	    return Runtime.getRuntime().availableProcessors();
+	return value;
+    }
+
     @Override
     public void setValue(Integer value) {
 	assert value != null;
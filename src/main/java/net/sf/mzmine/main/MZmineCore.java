@@ -249,8 +249,12 @@ public final class MZmineCore {
 		logger.severe("Cannot read batch file " + batchFile);
 		System.exit(1);
 	    }
+	    // The second argument is the result file of a batch worker process
+	    File resultFile = null;
+	    if (args.length > 1)
+		resultFile = new File(args[1]);
 	    ExitCode exitCode = BatchModeModule.runBatch(
-		    projectManager.getCurrentProject(), batchFile);
+		    projectManager.getCurrentProject(), batchFile, resultFile);
 	    if (exitCode == ExitCode.OK)
 		System.exit(0);
 	    else
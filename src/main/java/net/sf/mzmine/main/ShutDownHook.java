@@ -23,6 +23,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.taskcontrol.impl.WrappedTask;
+import net.sf.mzmine.util.R.RSessionWrapper;
 
 /**
  * Shutdown hook - invoked on JRE shutdown. This method saves current
@@ -45,6 +46,9 @@ class ShutDownHook extends Thread {
 	    }
 	}
 
+	// Terminate the R sessions which are kept in the pool for reuse
+	RSessionWrapper.CleanAll();
+
 	// Save configuration
 	try {
 	    MZmineCore.getConfiguration().saveConfiguration(
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules;
+
+/**
+ * Interface representing a data processing method which processes each raw
+ * data file or peak list by a separate task, independently of the other files.
+ * Each task adds its results to the project from its own thread.
+ * 
+ * In a batch, consecutive steps of such modules are processed per file: a file
+ * continues with the next step as soon as its own task of the previous step
+ * is finished, instead of waiting for the tasks of all other files.
+ */
+public interface MZminePerFileModule extends MZmineProcessingModule {
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.desktop.impl.MainWindow;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.projectmethods.projectload.ProjectOpeningTask;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSavingTask;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Checkpoints of a batch, saved in a directory. After each step the project is
+ * saved in the MZmine project format, together with a small file listing the
+ * data files and peak lists created by the step. Each checkpoint is identified
+ * by a key, which is a hash of the parameters of the step and of all previous
+ * steps, and of the input data of the batch. A changed parameter therefore
+ * invalidates the checkpoints of its step and of all following steps. One
+ * checkpoint is kept for each step, so a batch with changed parameters of a
+ * late step resumes after the last unchanged step. Saving a checkpoint deletes
+ * the older checkpoints of the same step.
+ */
+class BatchCheckpoints {
+
+    static final String PROJECT_EXTENSION = ".mzmine";
+    private static final String ITEMS_EXTENSION = ".batch";
+
+    private static final String CREATED_DATA_FILES = "createdDataFiles";
+    private static final String CREATED_PEAK_LISTS = "createdPeakLists";
+    private static final String PREVIOUS_DATA_FILES = "previousCreatedDataFiles";
+    private static final String PREVIOUS_PEAK_LISTS = "previousCreatedPeakLists";
+
+    // Names of the checkpoint files with the step number, see getBaseName()
+    private static final Pattern CHECKPOINT_FILE_NAME = Pattern
+            .compile("Step (\\d{3,}) [0-9a-f]{40}\\.(mzmine|batch)");
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final File directory;
+
+    BatchCheckpoints(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return Keys of the checkpoints after each step of the queue
+     */
+    String[] getStepKeys(MZmineProject project, BatchQueue queue)
+            throws IOException {
+
+        String keys[] = new String[queue.size()];
+
+        // The input of the first step are the items of the project, which
+        // may change while their names stay the same
+        MessageDigest digest = createDigest();
+        for (RawDataFile dataFile : project.getDataFiles())
+            update(digest, "Raw data file " + getFingerprint(dataFile));
+        for (PeakList peakList : project.getPeakLists())
+            update(digest, "Peak list " + getFingerprint(peakList));
+        String previousKey = toHex(digest.digest());
+
+        for (int i = 0; i < keys.length; i++) {
+            MZmineProcessingStep<?> step = queue.get(i);
+            digest.reset();
+            update(digest, previousKey);
+            update(digest, step.getModule().getClass().getName());
+            ParameterSet parameters = step.getParameterSet();
+            if (parameters != null) {
+                update(digest, parametersToXML(parameters));
+                // Input files may change while their names stay the same
+                for (Parameter<?> parameter : parameters.getParameters())
+                    updateFiles(digest, parameter.getValue());
+            }
+            keys[i] = toHex(digest.digest());
+            previousKey = keys[i];
+        }
+
+        return keys;
+
+    }
+
+    /**
+     * A checkpoint is valid when both its files exist. The item list is
+     * written after the project, so an interrupted save leaves no valid
+     * checkpoint.
+     */
+    boolean isValid(int stepNumber, String key) {
+        return getProjectFile(stepNumber, key).isFile()
+                && getItemsFile(stepNumber, key).isFile();
+    }
+
+    /**
+     * @return Number of the last step with a valid checkpoint for given keys,
+     *         or -1 if there is none
+     */
+    int getLastValidStep(String stepKeys[]) {
+        for (int i = stepKeys.length - 1; i >= 0; i--) {
+            if (isValid(i, stepKeys[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Saves the current state of the batch after given step
+     */
+    void save(MZmineProject project, int stepNumber, String key,
+            List<RawDataFile> createdDataFiles,
+            List<PeakList> createdPeakLists,
+            List<RawDataFile> previousCreatedDataFiles,
+            List<PeakList> previousCreatedPeakLists) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create checkpoint directory "
+                    + directory);
+
+        File projectFile = getProjectFile(stepNumber, key);
+        logger.info("Saving checkpoint of step # " + (stepNumber + 1)
+                + " to " + projectFile);
+
+        saveState(project, projectFile, createdDataFiles, createdPeakLists,
+                previousCreatedDataFiles, previousCreatedPeakLists);
+
+        deleteOlderCheckpoints(stepNumber, key);
+
+    }
+
+    /**
+     * Deletes the checkpoints of given step in the directory, except the one
+     * with given key. Checkpoints of other steps are kept.
+     */
+    void deleteOlderCheckpoints(int stepNumber, String key) {
+
+        File projectFile = getProjectFile(stepNumber, key);
+        File files[] = directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            Matcher matcher = CHECKPOINT_FILE_NAME.matcher(file.getName());
+            if (!matcher.matches()
+                    || (Integer.parseInt(matcher.group(1)) != stepNumber + 1))
+                continue;
+            if (file.equals(projectFile)
+                    || file.equals(getItemsFile(projectFile)))
+                continue;
+            if (file.delete())
+                logger.finest("Deleted old checkpoint file " + file);
+            else
+                logger.warning("Could not delete old checkpoint file " + file);
+        }
+
+    }
+
+    /**
+     * Replaces the current project with the project saved after given step,
+     * and fills the lists with the items created by the step
+     * 
+     * @return The loaded project
+     */
+    MZmineProject load(int stepNumber, String key,
+            List<RawDataFile> createdDataFiles,
+            List<PeakList> createdPeakLists,
+            List<RawDataFile> previousCreatedDataFiles,
+            List<PeakList> previousCreatedPeakLists) throws IOException {
+
+        File projectFile = getProjectFile(stepNumber, key);
+        logger.info("Resuming batch after step # " + (stepNumber + 1)
+                + " from checkpoint " + projectFile);
+
+        // The checkpoint is not the file of the user's project
+        File originalProjectFile = MZmineCore.getProjectManager()
+                .getCurrentProject().getProjectFile();
+
+        runTask(new ProjectOpeningTask(projectFile, false));
+
+        MZmineProjectImpl project = (MZmineProjectImpl) MZmineCore
+                .getProjectManager().getCurrentProject();
+        project.setProjectFile(originalProjectFile);
+        if (MZmineCore.getDesktop() instanceof MainWindow)
+            ((MainWindow) MZmineCore.getDesktop()).updateTitle();
+
+        readItems(projectFile, project.getDataFiles(),
+                project.getPeakLists(), createdDataFiles, createdPeakLists,
+                previousCreatedDataFiles, previousCreatedPeakLists);
+
+        return project;
+
+    }
+
+    File getProjectFile(int stepNumber, String key) {
+        return new File(directory, getBaseName(stepNumber, key)
+                + PROJECT_EXTENSION);
+    }
+
+    File getItemsFile(int stepNumber, String key) {
+        return getItemsFile(getProjectFile(stepNumber, key));
+    }
+
+    /**
+     * @return File listing the items created by the batch, which is saved
+     *         next to given project file
+     */
+    static File getItemsFile(File projectFile) {
+        String name = projectFile.getName();
+        if (name.endsWith(PROJECT_EXTENSION))
+            name = name.substring(0, name.length()
+                    - PROJECT_EXTENSION.length());
+        return new File(projectFile.getParentFile(), name + ITEMS_EXTENSION);
+    }
+
+    /**
+     * Saves the project to given file, and the lists of items created by the
+     * batch next to it
+     */
+    static void saveState(MZmineProject project, File projectFile,
+            List<RawDataFile> createdDataFiles,
+            List<PeakList> createdPeakLists,
+            List<RawDataFile> previousCreatedDataFiles,
+            List<PeakList> previousCreatedPeakLists) throws IOException {
+
+        runTask(new ProjectSavingTask(project, projectFile, false));
+
+        List<RawDataFile> dataFiles = Arrays.asList(project.getDataFiles());
+        List<PeakList> peakLists = Arrays.asList(project.getPeakLists());
+
+        Properties items = new Properties();
+        items.setProperty(CREATED_DATA_FILES,
+                toIndices(dataFiles, createdDataFiles));
+        items.setProperty(CREATED_PEAK_LISTS,
+                toIndices(peakLists, createdPeakLists));
+        items.setProperty(PREVIOUS_DATA_FILES,
+                toIndices(dataFiles, previousCreatedDataFiles));
+        items.setProperty(PREVIOUS_PEAK_LISTS,
+                toIndices(peakLists, previousCreatedPeakLists));
+
+        try (OutputStream out = new FileOutputStream(
+                getItemsFile(projectFile))) {
+            items.store(out, "MZmine batch state of " + projectFile.getName());
+        }
+
+    }
+
+    /**
+     * Adds the items listed next to given project file to the lists. The
+     * arrays contain the data files and peak lists loaded from the project
+     * file, in the saved order.
+     */
+    static void readItems(File projectFile, RawDataFile dataFiles[],
+            PeakList peakLists[], List<RawDataFile> createdDataFiles,
+            List<PeakList> createdPeakLists,
+            List<RawDataFile> previousCreatedDataFiles,
+            List<PeakList> previousCreatedPeakLists) throws IOException {
+
+        Properties items = new Properties();
+        try (InputStream in = new FileInputStream(getItemsFile(projectFile))) {
+            items.load(in);
+        }
+
+        fromIndices(items.getProperty(CREATED_DATA_FILES), dataFiles,
+                createdDataFiles);
+        fromIndices(items.getProperty(CREATED_PEAK_LISTS), peakLists,
+                createdPeakLists);
+        fromIndices(items.getProperty(PREVIOUS_DATA_FILES), dataFiles,
+                previousCreatedDataFiles);
+        fromIndices(items.getProperty(PREVIOUS_PEAK_LISTS), peakLists,
+                previousCreatedPeakLists);
+
+    }
+
+    private static String getBaseName(int stepNumber, String key) {
+        return String.format("Step %03d %s", stepNumber + 1, key);
+    }
+
+    /**
+     * Runs the project saving or opening task in the batch thread
+     */
+    static void runTask(AbstractTask task) throws IOException {
+        task.run();
+        if (task.getStatus() != TaskStatus.FINISHED) {
+            String errorMessage = task.getErrorMessage();
+            if (errorMessage == null)
+                errorMessage = "status " + task.getStatus();
+            throw new IOException(task.getTaskDescription() + ": "
+                    + errorMessage);
+        }
+    }
+
+    private static <T> String toIndices(List<T> allItems, List<T> items) {
+        StringBuilder indices = new StringBuilder();
+        for (T item : items) {
+            int index = allItems.indexOf(item);
+            if (index < 0)
+                continue;
+            if (indices.length() > 0)
+                indices.append(',');
+            indices.append(index);
+        }
+        return indices.toString();
+    }
+
+    private static <T> void fromIndices(String indices, T allItems[],
+            List<T> items) throws IOException {
+        if ((indices == null) || indices.isEmpty())
+            return;
+        for (String index : indices.split(",")) {
+            try {
+                items.add(allItems[Integer.parseInt(index)]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid batch checkpoint item "
+                        + index);
+            }
+        }
+    }
+
+    private static String parametersToXML(ParameterSet parameters)
+            throws IOException {
+        try {
+            Document document = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().newDocument();
+            Element element = document.createElement("parameters");
+            document.appendChild(element);
+            parameters.saveValuesToXML(element);
+            Transformer transformer = TransformerFactory.newInstance()
+                    .newTransformer();
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(document), new StreamResult(
+                    writer));
+            return writer.toString();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return Name of given raw data file with its number of scans, RT range
+     *         and size of the stored data points
+     */
+    private static String getFingerprint(RawDataFile dataFile) {
+        long dataPointsLength = -1;
+        if (dataFile instanceof RawDataFileImpl) {
+            RandomAccessFile dataPointsFile = ((RawDataFileImpl) dataFile)
+                    .getDataPointsFile();
+            try {
+                if (dataPointsFile != null)
+                    dataPointsLength = dataPointsFile.length();
+            } catch (IOException e) {
+                // The length is left out of the fingerprint
+            }
+        }
+        return dataFile.getName() + " " + dataFile.getNumOfScans() + " "
+                + dataFile.getDataRTRange() + " " + dataPointsLength;
+    }
+
+    /**
+     * @return Name of given peak list with its number of rows, RT and m/z
+     *         ranges, and the fingerprints of its raw data files
+     */
+    private static String getFingerprint(PeakList peakList) {
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(peakList.getName());
+        fingerprint.append(" ").append(peakList.getNumberOfRows());
+        fingerprint.append(" ").append(peakList.getRowsRTRange());
+        fingerprint.append(" ").append(peakList.getRowsMZRange());
+        for (RawDataFile dataFile : peakList.getRawDataFiles())
+            fingerprint.append(" [").append(getFingerprint(dataFile))
+                    .append("]");
+        return fingerprint.toString();
+    }
+
+    private static void updateFiles(MessageDigest digest, Object value) {
+        if (value instanceof File) {
+            File file = (File) value;
+            update(digest, file.getPath() + " " + file.length() + " "
+                    + file.lastModified());
+        } else if (value instanceof File[]) {
+            for (File file : (File[]) value)
+                updateFiles(digest, file);
+        }
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toHex(byte bytes[]) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.mzmine.taskcontrol.TaskMetrics;
+
+/**
+ * Resource usage of the tasks of a batch, written as CSV or, if the file name
+ * ends with .json, as JSON. One record is written per task, in the order in
+ * which the tasks finished.
+ */
+class BatchMetricsReport {
+
+    private static final String FIELDS[] = { "step", "module", "task",
+            "taskClass", "status", "startTime", "wallTimeMs", "cpuTimeMs",
+            "allocatedBytes", "peakHeapBytes", "processedItems",
+            "itemsPerSecond", "readBytes" };
+
+    private final List<Object[]> records = new ArrayList<Object[]>();
+
+    /**
+     * Adds the metrics of a finished task of given step
+     */
+    synchronized void add(int stepNumber, String moduleName,
+            TaskMetrics metrics) {
+        long cpuTime = metrics.getCpuTime();
+        records.add(new Object[] { stepNumber + 1, moduleName,
+                metrics.getTaskDescription(), metrics.getTaskClass(),
+                metrics.getStatus().toString(), metrics.getStartTime(),
+                metrics.getWallTime() / 1000000,
+                cpuTime < 0 ? -1 : cpuTime / 1000000,
+                metrics.getAllocatedBytes(), metrics.getPeakHeap(),
+                metrics.getProcessedItems(),
+                Math.round(metrics.getItemsPerSecond() * 100) / 100.0,
+                metrics.getReadBytes() });
+    }
+
+    synchronized void write(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            if (file.getName().toLowerCase().endsWith(".json"))
+                writeJSON(writer);
+            else
+                writeCSV(writer);
+            if (writer.checkError())
+                throw new IOException("Could not write " + file);
+        }
+    }
+
+    private void writeCSV(PrintWriter writer) {
+        writer.println(join(FIELDS));
+        for (Object record[] : records)
+            writer.println(join(record));
+    }
+
+    private void writeJSON(PrintWriter writer) {
+        writer.println("[");
+        for (int i = 0; i < records.size(); i++) {
+            Object record[] = records.get(i);
+            StringBuilder line = new StringBuilder("  {");
+            for (int j = 0; j < FIELDS.length; j++) {
+                if (j > 0)
+                    line.append(", ");
+                line.append(quoteJSON(FIELDS[j])).append(": ");
+                // Numbers are written as they are, the rest as strings
+                if (record[j] instanceof Number)
+                    line.append(record[j]);
+                else
+                    line.append(quoteJSON(String.valueOf(record[j])));
+            }
+            line.append(i < records.size() - 1 ? "}," : "}");
+            writer.println(line);
+        }
+        writer.println("]");
+    }
+
+    private static String join(Object values[]) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                line.append(',');
+            if (!(values[i] instanceof Number))
+                line.append(quoteCSV(String.valueOf(values[i])));
+            else
+                line.append(values[i]);
+        }
+        return line.toString();
+    }
+
+    private static String quoteCSV(String value) {
+        if ((value.indexOf(',') < 0) && (value.indexOf('"') < 0)
+                && (value.indexOf('\n') < 0))
+            return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String quoteJSON(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+            case '"':
+                quoted.append("\\\"");
+                break;
+            case '\\':
+                quoted.append("\\\\");
+                break;
+            case '\n':
+                quoted.append("\\n");
+                break;
+            case '\r':
+                quoted.append("\\r");
+                break;
+            case '\t':
+                quoted.append("\\t");
+                break;
+            default:
+                if (c < 0x20)
+                    quoted.append(String.format("\\u%04x", (int) c));
+                else
+                    quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
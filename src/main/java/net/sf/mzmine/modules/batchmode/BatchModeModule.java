@@ -25,6 +25,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -86,6 +87,17 @@ public class BatchModeModule implements MZmineProcessingModule {
 
     public static ExitCode runBatch(@Nonnull MZmineProject project,
 	    File batchFile) {
+	return runBatch(project, batchFile, null);
+    }
+
+    /**
+     * Runs the batch file. If a result file is given, the batch runs as a
+     * worker of another MZmine process: the project is saved to the result
+     * file when the batch is finished, and the batch does not use checkpoints,
+     * worker processes or a metrics report of its own.
+     */
+    public static ExitCode runBatch(@Nonnull MZmineProject project,
+	    File batchFile, @Nullable File resultFile) {
 
 	logger.info("Running batch from file " + batchFile);
 
@@ -95,15 +107,28 @@ public class BatchModeModule implements MZmineProcessingModule {
 	    Document parsedBatchXML = docBuilder.parse(batchFile);
 	    BatchQueue newQueue = BatchQueue.loadFromXml(parsedBatchXML
 		    .getDocumentElement());
-	    ParameterSet parameters = new BatchModeParameters();
+	    // Use the batch mode settings of the configuration, such as the
+	    // checkpoint directory
+	    ParameterSet parameters = MZmineCore.getConfiguration()
+		    .getModuleParameters(BatchModeModule.class)
+		    .cloneParameterSet();
 	    parameters.getParameter(BatchModeParameters.batchQueue).setValue(
 		    newQueue);
-	    Task batchTask = new BatchTask(project, parameters);
+	    if (resultFile != null) {
+		parameters.getParameter(BatchModeParameters.checkpointDirectory)
+			.setValue(false);
+		parameters.getParameter(BatchModeParameters.workerProcesses)
+			.setValue(false);
+		parameters.getParameter(BatchModeParameters.metricsReport)
+			.setValue(false);
+	    }
+	    BatchTask batchTask = new BatchTask(project, parameters);
 	    batchTask.run();
-	    if (batchTask.getStatus() == TaskStatus.FINISHED)
-		return ExitCode.OK;
-	    else
+	    if (batchTask.getStatus() != TaskStatus.FINISHED)
 		return ExitCode.ERROR;
+	    if (resultFile != null)
+		batchTask.saveResult(resultFile);
+	    return ExitCode.OK;
 	} catch (Throwable e) {
 	    logger.log(Level.SEVERE, "Error while running batch", e);
 	    e.printStackTrace();
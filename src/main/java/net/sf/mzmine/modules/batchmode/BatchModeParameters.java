@@ -21,13 +21,37 @@ package net.sf.mzmine.modules.batchmode;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
+import net.sf.mzmine.parameters.parametertypes.filenames.DirectoryParameter;
+import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
 
 public class BatchModeParameters extends SimpleParameterSet {
 
     public static final BatchQueueParameter batchQueue = new BatchQueueParameter();
 
+    public static final OptionalParameter<DirectoryParameter> checkpointDirectory = new OptionalParameter<>(
+	    new DirectoryParameter("Checkpoint directory",
+		    "Directory where the project is saved after each batch step. "
+			    + "A rerun of the batch resumes from the last saved step "
+			    + "whose parameters and inputs did not change."));
+
+    public static final OptionalParameter<IntegerParameter> workerProcesses = new OptionalParameter<>(
+	    new IntegerParameter("Worker processes",
+		    "Number of separate MZmine processes which import and process "
+			    + "the raw data files, when the batch starts with raw data "
+			    + "import followed by steps processing each file on its own",
+		    4, 2, null));
+
+    public static final OptionalParameter<FileNameParameter> metricsReport = new OptionalParameter<>(
+	    new FileNameParameter("Task metrics report",
+		    "File where the run time, CPU time, memory and I/O of each "
+			    + "task are saved when the batch ends, as JSON if the "
+			    + "name ends with .json, otherwise as CSV"));
+
     public BatchModeParameters() {
-	super(new Parameter[] { batchQueue });
+	super(new Parameter[] { batchQueue, checkpointDirectory,
+		workerProcesses, metricsReport });
     }
 
 }
@@ -19,9 +19,15 @@
 
 package net.sf.mzmine.modules.batchmode;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -29,29 +35,67 @@ import net.sf.mzmine.datamodel.MZmineProjectListener;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZminePerFileModule;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskControlListener;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.TaskWrapper;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.ExitCode;
 
 /**
  * Batch mode task
+ * 
+ * Steps of modules which process each file independently (@see
+ * MZminePerFileModule) are processed per file: each file continues with the
+ * next step as soon as its own task is finished. All other steps wait until
+ * all files have finished the previous steps.
  */
 public class BatchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int totalSteps, processedSteps;
+    // Step task which is running in the current thread, to assign the new
+    // data files and peak lists to the file which produced them
+    private static final ThreadLocal<StepTask> currentStepTask = new ThreadLocal<StepTask>();
+
+    private int totalSteps;
+    private double processedSteps;
+
+    // Number of task status changes reported by the task controller, and the
+    // number already seen by waitForTasks(), guarded by this
+    private int taskStatusChanges, seenTaskStatusChanges;
 
     private MZmineProject project;
     private final BatchQueue queue;
 
+    // Checkpoints saved after each step, or null if disabled
+    private final BatchCheckpoints checkpoints;
+
+    // Worker processes for per-file steps, or null if disabled
+    private final BatchWorkers workers;
+
+    // Number of steps processed by the workers, while they are running
+    private volatile int workerSteps;
+
+    // Report of the resource usage of the tasks, or null if disabled
+    private final File metricsReportFile;
+    private final BatchMetricsReport metricsReport;
+
+    // Step numbers of the submitted tasks which are not finished yet,
+    // guarded by this
+    private final Map<Task, Integer> taskSteps = new IdentityHashMap<>();
+
     private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
     private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
 
@@ -64,6 +108,30 @@ public class BatchTask extends AbstractTask {
         createdPeakLists = new ArrayList<>();
         previousCreatedDataFiles = new ArrayList<>();
         previousCreatedPeakLists = new ArrayList<>();
+        if (parameters.getParameter(BatchModeParameters.checkpointDirectory)
+                .getValue()) {
+            checkpoints = new BatchCheckpoints(parameters
+                    .getParameter(BatchModeParameters.checkpointDirectory)
+                    .getEmbeddedParameter().getValue());
+        } else
+            checkpoints = null;
+        if (parameters.getParameter(BatchModeParameters.workerProcesses)
+                .getValue()) {
+            workers = new BatchWorkers(parameters
+                    .getParameter(BatchModeParameters.workerProcesses)
+                    .getEmbeddedParameter().getValue());
+        } else
+            workers = null;
+        if (parameters.getParameter(BatchModeParameters.metricsReport)
+                .getValue()) {
+            metricsReportFile = parameters
+                    .getParameter(BatchModeParameters.metricsReport)
+                    .getEmbeddedParameter().getValue();
+            metricsReport = new BatchMetricsReport();
+        } else {
+            metricsReportFile = null;
+            metricsReport = null;
+        }
     }
 
     public void run() {
@@ -75,41 +143,199 @@ public class BatchTask extends AbstractTask {
         MZmineProjectListener listener = new MZmineProjectListener() {
             @Override
             public void peakListAdded(PeakList newPeakList) {
-                createdPeakLists.add(newPeakList);
+                StepTask stepTask = currentStepTask.get();
+                if ((stepTask != null) && (stepTask.getBatchTask() == BatchTask.this)) {
+                    stepTask.addPeakList(newPeakList);
+                    return;
+                }
+                synchronized (BatchTask.this) {
+                    createdPeakLists.add(newPeakList);
+                }
             }
 
             @Override
             public void dataFileAdded(RawDataFile newFile) {
-                createdDataFiles.add(newFile);
+                StepTask stepTask = currentStepTask.get();
+                if ((stepTask != null) && (stepTask.getBatchTask() == BatchTask.this)) {
+                    stepTask.addDataFile(newFile);
+                    return;
+                }
+                synchronized (BatchTask.this) {
+                    createdDataFiles.add(newFile);
+                }
             }
         };
         project.addProjectListener(listener);
 
+        // Wake up the batch whenever a task is started or finished
+        TaskControlListener taskListener = new TaskControlListener() {
+            @Override
+            public void numberOfWaitingTasksChanged(int numOfTasks) {
+            }
+
+            @Override
+            public void taskStatusChanged(Task task, TaskStatus newStatus) {
+                synchronized (BatchTask.this) {
+                    taskStatusChanges++;
+                    BatchTask.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void taskFinished(Task task, TaskMetrics metrics) {
+                Integer stepNumber;
+                synchronized (BatchTask.this) {
+                    stepNumber = taskSteps.remove(task);
+                }
+                if ((stepNumber != null) && (metricsReport != null))
+                    metricsReport.add(stepNumber, queue.get(stepNumber)
+                            .getModule().getName(), metrics);
+            }
+        };
+        MZmineCore.getTaskController().addTaskControlListener(taskListener);
+
+        try {
+            processSteps(listener);
+        } finally {
+            MZmineCore.getTaskController().removeTaskControlListener(
+                    taskListener);
+            project.removeProjectListener(listener);
+            writeMetricsReport();
+        }
+
+        if (isCanceled() || (getStatus() == TaskStatus.ERROR))
+            return;
+
+        logger.info("Finished a batch of " + totalSteps + " steps");
+        setStatus(TaskStatus.FINISHED);
+
+    }
+
+    private void processSteps(MZmineProjectListener listener) {
+
+        // Skip the steps saved in a valid checkpoint
+        int i = 0;
+        String stepKeys[] = null;
+        if (checkpoints != null) {
+            try {
+                stepKeys = checkpoints.getStepKeys(project, queue);
+                i = resumeFromCheckpoint(stepKeys);
+            } catch (IOException e) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("Could not resume the batch from checkpoint: "
+                        + ExceptionUtils.exceptionToString(e));
+                return;
+            }
+            updateProject(listener);
+        }
+
         // Process individual batch steps
-        for (int i = 0; i < totalSteps; i++) {
+        while (i < totalSteps) {
+
+            if (isPerFileStep(i)) {
+                // Process all following per-file steps together
+                int lastStep = i + 1;
+                while ((lastStep < totalSteps) && isPerFileStep(lastStep)
+                        && !isSourceStep(lastStep))
+                    lastStep++;
+                processPerFileSteps(i, lastStep);
+                i = lastStep;
+            } else {
+                processQueueStep(i);
+                processedSteps++;
+                i++;
+            }
 
-            processQueueStep(i);
-            processedSteps++;
-            
             // Update the project reference in case new project was loaded
-            if (project != MZmineCore.getProjectManager().getCurrentProject()) {
-              project.removeProjectListener(listener);
-              project = MZmineCore.getProjectManager().getCurrentProject();
-              project.addProjectListener(listener);
-            }
+            updateProject(listener);
 
             // If we are canceled or ran into error, stop here
             if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
                 return;
             }
 
+            if (checkpoints != null)
+                saveCheckpoint(i - 1, stepKeys[i - 1]);
+
         }
 
-        project.removeProjectListener(listener);
+    }
 
-        logger.info("Finished a batch of " + totalSteps + " steps");
-        setStatus(TaskStatus.FINISHED);
+    /**
+     * Moves the project listener to the current project, if another project
+     * was loaded by a batch step or from a checkpoint
+     */
+    private void updateProject(MZmineProjectListener listener) {
+        if (project != MZmineCore.getProjectManager().getCurrentProject()) {
+            project.removeProjectListener(listener);
+            project = MZmineCore.getProjectManager().getCurrentProject();
+            project.addProjectListener(listener);
+        }
+    }
+
+    /**
+     * Loads the checkpoint of the last step which can be skipped, if any
+     * 
+     * @return Number of the first step to process
+     */
+    private int resumeFromCheckpoint(String stepKeys[]) throws IOException {
+
+        int i = checkpoints.getLastValidStep(stepKeys);
+        if (i < 0)
+            return 0;
+
+        List<RawDataFile> dataFiles = new ArrayList<>(), previousDataFiles = new ArrayList<>();
+        List<PeakList> peakLists = new ArrayList<>(), previousPeakLists = new ArrayList<>();
+        checkpoints.load(i, stepKeys[i], dataFiles, peakLists,
+                previousDataFiles, previousPeakLists);
+
+        synchronized (this) {
+            createdDataFiles.addAll(dataFiles);
+            createdPeakLists.addAll(peakLists);
+            previousCreatedDataFiles.addAll(previousDataFiles);
+            previousCreatedPeakLists.addAll(previousPeakLists);
+        }
+        processedSteps = i + 1;
+        return i + 1;
+
+    }
+
+    /**
+     * Saves a checkpoint after given step. A failed checkpoint does not stop
+     * the batch, the step is only processed again in the next run.
+     */
+    private void saveCheckpoint(int stepNumber, String stepKey) {
+        List<RawDataFile> dataFiles, previousDataFiles;
+        List<PeakList> peakLists, previousPeakLists;
+        synchronized (this) {
+            dataFiles = new ArrayList<>(createdDataFiles);
+            peakLists = new ArrayList<>(createdPeakLists);
+            previousDataFiles = new ArrayList<>(previousCreatedDataFiles);
+            previousPeakLists = new ArrayList<>(previousCreatedPeakLists);
+        }
+        try {
+            checkpoints.save(project, stepNumber, stepKey, dataFiles,
+                    peakLists, previousDataFiles, previousPeakLists);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save checkpoint of step # "
+                    + (stepNumber + 1), e);
+        }
+    }
 
+    /**
+     * Waits until the task controller reports that any task was started or
+     * finished since the last call. The timeout is only a safety net, all
+     * tasks run through the task controller.
+     */
+    private synchronized void waitForTasks() {
+        if (taskStatusChanges == seenTaskStatusChanges) {
+            try {
+                this.wait(1000);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+        seenTaskStatusChanges = taskStatusChanges;
     }
 
     private void processQueueStep(int stepNumber) {
@@ -122,43 +348,342 @@ public class BatchTask extends AbstractTask {
                 .getModule();
         ParameterSet batchStepParameters = currentStep.getParameterSet();
 
-        // If the last step did not produce any data files or peak lists, use
-        // the ones from the previous step
-        if (createdDataFiles.isEmpty())
-            createdDataFiles.addAll(previousCreatedDataFiles);
-        if (createdPeakLists.isEmpty())
-            createdPeakLists.addAll(previousCreatedPeakLists);
+        ArrayList<Task> currentStepTasks = new ArrayList<Task>();
 
-        // Update the RawDataFilesParameter parameters to reflect the current
-        // state of the batch
-        for (Parameter<?> p : batchStepParameters.getParameters()) {
-            if (p instanceof RawDataFilesParameter) {
-                RawDataFilesParameter rdp = (RawDataFilesParameter) p;
-                RawDataFile createdFiles[] = createdDataFiles
-                        .toArray(new RawDataFile[0]);
-                rdp.getValue().setBatchLastFiles(createdFiles);
+        synchronized (this) {
+
+            // If the last step did not produce any data files or peak lists,
+            // use the ones from the previous step
+            if (createdDataFiles.isEmpty())
+                createdDataFiles.addAll(previousCreatedDataFiles);
+            if (createdPeakLists.isEmpty())
+                createdPeakLists.addAll(previousCreatedPeakLists);
+
+            // Update the RawDataFilesParameter and PeakListsParameter
+            // parameters to reflect the current state of the batch
+            setBatchLastItems(batchStepParameters, createdDataFiles,
+                    createdPeakLists);
+
+            // Clear the saved data files and peak lists. Save them to the
+            // "previous" lists, in case the next step does not produce any
+            // new data
+            previousCreatedDataFiles.clear();
+            previousCreatedDataFiles.addAll(createdDataFiles);
+            previousCreatedPeakLists.clear();
+            previousCreatedPeakLists.addAll(createdPeakLists);
+            createdDataFiles.clear();
+            createdPeakLists.clear();
+
+        }
+
+        if (!runModule(method, batchStepParameters, currentStepTasks))
+            return;
+
+        // If current step didn't produce any tasks, continue with next step
+        if (currentStepTasks.isEmpty())
+            return;
+
+        boolean allTasksFinished = false;
+
+        // Submit the tasks to the task controller for processing
+        registerTasks(stepNumber, currentStepTasks);
+        MZmineCore.getTaskController()
+                .addTasks(currentStepTasks.toArray(new Task[0]));
+
+        while (!allTasksFinished) {
+
+            // If we canceled the batch, cancel all running tasks
+            if (isCanceled()) {
+                for (Task stepTask : currentStepTasks)
+                    stepTask.cancel();
+                return;
             }
+
+            // Check all tasks, stop if any of them failed
+            allTasksFinished = checkTasks(currentStepTasks);
+            if (getStatus() != TaskStatus.PROCESSING)
+                return;
+
+            // Wait for the task controller before checking the tasks again
+            if (!allTasksFinished)
+                waitForTasks();
+
         }
 
-        // Update the PeakListsParameter parameters to reflect the current
-        // state of the batch
-        for (Parameter<?> p : batchStepParameters.getParameters()) {
-            if (p instanceof PeakListsParameter) {
-                PeakListsParameter rdp = (PeakListsParameter) p;
-                PeakList createdPls[] = createdPeakLists
-                        .toArray(new PeakList[0]);
-                rdp.getValue().setBatchLastPeakLists(createdPls);
+    }
+
+    /**
+     * Processes a sequence of per-file steps. The data files and peak lists
+     * of the previous step are split by raw data file, and each file runs
+     * through the steps on its own. If the first step is a source step (such
+     * as raw data import), each of its tasks starts a new file. At the end,
+     * the data files and peak lists of all files are collected for the next
+     * step.
+     */
+    private void processPerFileSteps(int firstStep, int lastStep) {
+
+        if (isSourceStep(firstStep) && (workers != null)
+                && workers.canSplit(queue.get(firstStep))) {
+            processWorkerSteps(firstStep, lastStep);
+            return;
+        }
+
+        logger.info("Starting steps # " + (firstStep + 1) + " - " + lastStep
+                + " for each file");
+
+        final List<FileLane> lanes = new ArrayList<FileLane>();
+        final List<StepTask> sourceTasks = new ArrayList<StepTask>();
+        final List<StepTask> runningSourceTasks = new ArrayList<StepTask>();
+        final int stepCount = lastStep - firstStep;
+
+        if (isSourceStep(firstStep)) {
+
+            // Source steps do not have any input files, they are started once
+            ParameterSet parameters = queue.get(firstStep).getParameterSet()
+                    .cloneParameterSet();
+            if (!startStepTasks(firstStep, parameters, sourceTasks)) {
+                return;
+            }
+            if (sourceTasks.isEmpty())
+                processedSteps += stepCount;
+            runningSourceTasks.addAll(sourceTasks);
+
+        } else {
+
+            synchronized (this) {
+                if (createdDataFiles.isEmpty())
+                    createdDataFiles.addAll(previousCreatedDataFiles);
+                if (createdPeakLists.isEmpty())
+                    createdPeakLists.addAll(previousCreatedPeakLists);
+                lanes.addAll(FileLane.splitByFile(createdDataFiles,
+                        createdPeakLists, firstStep));
+                previousCreatedDataFiles.clear();
+                previousCreatedPeakLists.clear();
+                createdDataFiles.clear();
+                createdPeakLists.clear();
+            }
+
+            if (lanes.isEmpty())
+                processedSteps += stepCount;
+
+        }
+
+        final int laneCount = Math.max(1,
+                isSourceStep(firstStep) ? sourceTasks.size() : lanes.size());
+
+        while (true) {
+
+            // If we canceled the batch, cancel all running tasks
+            if (isCanceled()) {
+                cancelTasks(sourceTasks, lanes);
+                return;
+            }
+
+            // Start a new file for each finished task of the source step
+            checkTasks(sourceTasks);
+            if (getStatus() != TaskStatus.PROCESSING) {
+                cancelTasks(sourceTasks, lanes);
+                return;
+            }
+            Iterator<StepTask> sourceIterator = runningSourceTasks.iterator();
+            while (sourceIterator.hasNext()) {
+                StepTask sourceTask = sourceIterator.next();
+                if (sourceTask.getStatus() != TaskStatus.FINISHED)
+                    continue;
+                sourceIterator.remove();
+                lanes.add(new FileLane(sourceTask.getDataFiles(),
+                        sourceTask.getPeakLists(), firstStep + 1));
+                processedSteps += 1.0 / laneCount;
+            }
+
+            // Check the running steps of all files, and start their next steps
+            boolean allLanesFinished = true;
+            for (FileLane lane : lanes) {
+
+                if (!lane.runningTasks.isEmpty()) {
+                    boolean stepFinished = checkTasks(lane.runningTasks);
+                    if (getStatus() != TaskStatus.PROCESSING) {
+                        cancelTasks(sourceTasks, lanes);
+                        return;
+                    }
+                    if (!stepFinished)
+                        allLanesFinished = false;
+                    else {
+                        lane.finishStep();
+                        processedSteps += 1.0 / laneCount;
+                    }
+                }
+
+                while (lane.runningTasks.isEmpty()
+                        && (lane.nextStep < lastStep)) {
+                    ParameterSet parameters = queue.get(lane.nextStep)
+                            .getParameterSet().cloneParameterSet();
+                    lane.startStep(parameters);
+                    if (!startStepTasks(lane.nextStep, parameters,
+                            lane.runningTasks)) {
+                        cancelTasks(sourceTasks, lanes);
+                        return;
+                    }
+                    if (lane.runningTasks.isEmpty()) {
+                        // Step did not produce any tasks, continue with the
+                        // next step
+                        lane.finishStep();
+                        processedSteps += 1.0 / laneCount;
+                    } else
+                        allLanesFinished = false;
+                }
+
             }
+
+            if (allLanesFinished && runningSourceTasks.isEmpty())
+                break;
+
+            // Wait until any task is started or finished
+            waitForTasks();
+
         }
 
-        // Clear the saved data files and peak lists. Save them to the
-        // "previous" lists, in case the next step does not produce any new data
-        previousCreatedDataFiles.clear();
-        previousCreatedDataFiles.addAll(createdDataFiles);
-        previousCreatedPeakLists.clear();
-        previousCreatedPeakLists.addAll(createdPeakLists);
-        createdDataFiles.clear();
-        createdPeakLists.clear();
+        // Collect the results of all files for the following steps
+        synchronized (this) {
+            for (FileLane lane : lanes) {
+                createdDataFiles.addAll(lane.dataFiles);
+                createdPeakLists.addAll(lane.peakLists);
+                previousCreatedDataFiles.addAll(lane.previousDataFiles);
+                previousCreatedPeakLists.addAll(lane.previousPeakLists);
+            }
+        }
+
+    }
+
+    /**
+     * Processes a sequence of per-file steps, which starts with a source step,
+     * in worker processes. The results of the workers are added to the
+     * project.
+     */
+    private void processWorkerSteps(int firstStep, int lastStep) {
+
+        logger.info("Starting steps # " + (firstStep + 1) + " - " + lastStep
+                + " in worker processes");
+
+        // Items loaded from the workers are added to the created lists by
+        // the project listener, they are replaced by the items the workers
+        // created in their last step
+        int dataFileCount, peakListCount;
+        synchronized (this) {
+            dataFileCount = createdDataFiles.size();
+            peakListCount = createdPeakLists.size();
+        }
+
+        List<RawDataFile> dataFiles = new ArrayList<>(), previousDataFiles = new ArrayList<>();
+        List<PeakList> peakLists = new ArrayList<>(), previousPeakLists = new ArrayList<>();
+
+        workerSteps = lastStep - firstStep;
+        try {
+            if (!workers.run(project, queue.subList(firstStep, lastStep),
+                    this, dataFiles, peakLists, previousDataFiles,
+                    previousPeakLists))
+                return;
+        } catch (IOException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage("Error in batch worker processes: "
+                    + ExceptionUtils.exceptionToString(e));
+            return;
+        } finally {
+            processedSteps += workerSteps;
+            workerSteps = 0;
+        }
+
+        synchronized (this) {
+            createdDataFiles.subList(dataFileCount, createdDataFiles.size())
+                    .clear();
+            createdPeakLists.subList(peakListCount, createdPeakLists.size())
+                    .clear();
+            createdDataFiles.addAll(dataFiles);
+            createdPeakLists.addAll(peakLists);
+            previousCreatedDataFiles.addAll(previousDataFiles);
+            previousCreatedPeakLists.addAll(previousPeakLists);
+        }
+
+    }
+
+    /**
+     * Remembers the step of given tasks, to assign their metrics to the step
+     */
+    private synchronized void registerTasks(int stepNumber,
+            List<? extends Task> tasks) {
+        if (metricsReport == null)
+            return;
+        for (Task task : tasks)
+            taskSteps.put(task, stepNumber);
+    }
+
+    /**
+     * Writes the resource usage of the tasks finished so far. A failed
+     * report does not change the status of the batch.
+     */
+    private void writeMetricsReport() {
+        if (metricsReport == null)
+            return;
+        try {
+            metricsReport.write(metricsReportFile);
+            logger.info("Saved task metrics report to " + metricsReportFile);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save task metrics report to "
+                    + metricsReportFile, e);
+        }
+    }
+
+    /**
+     * Saves the project and the items created by the last steps, when the
+     * batch runs as a worker of another MZmine process
+     */
+    void saveResult(File resultFile) throws IOException {
+        List<RawDataFile> dataFiles, previousDataFiles;
+        List<PeakList> peakLists, previousPeakLists;
+        synchronized (this) {
+            dataFiles = new ArrayList<>(createdDataFiles);
+            peakLists = new ArrayList<>(createdPeakLists);
+            previousDataFiles = new ArrayList<>(previousCreatedDataFiles);
+            previousPeakLists = new ArrayList<>(previousCreatedPeakLists);
+        }
+        BatchCheckpoints.saveState(project, resultFile, dataFiles, peakLists,
+                previousDataFiles, previousPeakLists);
+    }
+
+    /**
+     * Runs the module of given step and submits its tasks, each wrapped in a
+     * StepTask
+     * 
+     * @return False if the module could not be started
+     */
+    private boolean startStepTasks(int stepNumber, ParameterSet parameters,
+            List<StepTask> stepTasks) {
+
+        MZmineProcessingModule method = (MZmineProcessingModule) queue
+                .get(stepNumber).getModule();
+        ArrayList<Task> moduleTasks = new ArrayList<Task>();
+        if (!runModule(method, parameters, moduleTasks))
+            return false;
+
+        for (Task moduleTask : moduleTasks)
+            stepTasks.add(new StepTask(moduleTask));
+        registerTasks(stepNumber, stepTasks);
+        if (!stepTasks.isEmpty())
+            MZmineCore.getTaskController()
+                    .addTasks(stepTasks.toArray(new Task[0]));
+        return true;
+
+    }
+
+    /**
+     * Checks the parameters and runs the module, which adds its tasks to the
+     * given list
+     * 
+     * @return False if the parameters are invalid or the module could not be
+     *         started
+     */
+    private boolean runModule(MZmineProcessingModule method,
+            ParameterSet batchStepParameters, List<Task> currentStepTasks) {
 
         // Check if the parameter settings are valid
         ArrayList<String> messages = new ArrayList<String>();
@@ -169,78 +694,134 @@ public class BatchTask extends AbstractTask {
             setErrorMessage(
                     "Invalid parameter settings for module " + method.getName()
                             + ": " + Arrays.toString(messages.toArray()));
+            return false;
         }
 
-        ArrayList<Task> currentStepTasks = new ArrayList<Task>();
         ExitCode exitCode = method.runModule(project, batchStepParameters,
                 currentStepTasks);
 
         if (exitCode != ExitCode.OK) {
             setStatus(TaskStatus.ERROR);
             setErrorMessage("Could not start batch step " + method.getName());
-            return;
+            return false;
         }
 
-        // If current step didn't produce any tasks, continue with next step
-        if (currentStepTasks.isEmpty())
-            return;
+        return true;
 
-        boolean allTasksFinished = false;
+    }
 
-        // Submit the tasks to the task controller for processing
-        MZmineCore.getTaskController()
-                .addTasks(currentStepTasks.toArray(new Task[0]));
+    /**
+     * Checks the status of the tasks of a step. If any of them failed or was
+     * canceled, the whole batch is stopped.
+     * 
+     * @return True if all tasks are finished
+     */
+    private boolean checkTasks(List<? extends Task> stepTasks) {
 
-        while (!allTasksFinished) {
+        boolean allTasksFinished = true;
 
-            // If we canceled the batch, cancel all running tasks
-            if (isCanceled()) {
-                for (Task stepTask : currentStepTasks)
-                    stepTask.cancel();
-                return;
+        for (Task stepTask : stepTasks) {
+
+            TaskStatus stepStatus = stepTask.getStatus();
+
+            // If any of them is not finished, keep checking
+            if (stepStatus != TaskStatus.FINISHED)
+                allTasksFinished = false;
+
+            // If there was an error, we have to stop the whole batch
+            if (stepStatus == TaskStatus.ERROR) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage(stepTask.getTaskDescription() + ": "
+                        + stepTask.getErrorMessage());
+                return false;
             }
 
-            // First set to true, then check all tasks
-            allTasksFinished = true;
+            // If user canceled any of the tasks, we have to cancel the
+            // whole batch
+            if (stepStatus == TaskStatus.CANCELED) {
+                setStatus(TaskStatus.CANCELED);
+                for (Task t : stepTasks)
+                    t.cancel();
+                return false;
+            }
 
-            for (Task stepTask : currentStepTasks) {
+        }
 
-                TaskStatus stepStatus = stepTask.getStatus();
+        return allTasksFinished;
 
-                // If any of them is not finished, keep checking
-                if (stepStatus != TaskStatus.FINISHED)
-                    allTasksFinished = false;
+    }
 
-                // If there was an error, we have to stop the whole batch
-                if (stepStatus == TaskStatus.ERROR) {
-                    setStatus(TaskStatus.ERROR);
-                    setErrorMessage(stepTask.getTaskDescription() + ": "
-                            + stepTask.getErrorMessage());
-                    return;
-                }
+    private void cancelTasks(List<StepTask> sourceTasks, List<FileLane> lanes) {
+        for (Task t : sourceTasks)
+            t.cancel();
+        for (FileLane lane : lanes)
+            for (Task t : lane.runningTasks)
+                t.cancel();
+    }
 
-                // If user canceled any of the tasks, we have to cancel the
-                // whole batch
-                if (stepStatus == TaskStatus.CANCELED) {
-                    setStatus(TaskStatus.CANCELED);
-                    for (Task t : currentStepTasks)
-                        t.cancel();
-                    return;
-                }
+    /**
+     * @return True if the module of given step processes each file on its
+     *         own, and the step uses only the files of the previous step
+     */
+    private boolean isPerFileStep(int stepNumber) {
 
-            }
+        MZmineProcessingStep<?> step = queue.get(stepNumber);
+        if (!(step.getModule() instanceof MZminePerFileModule))
+            return false;
 
-            // Wait 1s before checking the tasks again
-            if (!allTasksFinished) {
-                synchronized (this) {
-                    try {
-                        this.wait(1000);
-                    } catch (InterruptedException e) {
-                        // ignore
-                    }
-                }
+        for (Parameter<?> p : step.getParameterSet().getParameters()) {
+            if (p instanceof RawDataFilesParameter) {
+                RawDataFilesParameter rdp = (RawDataFilesParameter) p;
+                if ((rdp.getValue() == null) || (rdp.getValue()
+                        .getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+                    return false;
             }
+            if (p instanceof PeakListsParameter) {
+                PeakListsParameter plp = (PeakListsParameter) p;
+                if ((plp.getValue() == null) || (plp.getValue()
+                        .getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+                    return false;
+            }
+        }
+        return true;
+
+    }
+
+    /**
+     * @return True if given per-file step does not process any existing data
+     *         files or peak lists, such as raw data import
+     */
+    private boolean isSourceStep(int stepNumber) {
+
+        for (Parameter<?> p : queue.get(stepNumber).getParameterSet()
+                .getParameters()) {
+            if ((p instanceof RawDataFilesParameter)
+                    || (p instanceof PeakListsParameter))
+                return false;
+        }
+        return true;
+
+    }
+
+    /**
+     * Sets the data files and peak lists created by the previous batch step to
+     * the RawDataFilesParameter and PeakListsParameter parameters
+     */
+    private static void setBatchLastItems(ParameterSet parameters,
+            List<RawDataFile> dataFiles, List<PeakList> peakLists) {
 
+        for (Parameter<?> p : parameters.getParameters()) {
+            if (p instanceof RawDataFilesParameter) {
+                RawDataFilesParameter rdp = (RawDataFilesParameter) p;
+                RawDataFile createdFiles[] = dataFiles
+                        .toArray(new RawDataFile[0]);
+                rdp.getValue().setBatchLastFiles(createdFiles);
+            }
+            if (p instanceof PeakListsParameter) {
+                PeakListsParameter rdp = (PeakListsParameter) p;
+                PeakList createdPls[] = peakLists.toArray(new PeakList[0]);
+                rdp.getValue().setBatchLastPeakLists(createdPls);
+            }
         }
 
     }
@@ -248,11 +829,172 @@ public class BatchTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalSteps == 0)
             return 0;
-        return (double) processedSteps / totalSteps;
+        double steps = processedSteps;
+        if (workerSteps > 0)
+            steps += workers.getProgress() * workerSteps;
+        return Math.min(1, steps / totalSteps);
     }
 
     public String getTaskDescription() {
         return "Batch of " + totalSteps + " steps";
     }
 
+    /**
+     * Data files and peak lists of one file, which run through a sequence of
+     * per-file steps. Same as the batch itself, each step processes the items
+     * created by the previous step, or the items of the step before if the
+     * previous step did not create any.
+     */
+    private static class FileLane {
+
+        private final List<RawDataFile> dataFiles = new ArrayList<>(),
+                previousDataFiles = new ArrayList<>();
+        private final List<PeakList> peakLists = new ArrayList<>(),
+                previousPeakLists = new ArrayList<>();
+        private final List<StepTask> runningTasks = new ArrayList<>();
+        private int nextStep;
+
+        FileLane(List<RawDataFile> dataFiles, List<PeakList> peakLists,
+                int nextStep) {
+            this.dataFiles.addAll(dataFiles);
+            this.peakLists.addAll(peakLists);
+            this.nextStep = nextStep;
+        }
+
+        /**
+         * Splits the items into one lane per raw data file. Peak lists of a
+         * single raw data file join the lane of that file, all other peak lists
+         * get their own lane.
+         */
+        static List<FileLane> splitByFile(List<RawDataFile> dataFiles,
+                List<PeakList> peakLists, int nextStep) {
+            List<FileLane> lanes = new ArrayList<>();
+            List<PeakList> noPeakLists = new ArrayList<>();
+            List<RawDataFile> noDataFiles = new ArrayList<>();
+            for (RawDataFile dataFile : dataFiles)
+                lanes.add(new FileLane(Arrays.asList(dataFile), noPeakLists,
+                        nextStep));
+            peakListLoop: for (PeakList peakList : peakLists) {
+                RawDataFile peakListFiles[] = peakList.getRawDataFiles();
+                if (peakListFiles.length == 1) {
+                    for (int i = 0; i < dataFiles.size(); i++) {
+                        if (dataFiles.get(i) == peakListFiles[0]) {
+                            lanes.get(i).peakLists.add(peakList);
+                            continue peakListLoop;
+                        }
+                    }
+                }
+                lanes.add(new FileLane(noDataFiles, Arrays.asList(peakList),
+                        nextStep));
+            }
+            return lanes;
+        }
+
+        /**
+         * Sets the items of this file to the parameters of the next step
+         */
+        void startStep(ParameterSet parameters) {
+            if (dataFiles.isEmpty())
+                dataFiles.addAll(previousDataFiles);
+            if (peakLists.isEmpty())
+                peakLists.addAll(previousPeakLists);
+            setBatchLastItems(parameters, dataFiles, peakLists);
+            previousDataFiles.clear();
+            previousDataFiles.addAll(dataFiles);
+            previousPeakLists.clear();
+            previousPeakLists.addAll(peakLists);
+            dataFiles.clear();
+            peakLists.clear();
+        }
+
+        /**
+         * Collects the items created by the tasks of the step
+         */
+        void finishStep() {
+            for (StepTask t : runningTasks) {
+                dataFiles.addAll(t.getDataFiles());
+                peakLists.addAll(t.getPeakLists());
+            }
+            runningTasks.clear();
+            nextStep++;
+        }
+
+    }
+
+    /**
+     * Task of a per-file step. Runs the task of the module, records the data
+     * files and peak lists it adds to the project.
+     */
+    private class StepTask implements TaskWrapper {
+
+        private final Task task;
+        private final List<RawDataFile> dataFiles = new ArrayList<>();
+        private final List<PeakList> peakLists = new ArrayList<>();
+
+        StepTask(Task task) {
+            this.task = task;
+        }
+
+        BatchTask getBatchTask() {
+            return BatchTask.this;
+        }
+
+        @Override
+        public Task getWrappedTask() {
+            return task;
+        }
+
+        synchronized void addDataFile(RawDataFile dataFile) {
+            dataFiles.add(dataFile);
+        }
+
+        synchronized void addPeakList(PeakList peakList) {
+            peakLists.add(peakList);
+        }
+
+        synchronized List<RawDataFile> getDataFiles() {
+            return new ArrayList<>(dataFiles);
+        }
+
+        synchronized List<PeakList> getPeakLists() {
+            return new ArrayList<>(peakLists);
+        }
+
+        @Override
+        public void run() {
+            currentStepTask.set(this);
+            try {
+                task.run();
+            } finally {
+                currentStepTask.remove();
+            }
+        }
+
+        @Override
+        public String getTaskDescription() {
+            return task.getTaskDescription();
+        }
+
+        @Override
+        public double getFinishedPercentage() {
+            return task.getFinishedPercentage();
+        }
+
+        @Override
+        public TaskStatus getStatus() {
+            return task.getStatus();
+        }
+
+        @Override
+        public String getErrorMessage() {
+            return task.getErrorMessage();
+        }
+
+        @Override
+        public void cancel() {
+            task.cancel();
+        }
+
+    }
+
 }
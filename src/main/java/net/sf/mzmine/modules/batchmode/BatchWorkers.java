@@ -0,0 +1,405 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.impl.MZmineProcessingStepImpl;
+import net.sf.mzmine.modules.projectmethods.projectload.ProjectOpeningTask;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.filenames.FileNamesParameter;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Runs a sequence of per-file steps, starting with a source step such as raw
+ * data import, in several worker processes. The input files of the source step
+ * are split among the workers. Each worker is a separate MZmine JVM running a
+ * batch file with its share of the steps, and saves its project when it is
+ * done. The coordinator then adds the data files and peak lists of all
+ * workers to the current project.
+ * 
+ * Workers communicate only through files in a temporary directory, which is
+ * removed when all workers succeeded. If a worker fails, the directory is kept
+ * for its log.
+ */
+class BatchWorkers {
+
+    // Interval of checking the worker processes, Java 7 can not wait for a
+    // process with a timeout
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * System property which sets the number of threads of each worker. By
+     * default, the number of threads in the preferences is split among the
+     * workers.
+     */
+    static final String WORKER_THREADS_PROPERTY = "mzmine.batch.workerThreads";
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final int maxWorkers;
+
+    private int totalWorkers, finishedWorkers;
+
+    BatchWorkers(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * @return True if the input files of given source step can be split among
+     *         at least two workers
+     */
+    boolean canSplit(MZmineProcessingStep<?> sourceStep) {
+        if (maxWorkers < 2)
+            return false;
+        FileNamesParameter parameter = getFileNamesParameter(sourceStep
+                .getParameterSet());
+        return (parameter != null) && (parameter.getValue() != null)
+                && (parameter.getValue().length > 1);
+    }
+
+    /**
+     * @return Number of finished workers divided by the number of started
+     *         workers
+     */
+    synchronized double getProgress() {
+        if (totalWorkers == 0)
+            return 0;
+        return (double) finishedWorkers / totalWorkers;
+    }
+
+    /**
+     * Runs the given steps of the queue in worker processes, and adds the
+     * results to the project. The lists are filled with the items created by
+     * the last step, and by the steps before, like in a single process batch.
+     * 
+     * @return False if the task was canceled
+     */
+    boolean run(MZmineProject project, List<MZmineProcessingStep<MZmineProcessingModule>> steps,
+            AbstractTask task, List<RawDataFile> createdDataFiles,
+            List<PeakList> createdPeakLists,
+            List<RawDataFile> previousCreatedDataFiles,
+            List<PeakList> previousCreatedPeakLists) throws IOException {
+
+        MZmineProcessingStep<MZmineProcessingModule> sourceStep = steps.get(0);
+        File inputFiles[] = getFileNamesParameter(sourceStep.getParameterSet())
+                .getValue();
+        int numOfWorkers = Math.min(maxWorkers, inputFiles.length);
+        int workerThreads = getWorkerThreads(numOfWorkers);
+
+        File workDirectory = Files.createTempDirectory("mzmine_batch_workers")
+                .toFile();
+        logger.info("Running " + steps.size() + " batch steps for "
+                + inputFiles.length + " files in " + numOfWorkers
+                + " worker processes with " + workerThreads
+                + " threads each, working directory " + workDirectory);
+
+        // The working directory is only kept if a worker failed, for its log
+        boolean workerFailed = false;
+        try {
+
+            List<Process> processes = new ArrayList<Process>();
+            List<File> resultFiles = new ArrayList<File>();
+            List<File> logFiles = new ArrayList<File>();
+
+            try {
+
+                for (int i = 0; i < numOfWorkers; i++) {
+
+                    // Every numOfWorkers-th file, so that large and small files
+                    // named in sequence are spread evenly
+                    List<File> workerFiles = new ArrayList<File>();
+                    for (int j = i; j < inputFiles.length; j += numOfWorkers)
+                        workerFiles.add(inputFiles[j]);
+
+                    BatchQueue workerQueue = new BatchQueue();
+                    for (MZmineProcessingStep<MZmineProcessingModule> step : steps) {
+                        ParameterSet parameters = step.getParameterSet()
+                                .cloneParameterSet();
+                        if (step == sourceStep)
+                            getFileNamesParameter(parameters).setValue(
+                                    workerFiles.toArray(new File[0]));
+                        workerQueue
+                                .add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
+                                        step.getModule(), parameters));
+                    }
+
+                    String workerName = "Worker " + (i + 1);
+                    File batchFile = new File(workDirectory, workerName
+                            + ".xml");
+                    File resultFile = new File(workDirectory, workerName
+                            + BatchCheckpoints.PROJECT_EXTENSION);
+                    File logFile = new File(workDirectory, workerName + ".log");
+                    saveBatchFile(workerQueue, batchFile);
+
+                    processes.add(startWorker(batchFile, resultFile, logFile,
+                            workerThreads));
+                    resultFiles.add(resultFile);
+                    logFiles.add(logFile);
+
+                }
+
+                synchronized (this) {
+                    totalWorkers = numOfWorkers;
+                    finishedWorkers = 0;
+                }
+
+                if (!waitForWorkers(processes, logFiles, task))
+                    return false;
+
+            } finally {
+                // Stop the workers if the batch was canceled or failed
+                for (Process process : processes)
+                    process.destroy();
+                for (Process process : processes) {
+                    try {
+                        process.waitFor();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+            }
+
+            // Add the results of the workers to the project
+            for (File resultFile : resultFiles) {
+
+                if (task.isCanceled())
+                    return false;
+
+                int dataFileCount = project.getDataFiles().length;
+                int peakListCount = project.getPeakLists().length;
+
+                BatchCheckpoints.runTask(new ProjectOpeningTask(resultFile,
+                        (MZmineProjectImpl) project));
+
+                RawDataFile dataFiles[] = project.getDataFiles();
+                PeakList peakLists[] = project.getPeakLists();
+                BatchCheckpoints.readItems(resultFile, Arrays.copyOfRange(
+                        dataFiles, dataFileCount, dataFiles.length),
+                        Arrays.copyOfRange(peakLists, peakListCount,
+                                peakLists.length), createdDataFiles, createdPeakLists,
+                        previousCreatedDataFiles, previousCreatedPeakLists);
+
+            }
+
+            return true;
+
+        } catch (WorkerFailedException e) {
+            workerFailed = true;
+            throw e;
+        } finally {
+            if (!workerFailed)
+                deleteDirectory(workDirectory);
+        }
+
+    }
+
+    /**
+     * @return Number of threads of each worker, the WORKER_THREADS_PROPERTY
+     *         system property if it is set, otherwise the number of threads in
+     *         the preferences divided by the number of workers
+     */
+    private static int getWorkerThreads(int numOfWorkers) {
+        Integer workerThreads = Integer.getInteger(WORKER_THREADS_PROPERTY);
+        if ((workerThreads != null) && (workerThreads > 0))
+            return workerThreads;
+        int numOfThreads = Runtime.getRuntime().availableProcessors();
+        if (MZmineCore.getConfiguration() != null)
+            numOfThreads = MZmineCore.getConfiguration().getPreferences()
+                    .getParameter(MZminePreferences.numOfThreads)
+                    .getNumberOfThreads();
+        return Math.max(1, numOfThreads / numOfWorkers);
+    }
+
+    /**
+     * Starts an MZmine JVM with the same class path and JVM options as this
+     * one, which runs the batch file with given number of threads and saves
+     * the result
+     */
+    private Process startWorker(File batchFile, File resultFile, File logFile,
+            int workerThreads) throws IOException {
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"),
+                "java").getPath());
+        for (String argument : ManagementFactory.getRuntimeMXBean()
+                .getInputArguments()) {
+            // A debugger port can only be used by one JVM
+            if (argument.startsWith("-agentlib:jdwp")
+                    || argument.startsWith("-Xrunjdwp"))
+                continue;
+            command.add(argument);
+        }
+        // Added after the options of this JVM, so it overrides them
+        command.add("-D" + NumOfThreadsParameter.THREADS_PROPERTY + "="
+                + workerThreads);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MZmineCore.class.getName());
+        command.add(batchFile.getPath());
+        command.add(resultFile.getPath());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(logFile);
+
+        logger.info("Starting batch worker for " + batchFile);
+        return builder.start();
+
+    }
+
+    /**
+     * Waits until all workers are finished
+     * 
+     * @return False if the task was canceled
+     */
+    private boolean waitForWorkers(List<Process> processes,
+            List<File> logFiles, AbstractTask task) throws IOException {
+
+        boolean running[] = new boolean[processes.size()];
+        Arrays.fill(running, true);
+        int runningWorkers = processes.size();
+
+        while (runningWorkers > 0) {
+
+            if (task.isCanceled())
+                return false;
+
+            for (int i = 0; i < processes.size(); i++) {
+                if (!running[i])
+                    continue;
+                int exitValue;
+                try {
+                    exitValue = processes.get(i).exitValue();
+                } catch (IllegalThreadStateException e) {
+                    // Still running
+                    continue;
+                }
+                if (exitValue != 0)
+                    throw new WorkerFailedException("Batch worker " + (i + 1)
+                            + " failed with exit code " + exitValue
+                            + ", see " + logFiles.get(i));
+                running[i] = false;
+                runningWorkers--;
+                synchronized (this) {
+                    finishedWorkers++;
+                }
+            }
+
+            if (runningWorkers > 0) {
+                try {
+                    Thread.sleep(CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+        }
+
+        return true;
+
+    }
+
+    private static void saveBatchFile(BatchQueue queue, File file)
+            throws IOException {
+        try {
+            Document document = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().newDocument();
+            Element element = document.createElement("batch");
+            document.appendChild(element);
+            queue.saveToXml(element);
+
+            Transformer transformer = TransformerFactory.newInstance()
+                    .newTransformer();
+            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            try (OutputStream out = new FileOutputStream(file)) {
+                transformer.transform(new DOMSource(document),
+                        new StreamResult(out));
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static FileNamesParameter getFileNamesParameter(
+            ParameterSet parameters) {
+        for (Parameter<?> parameter : parameters.getParameters()) {
+            if (parameter instanceof FileNamesParameter)
+                return (FileNamesParameter) parameter;
+        }
+        return null;
+    }
+
+    /**
+     * A worker process exited with an error
+     */
+    private static class WorkerFailedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        WorkerFailedException(String message) {
+            super(message);
+        }
+
+    }
+
+    private static void deleteDirectory(File directory) {
+        File files[] = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+}
@@ -27,12 +27,11 @@ import com.google.common.collect.RangeSet;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
@@ -46,6 +45,8 @@ import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
 import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.MassListPrefetcher;
 import com.google.common.collect.Range;
 import java.util.List;
 import java.util.ArrayList;
@@ -201,34 +202,46 @@ public class ChromatogramBuilderTask extends AbstractTask {
         // make a list of all the data points
         List<ExpandedDataPoint> allMzValues = new ArrayList<ExpandedDataPoint>();
 
-        for (Scan scan : scans) {
-            if (isCanceled())
-                return;
-
-            MassList massList = scan.getMassList(massListName);
-            if (massList == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
-                        + " does not have a mass list " + massListName);
-                return;
-            }
-
-            DataPoint mzValues[] = massList.getDataPoints();
+        // Mass lists are read on a separate thread, ahead of this loop
+        MassListPrefetcher prefetcher = new MassListPrefetcher(scans,
+                massListName);
+        prefetcher.start();
+
+        try {
+            for (Scan scan : scans) {
+                if (isCanceled())
+                    return;
+
+                SpectrumBuffer mzValues = prefetcher.next();
+                if (mzValues == null) {
+                    setStatus(TaskStatus.ERROR);
+                    setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
+                            + " does not have a mass list " + massListName);
+                    return;
+                }
 
-            if (mzValues == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("Mass list " + massListName
-                        + " does not contain m/z values for scan #"
-                        + scan.getScanNumber() + " of file " + dataFile);
-                return;
-            }
+                final double mzArray[] = mzValues.getMZValues();
+                final double intensityArray[] = mzValues.getIntensityValues();
+                for (int i = 0; i < mzValues.getSize(); i++){
+                    ExpandedDataPoint curDatP = new ExpandedDataPoint(mzArray[i],
+                            intensityArray[i], scan.getScanNumber());
+                    allMzValues.add(curDatP );
+                }
 
-            for (DataPoint mzPeak : mzValues){
-                ExpandedDataPoint curDatP = new ExpandedDataPoint(mzPeak, scan.getScanNumber());
-                allMzValues.add(curDatP );
-                //corespondingScanNum.add(scan.getScanNumber());
+                prefetcher.release(mzValues);
             }
-
+        } catch (InterruptedException e) {
+            // The task was canceled while waiting for the next mass list
+            Thread.currentThread().interrupt();
+            setStatus(TaskStatus.CANCELED);
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e));
+            return;
+        } finally {
+            prefetcher.stop();
         }
 
         //Integer[] simpleCorespondingScanNums = new Integer[corespondingScanNum.size()];
@@ -22,12 +22,11 @@ package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
@@ -35,7 +34,10 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.MassListPrefetcher;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
@@ -149,31 +151,43 @@ public class ChromatogramBuilderTask extends AbstractTask {
                 dataFile, allScanNumbers, minimumTimeSpan, minimumHeight,
                 mzTolerance);
 
-        for (Scan scan : scans) {
-
-            if (isCanceled())
-                return;
-
-            MassList massList = scan.getMassList(massListName);
-            if (massList == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
-                        + " does not have a mass list " + massListName);
-                return;
+        // Mass lists are read on a separate thread, ahead of the connector
+        MassListPrefetcher prefetcher = new MassListPrefetcher(scans,
+                massListName);
+        prefetcher.start();
+
+        try {
+            for (Scan scan : scans) {
+
+                if (isCanceled())
+                    return;
+
+                SpectrumBuffer mzValues = prefetcher.next();
+                if (mzValues == null) {
+                    setStatus(TaskStatus.ERROR);
+                    setErrorMessage("Scan " + dataFile + " #"
+                            + scan.getScanNumber()
+                            + " does not have a mass list " + massListName);
+                    return;
+                }
+
+                massConnector.addScan(scan.getScanNumber(), mzValues);
+                prefetcher.release(mzValues);
+                processedScans++;
+                TaskMetrics.addProcessedItems(1);
             }
-
-            DataPoint mzValues[] = massList.getDataPoints();
-
-            if (mzValues == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("Mass list " + massListName
-                        + " does not contain m/z values for scan #"
-                        + scan.getScanNumber() + " of file " + dataFile);
-                return;
-            }
-
-            massConnector.addScan(scan.getScanNumber(), mzValues);
-            processedScans++;
+        } catch (InterruptedException e) {
+            // The task was canceled while waiting for the next mass list
+            Thread.currentThread().interrupt();
+            setStatus(TaskStatus.CANCELED);
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e));
+            return;
+        } finally {
+            prefetcher.stop();
         }
 
         chromatograms = massConnector.finishChromatograms();
@@ -19,19 +19,15 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
-import com.google.common.collect.Range;
-
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import net.sf.mzmine.util.DataPointSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
 
 public class HighestDataPointConnector {
 
@@ -43,6 +39,10 @@ public class HighestDataPointConnector {
     // Mapping of last data point m/z --> chromatogram
     private Set<Chromatogram> buildingChromatograms;
 
+    // Building chromatograms sorted by last data point m/z, rebuilt for each
+    // scan
+    private final LastMzPeakIndex chromatogramIndex;
+
     public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
             double minimumTimeSpan, double minimumHeight,
             MZTolerance mzTolerance) {
@@ -58,37 +58,46 @@ public class HighestDataPointConnector {
         // order every time the method is invoked.
         buildingChromatograms = new LinkedHashSet<Chromatogram>();
 
+        chromatogramIndex = new LastMzPeakIndex(mzTolerance);
+
     }
 
     public void addScan(int scanNumber, DataPoint mzValues[]) {
+        SpectrumBuffer massValues = new SpectrumBuffer(mzValues.length);
+        massValues.setDataPoints(mzValues);
+        addScan(scanNumber, massValues);
+    }
+
+    /**
+     * Connects the m/z values of the next scan to the chromatograms. A
+     * DataPoint object is only created for those m/z values which are actually
+     * added to a chromatogram.
+     */
+    public void addScan(int scanNumber, SpectrumBuffer massValues) {
+
+        final double mzValues[] = massValues.getMZValues();
+        final double intensityValues[] = massValues.getIntensityValues();
 
         // Sort m/z peaks by descending intensity
-        Arrays.sort(mzValues, new DataPointSorter(SortingProperty.Intensity,
-                SortingDirection.Descending));
+        final int intensityOrder[] = massValues
+                .getIndexesByDescendingIntensity();
 
         // Set of already connected chromatograms in each iteration
         Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
 
-        // TODO: these two nested cycles should be optimized for speed
-        for (DataPoint mzPeak : mzValues) {
+        // Index of the chromatograms by their last m/z value
+        chromatogramIndex.build(buildingChromatograms);
 
-            // Search for best chromatogram, which has highest last data point
-            Chromatogram bestChromatogram = null;
+        for (int index : intensityOrder) {
 
-            for (Chromatogram testChrom : buildingChromatograms) {
-
-                DataPoint lastMzPeak = testChrom.getLastMzPeak();
-                Range<Double> toleranceRange = mzTolerance
-                        .getToleranceRange(lastMzPeak.getMZ());
-                if (toleranceRange.contains(mzPeak.getMZ())) {
-                    if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-                            .getIntensity() > bestChromatogram.getLastMzPeak()
-                                    .getIntensity())) {
-                        bestChromatogram = testChrom;
-                    }
-                }
+            final double mz = mzValues[index];
 
-            }
+            // Search for best chromatogram, which has highest last data point
+            Chromatogram bestChromatogram = null;
+            final int bestPosition = chromatogramIndex.findBestChromatogram(mz);
+            if (bestPosition >= 0)
+                bestChromatogram = chromatogramIndex
+                        .getChromatogram(bestPosition);
 
             // If we found best chromatogram, check if it is already connected.
             // In such case, we may discard this mass and continue. If we
@@ -102,7 +111,14 @@ public class HighestDataPointConnector {
             }
 
             // Add this mzPeak to the chromatogram
-            bestChromatogram.addMzPeak(scanNumber, mzPeak);
+            bestChromatogram.addMzPeak(scanNumber,
+                    new SimpleDataPoint(mz, intensityValues[index]));
+
+            // Connected chromatograms remain candidates for the following m/z
+            // peaks, with their new last data point
+            if (bestPosition >= 0)
+                chromatogramIndex.updateLastMzPeak(bestPosition,
+                        bestChromatogram.getLastMzPeak());
 
             // Move the chromatogram to the set of connected chromatograms
             connectedChromatograms.add(bestChromatogram);
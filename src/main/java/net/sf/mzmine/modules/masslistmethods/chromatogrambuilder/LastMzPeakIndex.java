@@ -0,0 +1,223 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import java.util.Collection;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+
+/**
+ * Index of building chromatograms sorted by the m/z value of their last m/z
+ * peak, kept in primitive arrays. For each m/z peak of a scan,
+ * HighestDataPointConnector only needs to check the chromatograms whose last
+ * m/z is within the tolerance, which are found by binary search.
+ *
+ * The index also remembers the iteration order of the chromatograms in the set
+ * it was built from, so that ties in the intensity of the last m/z peak are
+ * resolved exactly like a linear iteration over that set would resolve them.
+ */
+class LastMzPeakIndex {
+
+    // PPM conversion factor, same as in MZTolerance
+    private static final double MILLION = 1000000.0;
+
+    private final MZTolerance mzTolerance;
+
+    private Chromatogram chromatograms[] = new Chromatogram[0];
+    private double lastMzValues[] = new double[0];
+    private double lastIntensities[] = new double[0];
+    private int iterationOrder[] = new int[0];
+    private int size = 0;
+
+    LastMzPeakIndex(MZTolerance mzTolerance) {
+        this.mzTolerance = mzTolerance;
+    }
+
+    /**
+     * Rebuilds the index from given chromatograms. Each chromatogram must have
+     * at least one m/z peak.
+     */
+    void build(Collection<Chromatogram> buildingChromatograms) {
+
+        size = buildingChromatograms.size();
+        if (chromatograms.length < size) {
+            chromatograms = new Chromatogram[size * 2];
+            lastMzValues = new double[size * 2];
+            lastIntensities = new double[size * 2];
+            iterationOrder = new int[size * 2];
+        }
+
+        int i = 0;
+        for (Chromatogram chromatogram : buildingChromatograms) {
+            DataPoint lastMzPeak = chromatogram.getLastMzPeak();
+            chromatograms[i] = chromatogram;
+            lastMzValues[i] = lastMzPeak.getMZ();
+            lastIntensities[i] = lastMzPeak.getIntensity();
+            iterationOrder[i] = i;
+            i++;
+        }
+
+        // Chromatograms left from previous scans are mostly sorted already
+        for (int j = 1; j < size; j++) {
+            int k = j;
+            while ((k > 0) && (lastMzValues[k - 1] > lastMzValues[k])) {
+                swap(k - 1, k);
+                k--;
+            }
+            if (k < j - 64) {
+                // Far from sorted, use a full sort instead
+                sort();
+                break;
+            }
+        }
+
+        // Release references to chromatograms of previous scans
+        for (int j = size; (j < chromatograms.length)
+                && (chromatograms[j] != null); j++)
+            chromatograms[j] = null;
+    }
+
+    /**
+     * Finds the chromatogram whose last m/z peak is within the m/z tolerance
+     * of given m/z value and has the highest intensity. Among chromatograms
+     * with the same intensity, the one built first wins.
+     *
+     * @return position of the chromatogram in the index, or -1 if there is no
+     *         chromatogram within the m/z tolerance
+     */
+    int findBestChromatogram(double mz) {
+
+        final double searchWidth = getSearchWidth(mz);
+        final double searchStart = mz - searchWidth;
+        final double searchEnd = mz + searchWidth;
+
+        // Binary search for the first last m/z >= searchStart
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastMzValues[middle] < searchStart)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        int best = -1;
+        for (int i = low; (i < size) && (lastMzValues[i] <= searchEnd); i++) {
+
+            // Exact check, same as testing the tolerance range of the last m/z
+            if (!mzTolerance.checkWithinTolerance(lastMzValues[i], mz))
+                continue;
+
+            if ((best == -1) || (lastIntensities[i] > lastIntensities[best])
+                    || ((lastIntensities[i] == lastIntensities[best])
+                            && (iterationOrder[i] < iterationOrder[best])))
+                best = i;
+        }
+
+        return best;
+    }
+
+    Chromatogram getChromatogram(int position) {
+        return chromatograms[position];
+    }
+
+    /**
+     * Updates the last m/z peak of the chromatogram at given position, after a
+     * new m/z peak was added to it. The chromatogram is moved to keep the index
+     * sorted. Because the new m/z is within the tolerance of the previous one,
+     * it only moves by a few positions.
+     */
+    void updateLastMzPeak(int position, DataPoint lastMzPeak) {
+        lastMzValues[position] = lastMzPeak.getMZ();
+        lastIntensities[position] = lastMzPeak.getIntensity();
+        while ((position > 0)
+                && (lastMzValues[position - 1] > lastMzValues[position])) {
+            swap(position - 1, position);
+            position--;
+        }
+        while ((position < size - 1)
+                && (lastMzValues[position + 1] < lastMzValues[position])) {
+            swap(position, position + 1);
+            position++;
+        }
+    }
+
+    /**
+     * Returns the maximum distance between the given m/z value and the last
+     * m/z value of a chromatogram which may contain the given m/z value in its
+     * tolerance range. Because the tolerance is calculated from the last m/z
+     * value, which may be larger than the given m/z, the ppm part is widened
+     * accordingly. A small margin is added to account for rounding, the exact
+     * check is done by findBestChromatogram().
+     */
+    private double getSearchWidth(double mz) {
+        final double ppm = mzTolerance.getPpmTolerance() / MILLION;
+        if (ppm >= 1)
+            return Double.POSITIVE_INFINITY;
+        final double width = Math.max(mzTolerance.getMzTolerance(), mz * ppm
+                / (1 - ppm));
+        return width * (1 + 1e-6) + 1e-9;
+    }
+
+    private void sort() {
+        // Heap sort, in place on all four arrays
+        for (int i = size / 2 - 1; i >= 0; i--)
+            siftDown(i, size);
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int root, int end) {
+        while (true) {
+            int child = 2 * root + 1;
+            if (child >= end)
+                return;
+            if ((child + 1 < end)
+                    && (lastMzValues[child + 1] > lastMzValues[child]))
+                child++;
+            if (lastMzValues[root] >= lastMzValues[child])
+                return;
+            swap(root, child);
+            root = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Chromatogram chromatogram = chromatograms[i];
+        chromatograms[i] = chromatograms[j];
+        chromatograms[j] = chromatogram;
+
+        double value = lastMzValues[i];
+        lastMzValues[i] = lastMzValues[j];
+        lastMzValues[j] = value;
+
+        value = lastIntensities[i];
+        lastIntensities[i] = lastIntensities[j];
+        lastIntensities[j] = value;
+
+        int order = iterationOrder[i];
+        iterationOrder[i] = iterationOrder[j];
+        iterationOrder[j] = order;
+    }
+
+}
@@ -19,13 +19,14 @@
 
 package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -33,16 +34,16 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
-import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreCalculator;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakUtils;
-import net.sf.mzmine.util.RangeUtils;
-
-import com.google.common.collect.Range;
 
 class JoinAlignerTask extends AbstractTask {
 
@@ -64,6 +65,8 @@ class JoinAlignerTask extends AbstractTask {
     // ID counter for the new peaklist
     private int newRowID = 1;
 
+    private RowVsRowScoreCalculator scoreCalculator;
+
     JoinAlignerTask(MZmineProject project, ParameterSet parameters) {
 
         this.project = project;
@@ -111,7 +114,10 @@ class JoinAlignerTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0f;
-        return (double) processedRows / (double) totalRows;
+        int scoredRows = 0;
+        if (scoreCalculator != null)
+            scoredRows = scoreCalculator.getProcessedRows();
+        return (double) (processedRows + scoredRows) / (double) totalRows;
     }
 
     /**
@@ -156,120 +162,97 @@ class JoinAlignerTask extends AbstractTask {
         alignedPeakList = new SimplePeakList(peakListName,
                 allDataFiles.toArray(new RawDataFile[0]));
 
-        // Iterate source peak lists
-        for (PeakList peakList : peakLists) {
-
-            // Create a sorted set of scores matching
-            TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
-
-            PeakListRow allRows[] = peakList.getRows();
-
-            // Calculate scores for all possible alignments of this row
-            for (PeakListRow row : allRows) {
-
-                if (isCanceled())
+        ParameterSet isotopeParameters = null;
+        if (compareIsotopePattern)
+            isotopeParameters = parameters.getParameter(
+                    JoinAlignerParameters.compareIsotopePattern)
+                    .getEmbeddedParameters();
+        scoreCalculator = new RowVsRowScoreCalculator(mzTolerance,
+                rtTolerance, mzWeight, rtWeight, sameChargeRequired,
+                sameIDRequired, isotopeParameters);
+
+        // Scores are calculated in parallel
+        final int numOfThreads = MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+
+        try {
+            // Iterate source peak lists
+            for (PeakList peakList : peakLists) {
+
+                PeakListRow allRows[] = peakList.getRows();
+
+                // Calculate scores for all possible alignments of all rows, in a
+                // sorted set
+                TreeSet<RowVsRowScore> scoreSet = scoreCalculator.calculateScores(
+                        allRows, alignedPeakList, pool, this);
+                if (scoreSet == null)
                     return;
 
-                // Calculate limits for a row with which the row can be aligned
-                Range<Double> mzRange = mzTolerance.getToleranceRange(row
-                        .getAverageMZ());
-                Range<Double> rtRange = rtTolerance.getToleranceRange(row
-                        .getAverageRT());
+                // Create a table of mappings for best scores
+                Hashtable<PeakListRow, PeakListRow> alignmentMapping = new Hashtable<PeakListRow, PeakListRow>();
 
-                // Get all rows of the aligned peaklist within parameter limits
-                PeakListRow candidateRows[] = alignedPeakList
-                        .getRowsInsideScanAndMZRange(rtRange, mzRange);
+                // Aligned rows which are already mapped, to avoid a linear search
+                // in the values of alignmentMapping
+                HashSet<PeakListRow> mappedAlignedRows = new HashSet<PeakListRow>();
 
-                // Calculate scores and store them
-                for (PeakListRow candidate : candidateRows) {
+                // Iterate scores by descending order
+                Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
+                while (scoreIterator.hasNext()) {
 
-                    if (sameChargeRequired) {
-                        if (!PeakUtils.compareChargeState(row, candidate))
-                            continue;
-                    }
-
-                    if (sameIDRequired) {
-                        if (!PeakUtils.compareIdentities(row, candidate))
-                            continue;
-                    }
+                    RowVsRowScore score = scoreIterator.next();
 
-                    if (compareIsotopePattern) {
-                        IsotopePattern ip1 = row.getBestIsotopePattern();
-                        IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-                        if ((ip1 != null) && (ip2 != null)) {
-                            ParameterSet isotopeParams = parameters
-                                    .getParameter(
-                                            JoinAlignerParameters.compareIsotopePattern)
-                                    .getEmbeddedParameters();
-
-                            if (!IsotopePatternScoreCalculator.checkMatch(ip1,
-                                    ip2, isotopeParams)) {
-                                continue;
-                            }
-                        }
-                    }
+                    // Check if the row is already mapped
+                    if (alignmentMapping.containsKey(score.getPeakListRow()))
+                        continue;
 
-                    RowVsRowScore score = new RowVsRowScore(row, candidate,
-                            RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                            RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+                    // Check if the aligned row is already filled
+                    if (mappedAlignedRows.contains(score.getAlignedRow()))
+                        continue;
 
-                    scoreSet.add(score);
+                    alignmentMapping.put(score.getPeakListRow(),
+                            score.getAlignedRow());
+                    mappedAlignedRows.add(score.getAlignedRow());
 
                 }
 
-                processedRows++;
-
-            }
-
-            // Create a table of mappings for best scores
-            Hashtable<PeakListRow, PeakListRow> alignmentMapping = new Hashtable<PeakListRow, PeakListRow>();
+                // Align all rows using mapping
+                for (PeakListRow row : allRows) {
 
-            // Iterate scores by descending order
-            Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
-            while (scoreIterator.hasNext()) {
+                    PeakListRow targetRow = alignmentMapping.get(row);
 
-                RowVsRowScore score = scoreIterator.next();
-
-                // Check if the row is already mapped
-                if (alignmentMapping.containsKey(score.getPeakListRow()))
-                    continue;
-
-                // Check if the aligned row is already filled
-                if (alignmentMapping.containsValue(score.getAlignedRow()))
-                    continue;
-
-                alignmentMapping.put(score.getPeakListRow(),
-                        score.getAlignedRow());
-
-            }
+                    // If we have no mapping for this row, add a new one
+                    if (targetRow == null) {
+                        targetRow = new SimplePeakListRow(newRowID);
+                        newRowID++;
+                        alignedPeakList.addRow(targetRow);
+                    }
 
-            // Align all rows using mapping
-            for (PeakListRow row : allRows) {
+                    // Add all peaks from the original row to the aligned row
+                    for (RawDataFile file : row.getRawDataFiles()) {
+                        targetRow.addPeak(file, row.getPeak(file));
+                    }
 
-                PeakListRow targetRow = alignmentMapping.get(row);
+                    // Add all non-existing identities from the original row to the
+                    // aligned row
+                    PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-                // If we have no mapping for this row, add a new one
-                if (targetRow == null) {
-                    targetRow = new SimplePeakListRow(newRowID);
-                    newRowID++;
-                    alignedPeakList.addRow(targetRow);
-                }
+                    processedRows++;
+                    TaskMetrics.addProcessedItems(1);
 
-                // Add all peaks from the original row to the aligned row
-                for (RawDataFile file : row.getRawDataFiles()) {
-                    targetRow.addPeak(file, row.getPeak(file));
                 }
 
-                // Add all non-existing identities from the original row to the
-                // aligned row
-                PeakUtils.copyPeakListRowProperties(row, targetRow);
-
-                processedRows++;
-
-            }
+            } // Next peak list
 
-        } // Next peak list
+        } catch (Exception e) {
+            e.printStackTrace();
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e));
+            return;
+        } finally {
+            pool.shutdown();
+        }
 
         // Add new aligned peak list to the project
         project.addPeakList(alignedPeakList);
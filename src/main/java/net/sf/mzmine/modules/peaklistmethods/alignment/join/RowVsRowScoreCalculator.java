@@ -0,0 +1,195 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment.join;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreCalculator;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.util.PeakUtils;
+import net.sf.mzmine.util.RangeUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * Calculates the scores of the rows of one peak list against the rows of the
+ * aligned peak list. The rows are split into chunks, which are scored in
+ * parallel in a ForkJoinPool.
+ *
+ * The result is the same as if all scores were calculated by a single thread:
+ * RowVsRowScore.compareTo() never returns 0, so the order of equal scores in
+ * the TreeSet depends on the order in which they are inserted. Therefore the
+ * scores of all chunks are collected first and then inserted in the order of
+ * the rows and candidates.
+ */
+class RowVsRowScoreCalculator {
+
+    // Minimum number of rows scored by one task
+    private static final int MIN_CHUNK_SIZE = 100;
+
+    private final MZTolerance mzTolerance;
+    private final RTTolerance rtTolerance;
+    private final double mzWeight, rtWeight;
+    private final boolean sameChargeRequired, sameIDRequired;
+    private final ParameterSet isotopeParameters;
+
+    private final AtomicInteger processedRows = new AtomicInteger();
+
+    /**
+     * @param isotopeParameters
+     *            Parameters of the isotope pattern comparison, or null if
+     *            isotope patterns should not be compared
+     */
+    RowVsRowScoreCalculator(MZTolerance mzTolerance, RTTolerance rtTolerance,
+            double mzWeight, double rtWeight, boolean sameChargeRequired,
+            boolean sameIDRequired, @Nullable ParameterSet isotopeParameters) {
+        this.mzTolerance = mzTolerance;
+        this.rtTolerance = rtTolerance;
+        this.mzWeight = mzWeight;
+        this.rtWeight = rtWeight;
+        this.sameChargeRequired = sameChargeRequired;
+        this.sameIDRequired = sameIDRequired;
+        this.isotopeParameters = isotopeParameters;
+    }
+
+    /**
+     * @return Number of rows scored so far, by all calls of calculateScores()
+     */
+    int getProcessedRows() {
+        return processedRows.get();
+    }
+
+    /**
+     * Calculates the scores of given rows against the rows of the aligned peak
+     * list, which must not be modified during the calculation.
+     *
+     * @param task
+     *            Task to check for cancellation, or null
+     * @return Sorted set of scores, or null if the task was canceled
+     */
+    TreeSet<RowVsRowScore> calculateScores(final PeakListRow rows[],
+            final PeakList alignedPeakList, ForkJoinPool pool,
+            final @Nullable AbstractTask task) throws ExecutionException,
+            InterruptedException {
+
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE,
+                rows.length / (pool.getParallelism() * 4) + 1);
+
+        List<Callable<List<RowVsRowScore>>> chunks = new ArrayList<Callable<List<RowVsRowScore>>>();
+        for (int start = 0; start < rows.length; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, rows.length);
+            chunks.add(new Callable<List<RowVsRowScore>>() {
+                @Override
+                public List<RowVsRowScore> call() {
+                    List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>();
+                    for (int i = chunkStart; i < chunkEnd; i++) {
+                        if ((task != null) && task.isCanceled())
+                            return scores;
+                        calculateScores(rows[i], alignedPeakList, scores);
+                        processedRows.incrementAndGet();
+                    }
+                    return scores;
+                }
+            });
+        }
+
+        List<Future<List<RowVsRowScore>>> results = pool.invokeAll(chunks);
+
+        if ((task != null) && task.isCanceled())
+            return null;
+
+        // Merge in the order of the rows
+        TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
+        for (Future<List<RowVsRowScore>> result : results)
+            scoreSet.addAll(result.get());
+
+        return scoreSet;
+
+    }
+
+    /**
+     * Calculates the scores of one row against all candidate rows of the
+     * aligned peak list
+     */
+    private void calculateScores(PeakListRow row, PeakList alignedPeakList,
+            List<RowVsRowScore> scores) {
+
+        // Calculate limits for a row with which the row can be aligned
+        Range<Double> mzRange = mzTolerance.getToleranceRange(row
+                .getAverageMZ());
+        Range<Double> rtRange = rtTolerance.getToleranceRange(row
+                .getAverageRT());
+
+        // Get all rows of the aligned peaklist within parameter limits
+        PeakListRow candidateRows[] = alignedPeakList
+                .getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+        // Calculate scores and store them
+        for (PeakListRow candidate : candidateRows) {
+
+            if (sameChargeRequired) {
+                if (!PeakUtils.compareChargeState(row, candidate))
+                    continue;
+            }
+
+            if (sameIDRequired) {
+                if (!PeakUtils.compareIdentities(row, candidate))
+                    continue;
+            }
+
+            if (isotopeParameters != null) {
+                IsotopePattern ip1 = row.getBestIsotopePattern();
+                IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+                if ((ip1 != null) && (ip2 != null)) {
+                    if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2,
+                            isotopeParameters)) {
+                        continue;
+                    }
+                }
+            }
+
+            RowVsRowScore score = new RowVsRowScore(row, candidate,
+                    RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
+                    RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+            scores.add(score);
+
+        }
+
+    }
+
+}
@@ -142,6 +142,16 @@ public class HeatMapTask extends AbstractTask {
             return;
         }
 
+        if (outputType.contains("png")) {
+            if (height < 500 || width < 500) {
+
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("Figure height or width is too small. "
+                        + "Minimun height and width is 500.");
+                return;
+            }
+        }
+
         try {
 
             // Load gplots library
@@ -152,16 +162,6 @@ public class HeatMapTask extends AbstractTask {
 
             finishedPercentage = 0.3f;
 
-            if (outputType.contains("png")) {
-                if (height < 500 || width < 500) {
-
-                    setStatus(TaskStatus.ERROR);
-                    setErrorMessage("Figure height or width is too small. "
-                            + "Minimun height and width is 500.");
-                    return;
-                }
-            }
-
             rSession.eval("dataset<- matrix(\"\",nrow =" + newPeakList[0].length
                     + ",ncol=" + newPeakList.length + ")");
 
@@ -272,10 +272,6 @@ public class HeatMapTask extends AbstractTask {
             rSession.eval("dev.off()", false);
             finishedPercentage = 1.0;
 
-            // Turn off R instance, once task ended gracefully.
-            if (!isCanceled())
-                rSession.close(false);
-
         } catch (RSessionWrapperException e) {
             if (!isCanceled()) {
                 errorMsg = "'R computing error' during heatmap generation. \n"
@@ -286,21 +282,21 @@ public class HeatMapTask extends AbstractTask {
                 errorMsg = "'Unknown error' during heatmap generation. \n"
                         + e.getMessage();
             }
-        }
-
-        // Turn off R instance, once task ended UNgracefully.
-        try {
-            if (!isCanceled())
+        } finally {
+            // Turn off R instance: return it to the pool, or terminate it if
+            // the task was canceled.
+            try {
                 if (rSession != null)
                     rSession.close(isCanceled());
-        } catch (RSessionWrapperException e) {
-            if (!isCanceled()) {
-                // Do not override potential previous error message.
-                if (errorMsg == null) {
-                    errorMsg = e.getMessage();
+            } catch (RSessionWrapperException e) {
+                if (!isCanceled()) {
+                    // Do not override potential previous error message.
+                    if (errorMsg == null) {
+                        errorMsg = e.getMessage();
+                    }
+                } else {
+                    // User canceled: Silent.
                 }
-            } else {
-                // User canceled: Silent.
             }
         }
 
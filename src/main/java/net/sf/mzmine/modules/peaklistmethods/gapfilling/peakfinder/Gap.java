@@ -27,6 +27,7 @@ import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.util.RangeUtils;
@@ -66,7 +67,26 @@ class Gap {
 
     }
 
-    void offerNextScan(Scan scan) {
+    Range<Double> getRTRange() {
+	return rtRange;
+    }
+
+    /**
+     * Returns true if this gap has passed its RT range at given retention time
+     * and finished its last peak, so that it ignores all further scans with
+     * higher retention times.
+     */
+    boolean isFinished(double scanRT) {
+	return (scanRT > rtRange.upperEndpoint())
+		&& (currentPeakDataPoints == null);
+    }
+
+    /**
+     * Offers the next scan to this gap. The data points of the scan must be
+     * already read into the scanData buffer, so that a scan is only decoded
+     * once for all gaps.
+     */
+    void offerNextScan(Scan scan, SpectrumBuffer scanData) {
 
 	double scanRT = scan.getRetentionTime();
 
@@ -80,12 +100,13 @@ class Gap {
 	    return;
 
 	// Find top m/z peak in our range
-	DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+	int basePeak = ScanUtils.findBasePeak(scanData, mzRange);
 
 	GapDataPoint currentDataPoint;
-	if (basePeak != null) {
+	if (basePeak >= 0) {
 	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
-		    basePeak.getMZ(), scanRT, basePeak.getIntensity());
+		    scanData.getMZ(basePeak), scanRT,
+		    scanData.getIntensity(basePeak));
 	} else {
 	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
 		    RangeUtils.rangeCenter(mzRange), scanRT, 0);
@@ -19,7 +19,14 @@
 
 package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -29,15 +36,20 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 
 import com.google.common.collect.Range;
 
@@ -53,7 +65,8 @@ class PeakFinderTask extends AbstractTask {
     private RTTolerance rtTolerance;
     private boolean rtCorrection;
     private ParameterSet parameters;
-    private int processedScans, totalScans;
+    private int totalScans;
+    private final AtomicInteger processedScans = new AtomicInteger();
     private boolean MASTERLIST = true, removeOriginal;
     private int masterSample = 0;
 
@@ -107,232 +120,357 @@ class PeakFinderTask extends AbstractTask {
 	    processedPeakList.addRow(newRow);
 	}
 
-	if (rtCorrection) {
-	    totalScans *= 2;
-	    // Fill the gaps of a random sample using all the other samples and
-	    // take it as master list
-	    // to fill the gaps of the other samples
-	    masterSample = (int) Math.floor(Math.random()
-		    * peakList.getNumberOfRawDataFiles());
-	    fillList(MASTERLIST);
+	// Raw data files are processed in parallel
+	final int numOfThreads = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads)
+		.getNumberOfThreads();
+	ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+
+	try {
+
+	    if (rtCorrection) {
+		totalScans *= 2;
+		// Fill the gaps of a random sample using all the other samples
+		// and take it as master list
+		// to fill the gaps of the other samples
+		masterSample = (int) Math.floor(Math.random()
+			* peakList.getNumberOfRawDataFiles());
+		fillList(MASTERLIST, pool);
+
+		// Process all raw data files
+		fillList(!MASTERLIST, pool);
+
+	    } else {
+
+		// Process all raw data files
+		List<Callable<Void>> fileTasks = new ArrayList<Callable<Void>>();
+		for (final RawDataFile dataFile : peakList.getRawDataFiles()) {
+		    fileTasks.add(new Callable<Void>() {
+			@Override
+			public Void call() {
+			    fillFile(dataFile);
+			    return null;
+			}
+		    });
+		}
+		invokeAll(pool, fileTasks);
 
-	    // Process all raw data files
-	    fillList(!MASTERLIST);
+	    }
 
-	} else {
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e));
+	    return;
+	} finally {
+	    pool.shutdown();
+	}
 
-	    // Process all raw data files
-	    for (RawDataFile dataFile : peakList.getRawDataFiles()) {
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-		// Canceled?
-		if (isCanceled()) {
-		    return;
-		}
+	// Append processed peak list to the project
+	project.addPeakList(processedPeakList);
 
-		Vector<Gap> gaps = new Vector<Gap>();
+	// Add quality parameters to peaks
+	QualityParameters.calculateQualityParameters(processedPeakList);
 
-		// Fill each row of this raw data file column, create new empty
-		// gaps
-		// if necessary
-		for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-		    PeakListRow sourceRow = peakList.getRow(row);
-		    PeakListRow newRow = processedPeakList.getRow(row);
+	// Add task description to peakList
+	processedPeakList
+		.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+			"Gap filling ", parameters));
 
-		    Feature sourcePeak = sourceRow.getPeak(dataFile);
+	// Remove the original peaklist if requested
+	if (removeOriginal)
+	    project.removePeakList(peakList);
 
-		    if (sourcePeak == null) {
+	logger.info("Finished gap-filling on " + peakList);
+	setStatus(TaskStatus.FINISHED);
 
-			// Create a new gap
+    }
 
-			Range<Double> mzRange = mzTolerance
-				.getToleranceRange(sourceRow.getAverageMZ());
-			Range<Double> rtRange = rtTolerance
-				.getToleranceRange(sourceRow.getAverageRT());
+    /**
+     * Fills the gaps of one raw data file column, without RT correction
+     */
+    private void fillFile(RawDataFile dataFile) {
 
-			Gap newGap = new Gap(newRow, dataFile, mzRange,
-				rtRange, intTolerance);
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-			gaps.add(newGap);
+	List<Gap> gaps = new ArrayList<Gap>();
 
-		    } else {
-			newRow.addPeak(dataFile, sourcePeak);
-		    }
+	// Fill each row of this raw data file column, create new empty
+	// gaps
+	// if necessary
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow sourceRow = peakList.getRow(row);
+	    PeakListRow newRow = processedPeakList.getRow(row);
 
-		}
+	    Feature sourcePeak = sourceRow.getPeak(dataFile);
 
-		// Stop processing this file if there are no gaps
-		if (gaps.size() == 0) {
-		    processedScans += dataFile.getNumOfScans();
-		    continue;
-		}
+	    if (sourcePeak == null) {
 
-		// Get all scans of this data file
-		int scanNumbers[] = dataFile.getScanNumbers(1);
+		// Create a new gap
 
-		// Process each scan
-		for (int scanNumber : scanNumbers) {
+		Range<Double> mzRange = mzTolerance
+			.getToleranceRange(sourceRow.getAverageMZ());
+		Range<Double> rtRange = rtTolerance
+			.getToleranceRange(sourceRow.getAverageRT());
 
-		    // Canceled?
-		    if (isCanceled()) {
-			return;
-		    }
+		Gap newGap = new Gap(newRow, dataFile, mzRange,
+			rtRange, intTolerance);
 
-		    // Get the scan
-		    Scan scan = dataFile.getScan(scanNumber);
+		gaps.add(newGap);
 
-		    // Feed this scan to all gaps
-		    for (Gap gap : gaps) {
-			gap.offerNextScan(scan);
-		    }
+	    } else {
+		newRow.addPeak(dataFile, sourcePeak);
+	    }
 
-		    processedScans++;
-		}
+	}
 
-		// Finalize gaps
-		for (Gap gap : gaps) {
-		    gap.noMoreOffers();
-		}
+	// Stop processing this file if there are no gaps
+	if (gaps.size() == 0) {
+	    processedScans.addAndGet(dataFile.getNumOfScans());
+	    return;
+	}
+
+	processGaps(dataFile, gaps);
 
+    }
+
+    /**
+     * Fills the gaps of all raw data files except the master sample. In the
+     * first pass (masterList = true), the gaps of the master sample are filled
+     * using the regression against each of the other samples in turn. Those
+     * runs all write to the master sample column, so they are processed one
+     * after another. In the second pass, each sample only writes its own
+     * column, so the samples are processed in parallel.
+     */
+    public void fillList(final boolean masterList, ForkJoinPool pool)
+	    throws Exception {
+
+	List<Callable<Void>> fileTasks = new ArrayList<Callable<Void>>();
+	for (int i = 0; i < peakList.getNumberOfRawDataFiles(); i++) {
+	    if (i != masterSample) {
+		final int sample = i;
+		Callable<Void> fileTask = new Callable<Void>() {
+		    @Override
+		    public Void call() {
+			fillFile(sample, masterList);
+			return null;
+		    }
+		};
+		if (masterList)
+		    fileTask.call();
+		else
+		    fileTasks.add(fileTask);
 	    }
 	}
 
-	// Append processed peak list to the project
-	project.addPeakList(processedPeakList);
+	invokeAll(pool, fileTasks);
 
-        // Add quality parameters to peaks
-	QualityParameters.calculateQualityParameters(processedPeakList);
+    }
 
-	// Add task description to peakList
-	processedPeakList
-		.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
-			"Gap filling ", parameters));
+    /**
+     * Fills the gaps of one raw data file column, using the RT regression
+     * against another sample
+     */
+    private void fillFile(int sample, boolean masterList) {
 
-	// Remove the original peaklist if requested
-	if (removeOriginal)
-	    project.removePeakList(peakList);
+	RawDataFile datafile1;
+	RawDataFile datafile2;
 
-	logger.info("Finished gap-filling on " + peakList);
-	setStatus(TaskStatus.FINISHED);
+	if (masterList) {
+	    datafile1 = peakList.getRawDataFile(masterSample);
+	    datafile2 = peakList.getRawDataFile(sample);
+	} else {
+	    datafile1 = peakList.getRawDataFile(sample);
+	    datafile2 = peakList.getRawDataFile(masterSample);
+	}
+	RegressionInfo info = new RegressionInfo();
 
-    }
+	for (PeakListRow row : peakList.getRows()) {
+	    Feature peaki = row.getPeak(datafile1);
+	    Feature peake = row.getPeak(datafile2);
+	    if (peaki != null && peake != null) {
+		info.addData(peake.getRT(), peaki.getRT());
+	    }
+	}
 
-    public void fillList(boolean masterList) {
-	for (int i = 0; i < peakList.getNumberOfRawDataFiles(); i++) {
-	    if (i != masterSample) {
+	info.setFunction();
+
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-		RawDataFile datafile1;
-		RawDataFile datafile2;
+	List<Gap> gaps = new ArrayList<Gap>();
 
-		if (masterList) {
-		    datafile1 = peakList.getRawDataFile(masterSample);
-		    datafile2 = peakList.getRawDataFile(i);
-		} else {
-		    datafile1 = peakList.getRawDataFile(i);
-		    datafile2 = peakList.getRawDataFile(masterSample);
-		}
-		RegressionInfo info = new RegressionInfo();
+	// Fill each row of this raw data file column, create new empty
+	// gaps
+	// if necessary
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow sourceRow = peakList.getRow(row);
+	    PeakListRow newRow = processedPeakList.getRow(row);
+
+	    Feature sourcePeak = sourceRow.getPeak(datafile1);
+
+	    if (sourcePeak == null) {
 
-		for (PeakListRow row : peakList.getRows()) {
-		    Feature peaki = row.getPeak(datafile1);
-		    Feature peake = row.getPeak(datafile2);
-		    if (peaki != null && peake != null) {
-			info.addData(peake.getRT(), peaki.getRT());
+		// Create a new gap
+
+		double mz = sourceRow.getAverageMZ();
+		double rt2 = -1;
+		if (!masterList) {
+		    if (processedPeakList.getRow(row)
+			    .getPeak(datafile2) != null) {
+			rt2 = processedPeakList.getRow(row)
+				.getPeak(datafile2).getRT();
+		    }
+		} else {
+		    if (peakList.getRow(row).getPeak(datafile2) != null) {
+			rt2 = peakList.getRow(row).getPeak(datafile2)
+				.getRT();
 		    }
 		}
 
-		info.setFunction();
+		if (rt2 > -1) {
+
+		    double rt = info.predict(rt2);
+
+		    if (rt != -1) {
+
+			Range<Double> mzRange = mzTolerance
+				.getToleranceRange(mz);
+			Range<Double> rtRange = rtTolerance
+				.getToleranceRange(rt);
+
+			Gap newGap = new Gap(newRow, datafile1,
+				mzRange, rtRange, intTolerance);
 
-		// Canceled?
-		if (isCanceled()) {
-		    return;
+			gaps.add(newGap);
+		    }
 		}
 
-		Vector<Gap> gaps = new Vector<Gap>();
-
-		// Fill each row of this raw data file column, create new empty
-		// gaps
-		// if necessary
-		for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-		    PeakListRow sourceRow = peakList.getRow(row);
-		    PeakListRow newRow = processedPeakList.getRow(row);
-
-		    Feature sourcePeak = sourceRow.getPeak(datafile1);
-
-		    if (sourcePeak == null) {
-
-			// Create a new gap
-
-			double mz = sourceRow.getAverageMZ();
-			double rt2 = -1;
-			if (!masterList) {
-			    if (processedPeakList.getRow(row)
-				    .getPeak(datafile2) != null) {
-				rt2 = processedPeakList.getRow(row)
-					.getPeak(datafile2).getRT();
-			    }
-			} else {
-			    if (peakList.getRow(row).getPeak(datafile2) != null) {
-				rt2 = peakList.getRow(row).getPeak(datafile2)
-					.getRT();
-			    }
-			}
+	    } else {
+		newRow.addPeak(datafile1, sourcePeak);
+	    }
 
-			if (rt2 > -1) {
+	}
 
-			    double rt = info.predict(rt2);
+	// Stop processing this file if there are no gaps
+	if (gaps.size() == 0) {
+	    processedScans.addAndGet(datafile1.getNumOfScans());
+	    return;
+	}
 
-			    if (rt != -1) {
+	processGaps(datafile1, gaps);
 
-				Range<Double> mzRange = mzTolerance
-					.getToleranceRange(mz);
-				Range<Double> rtRange = rtTolerance
-					.getToleranceRange(rt);
+    }
 
-				Gap newGap = new Gap(newRow, datafile1,
-					mzRange, rtRange, intTolerance);
+    /**
+     * Feeds the MS1 scans of the data file to the gaps, in a single pass. The
+     * gaps are sorted by the start of their RT range and activated when the
+     * scans reach it. Gaps which have passed their RT range and finished their
+     * last peak are retired. Each scan is only read if there is at least one
+     * active gap, and only once for all active gaps.
+     */
+    private void processGaps(RawDataFile dataFile, List<Gap> gaps) {
+
+	// Get all scans of this data file
+	int scanNumbers[] = dataFile.getScanNumbers(1);
+
+	// Gaps can only be retired if the scans are ordered by RT, because
+	// a gap still accepts later scans which fall into its RT range
+	boolean rtOrdered = true;
+	double previousRT = Double.NEGATIVE_INFINITY;
+	for (int scanNumber : scanNumbers) {
+	    double rt = dataFile.getScan(scanNumber).getRetentionTime();
+	    if (rt < previousRT) {
+		rtOrdered = false;
+		break;
+	    }
+	    previousRT = rt;
+	}
 
-				gaps.add(newGap);
-			    }
-			}
+	List<Gap> sortedGaps = new ArrayList<Gap>(gaps);
+	Collections.sort(sortedGaps, new Comparator<Gap>() {
+	    @Override
+	    public int compare(Gap gap1, Gap gap2) {
+		return Double.compare(gap1.getRTRange().lowerEndpoint(),
+			gap2.getRTRange().lowerEndpoint());
+	    }
+	});
 
-		    } else {
-			newRow.addPeak(datafile1, sourcePeak);
-		    }
+	List<Gap> activeGaps = new ArrayList<Gap>();
+	int nextGap = 0;
 
-		}
+	// Process each scan
+	SpectrumBuffer scanData = new SpectrumBuffer();
+	for (int scanNumber : scanNumbers) {
 
-		// Stop processing this file if there are no gaps
-		if (gaps.size() == 0) {
-		    processedScans += datafile1.getNumOfScans();
-		    continue;
-		}
+	    // Canceled?
+	    if (isCanceled()) {
+		return;
+	    }
 
-		// Get all scans of this data file
-		int scanNumbers[] = datafile1.getScanNumbers(1);
+	    // Get the scan
+	    Scan scan = dataFile.getScan(scanNumber);
+	    double scanRT = scan.getRetentionTime();
 
-		// Process each scan
-		for (int scanNumber : scanNumbers) {
+	    // Activate the gaps whose RT range has been reached
+	    while ((nextGap < sortedGaps.size())
+		    && (sortedGaps.get(nextGap).getRTRange().lowerEndpoint() <= scanRT)) {
+		activeGaps.add(sortedGaps.get(nextGap));
+		nextGap++;
+	    }
 
-		    // Canceled?
-		    if (isCanceled()) {
-			return;
-		    }
+	    if (!activeGaps.isEmpty()) {
 
-		    // Get the scan
-		    Scan scan = datafile1.getScan(scanNumber);
+		scan.getDataPoints(scanData);
 
-		    // Feed this scan to all gaps
-		    for (Gap gap : gaps) {
-			gap.offerNextScan(scan);
+		// Feed this scan to all active gaps, and retire the
+		// finished ones
+		int remainingGaps = 0;
+		for (int i = 0; i < activeGaps.size(); i++) {
+		    Gap gap = activeGaps.get(i);
+		    gap.offerNextScan(scan, scanData);
+		    if (rtOrdered && gap.isFinished(scanRT)) {
+			gap.noMoreOffers();
+			continue;
 		    }
-		    processedScans++;
+		    activeGaps.set(remainingGaps, gap);
+		    remainingGaps++;
 		}
+		activeGaps.subList(remainingGaps, activeGaps.size()).clear();
 
-		// Finalize gaps
-		for (Gap gap : gaps) {
-		    gap.noMoreOffers();
-		}
 	    }
+
+	    processedScans.incrementAndGet();
+	}
+
+	// Finalize remaining gaps
+	for (Gap gap : activeGaps) {
+	    gap.noMoreOffers();
+	}
+	for (Gap gap : sortedGaps.subList(nextGap, sortedGaps.size())) {
+	    gap.noMoreOffers();
+	}
+
+    }
+
+    /**
+     * Runs the given tasks in the pool and waits for them, rethrowing the
+     * first failure
+     */
+    private void invokeAll(ForkJoinPool pool, List<Callable<Void>> tasks)
+	    throws Exception {
+	for (Future<Void> result : pool.invokeAll(tasks)) {
+	    result.get();
 	}
     }
 
@@ -340,7 +478,7 @@ class PeakFinderTask extends AbstractTask {
 	if (totalScans == 0) {
 	    return 0;
 	}
-	return (double) processedScans / (double) totalScans;
+	return (double) processedScans.get() / (double) totalScans;
 
     }
 
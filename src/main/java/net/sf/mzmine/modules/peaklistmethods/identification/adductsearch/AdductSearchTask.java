@@ -24,7 +24,16 @@ import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.MZ_TOLERANCE;
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.RT_TOLERANCE;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,23 +42,31 @@ import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakListRowSorter;
+import net.sf.mzmine.util.RowMZIndex;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+import com.google.common.collect.Range;
+
 public class AdductSearchTask extends AbstractTask {
 
     // Logger.
     private static final Logger LOG = Logger.getLogger(AdductSearchTask.class
 	    .getName());
 
-    private int finishedRows;
+    // Minimum number of main rows searched by one task
+    private static final int MIN_CHUNK_SIZE = 100;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
     private int totalRows;
     private final PeakList peakList;
 
@@ -73,7 +90,6 @@ public class AdductSearchTask extends AbstractTask {
 	peakList = list;
 	parameters = parameterSet;
 
-	finishedRows = 0;
 	totalRows = 0;
 
 	rtTolerance = parameterSet.getParameter(RT_TOLERANCE).getValue();
@@ -86,7 +102,7 @@ public class AdductSearchTask extends AbstractTask {
     @Override
     public double getFinishedPercentage() {
 
-	return totalRows == 0 ? 0.0 : (double) finishedRows
+	return totalRows == 0 ? 0.0 : (double) finishedRows.get()
 		/ (double) totalRows;
     }
 
@@ -131,9 +147,13 @@ public class AdductSearchTask extends AbstractTask {
     }
 
     /**
-     * Search peak-list for adducts.
+     * Search peak-list for adducts. Only the rows whose m/z and RT are within
+     * the tolerances of a main row plus one of the adducts are checked. The
+     * main rows are searched in parallel, and the adduct identities are added
+     * afterwards in the same order as by comparing all pairs of rows.
      */
-    private void searchAdducts() {
+    private void searchAdducts() throws InterruptedException,
+	    ExecutionException {
 
 	// Get rows.
 	final PeakListRow[] rows = peakList.getRows();
@@ -143,42 +163,97 @@ public class AdductSearchTask extends AbstractTask {
 	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
 		SortingDirection.Descending));
 
-	// Compare each pair of rows against each other.
-	for (int i = 0; !isCanceled() && i < totalRows; i++) {
-	    for (int j = 0; !isCanceled() && j < totalRows; j++) {
-
-		if (i == j)
-		    continue;
+	final RowMZIndex index = new RowMZIndex(rows, rtTolerance);
+
+	final int numOfThreads = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads)
+		.getNumberOfThreads();
+	final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+	final int chunkSize = Math.max(MIN_CHUNK_SIZE, totalRows
+		/ (numOfThreads * 4) + 1);
+
+	final List<Callable<List<int[]>>> chunks = new ArrayList<Callable<List<int[]>>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    chunks.add(new Callable<List<int[]>>() {
+		@Override
+		public List<int[]> call() {
+		    final List<int[]> matches = new ArrayList<int[]>();
+		    for (int i = chunkStart; !isCanceled() && i < chunkEnd; i++) {
+			findAdducts(index, i, matches);
+			finishedRows.incrementAndGet();
+		    }
+		    return matches;
+		}
+	    });
+	}
 
-		findAdducts(rows[i], rows[j]);
+	try {
+	    for (final Future<List<int[]>> result : pool.invokeAll(chunks)) {
+		for (final int[] match : result.get()) {
+
+		    if (isCanceled())
+			return;
+
+		    // Add adduct identity and notify GUI.
+		    final PeakListRow possibleAdduct = rows[match[1]];
+		    possibleAdduct.addPeakIdentity(new AdductIdentity(
+			    rows[match[0]], selectedAdducts[match[2]]), false);
+		    MZmineCore.getProjectManager().getCurrentProject()
+			    .notifyObjectChanged(possibleAdduct, false);
+		}
 	    }
-
-	    finishedRows++;
+	} finally {
+	    pool.shutdown();
 	}
     }
 
     /**
-     * Check if candidate peak may be a possible adduct of a given main peak.
+     * Finds the possible adducts of given main row.
      *
+     * @param index
+     *            index of all rows.
      * @param mainRow
-     *            main peak.
-     * @param possibleAdduct
-     *            candidate adduct peak.
+     *            position of the main row in the index.
+     * @param matches
+     *            list to add the {main row, adduct row, adduct type} positions
+     *            to, ordered by adduct row and adduct type.
      */
-    private void findAdducts(final PeakListRow mainRow,
-	    final PeakListRow possibleAdduct) {
-
-	for (final AdductType adduct : selectedAdducts) {
-
-	    if (checkAdduct(mainRow, possibleAdduct, adduct)) {
-
-		// Add adduct identity and notify GUI.
-		possibleAdduct.addPeakIdentity(new AdductIdentity(mainRow,
-			adduct), false);
-		MZmineCore.getProjectManager().getCurrentProject()
-			.notifyObjectChanged(possibleAdduct, false);
+    private void findAdducts(final RowMZIndex index, final int mainRow,
+	    final List<int[]> matches) {
+
+	final PeakListRow row = index.getRow(mainRow);
+	final Range<Double> rtRange = rtTolerance.getToleranceRange(index
+		.getRT(mainRow));
+	final List<int[]> rowMatches = new ArrayList<int[]>();
+
+	for (int a = 0; a < selectedAdducts.length; a++) {
+
+	    final Range<Double> mzRange = mzTolerance.getToleranceRange(index
+		    .getMZ(mainRow) + selectedAdducts[a].getMassDifference());
+	    final int candidates[] = index.findRows(mzRange.lowerEndpoint(),
+		    mzRange.upperEndpoint(), rtRange.lowerEndpoint(),
+		    rtRange.upperEndpoint());
+
+	    for (final int candidate : candidates) {
+		if ((candidate != mainRow)
+			&& checkAdduct(row, index.getRow(candidate),
+				selectedAdducts[a]))
+		    rowMatches.add(new int[] { mainRow, candidate, a });
 	    }
 	}
+
+	// Same order as comparing each row with all adduct types
+	Collections.sort(rowMatches, new Comparator<int[]>() {
+	    @Override
+	    public int compare(int[] match1, int[] match2) {
+		if (match1[1] != match2[1])
+		    return Integer.compare(match1[1], match2[1]);
+		return Integer.compare(match1[2], match2[2]);
+	    }
+	});
+	matches.addAll(rowMatches);
     }
 
     /**
@@ -482,8 +482,6 @@ public class CameraSearchTask extends AbstractTask {
 				addPseudoSpectraIdentities(peaks, spectra, isotopes, adducts);
 			}
 			progress += progressInc;
-			// Turn off R instance, once task ended gracefully.
-			if (!this.userCanceled) this.rSession.close(false);
 
 		} 
 		catch (RSessionWrapperException e) {
@@ -498,19 +496,21 @@ public class CameraSearchTask extends AbstractTask {
 				e.printStackTrace();
 			}
 		}
-
-		// Turn off R instance, once task ended UNgracefully.
-		try {
-			if (!this.userCanceled) this.rSession.close(this.userCanceled);
-		}
-		catch (RSessionWrapperException e) {
-			if (!this.userCanceled) {
-				// Do not override potential previous error message.
-				if (errorMsg == null) {
-					errorMsg = e.getMessage();
+		finally {
+			// Turn off R instance: return it to the pool, or terminate it if
+			// the task was canceled.
+			try {
+				if (this.rSession != null) this.rSession.close(this.userCanceled);
+			}
+			catch (RSessionWrapperException e) {
+				if (!this.userCanceled) {
+					// Do not override potential previous error message.
+					if (errorMsg == null) {
+						errorMsg = e.getMessage();
+					}
+				} else {
+					// User canceled: Silent.
 				}
-			} else {
-				// User canceled: Silent.
 			}
 		}
 
@@ -19,7 +19,15 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.complexsearch;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.IonizationType;
@@ -29,13 +37,16 @@ import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakListRowSorter;
+import net.sf.mzmine.util.RowMZIndex;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
@@ -45,7 +56,15 @@ public class ComplexSearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    // Minimum number of complex rows searched by one task
+    private static final int MIN_CHUNK_SIZE = 100;
+
+    // Added to the m/z range of the second row, so that rounding errors
+    // cannot exclude rows which pass checkComplex()
+    private static final double MZ_MARGIN = 1e-6;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
+    private int totalRows;
     private PeakList peakList;
 
     private RTTolerance rtTolerance;
@@ -80,7 +99,7 @@ public class ComplexSearchTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedRows) / totalRows;
+	return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -107,36 +126,14 @@ public class ComplexSearchTask extends AbstractTask {
 	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.MZ,
 		SortingDirection.Descending));
 
-	// Compare each three rows against each other
-	for (int i = 0; i < totalRows; i++) {
-
-	    Range<Double> testRTRange = rtTolerance.getToleranceRange(rows[i]
-		    .getAverageRT());
-	    PeakListRow testRows[] = peakList
-		    .getRowsInsideScanRange(testRTRange);
-
-	    for (int j = 0; j < testRows.length; j++) {
-
-		for (int k = j; k < testRows.length; k++) {
-
-		    // Task canceled?
-		    if (isCanceled())
-			return;
-
-		    // To avoid finding a complex of the peak itself and another
-		    // very small m/z peak
-		    if ((rows[i] == testRows[j]) || (rows[i] == testRows[k]))
-			continue;
-
-		    if (checkComplex(rows[i], testRows[j], testRows[k]))
-			addComplexInfo(rows[i], testRows[j], testRows[k]);
-
-		}
-
-	    }
-
-	    finishedRows++;
-
+	try {
+	    if (!searchComplexes(rows))
+		return;
+	} catch (Exception e) {
+	    logger.log(Level.SEVERE, "Complex search error", e);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.toString());
+	    return;
 	}
 
 	// Add task description to peakList
@@ -155,6 +152,126 @@ public class ComplexSearchTask extends AbstractTask {
 
     }
 
+    /**
+     * Search the complexes of all rows. For each possible complex row, only the
+     * pairs of rows within the RT tolerance whose m/z sum matches the complex
+     * are checked. The rows are searched in parallel, and the complex
+     * identities are added afterwards in the same order as by comparing each
+     * three rows.
+     * 
+     * @return false if the task was canceled
+     */
+    private boolean searchComplexes(final PeakListRow rows[])
+	    throws InterruptedException, ExecutionException {
+
+	// Positions in the index follow the order of the peak list rows, which
+	// is the order in which the pairs of rows were compared
+	final RowMZIndex index = new RowMZIndex(peakList.getRows(), rtTolerance);
+
+	final int numOfThreads = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads)
+		.getNumberOfThreads();
+	final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+	final int chunkSize = Math.max(MIN_CHUNK_SIZE, totalRows
+		/ (numOfThreads * 4) + 1);
+
+	List<Callable<List<int[]>>> chunks = new ArrayList<Callable<List<int[]>>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    chunks.add(new Callable<List<int[]>>() {
+		@Override
+		public List<int[]> call() {
+		    List<int[]> complexes = new ArrayList<int[]>();
+		    for (int i = chunkStart; i < chunkEnd; i++) {
+			if (isCanceled())
+			    break;
+			complexes.add(findComplexes(index, rows[i]));
+			finishedRows.incrementAndGet();
+		    }
+		    return complexes;
+		}
+	    });
+	}
+
+	try {
+	    int complexRow = 0;
+	    for (Future<List<int[]>> result : pool.invokeAll(chunks)) {
+		for (int pairs[] : result.get()) {
+		    for (int p = 0; p < pairs.length; p += 2) {
+			// Task canceled?
+			if (isCanceled())
+			    return false;
+			addComplexInfo(rows[complexRow], index.getRow(pairs[p]),
+				index.getRow(pairs[p + 1]));
+		    }
+		    complexRow++;
+		}
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+
+	return !isCanceled();
+
+    }
+
+    /**
+     * Finds the pairs of rows which may form given complex row.
+     * 
+     * @return Positions of the two rows of each pair, one pair after the
+     *         other, ordered by the first and then by the second position
+     */
+    private int[] findComplexes(RowMZIndex index, PeakListRow complexRow) {
+
+	Range<Double> rtRange = rtTolerance.getToleranceRange(complexRow
+		.getAverageRT());
+	double detectedMass = complexRow.getAverageMZ()
+		- ionType.getAddedMass();
+	Range<Double> mzRange = mzTolerance.getToleranceRange(detectedMass);
+
+	int testRows[] = index.findRows(Double.NEGATIVE_INFINITY,
+		Double.POSITIVE_INFINITY, rtRange.lowerEndpoint(),
+		rtRange.upperEndpoint());
+
+	int pairs[] = new int[16];
+	int numOfValues = 0;
+
+	for (int j : testRows) {
+
+	    // To avoid finding a complex of the peak itself and another very
+	    // small m/z peak
+	    if (index.getRow(j) == complexRow)
+		continue;
+
+	    // m/z range of the second row, so that the sum matches the complex
+	    double secondMZOffset = 2 * ionType.getAddedMass()
+		    - index.getMZ(j);
+	    int secondRows[] = index.findRows(mzRange.lowerEndpoint()
+		    + secondMZOffset - MZ_MARGIN, mzRange.upperEndpoint()
+		    + secondMZOffset + MZ_MARGIN, rtRange.lowerEndpoint(),
+		    rtRange.upperEndpoint());
+
+	    for (int k : secondRows) {
+
+		if ((k < j) || (index.getRow(k) == complexRow))
+		    continue;
+
+		if (checkComplex(complexRow, index.getRow(j), index.getRow(k))) {
+		    if (numOfValues == pairs.length)
+			pairs = Arrays.copyOf(pairs, numOfValues * 2);
+		    pairs[numOfValues++] = j;
+		    pairs[numOfValues++] = k;
+		}
+
+	    }
+
+	}
+
+	return Arrays.copyOf(pairs, numOfValues);
+
+    }
+
     /**
      * Check if candidate peak may be a possible complex of given two peaks
      * 
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.Ostermiller.util.CSVParser;
+import com.google.common.collect.Range;
+
+/**
+ * Compounds of a custom database file, indexed for the search by m/z and
+ * retention time. Compounds with m/z value are sorted by m/z, compounds
+ * without m/z (value 0) but with RT are sorted by RT, and compounds without
+ * both values match any row.
+ * 
+ * Loaded databases are cached, as long as memory permits, and reused while
+ * the file and the import settings do not change. Queries do not modify the
+ * index and may run in many threads at once.
+ */
+class CustomDBIndex {
+
+    private static final int MAX_CACHED_DATABASES = 4;
+
+    // Cached databases, least recently used first
+    private static final Map<String, SoftReference<CustomDBIndex>> cache = new LinkedHashMap<String, SoftReference<CustomDBIndex>>(
+	    16, 0.75f, true);
+
+    // Values of the valid lines, in the order of the file
+    private final String ids[], names[], formulas[];
+    private final double mzValues[], rtValues[];
+
+    // Positions of compounds with m/z, sorted by m/z
+    private final int mzOrder[];
+    private final double sortedMZValues[];
+
+    // Positions of compounds with RT only, sorted by RT
+    private final int rtOrder[];
+    private final double sortedRTValues[];
+
+    // Positions of compounds without m/z and RT
+    private final int matchAll[];
+
+    /**
+     * Returns the index of the given database file, from the cache if the file
+     * was already loaded with the same settings and was not modified since.
+     */
+    static CustomDBIndex getIndex(File dataBaseFile, char fieldSeparator,
+	    FieldItem fieldOrder[], boolean ignoreFirstLine)
+	    throws IOException {
+
+	final String key = dataBaseFile.getCanonicalPath() + "|"
+		+ dataBaseFile.lastModified() + "|" + dataBaseFile.length()
+		+ "|" + fieldSeparator + "|" + Arrays.toString(fieldOrder)
+		+ "|" + ignoreFirstLine;
+
+	synchronized (cache) {
+	    SoftReference<CustomDBIndex> reference = cache.get(key);
+	    CustomDBIndex index = reference == null ? null : reference.get();
+	    if (index != null)
+		return index;
+	}
+
+	final String databaseValues[][];
+	try (FileReader dbFileReader = new FileReader(dataBaseFile)) {
+	    databaseValues = CSVParser.parse(dbFileReader, fieldSeparator);
+	}
+	CustomDBIndex index = new CustomDBIndex(databaseValues, fieldOrder,
+		ignoreFirstLine);
+
+	synchronized (cache) {
+	    // Forget older versions of the same file and collected databases
+	    final String path = dataBaseFile.getCanonicalPath() + "|";
+	    Iterator<Map.Entry<String, SoftReference<CustomDBIndex>>> iterator = cache
+		    .entrySet().iterator();
+	    while (iterator.hasNext()) {
+		Map.Entry<String, SoftReference<CustomDBIndex>> entry = iterator
+			.next();
+		if (entry.getKey().startsWith(path)
+			|| (entry.getValue().get() == null))
+		    iterator.remove();
+	    }
+	    while (cache.size() >= MAX_CACHED_DATABASES)
+		cache.remove(cache.keySet().iterator().next());
+	    cache.put(key, new SoftReference<CustomDBIndex>(index));
+	}
+
+	return index;
+    }
+
+    /**
+     * Builds the index from the lines of the database. Lines with invalid
+     * numbers or without name are ignored.
+     */
+    CustomDBIndex(String databaseValues[][], FieldItem fieldOrder[],
+	    boolean ignoreFirstLine) {
+
+	final int maxSize = databaseValues.length;
+	String lineIDs[] = new String[maxSize], lineNames[] = new String[maxSize], lineFormulas[] = new String[maxSize];
+	double lineMZValues[] = new double[maxSize], lineRTValues[] = new double[maxSize];
+	int size = 0;
+
+	for (int line = ignoreFirstLine ? 1 : 0; line < maxSize; line++) {
+
+	    final String values[] = databaseValues[line];
+	    int numOfColumns = Math.min(fieldOrder.length, values.length);
+
+	    String lineID = null, lineName = null, lineFormula = null;
+	    double lineMZ = 0, lineRT = 0;
+
+	    try {
+		for (int i = 0; i < numOfColumns; i++) {
+		    if (fieldOrder[i] == FieldItem.FIELD_ID)
+			lineID = values[i];
+		    if (fieldOrder[i] == FieldItem.FIELD_NAME)
+			lineName = values[i];
+		    if (fieldOrder[i] == FieldItem.FIELD_FORMULA)
+			lineFormula = values[i];
+		    if (fieldOrder[i] == FieldItem.FIELD_MZ)
+			lineMZ = Double.parseDouble(values[i]);
+		    if (fieldOrder[i] == FieldItem.FIELD_RT)
+			lineRT = Double.parseDouble(values[i]);
+		}
+	    } catch (NumberFormatException e) {
+		// ignore incorrect lines
+		continue;
+	    }
+
+	    // Identities must have a name
+	    if (lineName == null)
+		continue;
+
+	    lineIDs[size] = lineID;
+	    lineNames[size] = lineName;
+	    lineFormulas[size] = lineFormula;
+	    lineMZValues[size] = lineMZ;
+	    lineRTValues[size] = lineRT;
+	    size++;
+	}
+
+	ids = Arrays.copyOf(lineIDs, size);
+	names = Arrays.copyOf(lineNames, size);
+	formulas = Arrays.copyOf(lineFormulas, size);
+	mzValues = Arrays.copyOf(lineMZValues, size);
+	rtValues = Arrays.copyOf(lineRTValues, size);
+
+	int withMZ = 0, withRT = 0, withNone = 0;
+	for (int i = 0; i < size; i++) {
+	    if (mzValues[i] != 0d)
+		withMZ++;
+	    else if (rtValues[i] != 0d)
+		withRT++;
+	    else
+		withNone++;
+	}
+	int mzPositions[] = new int[withMZ], rtPositions[] = new int[withRT];
+	matchAll = new int[withNone];
+	withMZ = withRT = withNone = 0;
+	for (int i = 0; i < size; i++) {
+	    if (mzValues[i] != 0d)
+		mzPositions[withMZ++] = i;
+	    else if (rtValues[i] != 0d)
+		rtPositions[withRT++] = i;
+	    else
+		matchAll[withNone++] = i;
+	}
+
+	mzOrder = sortPositions(mzValues, mzPositions);
+	sortedMZValues = new double[mzOrder.length];
+	for (int i = 0; i < mzOrder.length; i++)
+	    sortedMZValues[i] = mzValues[mzOrder[i]];
+
+	rtOrder = sortPositions(rtValues, rtPositions);
+	sortedRTValues = new double[rtOrder.length];
+	for (int i = 0; i < rtOrder.length; i++)
+	    sortedRTValues[i] = rtValues[rtOrder[i]];
+
+    }
+
+    /**
+     * @return Number of valid compounds in the database
+     */
+    int size() {
+	return names.length;
+    }
+
+    String getID(int position) {
+	return ids[position];
+    }
+
+    String getName(int position) {
+	return names[position];
+    }
+
+    String getFormula(int position) {
+	return formulas[position];
+    }
+
+    double getMZ(int position) {
+	return mzValues[position];
+    }
+
+    double getRT(int position) {
+	return rtValues[position];
+    }
+
+    /**
+     * Finds the compounds which match a row with given tolerance ranges. A
+     * compound matches if its m/z is 0 or inside the m/z range, and its RT is
+     * 0 or inside the RT range.
+     * 
+     * @return Positions of the matching compounds, in the order of the file
+     */
+    int[] findCompounds(Range<Double> mzRange, Range<Double> rtRange) {
+
+	int result[] = new int[16];
+	int found = 0;
+
+	// Compounds with m/z
+	for (int i = lowerBound(sortedMZValues, mzRange.lowerEndpoint()); i < sortedMZValues.length; i++) {
+	    if (sortedMZValues[i] > mzRange.upperEndpoint())
+		break;
+	    final int position = mzOrder[i];
+	    if (!mzRange.contains(mzValues[position]))
+		continue;
+	    if ((rtValues[position] != 0d)
+		    && !rtRange.contains(rtValues[position]))
+		continue;
+	    if (found == result.length)
+		result = Arrays.copyOf(result, found * 2);
+	    result[found++] = position;
+	}
+
+	// Compounds with RT only
+	for (int i = lowerBound(sortedRTValues, rtRange.lowerEndpoint()); i < sortedRTValues.length; i++) {
+	    if (sortedRTValues[i] > rtRange.upperEndpoint())
+		break;
+	    final int position = rtOrder[i];
+	    if (!rtRange.contains(rtValues[position]))
+		continue;
+	    if (found == result.length)
+		result = Arrays.copyOf(result, found * 2);
+	    result[found++] = position;
+	}
+
+	result = Arrays.copyOf(result, found + matchAll.length);
+	System.arraycopy(matchAll, 0, result, found, matchAll.length);
+	Arrays.sort(result);
+	return result;
+    }
+
+    /**
+     * Returns the first position whose value is not smaller than given value
+     */
+    private static int lowerBound(double sortedValues[], double value) {
+	int low = 0, high = sortedValues.length;
+	while (low < high) {
+	    final int middle = (low + high) >>> 1;
+	    if (sortedValues[middle] < value)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Sorts given positions by their values, NaN values last
+     */
+    private static int[] sortPositions(final double values[], int positions[]) {
+	Integer boxedPositions[] = new Integer[positions.length];
+	for (int i = 0; i < positions.length; i++)
+	    boxedPositions[i] = positions[i];
+	Arrays.sort(boxedPositions, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer position1, Integer position2) {
+		return Double.compare(values[position1], values[position2]);
+	    }
+	});
+	int sortedPositions[] = new int[positions.length];
+	for (int i = 0; i < positions.length; i++)
+	    sortedPositions[i] = boxedPositions[i];
+	return sortedPositions;
+    }
+
+}
@@ -20,7 +20,13 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
 
 import java.io.File;
-import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,24 +36,28 @@ import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
-import com.Ostermiller.util.CSVParser;
 import com.google.common.collect.Range;
 
 class CustomDBSearchTask extends AbstractTask {
 
+    // Minimum number of rows searched by one task
+    private static final int MIN_CHUNK_SIZE = 100;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private PeakList peakList;
 
-    private String[][] databaseValues;
-    private int finishedLines = 0;
+    private int totalRows = 0;
+    private final AtomicInteger finishedRows = new AtomicInteger();
 
     private File dataBaseFile;
     private String fieldSeparator;
@@ -83,9 +93,9 @@ class CustomDBSearchTask extends AbstractTask {
      * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
      */
     public double getFinishedPercentage() {
-	if (databaseValues == null)
+	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedLines) / databaseValues.length;
+	return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -103,26 +113,11 @@ class CustomDBSearchTask extends AbstractTask {
 
 	setStatus(TaskStatus.PROCESSING);
 
+	CustomDBIndex database;
 	try {
-	    // read database contents in memory
-	    FileReader dbFileReader = new FileReader(dataBaseFile);
-	    databaseValues = CSVParser.parse(dbFileReader,
-		    fieldSeparator.charAt(0));
-	    if (ignoreFirstLine)
-		finishedLines++;
-	    for (; finishedLines < databaseValues.length; finishedLines++) {
-	        if (isCanceled()) {
-	            dbFileReader.close();
-	            return;
-	        }
-		try {
-		    processOneLine(databaseValues[finishedLines]);
-		} catch (Exception e) {
-		    // ingore incorrect lines
-		}
-	    }
-	    dbFileReader.close();
-
+	    // read database contents in memory, unless already loaded
+	    database = CustomDBIndex.getIndex(dataBaseFile,
+		    fieldSeparator.charAt(0), fieldOrder, ignoreFirstLine);
 	} catch (Exception e) {
 	    logger.log(Level.WARNING, "Could not read file " + dataBaseFile, e);
 	    setStatus(TaskStatus.ERROR);
@@ -130,6 +125,19 @@ class CustomDBSearchTask extends AbstractTask {
 	    return;
 	}
 
+	try {
+	    searchDatabase(database);
+	} catch (Exception e) {
+	    logger.log(Level.WARNING, "Could not search database "
+		    + dataBaseFile, e);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.toString());
+	    return;
+	}
+
+	if (isCanceled())
+	    return;
+
 	// Add task description to peakList
 	peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
 		"Peak identification using database " + dataBaseFile,
@@ -144,52 +152,84 @@ class CustomDBSearchTask extends AbstractTask {
 
     }
 
-    private void processOneLine(String values[]) {
-
-	int numOfColumns = Math.min(fieldOrder.length, values.length);
-
-	String lineID = null, lineName = null, lineFormula = null;
-	double lineMZ = 0, lineRT = 0;
-
-	for (int i = 0; i < numOfColumns; i++) {
-	    if (fieldOrder[i] == FieldItem.FIELD_ID)
-		lineID = values[i];
-	    if (fieldOrder[i] == FieldItem.FIELD_NAME)
-		lineName = values[i];
-	    if (fieldOrder[i] == FieldItem.FIELD_FORMULA)
-		lineFormula = values[i];
-	    if (fieldOrder[i] == FieldItem.FIELD_MZ)
-		lineMZ = Double.parseDouble(values[i]);
-	    if (fieldOrder[i] == FieldItem.FIELD_RT)
-		lineRT = Double.parseDouble(values[i]);
+    /**
+     * Finds the matching compounds of all rows. The rows are searched in
+     * parallel, and the identities are added afterwards, in the order of the
+     * database lines. All rows matching the same line share one identity.
+     */
+    private void searchDatabase(final CustomDBIndex database)
+	    throws InterruptedException, ExecutionException {
+
+	final PeakListRow rows[] = peakList.getRows();
+	totalRows = rows.length;
+
+	final int numOfThreads = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads)
+		.getNumberOfThreads();
+	final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+	final int chunkSize = Math.max(MIN_CHUNK_SIZE, totalRows
+		/ (numOfThreads * 4) + 1);
+
+	final List<Callable<int[][]>> chunks = new ArrayList<Callable<int[][]>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    chunks.add(new Callable<int[][]>() {
+		@Override
+		public int[][] call() {
+		    final int matches[][] = new int[chunkEnd - chunkStart][];
+		    for (int i = chunkStart; !isCanceled() && i < chunkEnd; i++) {
+			Range<Double> mzRange = mzTolerance
+				.getToleranceRange(rows[i].getAverageMZ());
+			Range<Double> rtRange = rtTolerance
+				.getToleranceRange(rows[i].getAverageRT());
+			matches[i - chunkStart] = database.findCompounds(
+				mzRange, rtRange);
+			finishedRows.incrementAndGet();
+		    }
+		    return matches;
+		}
+	    });
 	}
 
-	SimplePeakIdentity newIdentity = new SimplePeakIdentity(lineName,
-		lineFormula, dataBaseFile.getName(), lineID, null);
-
-	for (PeakListRow peakRow : peakList.getRows()) {
-
-	    Range<Double> mzRange = mzTolerance.getToleranceRange(peakRow
-		    .getAverageMZ());
-	    Range<Double> rtRange = rtTolerance.getToleranceRange(peakRow
-		    .getAverageRT());
-
-	    boolean mzMatches = (lineMZ == 0d) || mzRange.contains(lineMZ);
-	    boolean rtMatches = (lineRT == 0d) || rtRange.contains(lineRT);
-
-	    if (mzMatches && rtMatches) {
-
-		logger.finest("Found compound " + lineName + " (m/z " + lineMZ
-			+ ", RT " + lineRT + ")");
-
-		// add new identity to the row
-		peakRow.addPeakIdentity(newIdentity, false);
-
-		// Notify the GUI about the change in the project
-		MZmineCore.getProjectManager().getCurrentProject()
-			.notifyObjectChanged(peakRow, false);
+	final SimplePeakIdentity identities[] = new SimplePeakIdentity[database
+		.size()];
 
+	try {
+	    int row = 0;
+	    for (final Future<int[][]> result : pool.invokeAll(chunks)) {
+		for (final int compounds[] : result.get()) {
+
+		    if (isCanceled())
+			return;
+
+		    final PeakListRow peakRow = rows[row++];
+		    for (final int compound : compounds) {
+
+			logger.finest("Found compound "
+				+ database.getName(compound) + " (m/z "
+				+ database.getMZ(compound) + ", RT "
+				+ database.getRT(compound) + ")");
+
+			if (identities[compound] == null)
+			    identities[compound] = new SimplePeakIdentity(
+				    database.getName(compound),
+				    database.getFormula(compound),
+				    dataBaseFile.getName(), database.getID(compound),
+				    null);
+
+			// add new identity to the row
+			peakRow.addPeakIdentity(identities[compound], false);
+		    }
+
+		    // Notify the GUI about the change in the project
+		    if (compounds.length > 0)
+			MZmineCore.getProjectManager().getCurrentProject()
+				.notifyObjectChanged(peakRow, false);
+		}
 	    }
+	} finally {
+	    pool.shutdown();
 	}
 
     }
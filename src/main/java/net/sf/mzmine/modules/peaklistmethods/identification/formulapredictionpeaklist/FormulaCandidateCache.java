@@ -0,0 +1,200 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.formulapredictionpeaklist;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.openscience.cdk.formula.MolecularFormulaRange;
+import org.openscience.cdk.interfaces.IIsotope;
+import org.openscience.cdk.interfaces.IMolecularFormula;
+
+import com.google.common.collect.Range;
+
+/**
+ * Cache of all candidate formulas generated for a neutral mass window and
+ * element counts, so that rows with close masses (or the same peak list
+ * predicted again with different restrictions) do not run the formula
+ * generator again. The window is the mass range of a row widened to a grid,
+ * and each row filters the candidates to its own mass range. Only complete,
+ * reasonably small candidate lists are kept, and the garbage collector may
+ * release them when memory is needed.
+ *
+ * Windows which have too many candidates to be cached are remembered as well.
+ * The number of candidates grows with the mass, so windows of the same width
+ * and element counts at a higher mass are not generated either, and each row
+ * searches only its own mass range instead.
+ *
+ * The cached formulas are shared by all threads and must not be modified.
+ */
+class FormulaCandidateCache {
+
+    // Maximum number of cached mass ranges
+    private static final int MAX_ENTRIES = 200;
+
+    // Maximum number of candidate formulas of one cached mass range
+    static final int MAX_CANDIDATES = 2000;
+
+    // Smallest grid step of the cached mass windows (Da)
+    private static final double MIN_GRID_STEP = 1e-6;
+
+    private static final Map<String, SoftReference<List<IMolecularFormula>>> cache = new LinkedHashMap<String, SoftReference<List<IMolecularFormula>>>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, SoftReference<List<IMolecularFormula>>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Lowest mass of a window which had too many candidates, for each window
+    // width and element counts
+    private static final Map<String, Double> tooLargeWindows = new LinkedHashMap<String, Double>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return Mass window cached for given neutral mass range: the range
+     *         widened to multiples of the smallest grid step of 1, 2 or 5
+     *         times a power of ten that is not smaller than the range
+     */
+    static Range<Double> getCachedRange(Range<Double> massRange) {
+        final double lower = massRange.lowerEndpoint();
+        final double upper = massRange.upperEndpoint();
+        double step = MIN_GRID_STEP;
+        for (int i = 0; step < upper - lower; i++)
+            step *= (i % 3 == 1) ? 2.5 : 2.0;
+        long first = (long) Math.floor(lower / step);
+        long last = Math.max(first + 1, (long) Math.ceil(upper / step));
+        // The products are rounded, so they may lie just inside the range
+        if (first * step > lower)
+            first--;
+        if (last * step < upper)
+            last++;
+        return Range.closed(first * step, last * step);
+    }
+
+    /**
+     * @return Key of given cached mass window and element counts
+     */
+    static String createKey(Range<Double> massRange,
+            MolecularFormulaRange elementCounts) {
+        StringBuilder key = new StringBuilder();
+        key.append(massRange.lowerEndpoint());
+        key.append("-");
+        key.append(massRange.upperEndpoint());
+        appendElementCounts(key, elementCounts);
+        return key.toString();
+    }
+
+    /**
+     * @return Key of the width of given cached mass window and element counts
+     */
+    private static String createWidthKey(Range<Double> massRange,
+            MolecularFormulaRange elementCounts) {
+        StringBuilder key = new StringBuilder();
+        // Window widths are multiples of the smallest grid step
+        key.append(Math.round((massRange.upperEndpoint()
+                - massRange.lowerEndpoint()) / MIN_GRID_STEP));
+        appendElementCounts(key, elementCounts);
+        return key.toString();
+    }
+
+    private static void appendElementCounts(StringBuilder key,
+            MolecularFormulaRange elementCounts) {
+        for (IIsotope isotope : elementCounts.isotopes()) {
+            key.append(isotope.getSymbol());
+            if (isotope.getMassNumber() != null)
+                key.append(isotope.getMassNumber());
+            key.append("[");
+            key.append(elementCounts.getIsotopeCountMin(isotope));
+            key.append("-");
+            key.append(elementCounts.getIsotopeCountMax(isotope));
+            key.append("]");
+        }
+    }
+
+    /**
+     * @return All candidate formulas of given key, in the order in which they
+     *         were generated, or null if they are not cached
+     */
+    static @Nullable List<IMolecularFormula> get(String key) {
+        synchronized (cache) {
+            SoftReference<List<IMolecularFormula>> reference = cache.get(key);
+            if (reference == null)
+                return null;
+            List<IMolecularFormula> candidates = reference.get();
+            if (candidates == null)
+                cache.remove(key);
+            return candidates;
+        }
+    }
+
+    /**
+     * Caches the complete list of candidate formulas of given key, unless it
+     * has more than MAX_CANDIDATES formulas
+     */
+    static void put(String key, List<IMolecularFormula> candidates) {
+        if (candidates.size() > MAX_CANDIDATES)
+            return;
+        synchronized (cache) {
+            cache.put(key, new SoftReference<List<IMolecularFormula>>(
+                    candidates));
+        }
+    }
+
+    /**
+     * @return True if a window of the same width and element counts at the
+     *         same or a lower mass had too many candidates to be cached
+     */
+    static boolean isTooLarge(Range<Double> massRange,
+            MolecularFormulaRange elementCounts) {
+        final String key = createWidthKey(massRange, elementCounts);
+        synchronized (cache) {
+            Double lowestMass = tooLargeWindows.get(key);
+            return (lowestMass != null)
+                    && (massRange.lowerEndpoint() >= lowestMass);
+        }
+    }
+
+    /**
+     * Remembers that given cached mass window has too many candidates to be
+     * cached, or could not be generated within the time limit
+     */
+    static void putTooLarge(Range<Double> massRange,
+            MolecularFormulaRange elementCounts) {
+        final String key = createWidthKey(massRange, elementCounts);
+        synchronized (cache) {
+            Double lowestMass = tooLargeWindows.get(key);
+            if ((lowestMass == null)
+                    || (massRange.lowerEndpoint() < lowestMass))
+                tooLargeWindows.put(key, massRange.lowerEndpoint());
+        }
+    }
+
+}
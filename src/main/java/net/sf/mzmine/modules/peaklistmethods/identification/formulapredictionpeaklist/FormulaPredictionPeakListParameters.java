@@ -18,6 +18,8 @@
  */
 package net.sf.mzmine.modules.peaklistmethods.identification.formulapredictionpeaklist;
 
+import java.text.DecimalFormat;
+
 import net.sf.mzmine.datamodel.IonizationType;
 import net.sf.mzmine.modules.peaklistmethods.identification.formulaprediction.elements.ElementsParameter;
 import net.sf.mzmine.modules.peaklistmethods.identification.formulaprediction.restrictions.elements.ElementalHeuristicParameters;
@@ -27,8 +29,10 @@ import net.sf.mzmine.modules.peaklistmethods.msms.msmsscore.MSMSScoreParameters;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalModuleParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZToleranceParameter;
 
@@ -65,9 +69,19 @@ public class FormulaPredictionPeakListParameters extends SimpleParameterSet {
     public static final OptionalModuleParameter msmsFilter = new OptionalModuleParameter(
 	    "MS/MS filter", "Check MS/MS data", new MSMSScoreParameters());
 
+    public static final OptionalParameter<IntegerParameter> maxCandidates = new OptionalParameter<>(
+	    new IntegerParameter("Maximum candidates per row",
+		    "Stop generating formulas for a row after this number of candidate formulas",
+		    100000, 1, null));
+
+    public static final OptionalParameter<DoubleParameter> maxTime = new OptionalParameter<>(
+	    new DoubleParameter("Maximum time per row (s)",
+		    "Stop generating formulas for a row after this time",
+		    new DecimalFormat("0.0"), 60.0, 0.1, null));
+
     public FormulaPredictionPeakListParameters() {
 	super(new Parameter[] { charge, ionization, PEAK_LISTS, mzTolerance,
 		elements, elementalRatios, rdbeRestrictions, isotopeFilter,
-		msmsFilter });
+		msmsFilter, maxCandidates, maxTime });
     }
 }
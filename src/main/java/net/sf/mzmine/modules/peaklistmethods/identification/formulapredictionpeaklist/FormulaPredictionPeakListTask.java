@@ -19,10 +19,25 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.formulapredictionpeaklist;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import org.openscience.cdk.formula.MolecularFormulaGenerator;
 import org.openscience.cdk.formula.MolecularFormulaRange;
 import org.openscience.cdk.interfaces.IChemObjectBuilder;
@@ -42,12 +57,14 @@ import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.peaklistmethods.identification.formulaprediction.ResultFormula;
 import net.sf.mzmine.modules.peaklistmethods.identification.formulaprediction.restrictions.elements.ElementalHeuristicChecker;
 import net.sf.mzmine.modules.peaklistmethods.identification.formulaprediction.restrictions.rdbe.RDBERestrictionChecker;
 import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreCalculator;
 import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreParameters;
+import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction.IsotopePatternCache;
 import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction.IsotopePatternCalculator;
 import net.sf.mzmine.modules.peaklistmethods.msms.msmsscore.MSMSScore;
 import net.sf.mzmine.modules.peaklistmethods.msms.msmsscore.MSMSScoreCalculator;
@@ -55,26 +72,38 @@ import net.sf.mzmine.modules.peaklistmethods.msms.msmsscore.MSMSScoreParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.FormulaUtils;
 
+/**
+ * Predicts the formulas of all rows without identities. The rows are split
+ * into chunks, which are processed in parallel in a ForkJoinPool, and the
+ * identities are added afterwards in the order of the rows.
+ */
 public class FormulaPredictionPeakListTask extends AbstractTask {
 
-    private List<ResultFormula> ResultingFormulas;
+    // Minimum number of rows processed by one task
+    private static final int MIN_CHUNK_SIZE = 1;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
-    private Range<Double> massRange;
     private MolecularFormulaRange elementCounts;
-    private MolecularFormulaGenerator generator;
     private IonizationType ionType;
-    private double searchedMass;
     private int charge;
     private PeakList peakList;
     private boolean checkIsotopes, checkMSMS, checkRatios, checkRDBE;
     private ParameterSet isotopeParameters, msmsParameters, ratiosParameters,
             rdbeParameters;
     private MZTolerance mzTolerance;
-    private String message;
-    private int totalRows, finishedRows;
+    private Integer maxCandidates;
+    private Long maxTime;
+    private int totalRows;
+    private final AtomicInteger finishedRows = new AtomicInteger();
+
+    // Generators which are currently running, to cancel them with the task
+    private final Set<MolecularFormulaGenerator> runningGenerators = Collections
+            .newSetFromMap(
+                    new ConcurrentHashMap<MolecularFormulaGenerator, Boolean>());
 
     /**
      *
@@ -135,7 +164,22 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
                         FormulaPredictionPeakListParameters.elementalRatios)
                 .getEmbeddedParameters();
 
-        message = "Formula Prediction";
+        if (parameters
+                .getParameter(FormulaPredictionPeakListParameters.maxCandidates)
+                .getValue()) {
+            maxCandidates = parameters
+                    .getParameter(
+                            FormulaPredictionPeakListParameters.maxCandidates)
+                    .getEmbeddedParameter().getValue();
+        }
+        if (parameters
+                .getParameter(FormulaPredictionPeakListParameters.maxTime)
+                .getValue()) {
+            double seconds = parameters
+                    .getParameter(FormulaPredictionPeakListParameters.maxTime)
+                    .getEmbeddedParameter().getValue();
+            maxTime = Math.max(1, Math.round(seconds * 1000));
+        }
     }
 
     /**
@@ -144,14 +188,14 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0.0;
-        return (double) finishedRows / (double) totalRows;
+        return (double) finishedRows.get() / (double) totalRows;
     }
 
     /**
      * @see net.sf.mzmine.taskcontrol.Task#getTaskDescription()
      */
     public String getTaskDescription() {
-        return message;
+        return "Formula prediction in " + peakList;
     }
 
     /**
@@ -161,60 +205,354 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
 
         setStatus(TaskStatus.PROCESSING);
 
-        totalRows = peakList.getNumberOfRows();
+        try {
+            predictFormulas();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Formula prediction failed", e);
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.getCause().getMessage());
+            return;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Formula prediction failed", e);
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.toString());
+            return;
+        }
 
-        for (PeakListRow row : peakList.getRows()) {
+        if (isCanceled())
+            return;
 
-            if (row.getPeakIdentities().length > 0) {
-                continue;
-            }
+        logger.finest("Finished formula search for all the peaks");
+        if (checkIsotopes)
+            logger.finest(IsotopePatternCache.getStatistics());
 
-            this.ResultingFormulas = new ArrayList<ResultFormula>();
+        setStatus(TaskStatus.FINISHED);
 
-            this.searchedMass = (row.getAverageMZ() - ionType.getAddedMass())
-                    * charge;
+    }
 
-            message = "Formula prediction for " + MZmineCore.getConfiguration()
-                    .getMZFormat().format(searchedMass);
+    /**
+     * Predicts the formulas of the rows in parallel, and adds the formulas as
+     * identities of the rows
+     */
+    private void predictFormulas()
+            throws InterruptedException, ExecutionException {
+
+        final PeakListRow rows[] = peakList.getRows();
+        totalRows = rows.length;
+
+        final int numOfThreads = MZmineCore.getConfiguration().getPreferences()
+                .getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE,
+                totalRows / (numOfThreads * 4) + 1);
+
+        // Stops the generators which exceed the time limit
+        final Timer timer = new Timer("Formula prediction time limit", true);
+
+        List<Callable<List<List<ResultFormula>>>> chunks = new ArrayList<Callable<List<List<ResultFormula>>>>();
+        for (int start = 0; start < totalRows; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, totalRows);
+            chunks.add(new Callable<List<List<ResultFormula>>>() {
+                @Override
+                public List<List<ResultFormula>> call() {
+                    List<List<ResultFormula>> formulas = new ArrayList<List<ResultFormula>>();
+                    for (int i = chunkStart; i < chunkEnd; i++) {
+                        if (isCanceled())
+                            return formulas;
+                        formulas.add(predictFormulas(rows[i], timer));
+                        finishedRows.incrementAndGet();
+                    }
+                    return formulas;
+                }
+            });
+        }
 
-            massRange = mzTolerance.getToleranceRange(searchedMass);
+        try {
+            int row = 0;
+            for (Future<List<List<ResultFormula>>> result : pool
+                    .invokeAll(chunks)) {
+                for (List<ResultFormula> formulas : result.get()) {
 
-            IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
-            generator = new MolecularFormulaGenerator(builder,
-                    massRange.lowerEndpoint(), massRange.upperEndpoint(),
-                    elementCounts);
+                    if (isCanceled())
+                        return;
 
-            IMolecularFormula cdkFormula;
-            while ((cdkFormula = generator.getNextFormula()) != null) {
-                // Mass is ok, so test other constraints
-                checkConstraints(cdkFormula, row);
+                    final PeakListRow peakListRow = rows[row++];
+                    if (formulas == null)
+                        continue;
 
+                    for (ResultFormula f : formulas) {
+                        SimplePeakIdentity newIdentity = new SimplePeakIdentity(
+                                f.getFormulaAsString());
+                        peakListRow.addPeakIdentity(newIdentity, false);
+                    }
+                }
             }
+        } finally {
+            pool.shutdown();
+            timer.cancel();
+        }
 
-            if (isCanceled())
-                return;
+    }
+
+    /**
+     * Generates the candidate formulas of one row and checks the constraints.
+     * The candidates of a cached mass window around the row are taken from
+     * the cache, or generated and cached if the window has not been searched
+     * yet. If the window has too many candidates to be cached, or cannot be
+     * searched within the time limit, only the mass range of the row is
+     * searched, with the full time limit, until the generator has no more
+     * candidates or the candidate or time limit is reached.
+     *
+     * @return Formulas which pass all checks, or null if the row already has
+     *         identities
+     */
+    private @Nullable List<ResultFormula> predictFormulas(
+            final PeakListRow row, Timer timer) {
+
+        if (row.getPeakIdentities().length > 0) {
+            return null;
+        }
 
-            for (ResultFormula f : this.ResultingFormulas) {
-                SimplePeakIdentity newIdentity = new SimplePeakIdentity(
-                        f.getFormulaAsString());
-                row.addPeakIdentity(newIdentity, false);
+        final List<ResultFormula> resultingFormulas = new ArrayList<ResultFormula>();
+
+        final double searchedMass = (row.getAverageMZ()
+                - ionType.getAddedMass()) * charge;
+        final Range<Double> massRange = mzTolerance
+                .getToleranceRange(searchedMass);
+
+        // Values which are the same for all candidates of this row
+        final Scan msmsScan = getMSMSScan(row);
+        final IsotopePattern detectedPattern = checkIsotopes
+                ? row.getBestIsotopePattern() : null;
+
+        final int candidateLimit = maxCandidates == null ? Integer.MAX_VALUE
+                : maxCandidates;
+
+        // Candidates are generated and cached for a wider mass window, so
+        // that rows with close masses share them, unless windows of this size
+        // were already found to have too many candidates at this mass
+        final Range<Double> cachedRange = FormulaCandidateCache
+                .getCachedRange(massRange);
+        if (!FormulaCandidateCache.isTooLarge(cachedRange, elementCounts)) {
+
+            final long deadline = getDeadline();
+            final String cacheKey = FormulaCandidateCache
+                    .createKey(cachedRange, elementCounts);
+            List<IMolecularFormula> candidates = FormulaCandidateCache
+                    .get(cacheKey);
+
+            if (candidates == null) {
+                candidates = generateCachedCandidates(cachedRange, deadline,
+                        timer);
+                if (isCanceled())
+                    return resultingFormulas;
+                if (candidates != null)
+                    FormulaCandidateCache.put(cacheKey, candidates);
+                else
+                    FormulaCandidateCache.putTooLarge(cachedRange,
+                            elementCounts);
             }
 
-            finishedRows++;
+            if (candidates != null) {
+                int checkedCandidates = 0;
+                for (IMolecularFormula cdkFormula : candidates) {
+                    if (!massRange.contains(MolecularFormulaManipulator
+                            .getTotalExactMass(cdkFormula)))
+                        continue;
+                    if (isCanceled()
+                            || (checkedCandidates++ >= candidateLimit)
+                            || (System.nanoTime() > deadline))
+                        break;
+                    checkConstraints(cdkFormula, row, detectedPattern,
+                            msmsScan, resultingFormulas);
+                }
+                return resultingFormulas;
+            }
+        }
 
+        final int checkedCandidates[] = new int[1];
+        GeneratorResult result = generateFormulas(massRange, getDeadline(),
+                timer, new FormulaHandler() {
+                    @Override
+                    public boolean handleFormula(IMolecularFormula cdkFormula) {
+                        checkConstraints(cdkFormula, row, detectedPattern,
+                                msmsScan, resultingFormulas);
+                        return ++checkedCandidates[0] < candidateLimit;
+                    }
+                });
+
+        if ((result == GeneratorResult.STOPPED) && !isCanceled()) {
+            logger.info("Formula search for "
+                    + MZmineCore.getConfiguration().getMZFormat()
+                            .format(searchedMass)
+                    + " stopped after " + maxCandidates + " candidates");
+        }
+        if (result == GeneratorResult.TIME_EXCEEDED) {
+            logger.info("Formula search for "
+                    + MZmineCore.getConfiguration().getMZFormat()
+                            .format(searchedMass)
+                    + " stopped after " + maxTime + " ms");
         }
 
-        if (isCanceled())
-            return;
+        return resultingFormulas;
 
-        logger.finest("Finished formula search for all the peaks");
+    }
 
-        setStatus(TaskStatus.FINISHED);
+    /**
+     * Generates all candidate formulas of a cached mass window
+     *
+     * @return Candidates in the order in which they were generated, or null
+     *         if the window has more than FormulaCandidateCache.MAX_CANDIDATES
+     *         candidates, or if the time limit was reached or the task was
+     *         canceled before all candidates were generated
+     */
+    private @Nullable List<IMolecularFormula> generateCachedCandidates(
+            Range<Double> cachedRange, long deadline, Timer timer) {
+        final List<IMolecularFormula> candidates = new ArrayList<IMolecularFormula>();
+        GeneratorResult result = generateFormulas(cachedRange, deadline, timer,
+                new FormulaHandler() {
+                    @Override
+                    public boolean handleFormula(IMolecularFormula cdkFormula) {
+                        candidates.add(cdkFormula);
+                        return candidates.size() <= FormulaCandidateCache.MAX_CANDIDATES;
+                    }
+                });
+        if ((result != GeneratorResult.COMPLETE) || isCanceled())
+            return null;
+        return candidates;
+    }
+
+    /**
+     * Receives the formulas of the formula generator
+     */
+    private interface FormulaHandler {
+
+        /**
+         * @return False to stop the generator
+         */
+        boolean handleFormula(IMolecularFormula cdkFormula);
+
+    }
 
+    /**
+     * How the formula generator finished
+     */
+    private enum GeneratorResult {
+        COMPLETE, STOPPED, TIME_EXCEEDED
+    }
+
+    /**
+     * @return System.nanoTime() at which the search of a row started now is
+     *         stopped, or Long.MAX_VALUE if there is no time limit
+     */
+    private long getDeadline() {
+        if (maxTime == null)
+            return Long.MAX_VALUE;
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxTime);
     }
 
+    /**
+     * Passes the formulas of given mass range to the handler, until the
+     * generator has no more formulas, the handler stops it, the deadline is
+     * reached or the task is canceled
+     *
+     * @return COMPLETE if the generator had no more formulas, TIME_EXCEEDED if
+     *         the deadline was reached, STOPPED otherwise
+     */
+    private GeneratorResult generateFormulas(Range<Double> range,
+            long deadline, Timer timer, FormulaHandler handler) {
+
+        IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
+        final MolecularFormulaGenerator generator = new MolecularFormulaGenerator(
+                builder, range.lowerEndpoint(), range.upperEndpoint(),
+                elementCounts);
+        runningGenerators.add(generator);
+
+        // The generator may search for a long time until it finds the next
+        // candidate, so it is canceled by the timer when the time is over
+        final AtomicBoolean timeExceeded = new AtomicBoolean();
+        TimerTask timeLimit = null;
+        if (deadline != Long.MAX_VALUE) {
+            timeLimit = new TimerTask() {
+                @Override
+                public void run() {
+                    timeExceeded.set(true);
+                    generator.cancel();
+                }
+            };
+            timer.schedule(timeLimit, Math.max(1, TimeUnit.NANOSECONDS
+                    .toMillis(deadline - System.nanoTime())));
+        }
+
+        boolean stopped = false;
+        try {
+            // Cancel the generator also if the task was canceled before it
+            // was registered
+            if (isCanceled())
+                generator.cancel();
+
+            IMolecularFormula cdkFormula;
+            while ((cdkFormula = generator.getNextFormula()) != null) {
+                if (!handler.handleFormula(cdkFormula)) {
+                    stopped = true;
+                    break;
+                }
+                if (System.nanoTime() > deadline) {
+                    timeExceeded.set(true);
+                    break;
+                }
+            }
+        } finally {
+            runningGenerators.remove(generator);
+            if (timeLimit != null)
+                timeLimit.cancel();
+        }
+
+        if (timeExceeded.get())
+            return GeneratorResult.TIME_EXCEEDED;
+        if (stopped || isCanceled())
+            return GeneratorResult.STOPPED;
+        return GeneratorResult.COMPLETE;
+    }
+
+    /**
+     * @return MS/MS scan of the best peak of the row, or null if MS/MS is not
+     *         checked or the peak has no MS/MS scan
+     */
+    private @Nullable Scan getMSMSScan(PeakListRow peakListRow) {
+
+        if (!checkMSMS)
+            return null;
+
+        Feature bestPeak = peakListRow.getBestPeak();
+        RawDataFile dataFile = bestPeak.getDataFile();
+        int msmsScanNumber = bestPeak.getMostIntenseFragmentScanNumber();
+        if (msmsScanNumber <= 0)
+            return null;
+
+        Scan msmsScan = dataFile.getScan(msmsScanNumber);
+        String massListName = msmsParameters
+                .getParameter(MSMSScoreParameters.massList).getValue();
+        MassList ms2MassList = msmsScan.getMassList(massListName);
+        if (ms2MassList == null) {
+            throw new IllegalStateException("The MS/MS scan #" + msmsScanNumber
+                    + " in file " + dataFile.getName()
+                    + " does not have a mass list called '" + massListName
+                    + "'");
+        }
+        return msmsScan;
+
+    }
+
+    /**
+     * Checks the constraints from the fastest to the slowest one, and adds the
+     * formula to the results if it passes all of them
+     */
     private void checkConstraints(IMolecularFormula cdkFormula,
-            PeakListRow peakListRow) {
+            PeakListRow peakListRow, @Nullable IsotopePattern detectedPattern,
+            @Nullable Scan msmsScan, List<ResultFormula> resultingFormulas) {
 
         // Check elemental ratios
         if (checkRatios) {
@@ -237,10 +575,9 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
         }
 
         // Calculate isotope similarity score
-        IsotopePattern detectedPattern = peakListRow.getBestIsotopePattern();
         IsotopePattern predictedIsotopePattern = null;
         Double isotopeScore = null;
-        if ((checkIsotopes) && (detectedPattern != null)) {
+        if (detectedPattern != null) {
 
             String stringFormula = MolecularFormulaManipulator
                     .getString(cdkFormula);
@@ -281,24 +618,9 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
 
         // MS/MS evaluation is slowest, so let's do it last
         Double msmsScore = null;
-        Feature bestPeak = peakListRow.getBestPeak();
-        RawDataFile dataFile = bestPeak.getDataFile();
         Map<DataPoint, String> msmsAnnotations = null;
-        int msmsScanNumber = bestPeak.getMostIntenseFragmentScanNumber();
 
-        if ((checkMSMS) && (msmsScanNumber > 0)) {
-            Scan msmsScan = dataFile.getScan(msmsScanNumber);
-            String massListName = msmsParameters
-                    .getParameter(MSMSScoreParameters.massList).getValue();
-            MassList ms2MassList = msmsScan.getMassList(massListName);
-            if (ms2MassList == null) {
-                setStatus(TaskStatus.ERROR);
-                setErrorMessage("The MS/MS scan #" + msmsScanNumber
-                        + " in file " + dataFile.getName()
-                        + " does not have a mass list called '" + massListName
-                        + "'");
-                return;
-            }
+        if (msmsScan != null) {
 
             MSMSScore score = MSMSScoreCalculator.evaluateMSMS(cdkFormula,
                     msmsScan, msmsParameters);
@@ -324,7 +646,7 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
                 msmsAnnotations);
 
         // Add the new formula entry
-        ResultingFormulas.add(resultEntry);
+        resultingFormulas.add(resultEntry);
 
     }
 
@@ -332,9 +654,9 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
     public void cancel() {
         super.cancel();
 
-        // We need to cancel the formula generator, because searching for next
+        // We need to cancel the formula generators, because searching for next
         // candidate formula may take a looong time
-        if (generator != null) {
+        for (MolecularFormulaGenerator generator : runningGenerators) {
             generator.cancel();
         }
 
@@ -19,25 +19,36 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.fragmentsearch;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakListRowSorter;
+import net.sf.mzmine.util.RowMZIndex;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
@@ -47,7 +58,11 @@ public class FragmentSearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    // Minimum number of main rows searched by one task
+    private static final int MIN_CHUNK_SIZE = 100;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
+    private int totalRows;
     private PeakList peakList;
 
     private RTTolerance rtTolerance;
@@ -82,7 +97,7 @@ public class FragmentSearchTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedRows) / totalRows;
+	return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -108,29 +123,14 @@ public class FragmentSearchTask extends AbstractTask {
 	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
 		SortingDirection.Descending));
 
-	// Compare each two rows against each other
-	for (int i = 0; i < totalRows; i++) {
-
-	    for (int j = i + 1; j < rows.length; j++) {
-
-		// Task canceled?
-		if (isCanceled())
-		    return;
-
-		// Treat the higher m/z peak as main peak and check if the
-		// smaller one may be a fragment
-		if (rows[i].getAverageMZ() > rows[j].getAverageMZ()) {
-		    if (checkFragment(rows[i], rows[j]))
-			addFragmentInfo(rows[i], rows[j]);
-		} else {
-		    if (checkFragment(rows[j], rows[i]))
-			addFragmentInfo(rows[j], rows[i]);
-		}
-
-	    }
-
-	    finishedRows++;
-
+	try {
+	    if (!searchFragments(rows))
+		return;
+	} catch (Exception e) {
+	    logger.log(Level.SEVERE, "Fragment search error", e);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.toString());
+	    return;
 	}
 
 	// Add task description to peakList
@@ -149,14 +149,133 @@ public class FragmentSearchTask extends AbstractTask {
 
     }
 
+    /**
+     * Search the fragments of all rows. Each row with an MS/MS scan is
+     * compared only with the rows within the RT tolerance. The rows are
+     * searched in parallel, and the fragment identities are added afterwards
+     * in the same order as by comparing each two rows.
+     * 
+     * @return false if the task was canceled
+     */
+    private boolean searchFragments(final PeakListRow rows[])
+	    throws InterruptedException, ExecutionException {
+
+	final RowMZIndex index = new RowMZIndex(rows, rtTolerance);
+
+	final int numOfThreads = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads)
+		.getNumberOfThreads();
+	final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+	final int chunkSize = Math.max(MIN_CHUNK_SIZE, totalRows
+		/ (numOfThreads * 4) + 1);
+
+	List<Callable<List<int[]>>> chunks = new ArrayList<Callable<List<int[]>>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    chunks.add(new Callable<List<int[]>>() {
+		@Override
+		public List<int[]> call() {
+		    List<int[]> fragments = new ArrayList<int[]>();
+		    SpectrumBuffer fragmentScanData = new SpectrumBuffer();
+		    for (int i = chunkStart; i < chunkEnd; i++) {
+			if (isCanceled())
+			    break;
+			fragments.add(findFragments(index, i, fragmentScanData));
+			finishedRows.incrementAndGet();
+		    }
+		    return fragments;
+		}
+	    });
+	}
+
+	try {
+	    int mainRow = 0;
+	    for (Future<List<int[]>> result : pool.invokeAll(chunks)) {
+		for (int fragments[] : result.get()) {
+		    for (int fragment : fragments) {
+			// Task canceled?
+			if (isCanceled())
+			    return false;
+			addFragmentInfo(rows[mainRow], rows[fragment]);
+		    }
+		    mainRow++;
+		}
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+
+	return !isCanceled();
+
+    }
+
+    /**
+     * Finds the rows which may be fragments of given main row. Of each two
+     * rows, the row with higher m/z is the main row; for the same m/z it is
+     * the row later in the index.
+     * 
+     * @return Positions of the fragment rows, in ascending order
+     */
+    private int[] findFragments(RowMZIndex index, int mainRow,
+	    SpectrumBuffer fragmentScanData) {
+
+	final PeakListRow mainPeak = index.getRow(mainRow);
+
+	// Get MS/MS scan, if exists
+	int fragmentScanNumber = mainPeak.getBestPeak()
+		.getMostIntenseFragmentScanNumber();
+	if (fragmentScanNumber <= 0)
+	    return new int[0];
+
+	RawDataFile dataFile = mainPeak.getBestPeak().getDataFile();
+	Scan fragmentScan = dataFile.getScan(fragmentScanNumber);
+	if (fragmentScan == null)
+	    return new int[0];
+
+	// Keep only the MS/MS peaks of required height
+	fragmentScan.getDataPoints(fragmentScanData);
+	final double ms2MZValues[] = new double[fragmentScanData.getSize()];
+	int ms2Peaks = 0;
+	for (int i = 0; i < fragmentScanData.getSize(); i++) {
+	    if (fragmentScanData.getIntensity(i) > minMS2peakHeight)
+		ms2MZValues[ms2Peaks++] = fragmentScanData.getMZ(i);
+	}
+	if (ms2Peaks == 0)
+	    return new int[0];
+
+	final double mainMZ = index.getMZ(mainRow);
+	Range<Double> rtRange = rtTolerance.getToleranceRange(index
+		.getRT(mainRow));
+	int candidates[] = index.findRows(Double.NEGATIVE_INFINITY, mainMZ,
+		rtRange.lowerEndpoint(), rtRange.upperEndpoint());
+
+	int fragments[] = new int[candidates.length];
+	int numOfFragments = 0;
+	for (int candidate : candidates) {
+	    if (candidate == mainRow)
+		continue;
+	    if ((index.getMZ(candidate) == mainMZ) && (candidate > mainRow))
+		continue;
+	    if (checkFragment(mainPeak, index.getRow(candidate), ms2MZValues,
+		    ms2Peaks))
+		fragments[numOfFragments++] = candidate;
+	}
+
+	return Arrays.copyOf(fragments, numOfFragments);
+
+    }
+
     /**
      * Check if candidate peak may be a possible fragment of a given main peak
      * 
      * @param mainPeak
      * @param possibleFragment
+     * @param ms2MZValues
+     *            sorted m/z values of the MS/MS peaks of required height
      */
     private boolean checkFragment(PeakListRow mainPeak,
-	    PeakListRow possibleFragment) {
+	    PeakListRow possibleFragment, double ms2MZValues[], int ms2Peaks) {
 
 	// Check retention time condition
 	boolean rtCheck = rtTolerance.checkWithinTolerance(
@@ -169,31 +288,16 @@ public class FragmentSearchTask extends AbstractTask {
 		* maxFragmentHeight)
 	    return false;
 
-	// Get MS/MS scan, if exists
-	int fragmentScanNumber = mainPeak.getBestPeak()
-		.getMostIntenseFragmentScanNumber();
-	if (fragmentScanNumber <= 0)
-	    return false;
-
-	RawDataFile dataFile = mainPeak.getBestPeak().getDataFile();
-	Scan fragmentScan = dataFile.getScan(fragmentScanNumber);
-	if (fragmentScan == null)
-	    return false;
-
-	// Get MS/MS data points in the tolerance range
+	// If there is a MS/MS peak in the tolerance range, we have a hit
 	Range<Double> ms2mzRange = ms2mzTolerance
 		.getToleranceRange(possibleFragment.getAverageMZ());
-
-	DataPoint fragmentDataPoints[] = fragmentScan
-		.getDataPointsByMass(ms2mzRange);
-
-	// If there is a MS/MS peak of required height, we have a hit
-	for (DataPoint dp : fragmentDataPoints) {
-	    if (dp.getIntensity() > minMS2peakHeight)
-		return true;
-	}
-
-	return false;
+	int position = Arrays.binarySearch(ms2MZValues, 0, ms2Peaks,
+		ms2mzRange.lowerEndpoint());
+	if (position >= 0)
+	    return true;
+	position = -position - 1;
+	return (position < ms2Peaks)
+		&& (ms2MZValues[position] <= ms2mzRange.upperEndpoint());
 
     }
 
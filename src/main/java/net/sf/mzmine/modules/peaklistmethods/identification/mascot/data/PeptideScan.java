@@ -31,6 +31,7 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.util.PeptideSorter;
 import net.sf.mzmine.util.ScanUtils;
 import net.sf.mzmine.util.SortingDirection;
@@ -88,6 +89,13 @@ public class PeptideScan implements Scan {
 	return dataPoints;
     }
 
+    /**
+     * @see net.sf.mzmine.datamodel.Scan#getDataPoints(net.sf.mzmine.datamodel.SpectrumBuffer)
+     */
+    public void getDataPoints(@Nonnull SpectrumBuffer buffer) {
+	buffer.setDataPoints(dataPoints);
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
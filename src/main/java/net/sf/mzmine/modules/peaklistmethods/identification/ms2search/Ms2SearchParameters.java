@@ -26,6 +26,7 @@ import net.sf.mzmine.parameters.parametertypes.ComboParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.PercentParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZToleranceParameter;
@@ -50,8 +51,12 @@ public class Ms2SearchParameters extends SimpleParameterSet {
     public static final DoubleParameter scoreThreshold = new DoubleParameter(
             "Minimum score to report","Minimum MS2 comparison score to report");
     
+    public static final OptionalParameter<MZToleranceParameter> precursorMzTolerance = new OptionalParameter<>(
+            new MZToleranceParameter("Compare only similar precursor m/z",
+                    "If selected, only rows whose m/z values are within this tolerance are compared"));
+    
     public Ms2SearchParameters() {
-        super(new Parameter[] { peakLists1, peakLists2, massList, mzTolerance,intensityThreshold, minimumIonsMatched,scoreThreshold});
+        super(new Parameter[] { peakLists1, peakLists2, massList, mzTolerance,intensityThreshold, minimumIonsMatched,scoreThreshold, precursorMzTolerance});
     }
 
 }
@@ -20,7 +20,16 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -28,21 +37,19 @@ import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
-import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.PeakListRowSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
 
 import com.google.common.collect.Range;
 
@@ -96,7 +103,11 @@ class Ms2SearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    // Minimum number of rows of the first peak list compared by one task
+    private static final int MIN_CHUNK_SIZE = 20;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
+    private int totalRows;
     private PeakList peakList1;
     private PeakList peakList2;
 
@@ -106,6 +117,7 @@ class Ms2SearchTask extends AbstractTask {
     private double intensityThreshold;
     private int minimumIonsMatched;
     private String massListName;
+    private MZTolerance precursorMzTolerance;
 
     /**
      * @param parameters
@@ -133,6 +145,12 @@ class Ms2SearchTask extends AbstractTask {
         massListName = parameters.getParameter(Ms2SearchParameters.massList)
                 .getValue();
 
+        if (parameters.getParameter(Ms2SearchParameters.precursorMzTolerance)
+                .getValue())
+            precursorMzTolerance = parameters
+                    .getParameter(Ms2SearchParameters.precursorMzTolerance)
+                    .getEmbeddedParameter().getValue();
+
         
     }
 
@@ -142,7 +160,7 @@ class Ms2SearchTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0;
-        return ((double) finishedRows) / totalRows;
+        return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -163,35 +181,28 @@ class Ms2SearchTask extends AbstractTask {
         logger.info("Starting MS2 similarity search between " + peakList1 + "and"
                 + peakList2 + "with mz tolerance:"+mzTolerance.getPpmTolerance());
 
-        Ms2SearchResult searchResult;
         PeakListRow rows1[] = peakList1.getRows();
         PeakListRow rows2[] = peakList2.getRows();
         
-        int rows1Length = rows1.length;
-        int rows2Length = rows2.length;
-        
-        totalRows = rows1Length;
-        
-        for (int i = 0; i < rows1Length; i++) {
-            for (int j = 0; j < rows2Length; j++) {
-                Feature featureA = rows1[i].getBestPeak();
-                Feature featureB = rows2[j].getBestPeak();
-                
-                searchResult = simpleMS2similarity(featureA,
-                        featureB, intensityThreshold, mzTolerance, massListName);
-                
-                //Report the final score to the peaklist identity
-                if (searchResult != null 
-                        && searchResult.getScore() > scoreThreshold 
-                        && searchResult.getNumIonsMatched() >= minimumIonsMatched)
-                    addFragmentClusterIdentity(rows1[i],featureA,featureB,searchResult);
-              
-                if (isCanceled())
-                    return;
-            }
-            
-        //Update progress bar
-        finishedRows++;
+        totalRows = rows1.length;
+
+        try {
+            // Read the MS2 mass lists of all rows only once
+            final Ms2Spectrum spectra1[] = extractSpectra(rows1);
+            if (spectra1 == null)
+                return;
+            final Ms2Spectrum spectra2[] = extractSpectra(rows2);
+            if (spectra2 == null)
+                return;
+
+            if (!searchSimilarSpectra(rows1, spectra1, spectra2))
+                return;
+
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "MS2 similarity search error", e);
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.toString());
+            return;
         }
 
         // Add task description to peakList
@@ -211,93 +222,211 @@ class Ms2SearchTask extends AbstractTask {
 
     }
     
-    private Ms2SearchResult simpleMS2similarity(Feature featureA, Feature featureB,
-            double intensityThreshold, MZTolerance mzRange, String massList) {
+    /**
+     * Compares the spectra of all rows of the first peak list to the spectra
+     * of the rows of the second peak list, in parallel. The identities are
+     * added afterwards in the order of the rows of both peak lists.
+     * 
+     * @return false if the task was canceled
+     */
+    private boolean searchSimilarSpectra(final PeakListRow rows1[],
+            final Ms2Spectrum spectra1[], final Ms2Spectrum spectra2[])
+            throws InterruptedException, ExecutionException {
 
-        double runningScoreTotal = 0.0;
-        double mzRangePPM = mzRange.getPpmTolerance();
-        
-        List<DataPoint> matchedIons = new ArrayList<DataPoint>();
+        // Rows of the second peak list with MS2 spectrum, sorted by m/z if
+        // only similar precursors are compared
+        final int candidates[] = getComparedRows(spectra2);
+        final double candidateMZValues[] = new double[candidates.length];
+        for (int k = 0; k < candidates.length; k++)
+            candidateMZValues[k] = spectra2[candidates[k]].getFeature()
+                    .getMZ();
 
-        // Fetch 1st feature MS2 scan.
-        int ms2ScanNumberA = featureA.getMostIntenseFragmentScanNumber();
-        Scan scanMS2A = featureA.getDataFile().getScan(ms2ScanNumberA);
-        //RawDataFile featureADataFile = featureA.getDataFile();
+        final int numOfThreads = MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, rows1.length
+                / (numOfThreads * 4) + 1);
 
-        // Fetch 2nd feature MS2 scan.
-        int ms2ScanNumberB = featureB.getMostIntenseFragmentScanNumber();
-        Scan scanMS2B = featureB.getDataFile().getScan(ms2ScanNumberB);
-        //RawDataFile peak2DataFile = featureB.getDataFile();
-        
-        if (scanMS2A == null || scanMS2B == null)
-        {
-            return null;
+        List<Callable<List<RowMatch>>> chunks = new ArrayList<Callable<List<RowMatch>>>();
+        for (int start = 0; start < rows1.length; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, rows1.length);
+            chunks.add(new Callable<List<RowMatch>>() {
+                @Override
+                public List<RowMatch> call() {
+                    List<RowMatch> matches = new ArrayList<RowMatch>();
+                    Ms2Spectrum.Match match = new Ms2Spectrum.Match();
+                    for (int i = chunkStart; i < chunkEnd; i++) {
+                        if (isCanceled())
+                            break;
+                        if (spectra1[i] != null)
+                            findSimilarSpectra(i, spectra1[i], spectra2,
+                                    candidates, candidateMZValues, match,
+                                    matches);
+                        // Update progress bar
+                        finishedRows.incrementAndGet();
+                    }
+                    return matches;
+                }
+            });
         }
 
-        //Fetch centroided data
-        MassList massListA = scanMS2A.getMassList(massListName);
-        MassList massListB = scanMS2B.getMassList(massListName);
-        
-        if (massListA == null)
-        {
-            //Will this work properly? As this function isn't directly the task?
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Scan " + scanMS2A.getDataFile().getName() + " #" + scanMS2A.getScanNumber()
-                    + " does not have a mass list " + massListName);
-            return null;        
-        }
-        
-        if (massListB == null)
-        {
-            //Will this work properly? As this function isn't directly the task?
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Scan " + scanMS2B.getDataFile().getName() + " #" + scanMS2B.getScanNumber()
-                    + " does not have a mass list " + massListName);
-            return null;        
+        try {
+            for (Future<List<RowMatch>> result : pool.invokeAll(chunks)) {
+                for (RowMatch match : result.get()) {
+                    if (isCanceled())
+                        return false;
+                    // Report the final score to the peaklist identity
+                    addFragmentClusterIdentity(rows1[match.row1],
+                            spectra1[match.row1].getFeature(),
+                            spectra2[match.row2].getFeature(), match.result);
+                }
+            }
+        } finally {
+            pool.shutdown();
         }
-     
-        DataPoint[] ionsA = null;
-        DataPoint[] ionsB = null;
-     
-        ionsA = massListA.getDataPoints();
-        ionsB = massListB.getDataPoints();
-        
-        if (ionsA == null || ionsB == null || ionsA.length == 0 || ionsB.length == 0)
-        {
-            //Fall back to profile data?
-             //Profile / raw data.
-            //ionsA = scanMS2A.getDataPointsOverIntensity(intensityThreshold);
-            //ionsB = scanMS2B.getDataPointsOverIntensity(intensityThreshold);
-         return null;   
+
+        return !isCanceled();
+    }
+
+    /**
+     * Returns the positions of the rows which have an MS2 spectrum, sorted by
+     * m/z if only similar precursors are compared
+     */
+    private int[] getComparedRows(Ms2Spectrum spectra[]) {
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int j = 0; j < spectra.length; j++) {
+            if (spectra[j] != null)
+                positions.add(j);
         }
-                
-        // Compare every ion peak in MS2 scan A, to every ion peak in MS2 scan B.
-        double ionsBMaxMZ = ionsB[ionsB.length - 1].getMZ();
-        for (int i = 0; i < ionsA.length; i++) {
-            
-            double iMZ = ionsA[i].getMZ();
-            double mzRangeAbsolute = iMZ * 1e-6 * mzRangePPM;
-            
-            if (iMZ - mzRangeAbsolute > ionsBMaxMZ)
-                break; //Potential speedup heuristic. If any i is greater than the max of j, no more matches are possible.
-            
-            for (int j = 0; j < ionsB.length; j++) {
-               
-                double jMZ = ionsB[j].getMZ();
-                
-                if (iMZ < jMZ - mzRangeAbsolute)
-                    break; //Potential speedup heuristic. iMZ smaller than jMZ.  Skip the rest of the j's as they can only increase.
-                    
-                if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
-                    runningScoreTotal += ionsA[i].getIntensity()
-                            * ionsB[j].getIntensity();
-                    matchedIons.add(ionsA[i]);
+        if (precursorMzTolerance != null) {
+            final Ms2Spectrum sortedSpectra[] = spectra;
+            Collections.sort(positions, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer j1, Integer j2) {
+                    return Double.compare(sortedSpectra[j1].getFeature()
+                            .getMZ(), sortedSpectra[j2].getFeature().getMZ());
                 }
+            });
+        }
+        int result[] = new int[positions.size()];
+        for (int k = 0; k < result.length; k++)
+            result[k] = positions.get(k);
+        return result;
+    }
+
+    /**
+     * Compares one spectrum of the first peak list to the candidate spectra of
+     * the second peak list, and adds the matches which pass the thresholds to
+     * the list, in the order of the rows of the second peak list
+     */
+    private void findSimilarSpectra(int row1, Ms2Spectrum spectrum,
+            Ms2Spectrum spectra2[], int candidates[],
+            double candidateMZValues[], Ms2Spectrum.Match match,
+            List<RowMatch> matches) {
+
+        final double ppmTolerance = mzTolerance.getPpmTolerance();
 
+        int compared[] = candidates;
+        if (precursorMzTolerance != null) {
+            Range<Double> precursorRange = precursorMzTolerance
+                    .getToleranceRange(spectrum.getFeature().getMZ());
+            int from = lowerBound(candidateMZValues,
+                    precursorRange.lowerEndpoint());
+            int to = from;
+            while ((to < candidates.length)
+                    && (candidateMZValues[to] <= precursorRange
+                            .upperEndpoint()))
+                to++;
+            compared = Arrays.copyOfRange(candidates, from, to);
+            Arrays.sort(compared);
+        }
+
+        for (int row2 : compared) {
+            spectrum.match(spectra2[row2], ppmTolerance, match, null);
+            if ((match.score > scoreThreshold)
+                    && (match.numIonsMatched >= minimumIonsMatched)) {
+                // Compare again to collect the matched ions, only for hits
+                List<DataPoint> matchedIons = new ArrayList<DataPoint>(
+                        match.numIonsMatched);
+                spectrum.match(spectra2[row2], ppmTolerance, match,
+                        matchedIons);
+                matches.add(new RowMatch(row1, row2, new Ms2SearchResult(
+                        match.score, "simple", matchedIons)));
             }
         }
-        Ms2SearchResult result = new Ms2SearchResult(runningScoreTotal,"simple",matchedIons);
-        return result;
+    }
+
+    private static int lowerBound(double sortedValues[], double value) {
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sortedValues[middle] < value)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Reads the MS2 mass list of the best peak of each row.
+     * 
+     * @return Spectra of the rows, null for rows without MS2 scan or without
+     *         ions, or null if a mass list is missing (the task is then set
+     *         to error state)
+     */
+    private Ms2Spectrum[] extractSpectra(PeakListRow rows[]) {
+
+        Ms2Spectrum spectra[] = new Ms2Spectrum[rows.length];
+        SpectrumBuffer ions = new SpectrumBuffer();
+
+        for (int i = 0; i < rows.length; i++) {
+
+            if (isCanceled())
+                return null;
+
+            Feature feature = rows[i].getBestPeak();
+            int ms2ScanNumber = feature.getMostIntenseFragmentScanNumber();
+            Scan scanMS2 = feature.getDataFile().getScan(ms2ScanNumber);
+            if (scanMS2 == null)
+                continue;
+
+            // Fetch centroided data
+            MassList massList = scanMS2.getMassList(massListName);
+            if (massList == null) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("Scan " + scanMS2.getDataFile().getName()
+                        + " #" + scanMS2.getScanNumber()
+                        + " does not have a mass list " + massListName);
+                return null;
+            }
+
+            massList.getDataPoints(ions);
+            if (ions.getSize() == 0)
+                continue;
+
+            spectra[i] = new Ms2Spectrum(feature, ions);
+        }
+
+        return spectra;
+    }
+
+    /**
+     * Similarity of one row of each peak list, which passed the thresholds
+     */
+    private static class RowMatch {
+
+        private final int row1, row2;
+        private final Ms2SearchResult result;
+
+        RowMatch(int row1, int row2, Ms2SearchResult result) {
+            this.row1 = row1;
+            this.row2 = row2;
+            this.result = result;
+        }
+
     }
 
     /**
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+/**
+ * Ions of the MS2 mass list of one feature, extracted once into m/z-sorted
+ * primitive arrays, so that comparing two spectra neither reads the mass
+ * lists again nor creates any objects.
+ */
+class Ms2Spectrum {
+
+    private final Feature feature;
+    private final double mzValues[], intensityValues[];
+
+    /**
+     * Result of the comparison of two spectra
+     */
+    static class Match {
+        double score;
+        int numIonsMatched;
+    }
+
+    /**
+     * @param ions
+     *            Ions of the mass list, must not be empty
+     */
+    Ms2Spectrum(@Nonnull Feature feature, @Nonnull SpectrumBuffer ions) {
+        this.feature = feature;
+        final int size = ions.getSize();
+        double mz[] = Arrays.copyOf(ions.getMZValues(), size);
+        double intensity[] = Arrays.copyOf(ions.getIntensityValues(), size);
+
+        // Mass lists are normally sorted by m/z already
+        for (int i = 1; i < size; i++) {
+            if (mz[i - 1] > mz[i]) {
+                DataPoint sortedIons[] = new DataPoint[size];
+                for (int j = 0; j < size; j++)
+                    sortedIons[j] = new SimpleDataPoint(mz[j], intensity[j]);
+                Arrays.sort(sortedIons, new DataPointSorter(
+                        SortingProperty.MZ, SortingDirection.Ascending));
+                for (int j = 0; j < size; j++) {
+                    mz[j] = sortedIons[j].getMZ();
+                    intensity[j] = sortedIons[j].getIntensity();
+                }
+                break;
+            }
+        }
+
+        this.mzValues = mz;
+        this.intensityValues = intensity;
+    }
+
+    @Nonnull
+    Feature getFeature() {
+        return feature;
+    }
+
+    /**
+     * Compares the ions of this spectrum to the ions of the other spectrum.
+     * Two ions match if their m/z difference is smaller than the ppm
+     * tolerance of the ion of this spectrum. The score is the sum of the
+     * intensity products of all matching pairs of ions, and each ion of this
+     * spectrum is counted once for every ion of the other spectrum it matches.
+     * 
+     * Both spectra are sorted by m/z, so the ions of the other spectrum are
+     * scanned with a window which only moves forward.
+     * 
+     * @param matchedIons
+     *            List to add the matched ions of this spectrum to, or null if
+     *            only the score and number of matched ions are needed
+     */
+    void match(@Nonnull Ms2Spectrum other, double ppmTolerance,
+            @Nonnull Match result, @Nullable List<DataPoint> matchedIons) {
+
+        final double mzB[] = other.mzValues;
+        final double intensityB[] = other.intensityValues;
+        final int sizeB = mzB.length;
+
+        double score = 0.0;
+        int numIonsMatched = 0;
+        int windowStart = 0;
+
+        if (sizeB == 0) {
+            result.score = score;
+            result.numIonsMatched = numIonsMatched;
+            return;
+        }
+        final double maxMZB = mzB[sizeB - 1];
+
+        for (int i = 0; i < mzValues.length; i++) {
+
+            final double iMZ = mzValues[i];
+            final double mzRangeAbsolute = iMZ * 1e-6 * ppmTolerance;
+
+            // If this ion is greater than the max of the other spectrum, no
+            // more matches are possible
+            if (iMZ - mzRangeAbsolute > maxMZB)
+                break;
+
+            // Skip the ions which are below the tolerance of this ion. The
+            // window is moved back in case rounding made the lower end of
+            // the tolerance smaller than for the previous ion.
+            while ((windowStart > 0)
+                    && (iMZ - mzB[windowStart - 1] < mzRangeAbsolute))
+                windowStart--;
+            while ((windowStart < sizeB)
+                    && (iMZ - mzB[windowStart] >= mzRangeAbsolute))
+                windowStart++;
+
+            for (int j = windowStart; j < sizeB; j++) {
+                final double jMZ = mzB[j];
+                // The following ions can only be greater
+                if (iMZ < jMZ - mzRangeAbsolute)
+                    break;
+                if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
+                    score += intensityValues[i] * intensityB[j];
+                    numIonsMatched++;
+                    if (matchedIons != null)
+                        matchedIons.add(new SimpleDataPoint(iMZ,
+                                intensityValues[i]));
+                }
+            }
+        }
+
+        result.score = score;
+        result.numIonsMatched = numIonsMatched;
+    }
+
+}
@@ -26,7 +26,7 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZminePerFileModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
@@ -36,7 +36,7 @@ import net.sf.mzmine.util.ExitCode;
  * searching for neighbouring peaks from expected locations.
  * 
  */
-public class IsotopeGrouperModule implements MZmineProcessingModule {
+public class IsotopeGrouperModule implements MZminePerFileModule {
 
     private static final String MODULE_NAME = "Isotopic peaks grouper";
     private static final String MODULE_DESCRIPTION = "This module detects isotopic peaks and groups them together into isotope patterns.";
@@ -41,6 +41,7 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.PeakUtils;
@@ -240,6 +241,8 @@ class IsotopeGrouperTask extends AbstractTask {
 
 	}
 
+	TaskMetrics.addProcessedItems(totalPeaks);
+
 	// Add new peakList to the project
 	project.addPeakList(deisotopedPeakList);
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PolarityType;
+
+import org.openscience.cdk.interfaces.IIsotope;
+import org.openscience.cdk.interfaces.IMolecularFormula;
+
+/**
+ * Cache of the isotope patterns predicted by IsotopePatternCalculator. Formula
+ * prediction and database search calculate the patterns of the same formulas
+ * many times, so the most recently used patterns are kept in memory. The
+ * patterns are immutable and shared by all threads.
+ */
+public class IsotopePatternCache {
+
+    // Maximum number of cached patterns
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final Map<String, IsotopePattern> cache = new LinkedHashMap<String, IsotopePattern>(
+	    16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(
+		Map.Entry<String, IsotopePattern> eldest) {
+	    return size() > MAX_ENTRIES;
+	}
+    };
+
+    private static final AtomicLong hits = new AtomicLong(),
+	    misses = new AtomicLong();
+
+    /**
+     * @return Key of a pattern of the formula given as string
+     */
+    static String createKey(String molecularFormula, double minAbundance,
+	    int charge, PolarityType polarity) {
+	return molecularFormula + "|" + minAbundance + "|" + charge + "|"
+		+ polarity;
+    }
+
+    /**
+     * @return Key of a pattern of the formula, including the mass numbers of
+     *         its isotopes
+     */
+    static String createKey(IMolecularFormula cdkFormula, double minAbundance,
+	    int charge, PolarityType polarity) {
+	StringBuilder key = new StringBuilder("#");
+	for (IIsotope isotope : cdkFormula.isotopes()) {
+	    key.append(isotope.getSymbol());
+	    key.append("[");
+	    key.append(isotope.getMassNumber());
+	    key.append("]");
+	    key.append(cdkFormula.getIsotopeCount(isotope));
+	}
+	return createKey(key.toString(), minAbundance, charge, polarity);
+    }
+
+    /**
+     * @return Cached pattern of given key, or null if it is not cached
+     */
+    static @Nullable IsotopePattern get(String key) {
+	IsotopePattern pattern;
+	synchronized (cache) {
+	    pattern = cache.get(key);
+	}
+	if (pattern != null)
+	    hits.incrementAndGet();
+	else
+	    misses.incrementAndGet();
+	return pattern;
+    }
+
+    static void put(String key, IsotopePattern pattern) {
+	synchronized (cache) {
+	    cache.put(key, pattern);
+	}
+    }
+
+    /**
+     * @return Number of patterns found in the cache
+     */
+    public static long getHits() {
+	return hits.get();
+    }
+
+    /**
+     * @return Number of patterns which had to be calculated
+     */
+    public static long getMisses() {
+	return misses.get();
+    }
+
+    /**
+     * @return Ratio of patterns found in the cache to all requested patterns
+     */
+    public static double getHitRate() {
+	long h = hits.get(), total = h + misses.get();
+	if (total == 0)
+	    return 0;
+	return (double) h / total;
+    }
+
+    /**
+     * @return Number of patterns currently in the cache
+     */
+    public static int size() {
+	synchronized (cache) {
+	    return cache.size();
+	}
+    }
+
+    /**
+     * Removes all patterns and resets the statistics
+     */
+    public static void clear() {
+	synchronized (cache) {
+	    cache.clear();
+	}
+	hits.set(0);
+	misses.set(0);
+    }
+
+    /**
+     * @return Summary of the statistics, for logging
+     */
+    public static String getStatistics() {
+	return "Isotope pattern cache: " + size() + " patterns, " + getHits()
+		+ " hits, " + getMisses() + " misses, hit rate "
+		+ Math.round(getHitRate() * 100) + "%";
+    }
+
+}
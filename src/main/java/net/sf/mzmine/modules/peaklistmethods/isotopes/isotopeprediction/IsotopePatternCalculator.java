@@ -57,24 +57,57 @@ public class IsotopePatternCalculator implements MZmineModule {
 	return MODULE_NAME;
     }
 
+    /**
+     * Returns the predicted isotope pattern of the formula. Patterns are taken
+     * from the IsotopePatternCache, if the same pattern was already predicted.
+     */
     public static IsotopePattern calculateIsotopePattern(
 	    String molecularFormula, double minAbundance, int charge,
 	    PolarityType polarity) {
 
+	final String key = IsotopePatternCache.createKey(molecularFormula,
+		minAbundance, charge, polarity);
+	IsotopePattern pattern = IsotopePatternCache.get(key);
+	if (pattern != null)
+	    return pattern;
+
 	IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
 
 	IMolecularFormula cdkFormula = MolecularFormulaManipulator
 		.getMolecularFormula(molecularFormula, builder);
 
-	return calculateIsotopePattern(cdkFormula, minAbundance, charge,
+	pattern = predictIsotopePattern(cdkFormula, minAbundance, charge,
 		polarity);
+	IsotopePatternCache.put(key, pattern);
+	return pattern;
 
     }
 
+    /**
+     * Returns the predicted isotope pattern of the formula. Patterns are taken
+     * from the IsotopePatternCache, if the same pattern was already predicted.
+     */
     public static IsotopePattern calculateIsotopePattern(
 	    IMolecularFormula cdkFormula, double minAbundance, int charge,
 	    PolarityType polarity) {
 
+	final String key = IsotopePatternCache.createKey(cdkFormula,
+		minAbundance, charge, polarity);
+	IsotopePattern pattern = IsotopePatternCache.get(key);
+	if (pattern != null)
+	    return pattern;
+
+	pattern = predictIsotopePattern(cdkFormula, minAbundance, charge,
+		polarity);
+	IsotopePatternCache.put(key, pattern);
+	return pattern;
+
+    }
+
+    private static IsotopePattern predictIsotopePattern(
+	    IMolecularFormula cdkFormula, double minAbundance, int charge,
+	    PolarityType polarity) {
+
 	// TODO: check if the formula is not too big (>100 of a single atom?).
 	// if so, just cancel the prediction
 
@@ -26,12 +26,12 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZminePerFileModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
 
-public class DeconvolutionModule implements MZmineProcessingModule {
+public class DeconvolutionModule implements MZminePerFileModule {
 
     private static final String MODULE_NAME = "Chromatogram deconvolution";
     private static final String MODULE_DESCRIPTION = "This module separates each detected chromatogram into individual peaks.";
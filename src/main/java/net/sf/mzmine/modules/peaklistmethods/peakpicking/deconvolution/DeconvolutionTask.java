@@ -23,6 +23,12 @@ import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.De
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.PEAK_RESOLVER;
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.SUFFIX;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,10 +41,13 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.R.RSessionWrapper;
 import net.sf.mzmine.util.R.RSessionWrapperException;
@@ -55,7 +64,7 @@ public class DeconvolutionTask extends AbstractTask {
     private PeakList newPeakList;
 
     // Counters.
-    private int processedRows;
+    private volatile int processedRows;
     private int totalRows;
 
     // User parameters
@@ -157,9 +166,6 @@ public class DeconvolutionTask extends AbstractTask {
                         LOG.info("Finished peak recognition on "
                                 + originalPeakList);
                     }
-                    // Turn off R instance.
-                    if (this.rSession != null)
-                        this.rSession.close(false);
 
                 } catch (RSessionWrapperException e) {
                     errorMsg = "'R computing error' during CentWave detection. \n"
@@ -172,20 +178,22 @@ public class DeconvolutionTask extends AbstractTask {
                     setStatus(TaskStatus.ERROR);
                     setErrorMessage(t.getMessage());
                     LOG.log(Level.SEVERE, "Peak deconvolution error", t);
-                }
-
-                // Turn off R instance, once task ended UNgracefully.
-                try {
-                    if (this.rSession != null && !isCanceled())
-                        rSession.close(isCanceled());
-                } catch (RSessionWrapperException e) {
-                    if (!isCanceled()) {
-                        // Do not override potential previous error message.
-                        if (errorMsg == null) {
-                            errorMsg = e.getMessage();
+                } finally {
+                    // Turn off R instance: return it to the pool, or
+                    // terminate it if the task was canceled.
+                    try {
+                        if (this.rSession != null)
+                            this.rSession.close(isCanceled());
+                    } catch (RSessionWrapperException e) {
+                        if (!isCanceled()) {
+                            // Do not override potential previous error
+                            // message.
+                            if (errorMsg == null) {
+                                errorMsg = e.getMessage();
+                            }
+                        } else {
+                            // User canceled: Silent.
                         }
-                    } else {
-                        // User canceled: Silent.
                     }
                 }
 
@@ -205,9 +213,12 @@ public class DeconvolutionTask extends AbstractTask {
      *            holds the chromatogram to deconvolve.
      * @return a new peak list holding the resolved peaks.
      * @throws RSessionWrapperException
+     * @throws ExecutionException
+     * @throws InterruptedException
      */
     private PeakList resolvePeaks(final PeakList peakList,
-            RSessionWrapper rSession) throws RSessionWrapperException {
+            RSessionWrapper rSession) throws RSessionWrapperException,
+            InterruptedException, ExecutionException {
 
         // Get data file information.
         final RawDataFile dataFile = peakList.getRawDataFile(0);
@@ -240,19 +251,25 @@ public class DeconvolutionTask extends AbstractTask {
 
         // Process each chromatogram.
         final Feature[] chromatograms = peakList.getPeaks(dataFile);
-        final int chromatogramCount = chromatograms.length;
-        for (int index = 0; !isCanceled() && index < chromatogramCount; index++) {
-
-            final Feature chromatogram = chromatograms[index];
+        final List<Feature[]> resolved;
+        if (rSession == null) {
+            resolved = resolveInParallel(chromatograms, resolver);
+        } else {
+            resolved = new ArrayList<Feature[]>(chromatograms.length);
+            for (int index = 0; !isCanceled() && index < chromatograms.length; index++) {
+
+                // Resolve peaks.
+                resolved.add(resolver.getModule().resolvePeaks(
+                        chromatograms[index], resolver.getParameterSet(),
+                        rSession));
+                processedRows++;
+            }
+        }
+        TaskMetrics.addProcessedItems(resolved.size());
 
-            // Resolve peaks.
-            final PeakResolver resolverModule = resolver.getModule();
-            final ParameterSet resolverParams = resolver.getParameterSet();
-            final Feature[] peaks = resolverModule.resolvePeaks(chromatogram,
-                    resolverParams,
-                    rSession);
+        // Add peaks to the new peak list, in the order of the chromatograms.
+        for (final Feature[] peaks : resolved) {
 
-            // Add peaks to the new peak list.
             for (final Feature peak : peaks) {
 
                 final PeakListRow newRow = new SimplePeakListRow(peakId++);
@@ -260,13 +277,61 @@ public class DeconvolutionTask extends AbstractTask {
                 newRow.setPeakInformation(peak.getPeakInformation());
                 resolvedPeaks.addRow(newRow);
             }
-
-            processedRows++;
         }
 
         return resolvedPeaks;
     }
 
+    /**
+     * Resolve the chromatograms on a pool of worker threads. Only used for
+     * resolvers which do not require R, as an R session cannot be shared by
+     * several threads.
+     * 
+     * @return the peaks of each chromatogram, in the order of the
+     *         chromatograms (no peaks for the chromatograms skipped after the
+     *         task was canceled).
+     */
+    private List<Feature[]> resolveInParallel(final Feature[] chromatograms,
+            final MZmineProcessingStep<PeakResolver> resolver)
+            throws InterruptedException, ExecutionException {
+
+        final PeakResolver resolverModule = resolver.getModule();
+        final ParameterSet resolverParams = resolver.getParameterSet();
+
+        final List<Callable<Feature[]>> tasks = new ArrayList<Callable<Feature[]>>(
+                chromatograms.length);
+        for (final Feature chromatogram : chromatograms) {
+            tasks.add(new Callable<Feature[]>() {
+                @Override
+                public Feature[] call() throws Exception {
+                    if (isCanceled())
+                        return new Feature[0];
+                    final Feature[] peaks = resolverModule.resolvePeaks(
+                            chromatogram, resolverParams, null);
+                    synchronized (DeconvolutionTask.this) {
+                        processedRows++;
+                    }
+                    return peaks;
+                }
+            });
+        }
+
+        final int numOfThreads = MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+        try {
+            final List<Feature[]> resolved = new ArrayList<Feature[]>(
+                    chromatograms.length);
+            for (final Future<Feature[]> result : pool.invokeAll(tasks)) {
+                resolved.add(result.get());
+            }
+            return resolved;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     @Override
     public void cancel() {
 
@@ -38,6 +38,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSeparator;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import org.jfree.data.xy.XYDataset;
 
@@ -95,6 +96,9 @@ public class PeakResolverSetupDialog extends ParameterSetupDialog {
     private PeakResolver peakResolver;
     private final ParameterSet parameters;
 
+    // Thread resolving the peaks of the preview chromatogram.
+    private PreviewThread previewThread;
+
     /**
      * Create the dialog.
      * 
@@ -179,6 +183,7 @@ public class PeakResolverSetupDialog extends ParameterSetupDialog {
                 setLocationRelativeTo(MZmineCore.getDesktop().getMainWindow());
             } else {
 
+                cancelPreview();
                 mainPanel.remove(pnlPlotXY);
                 pnlVisible.remove(pnlLabelsFields);
                 updateBounds();
@@ -186,6 +191,13 @@ public class PeakResolverSetupDialog extends ParameterSetupDialog {
         }
     }
 
+    @Override
+    public void dispose() {
+
+        cancelPreview();
+        super.dispose();
+    }
+
     @Override
     public void parametersChanged() {
 
@@ -220,64 +232,144 @@ public class PeakResolverSetupDialog extends ParameterSetupDialog {
                     return;
                 }
 
-                // Load the intensities and RTs into array.
-                final Feature previewPeak = previewRow.getPeaks()[0];
-
-                // Resolve peaks.
-                Feature[] resolvedPeaks = {};
-                RSessionWrapper rSession;
-                try {
-
-                    if (peakResolver.getRequiresR()) {
-                        // Check R availability, by trying to open the
-                        // connection.
-                        String[] reqPackages = peakResolver
-                                .getRequiredRPackages();
-                        String[] reqPackagesVersions = peakResolver
-                                .getRequiredRPackagesVersions();
-                        String callerFeatureName = peakResolver.getName();
-                        rSession = new RSessionWrapper(callerFeatureName,
-                                reqPackages, reqPackagesVersions);
-                        rSession.open();
-                    } else {
-                        rSession = null;
-                    }
+                // Resolve peaks in the background, as the R session may
+                // take a while to become available.
+                cancelPreview();
+                previewThread = new PreviewThread(previewRow.getPeaks()[0],
+                        parameters.cloneParameterSet());
+                previewThread.start();
+            }
 
-                    resolvedPeaks = peakResolver.resolvePeaks(previewPeak,
-                            parameters, rSession);
+        }
+    }
 
-                    // Turn off R instance.
-                    if (rSession != null)
-                        rSession.close(false);
+    /**
+     * Cancels the resolution of the previous preview chromatogram, if any.
+     */
+    private void cancelPreview() {
 
-                } catch (RSessionWrapperException e) {
+        if (previewThread != null) {
+            previewThread.kill();
+            previewThread = null;
+        }
+    }
 
-                    throw new IllegalStateException(e.getMessage());
-                } catch (Throwable t) {
+    /**
+     * Adds the resolved peaks to the TIC plot.
+     */
+    private void showResolvedPeaks(final Feature[] resolvedPeaks) {
 
-                    LOG.log(Level.SEVERE, "Peak deconvolution error", t);
-                    MZmineCore.getDesktop().displayErrorMessage(this,
-                            t.toString());
-                }
+        final int peakCount = Math.min(MAX_PEAKS, resolvedPeaks.length);
+        for (int i = 0; i < peakCount; i++) {
+
+            final XYDataset peakDataSet = new PeakDataSet(resolvedPeaks[i]);
+            ticPlot.addPeakDataset(peakDataSet);
+        }
+
+        // Check peak count.
+        if (resolvedPeaks.length > MAX_PEAKS) {
+            //MZmineCore.getDesktop().displayMessage(this,
+            //        "Too many peaks detected, please adjust parameter values");
+            MZmineCore.getDesktop().displayMessage(this,
+                    "Too many peaks detected. Not all of the peaks might be displayed");
+        }
+    }
+
+    /**
+     * Resolves the peaks of the preview chromatogram outside of the event
+     * dispatch thread, and adds them to the TIC plot unless canceled. The R
+     * session (if any) is returned to the pool when done, or terminated when
+     * the preview is canceled.
+     */
+    private class PreviewThread extends Thread {
+
+        private final Feature previewPeak;
+        private final ParameterSet resolverParameters;
+
+        private volatile boolean canceled = false;
+        private volatile RSessionWrapper rSession;
 
-                // Add resolved peaks to TIC plot.
-                final int peakCount = Math.min(MAX_PEAKS, resolvedPeaks.length);
-                for (int i = 0; i < peakCount; i++) {
+        PreviewThread(final Feature previewPeak,
+                final ParameterSet resolverParameters) {
 
-                    final XYDataset peakDataSet = new PeakDataSet(
-                            resolvedPeaks[i]);
-                    ticPlot.addPeakDataset(peakDataSet);
+            super("Peak resolver preview");
+            this.previewPeak = previewPeak;
+            this.resolverParameters = resolverParameters;
+        }
+
+        @Override
+        public void run() {
+
+            Feature[] resolvedPeaks = null;
+            try {
+
+                if (peakResolver.getRequiresR()) {
+                    // Check R availability, by trying to open the
+                    // connection.
+                    String[] reqPackages = peakResolver.getRequiredRPackages();
+                    String[] reqPackagesVersions = peakResolver
+                            .getRequiredRPackagesVersions();
+                    String callerFeatureName = peakResolver.getName();
+                    rSession = new RSessionWrapper(callerFeatureName,
+                            reqPackages, reqPackagesVersions);
+                    if (canceled)
+                        return;
+                    rSession.open();
                 }
 
-                // Check peak count.
-                if (resolvedPeaks.length > MAX_PEAKS) {
-                    //MZmineCore.getDesktop().displayMessage(this,
-                    //        "Too many peaks detected, please adjust parameter values");
-                    MZmineCore.getDesktop().displayMessage(this,
-                            "Too many peaks detected. Not all of the peaks might be displayed");
+                resolvedPeaks = peakResolver.resolvePeaks(previewPeak,
+                        resolverParameters, rSession);
+
+            } catch (final Throwable t) {
+
+                if (!canceled) {
+                    LOG.log(Level.SEVERE, "Peak deconvolution error", t);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            MZmineCore.getDesktop().displayErrorMessage(
+                                    PeakResolverSetupDialog.this,
+                                    t.toString());
+                        }
+                    });
                 }
+            } finally {
+
+                // Turn off R instance.
+                closeRSession(canceled);
             }
 
+            if (resolvedPeaks != null && !canceled) {
+                final Feature[] peaks = resolvedPeaks;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!canceled)
+                            showResolvedPeaks(peaks);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Cancels the preview, terminating the R session (if any).
+         */
+        void kill() {
+
+            canceled = true;
+            closeRSession(true);
+        }
+
+        private void closeRSession(final boolean userCanceled) {
+
+            try {
+                final RSessionWrapper session = rSession;
+                if (session != null)
+                    session.close(userCanceled);
+            } catch (RSessionWrapperException e) {
+                if (!userCanceled)
+                    LOG.log(Level.WARNING, "Couldn't close R session", e);
+            }
         }
     }
 
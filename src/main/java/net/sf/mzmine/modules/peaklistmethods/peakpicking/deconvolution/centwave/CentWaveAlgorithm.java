@@ -0,0 +1,1155 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Java implementation of the centWave algorithm of XCMS
+ * (findPeaks.centWave), for a single chromatogram. The regions of interest
+ * are the sections of the chromatogram with intensity above zero. Each region
+ * is analyzed by continuous wavelet transform with the Mexican hat wavelet,
+ * and the ridges of the local maxima of the wavelet coefficients over all
+ * scales are taken as candidate peaks.
+ * 
+ * The implementation follows the R code of XCMS and of the MassSpecWavelet
+ * functions included in XCMS (MSW.cwt, MSW.getLocalMaximumCWT and
+ * MSW.getRidge) step by step, including their corner cases, with the aim of
+ * detecting the same peaks as XCMS for the xcmsRaw object built by
+ * CentWaveDetector. The results have not been compared with XCMS output yet,
+ * the reference peaks of the tests are regression values of this class. That object sets the scan index to 1:numPoints,
+ * so XCMS reads each scan's intensity from the next point of the chromatogram
+ * and the last scan as empty, unless the scan offset is fixed. The regions of
+ * interest are still taken from the chromatogram itself. Wavelet scales that are too large for a region are
+ * dropped, as in XCMS. When even the smallest scale is too large, XCMS stops
+ * and no peaks are reported for the chromatogram.
+ * 
+ * Tautenhahn R, Böttcher C, Neumann S: Highly sensitive feature detection for
+ * high resolution LC/MS. BMC Bioinformatics 2008, 9:504.
+ */
+class CentWaveAlgorithm {
+
+    // Tolerance of adjacent peaks in the final overlap check (seconds).
+    private static final double RT_DIFF = -0.00001;
+
+    // Trimming of the chromatogram noise estimate.
+    private static final double NOISE_TRIM = 0.05;
+
+    // Minimum window size of the local maxima and the ridge search.
+    private static final int MIN_WINDOW_SIZE = 5;
+
+    // Number of scales a ridge may skip without a local maximum.
+    private static final int GAP_THRESHOLD = 3;
+
+    // Mexican hat wavelet sampled at 256 points of [-6, 6].
+    private static final int PSI_LENGTH = 256;
+    private static final double PSI_MIN = -6.0;
+    private static final double PSI_MAX = 6.0;
+    private static final double[] PSI = new double[PSI_LENGTH];
+    private static final double PSI_STEP;
+    private static final double PSI_RANGE = PSI_MAX - PSI_MIN;
+
+    static {
+        final double[] x = new double[PSI_LENGTH];
+        final double by = (PSI_MAX - PSI_MIN) / (PSI_LENGTH - 1);
+        x[0] = PSI_MIN;
+        for (int i = 1; i < PSI_LENGTH - 1; i++) {
+            x[i] = PSI_MIN + i * by;
+        }
+        x[PSI_LENGTH - 1] = PSI_MAX;
+        final double norm = 2.0 / Math.sqrt(3.0) * Math.pow(Math.PI, -0.25);
+        for (int i = 0; i < PSI_LENGTH; i++) {
+            PSI[i] = norm * (1.0 - x[i] * x[i]) * Math.exp(-x[i] * x[i] / 2.0);
+        }
+        PSI_STEP = x[1] - x[0];
+    }
+
+    /**
+     * A peak detected by centWave.
+     */
+    static class Peak {
+
+        // First and last point of the peak in the chromatogram.
+        final int left;
+        final int right;
+
+        // Retention time range, as given by the scan times.
+        final double rtMin;
+        final double rtMax;
+
+        // Integrated and maximum intensity.
+        final double area;
+        final double height;
+
+        Peak(final int left, final int right, final double rtMin,
+                final double rtMax, final double area, final double height) {
+
+            this.left = left;
+            this.right = right;
+            this.rtMin = rtMin;
+            this.rtMax = rtMax;
+            this.area = area;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Candidate peak, found at the ridge of the wavelet coefficients.
+     */
+    private static class Candidate {
+
+        final int scaleIndex;
+        final int position;
+        final int left;
+        final int right;
+
+        Candidate(final int scaleIndex, final int position, final int left,
+                final int right) {
+
+            this.scaleIndex = scaleIndex;
+            this.position = position;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private CentWaveAlgorithm() {
+        // Only static methods.
+    }
+
+    /**
+     * Detects the peaks of a chromatogram.
+     * 
+     * @param scanTime
+     *            retention times of the chromatogram points (seconds).
+     * @param intensity
+     *            intensities of the chromatogram points, zero where the
+     *            chromatogram has no data point.
+     * @param snThreshold
+     *            signal to noise ratio threshold.
+     * @param minPeakWidth
+     *            minimum peak width (seconds).
+     * @param maxPeakWidth
+     *            maximum peak width (seconds).
+     * @param integrateSmoothed
+     *            whether peak boundaries are found on the wavelet
+     *            coefficients (integrate = 1 in XCMS) rather than on the raw
+     *            intensities (integrate = 2).
+     * @param fixScanOffset
+     *            whether each scan is read from its own chromatogram point,
+     *            rather than from the next one as by XCMS for the xcmsRaw
+     *            object of CentWaveDetector.
+     * @return the detected peaks, in the order of the chromatogram, or no
+     *         peaks if the smallest wavelet scale is too large for a region
+     *         of interest.
+     */
+    static List<Peak> findPeaks(final double[] scanTime,
+            final double[] intensity, final double snThreshold,
+            final double minPeakWidth, final double maxPeakWidth,
+            final boolean integrateSmoothed, final boolean fixScanOffset) {
+
+        final List<Peak> peaks = new ArrayList<Peak>();
+        final int[] scales = getScales(scanTime, minPeakWidth, maxPeakWidth);
+        if (scales == null) {
+            return peaks;
+        }
+
+        final int numPoints = intensity.length;
+        final int minScale = scales[0];
+        final int maxScale = scales[scales.length - 1];
+        final int[] noiseRange = { 3 * minScale, 3 * maxScale };
+        final int minPtsAboveBaseline = Math.max(4, minScale - 2);
+        final int scanRangeTolerance = minScale / 2;
+        final int maxDescOutlier = minScale / 2;
+
+        // Intensities as read by XCMS from the xcmsRaw object.
+        final double[] eic;
+        if (fixScanOffset) {
+            eic = intensity;
+        } else {
+            eic = new double[numPoints];
+            System.arraycopy(intensity, 1, eic, 0, numPoints - 1);
+        }
+
+        // Regions of interest are the sections above zero.
+        for (int start = 0; start < numPoints; start++) {
+
+            if (intensity[start] > 0.0) {
+
+                int end = start;
+                while (end + 1 < numPoints && intensity[end + 1] > 0.0) {
+                    end++;
+                }
+                if (!findPeaks(scanTime, eic, start, end, snThreshold, scales,
+                        noiseRange, minPtsAboveBaseline, scanRangeTolerance,
+                        maxDescOutlier, integrateSmoothed, peaks)) {
+                    return new ArrayList<Peak>();
+                }
+                start = end;
+            }
+        }
+
+        return rectUnique(peaks);
+    }
+
+    /**
+     * Calculates the wavelet scales for the peak width range.
+     * 
+     * @return the scales, or null if the peak widths are too small for the
+     *         scan rate.
+     */
+    static int[] getScales(final double[] scanTime, final double minPeakWidth,
+            final double maxPeakWidth) {
+
+        final int numPoints = scanTime.length;
+        if (numPoints < 2) {
+            return null;
+        }
+        final double meanDiff = (scanTime[numPoints - 1] - scanTime[0])
+                / (numPoints - 1);
+        final int minScale = (int) Math.rint(minPeakWidth / meanDiff / 2.0);
+        final int maxScale = (int) Math.rint(maxPeakWidth / meanDiff / 2.0);
+
+        if (minScale <= 0 && maxScale <= 0) {
+            return null;
+        }
+        if (minScale <= 0 || maxScale <= 0 || minScale == maxScale) {
+            return new int[] { Math.max(minScale, maxScale) };
+        }
+        if (minScale > maxScale) {
+            return null;
+        }
+        final int[] scales = new int[(maxScale - minScale) / 2 + 1];
+        for (int i = 0; i < scales.length; i++) {
+            scales[i] = minScale + 2 * i;
+        }
+        return scales;
+    }
+
+    /**
+     * Detects the peaks of one region of interest.
+     * 
+     * @return false if the smallest wavelet scale is too large for the region.
+     */
+    private static boolean findPeaks(final double[] scanTime,
+            final double[] intensity, final int roiStart, final int roiEnd,
+            final double snThreshold, final int[] scales,
+            final int[] noiseRange, final int minPtsAboveBaseline,
+            final int scanRangeTolerance, final int maxDescOutlier,
+            final boolean integrateSmoothed, final List<Peak> peaks) {
+
+        final int numPoints = intensity.length;
+        final int roiLength = roiEnd - roiStart + 1;
+
+        // Region extended by the noise range, used for the baseline and the
+        // wavelet transform.
+        final int rangeStart = Math.max(0, roiStart - noiseRange[1]);
+        final int rangeEnd = Math.min(numPoints - 1, roiEnd + noiseRange[1]);
+        final double[] d = Arrays.copyOfRange(intensity, rangeStart,
+                rangeEnd + 1);
+        final int length = d.length;
+
+        // Region extended by the scan range tolerance.
+        final int featureStart = Math.max(rangeStart, roiStart
+                - scanRangeTolerance);
+        final int featureEnd = Math.min(rangeEnd, roiEnd + scanRangeTolerance);
+        final double[] fd = Arrays.copyOfRange(intensity, featureStart,
+                featureEnd + 1);
+
+        // First baseline estimate, for very long regions using the whole
+        // chromatogram.
+        final double noise = estimateChromNoise(
+                roiLength >= 10 * scales[0] ? intensity : d, NOISE_TRIM,
+                3 * scales[0]);
+
+        // Any continuous data above the first baseline?
+        if (!continuousPtsAboveThreshold(fd, noise, minPtsAboveBaseline)) {
+            return true;
+        }
+
+        // Second baseline estimate, outside of the peak range.
+        final double[] localNoise = getLocalNoiseEstimate(d, featureStart
+                - rangeStart, featureEnd - rangeStart, noiseRange[0],
+                numPoints, noise, minPtsAboveBaseline);
+
+        // Final baseline and noise.
+        final double baseline = Math.max(1.0, Math.min(localNoise[0], noise));
+        final double sdNoise = Math.max(1.0, localNoise[1]);
+        final double sdThreshold = sdNoise * snThreshold;
+
+        // Any data above the S/N threshold?
+        if (!anyAboveThreshold(fd, 0, fd.length - 1, baseline, sdThreshold)) {
+            return true;
+        }
+
+        // Wavelet transform.
+        final double[][] wCoefs = cwt(d, scales);
+        if (wCoefs == null) {
+            return false;
+        }
+        boolean aboveThreshold = false;
+        for (int i = 0; !aboveThreshold && i < wCoefs.length; i++) {
+            aboveThreshold = anyAboveThreshold(wCoefs[i], 0, length - 1,
+                    baseline, sdThreshold);
+        }
+        if (!aboveThreshold) {
+            return true;
+        }
+
+        // Workaround of XCMS at the end of the chromatogram.
+        if (rangeEnd == numPoints - 1 && length > 1) {
+            for (int i = 0; i < wCoefs.length; i++) {
+                wCoefs[i][length - 1] = wCoefs[i][length - 2] * 0.99;
+            }
+        }
+
+        final boolean[][] localMax = getLocalMaximumCWT(wCoefs, scales);
+        final List<List<Integer>> ridges = getRidges(localMax, scales);
+
+        // Check each ridge.
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        final int intRange = (scales[0] + 1) / 2;
+        for (final List<Integer> ridge : ridges) {
+
+            boolean isPeak = false;
+            for (final int position : ridge) {
+                isPeak |= wCoefs[0][position] - baseline >= sdThreshold;
+            }
+            if (!isPeak) {
+                continue;
+            }
+
+            // Final S/N check in the original data range.
+            boolean signal = false;
+            for (final int position : new HashSet<Integer>(ridge)) {
+                final int scan = rangeStart + position;
+                signal |= scan >= featureStart && scan <= featureEnd
+                        && d[position] - baseline >= sdThreshold;
+            }
+            if (!signal) {
+                continue;
+            }
+
+            // Decide which scale describes the peak best.
+            int bestScaleIndex = 0;
+            double bestIntensity = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < ridge.size(); k++) {
+                final int position = ridge.get(k);
+                final int from = Math.max(position - intRange, 0);
+                final int to = Math.min(position + intRange, length - 1);
+                double sum = 0.0;
+                for (int i = from; i <= to; i++) {
+                    sum += d[i];
+                }
+                if (sum > bestIntensity) {
+                    bestIntensity = sum;
+                    bestScaleIndex = k;
+                }
+            }
+            final int bestScale = scales[bestScaleIndex];
+            final int position = ridge.get(bestScaleIndex);
+            candidates.add(new Candidate(bestScaleIndex, position, Math.max(0,
+                    position - bestScale), Math.min(position + bestScale,
+                    length - 1)));
+        }
+
+        // Find the peak boundaries.
+        for (final Candidate candidate : candidates) {
+
+            int[] bounds = null;
+            if (integrateSmoothed) {
+                bounds = descendMin(wCoefs[candidate.scaleIndex],
+                        candidate.position);
+                boolean gap = true;
+                for (int i = bounds[0]; gap && i <= bounds[1]; i++) {
+                    gap = d[i] == 0.0;
+                }
+                if (bounds[0] == bounds[1] || gap) {
+                    bounds = null;
+                }
+            }
+            if (bounds == null) {
+                bounds = descendMinTol(d, candidate.left, candidate.right,
+                        maxDescOutlier);
+            }
+
+            // Narrow down the boundaries by skipping zeros.
+            int first = findEqualGreater(d, bounds[0], bounds[1], 1, 1.0);
+            first = Math.max(1, first - 1);
+            int last = findEqualGreater(d, bounds[1], bounds[0], -1, 1.0);
+            last = Math.max(1, last - 1);
+            final int left = bounds[0] + first - 1;
+            final int right = bounds[1] - last + 1;
+
+            final double rtLeft = scanTime[rangeStart + left];
+            final double rtRight = scanTime[rangeStart + right];
+            double width = (rtRight - rtLeft) / (right - left);
+            if (Double.isNaN(width)) {
+                width = 1.0;
+            }
+            double sum = 0.0;
+            double height = Double.NEGATIVE_INFINITY;
+            for (int i = Math.min(left, right); i <= Math.max(left, right); i++) {
+                sum += d[i];
+                height = Math.max(height, d[i]);
+            }
+
+            peaks.add(new Peak(rangeStart + left, rangeStart + right, rtLeft,
+                    rtRight, width * sum, height));
+        }
+
+        return true;
+    }
+
+    /**
+     * Keeps only peaks which do not overlap a more intense peak (rectUnique in
+     * XCMS, all peaks have the same m/z).
+     */
+    private static List<Peak> rectUnique(final List<Peak> peaks) {
+
+        // Indices of the peaks in order of decreasing area.
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < peaks.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return Double.compare(peaks.get(i2).area, peaks.get(i1).area);
+            }
+        });
+
+        final boolean[] keep = new boolean[peaks.size()];
+        final List<Peak> kept = new ArrayList<Peak>();
+        for (final int index : order) {
+            final Peak peak = peaks.get(index);
+            boolean overlaps = false;
+            for (int j = 0; !overlaps && j < kept.size(); j++) {
+                final Peak other = kept.get(j);
+                overlaps = !(peak.rtMin - other.rtMax > RT_DIFF || other.rtMin
+                        - peak.rtMax > RT_DIFF);
+            }
+            if (!overlaps) {
+                kept.add(peak);
+                keep[index] = true;
+            }
+        }
+
+        final List<Peak> unique = new ArrayList<Peak>(kept.size());
+        for (int i = 0; i < peaks.size(); i++) {
+            if (keep[i]) {
+                unique.add(peaks.get(i));
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Trimmed mean of the positive intensities, or the mean of all
+     * intensities if there are less than minPts positive intensities
+     * (estimateChromNoise in XCMS).
+     */
+    static double estimateChromNoise(final double[] x, final double trim,
+            final int minPts) {
+
+        int positive = 0;
+        for (final double value : x) {
+            if (value > 0.0) {
+                positive++;
+            }
+        }
+        if (positive < minPts) {
+            return mean(x, 0, x.length);
+        }
+
+        final double[] sorted = new double[positive];
+        int n = 0;
+        for (final double value : x) {
+            if (value > 0.0) {
+                sorted[n++] = value;
+            }
+        }
+        Arrays.sort(sorted);
+        final int lo = (int) Math.floor(positive * trim);
+        final int hi = positive - lo;
+        return mean(sorted, lo, hi);
+    }
+
+    /**
+     * Checks whether there are at least num continuous values above the
+     * threshold.
+     */
+    static boolean continuousPtsAboveThreshold(final double[] x,
+            final double threshold, final int num) {
+
+        int count = 0;
+        for (final double value : x) {
+            count = value > threshold ? count + 1 : 0;
+            if (count >= num) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the values which are not part of at least num continuous values
+     * above the threshold.
+     */
+    private static double[] removeContinuousPtsAboveThreshold(final double[] x,
+            final double threshold, final int num) {
+
+        final boolean[] remove = new boolean[x.length];
+        int count = 0;
+        for (int i = 0; i <= x.length; i++) {
+            if (i < x.length && x[i] > threshold) {
+                count++;
+            } else {
+                if (count >= num) {
+                    Arrays.fill(remove, i - count, i, true);
+                }
+                count = 0;
+            }
+        }
+
+        final double[] kept = new double[x.length];
+        int n = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (!remove[i]) {
+                kept[n++] = x[i];
+            }
+        }
+        return Arrays.copyOf(kept, n);
+    }
+
+    /**
+     * Estimates the baseline and the noise from the data outside of the peak
+     * range (getLocalNoiseEstimate in XCMS).
+     * 
+     * @return baseline and noise standard deviation.
+     */
+    private static double[] getLocalNoiseEstimate(final double[] d,
+            final int peakStart, final int peakEnd, final int noiseRange,
+            final int numPoints, final double threshold, final int num) {
+
+        double baseline1, baseline2, sdNoise1, sdNoise2;
+
+        if (d.length < numPoints) {
+
+            // Whole region outside of the peak range.
+            final double[] outside = new double[d.length
+                    - (peakEnd - peakStart + 1)];
+            System.arraycopy(d, 0, outside, 0, peakStart);
+            System.arraycopy(d, peakEnd + 1, outside, peakStart, d.length
+                    - peakEnd - 1);
+            final double[] n1 = removeContinuousPtsAboveThreshold(outside,
+                    threshold, num);
+            if (n1.length > 1) {
+                baseline1 = mean(n1, 0, n1.length);
+                sdNoise1 = sd(n1);
+            } else {
+                baseline1 = sdNoise1 = 1.0;
+            }
+
+            // Narrow noise range on both sides, including the limits of the
+            // peak range.
+            final int leftFrom = Math.max(0, peakStart - noiseRange);
+            final int rightTo = Math.min(d.length - 1, peakEnd + noiseRange);
+            final int leftLength = peakStart - leftFrom + 1;
+            final double[] narrow = new double[leftLength + rightTo - peakEnd
+                    + 1];
+            System.arraycopy(d, leftFrom, narrow, 0, leftLength);
+            System.arraycopy(d, peakEnd, narrow, leftLength, rightTo - peakEnd
+                    + 1);
+            final double[] n2 = removeContinuousPtsAboveThreshold(narrow,
+                    threshold, num);
+            if (n2.length > 1) {
+                baseline2 = mean(n2, 0, n2.length);
+                sdNoise2 = sd(n2);
+            } else {
+                baseline2 = sdNoise2 = 1.0;
+            }
+
+        } else {
+
+            // Region covers the whole chromatogram: trimmed positive values.
+            final double[] positive = new double[d.length];
+            int n = 0;
+            for (final double value : d) {
+                if (value > 0.0) {
+                    positive[n++] = value;
+                }
+            }
+            Arrays.sort(positive, 0, n);
+            final int from = (int) Math.rint(n * 0.05 + 1.0) - 1;
+            final int to = (int) Math.rint(n * 0.95);
+            final double[] trimmed = from < to ? Arrays.copyOfRange(positive,
+                    from, to) : new double[0];
+            baseline1 = baseline2 = mean(trimmed, 0, trimmed.length);
+            sdNoise1 = sdNoise2 = sd(trimmed);
+        }
+
+        return new double[] { Math.min(baseline1, baseline2),
+                Math.min(sdNoise1, sdNoise2) };
+    }
+
+    /**
+     * Continuous wavelet transform with the Mexican hat wavelet (MSW.cwt).
+     * Like the XCMS version of MSW.cwt, the transform stops at the first scale
+     * which is too large for the data.
+     * 
+     * @return wavelet coefficients for each scale up to the first one that is
+     *         too large, or null if the smallest scale is too large.
+     */
+    static double[][] cwt(final double[] data, final int[] scales) {
+
+        // Extend to a power of two by reflection of the end.
+        final int oldLength = data.length;
+        int length = 1;
+        while (length < oldLength) {
+            length *= 2;
+        }
+        final double[] x = Arrays.copyOf(data, length);
+        for (int i = oldLength; i < length; i++) {
+            x[i] = data[2 * oldLength - 1 - i];
+        }
+
+        final double[][] wCoefs = new double[scales.length][];
+        for (int s = 0; s < scales.length; s++) {
+
+            final int scale = scales[s];
+            final int waveLength = (int) Math.floor(scale * PSI_RANGE) + 1;
+            final int[] j = new int[waveLength];
+            for (int k = 0; k < waveLength; k++) {
+                j[k] = (int) Math.floor(k / (scale * PSI_STEP));
+            }
+            if (waveLength > length) {
+                return s == 0 ? null : Arrays.copyOf(wCoefs, s);
+            }
+
+            // Reversed wavelet with zero mean.
+            double mean = 0.0;
+            for (final int index : j) {
+                mean += PSI[index];
+            }
+            mean /= waveLength;
+            final double[] f = new double[waveLength];
+            for (int k = 0; k < waveLength; k++) {
+                f[k] = PSI[j[waveLength - 1 - k]] - mean;
+            }
+
+            // Circular correlation, centered on the wavelet.
+            final int shift = waveLength / 2;
+            final double norm = 1.0 / Math.sqrt(scale);
+            final double[] coefs = new double[oldLength];
+            for (int t = 0; t < oldLength; t++) {
+                final int offset = t - shift + length;
+                double sum = 0.0;
+                for (int k = 0; k < waveLength; k++) {
+                    sum += x[(k + offset) % length] * f[k];
+                }
+                coefs[t] = norm * sum;
+            }
+            wCoefs[s] = coefs;
+        }
+
+        return wCoefs;
+    }
+
+    /**
+     * Local maxima of the wavelet coefficients at each scale
+     * (MSW.getLocalMaximumCWT).
+     */
+    static boolean[][] getLocalMaximumCWT(final double[][] wCoefs,
+            final int[] scales) {
+
+        final boolean[][] localMax = new boolean[wCoefs.length][];
+        for (int s = 0; s < wCoefs.length; s++) {
+            localMax[s] = localMaximum(wCoefs[s],
+                    Math.max(2 * scales[s] + 1, MIN_WINDOW_SIZE));
+            for (int i = 0; i < wCoefs[s].length; i++) {
+                if (wCoefs[s][i] < 0.0) {
+                    localMax[s][i] = false;
+                }
+            }
+        }
+        return localMax;
+    }
+
+    /**
+     * Local maxima in windows of the given size (MSW.localMaximum).
+     */
+    static boolean[] localMaximum(final double[] x, final int winSize) {
+
+        final int length = x.length;
+        final boolean[] localMax = new boolean[length];
+
+        // Maximum of each window, if larger than the window boundaries.
+        markWindowMaxima(x, winSize, 0, localMax);
+
+        // Same with windows shifted by half the window size.
+        markWindowMaxima(x, winSize, winSize / 2, localMax);
+
+        // Of two maxima closer than the window size, keep the larger one.
+        final List<Integer> maxima = new ArrayList<Integer>();
+        for (int i = 0; i < length; i++) {
+            if (localMax[i]) {
+                maxima.add(i);
+            }
+        }
+        for (int i = 0; i + 1 < maxima.size(); i++) {
+            final int max1 = maxima.get(i);
+            final int max2 = maxima.get(i + 1);
+            if (max2 - max1 < winSize) {
+                if (x[max1] - x[max2] <= 0.0) {
+                    localMax[max1] = false;
+                } else {
+                    localMax[max2] = false;
+                }
+            }
+        }
+
+        return localMax;
+    }
+
+    private static void markWindowMaxima(final double[] x, final int winSize,
+            final int shift, final boolean[] localMax) {
+
+        final int length = x.length;
+        final int windows = (length + shift + winSize - 1) / winSize;
+        for (int w = 0; w < windows; w++) {
+
+            int maxIndex = 0;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < winSize; k++) {
+                final double value = paddedValue(x, w * winSize + k - shift);
+                if (value > max) {
+                    max = value;
+                    maxIndex = k;
+                }
+            }
+            final double first = paddedValue(x, w * winSize - shift);
+            final double last = paddedValue(x, w * winSize + winSize - 1
+                    - shift);
+            final int position = w * winSize + maxIndex - shift;
+            if (max > first && max > last && position >= 0 && position < length) {
+                localMax[position] = true;
+            }
+        }
+    }
+
+    private static double paddedValue(final double[] x, final int index) {
+        return x[Math.min(Math.max(index, 0), x.length - 1)];
+    }
+
+    /**
+     * Connects the local maxima from the largest to the smallest scale into
+     * ridges (MSW.getRidge).
+     * 
+     * @return ridges, with the position at the smallest scale first.
+     */
+    static List<List<Integer>> getRidges(final boolean[][] localMax,
+            final int[] scales) {
+
+        final int numScales = localMax.length;
+        final int numPoints = localMax[0].length;
+        final int initialScale = numScales - 1;
+
+        List<Integer> maxIndCurr = maxima(localMax[initialScale]);
+
+        // Ridges and their gap counts, by the name of the last position.
+        NamedList<List<Integer>> ridgeList = new NamedList<List<Integer>>();
+        NamedList<Integer> peakStatus = new NamedList<Integer>();
+        for (final int position : maxIndCurr) {
+            ridgeList.add(name(position), Collections.singletonList(position));
+            peakStatus.add(name(position), 0);
+        }
+
+        // Ridges disconnected at some scale.
+        final List<List<Integer>> orphanRidges = new ArrayList<List<Integer>>();
+        final List<String> orphanNames = new ArrayList<String>();
+
+        final int[] columns;
+        if (numScales > 1) {
+            columns = new int[numScales - 1];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = initialScale - 1 - i;
+            }
+        } else {
+            columns = new int[] { 0 };
+        }
+
+        for (final int col : columns) {
+
+            final int scale = scales[col];
+            if (maxIndCurr.isEmpty()) {
+                maxIndCurr = maxima(localMax[col]);
+                continue;
+            }
+
+            // Window size proportional to the scale.
+            final int winSize = Math.max(scale / 2, MIN_WINDOW_SIZE);
+
+            final List<Integer> selPeaks = new ArrayList<Integer>();
+            final Set<String> removed = new HashSet<String>();
+            for (final int position : maxIndCurr) {
+
+                final String name = name(position);
+                final int start = Math.max(position - winSize, 0);
+                final int end = Math.min(position + winSize, numPoints - 1);
+
+                // Closest local maximum in the window.
+                int selected = -1;
+                for (int i = start; i <= end; i++) {
+                    if (localMax[col][i]
+                            && (selected < 0 || Math.abs(i - position) < Math
+                                    .abs(selected - position))) {
+                        selected = i;
+                    }
+                }
+
+                if (selected < 0) {
+                    Integer status = peakStatus.get(name);
+                    if (status == null) {
+                        status = GAP_THRESHOLD + 1;
+                    }
+                    if (status > GAP_THRESHOLD && scale >= 2) {
+                        final List<Integer> ridge = ridgeList.get(name);
+                        if (ridge == null) {
+                            orphanRidges.add(Collections.<Integer> emptyList());
+                        } else {
+                            orphanRidges.add(ridge.subList(0,
+                                    Math.max(ridge.size() - status, 1)));
+                        }
+                        orphanNames.add((col + 1 + status + 1) + "_" + name);
+                        removed.add(name);
+                        continue;
+                    }
+                    selected = position;
+                    peakStatus.set(name, status + 1);
+                } else {
+                    peakStatus.set(name, 0);
+                }
+
+                final List<Integer> ridge = ridgeList.get(name);
+                final List<Integer> extended = ridge == null ? new ArrayList<Integer>()
+                        : new ArrayList<Integer>(ridge);
+                extended.add(selected);
+                ridgeList.set(name, extended);
+                selPeaks.add(selected);
+            }
+
+            // Remove the disconnected ridges.
+            if (!removed.isEmpty()) {
+                final List<Integer> removeInd = new ArrayList<Integer>();
+                for (int i = 0; i < ridgeList.size(); i++) {
+                    if (removed.contains(ridgeList.name(i))) {
+                        removeInd.add(i);
+                    }
+                }
+                ridgeList.remove(removeInd);
+                peakStatus.remove(removeInd);
+            }
+
+            // Of ridges ending at the same position keep the longest one.
+            final List<Integer> duplicates = new ArrayList<Integer>();
+            for (int i = 0; i < selPeaks.size(); i++) {
+                final Integer position = selPeaks.get(i);
+                if (selPeaks.subList(0, i).contains(position)
+                        && !duplicates.contains(position)) {
+                    duplicates.add(position);
+                }
+            }
+            if (!duplicates.isEmpty()) {
+                final List<Integer> removeInd = new ArrayList<Integer>();
+                for (final int duplicate : duplicates) {
+                    final List<Integer> selInd = new ArrayList<Integer>();
+                    for (int i = 0; i < selPeaks.size(); i++) {
+                        if (selPeaks.get(i) == duplicate) {
+                            selInd.add(i);
+                        }
+                    }
+                    int longest = 0;
+                    for (int k = 1; k < selInd.size(); k++) {
+                        if (ridgeSize(ridgeList, selInd.get(k)) > ridgeSize(
+                                ridgeList, selInd.get(longest))) {
+                            longest = k;
+                        }
+                    }
+                    for (int k = 0; k < selInd.size(); k++) {
+                        if (k != longest) {
+                            removeInd.add(selInd.get(k));
+                        }
+                    }
+                    // As in MSW.getRidge, the index of the longest ridge
+                    // among the duplicates is used as index of all ridges.
+                    orphanRidges.add(longest < ridgeList.size() ? ridgeList
+                            .value(longest) : Collections
+                            .<Integer> emptyList());
+                    orphanNames.add((col + 1) + "_"
+                            + name(selPeaks.get(longest)));
+                }
+                Collections.sort(removeInd);
+                for (int i = removeInd.size() - 1; i >= 0; i--) {
+                    selPeaks.remove((int) removeInd.get(i));
+                }
+                ridgeList.remove(removeInd);
+                peakStatus.remove(removeInd);
+            }
+
+            // Rename the ridges by the selected positions.
+            final List<String> names = new ArrayList<String>();
+            for (final int position : selPeaks) {
+                names.add(name(position));
+            }
+            ridgeList.rename(names);
+            peakStatus.rename(names);
+
+            // Start new ridges at the unselected maxima.
+            if (scale >= 2) {
+                final List<Integer> unselected = new ArrayList<Integer>();
+                for (final int position : maxima(localMax[col])) {
+                    if (!selPeaks.contains(position)) {
+                        unselected.add(position);
+                        ridgeList.add(name(position),
+                                Collections.singletonList(position));
+                        peakStatus.add(name(position), 0);
+                    }
+                }
+                maxIndCurr = new ArrayList<Integer>(selPeaks);
+                maxIndCurr.addAll(unselected);
+            } else {
+                maxIndCurr = selPeaks;
+            }
+        }
+
+        // Combine the ridges, reverse them and remove duplicate names.
+        final Set<String> names = new HashSet<String>();
+        final List<List<Integer>> ridges = new ArrayList<List<Integer>>();
+        for (int i = 0; i < ridgeList.size() + orphanRidges.size(); i++) {
+            final String name;
+            final List<Integer> ridge;
+            if (i < ridgeList.size()) {
+                name = "1_" + ridgeList.name(i);
+                ridge = ridgeList.value(i);
+            } else {
+                name = orphanNames.get(i - ridgeList.size());
+                ridge = orphanRidges.get(i - ridgeList.size());
+            }
+            if (names.add(name)) {
+                final List<Integer> reversed = new ArrayList<Integer>(ridge);
+                Collections.reverse(reversed);
+                ridges.add(reversed);
+            }
+        }
+        return ridges;
+    }
+
+    private static int ridgeSize(final NamedList<List<Integer>> ridgeList,
+            final int index) {
+        return index < ridgeList.size() ? ridgeList.value(index).size() : 0;
+    }
+
+    private static List<Integer> maxima(final boolean[] localMax) {
+
+        final List<Integer> maxima = new ArrayList<Integer>();
+        for (int i = 0; i < localMax.length; i++) {
+            if (localMax[i]) {
+                maxima.add(i);
+            }
+        }
+        return maxima;
+    }
+
+    // Names of the ridges as in R (1-based positions).
+    private static String name(final int position) {
+        return String.valueOf(position + 1);
+    }
+
+    /**
+     * Descends from the start position to the nearest local minima on both
+     * sides (descendMin in XCMS).
+     */
+    static int[] descendMin(final double[] y, final int start) {
+
+        int lower = start;
+        while (lower > 0 && y[lower - 1] < y[lower]) {
+            lower--;
+        }
+        int upper = start;
+        while (upper < y.length - 1 && y[upper + 1] < y[upper]) {
+            upper++;
+        }
+        return new int[] { lower, upper };
+    }
+
+    /**
+     * Descends from the start positions until the data is zero, or until the
+     * data rises for more than maxDescOutlier points (descendMinTol in XCMS).
+     */
+    static int[] descendMinTol(final double[] d, final int start,
+            final int end, final int maxDescOutlier) {
+
+        int l = start;
+        int outliers = 0;
+        int outlierPosition = 0;
+        while (l > 0 && d[l] > 0.0 && outliers <= maxDescOutlier) {
+            final int valuePosition = outliers > 0 ? outlierPosition : l;
+            outliers = d[l - 1] > d[valuePosition] ? outliers + 1 : 0;
+            if (outliers == 1) {
+                outlierPosition = l;
+            }
+            l--;
+        }
+        if (outliers > 0) {
+            l += outliers;
+        }
+
+        int r = end;
+        outliers = 0;
+        while (r < d.length - 1 && d[r] > 0.0 && outliers <= maxDescOutlier) {
+            final int valuePosition = outliers > 0 ? outlierPosition : r;
+            outliers = d[r + 1] > d[valuePosition] ? outliers + 1 : 0;
+            if (outliers == 1) {
+                outlierPosition = r;
+            }
+            r++;
+        }
+        if (outliers > 0) {
+            r -= outliers;
+        }
+
+        return new int[] { l, r };
+    }
+
+    /**
+     * Position (1-based, counted from the start in the given direction) of
+     * the first value at least the given value, or the number of values plus
+     * one if there is none (findEqualGreaterUnsorted in XCMS).
+     */
+    private static int findEqualGreater(final double[] d, final int from,
+            final int to, final int step, final double value) {
+
+        final int count = Math.abs(to - from) + 1;
+        for (int i = 0; i < count; i++) {
+            if (d[from + i * step] >= value) {
+                return i + 1;
+            }
+        }
+        return count + 1;
+    }
+
+    private static boolean anyAboveThreshold(final double[] x, final int from,
+            final int to, final double baseline, final double threshold) {
+
+        for (int i = from; i <= to; i++) {
+            if (x[i] - baseline >= threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double mean(final double[] x, final int from, final int to) {
+
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            sum += x[i];
+        }
+        return sum / (to - from);
+    }
+
+    private static double sd(final double[] x) {
+
+        final double mean = mean(x, 0, x.length);
+        double sum = 0.0;
+        for (final double value : x) {
+            sum += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sum / (x.length - 1));
+    }
+
+    /**
+     * List of values with names, which may contain duplicate names, with the
+     * semantics of R lists accessed by name.
+     */
+    private static class NamedList<T> {
+
+        private final List<String> names = new ArrayList<String>();
+        private final List<T> values = new ArrayList<T>();
+
+        int size() {
+            return values.size();
+        }
+
+        String name(final int index) {
+            return names.get(index);
+        }
+
+        T value(final int index) {
+            return values.get(index);
+        }
+
+        void add(final String name, final T value) {
+            names.add(name);
+            values.add(value);
+        }
+
+        // Value of the first element with the name, or null.
+        T get(final String name) {
+            final int index = names.indexOf(name);
+            return index < 0 ? null : values.get(index);
+        }
+
+        // Replaces the value of the first element with the name, or appends.
+        void set(final String name, final T value) {
+            final int index = names.indexOf(name);
+            if (index < 0) {
+                add(name, value);
+            } else {
+                values.set(index, value);
+            }
+        }
+
+        // Removes the elements at the given (sorted) indices.
+        void remove(final List<Integer> indices) {
+            for (int i = indices.size() - 1; i >= 0; i--) {
+                final int index = indices.get(i);
+                if (index < values.size()) {
+                    names.remove(index);
+                    values.remove(index);
+                }
+            }
+        }
+
+        // Renames the elements in order, the remaining ones get no name.
+        void rename(final List<String> newNames) {
+            for (int i = 0; i < names.size(); i++) {
+                names.set(i, i < newNames.size() ? newNames.get(i) : "NA");
+            }
+        }
+    }
+}
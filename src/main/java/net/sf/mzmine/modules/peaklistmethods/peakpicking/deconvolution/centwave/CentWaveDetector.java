@@ -57,7 +57,7 @@ public class CentWaveDetector implements PeakResolver {
             .getName());
 
     // Name.
-    private static final String NAME = "Wavelets (XCMS)";
+    private static final String NAME = "Wavelets (XCMS, R)";
 
     // Minutes <-> seconds.
     private static final double SECONDS_PER_MINUTE = 60.0;
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+/* Code created was by or on behalf of Syngenta and is released under the open source license in use for the
+ * pre-existing code or project. Syngenta does not assert ownership or copyright any over pre-existing work.
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveJavaDetectorParameters.FIX_SCAN_OFFSET;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveJavaDetectorParameters.INTEGRATION_METHOD;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveJavaDetectorParameters.PEAK_DURATION;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveJavaDetectorParameters.PEAK_SCALES;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveJavaDetectorParameters.SN_THRESHOLD;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolver;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.ResolvedPeak;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetectorParameters.PeakIntegrationMethod;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.R.RSessionWrapper;
+
+import com.google.common.collect.Range;
+
+/**
+ * Use the Java port of the centWave algorithm of XCMS (findPeaks.centWave) to
+ * identify peaks, without an R session. It has the name under which
+ * CentWaveDetector used to be listed, so existing batch files use it.
+ */
+public class CentWaveJavaDetector implements PeakResolver {
+
+    // Logger.
+    private static final Logger LOG = Logger
+            .getLogger(CentWaveJavaDetector.class.getName());
+
+    // Name.
+    private static final String NAME = "Wavelets (XCMS)";
+
+    // Minutes <-> seconds.
+    private static final double SECONDS_PER_MINUTE = 60.0;
+
+    @Nonnull
+    @Override
+    public String getName() {
+
+        return NAME;
+    }
+
+    @Nonnull
+    @Override
+    public Class<? extends ParameterSet> getParameterSetClass() {
+
+        return CentWaveJavaDetectorParameters.class;
+    }
+
+    @Override
+    public boolean getRequiresR() {
+        return false;
+    }
+
+    @Override
+    public String[] getRequiredRPackages() {
+        return null;
+    }
+
+    @Override
+    public String[] getRequiredRPackagesVersions() {
+        return null;
+    }
+
+    @Override
+    public Feature[] resolvePeaks(final Feature chromatogram,
+            final ParameterSet parameters, RSessionWrapper rSession) {
+
+        int scanNumbers[] = chromatogram.getScanNumbers();
+        final int scanCount = scanNumbers.length;
+        double retentionTimes[] = new double[scanCount];
+        double scanTimes[] = new double[scanCount];
+        double intensities[] = new double[scanCount];
+        RawDataFile dataFile = chromatogram.getDataFile();
+        for (int i = 0; i < scanCount; i++) {
+            final int scanNum = scanNumbers[i];
+            retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
+            scanTimes[i] = retentionTimes[i] * SECONDS_PER_MINUTE;
+            DataPoint dp = chromatogram.getDataPoint(scanNum);
+            if (dp != null)
+                intensities[i] = dp.getIntensity();
+            else
+                intensities[i] = 0.0;
+        }
+
+        // Detect peaks.
+        LOG.finest("Detecting peaks.");
+
+        final Range<Double> peakWidth = parameters.getParameter(PEAK_SCALES)
+                .getValue();
+        final PeakIntegrationMethod integrationMethod = parameters
+                .getParameter(INTEGRATION_METHOD).getValue();
+        final List<CentWaveAlgorithm.Peak> peaks = CentWaveAlgorithm
+                .findPeaks(scanTimes, intensities,
+                        parameters.getParameter(SN_THRESHOLD).getValue(),
+                        peakWidth.lowerEndpoint() * SECONDS_PER_MINUTE,
+                        peakWidth.upperEndpoint() * SECONDS_PER_MINUTE,
+                        integrationMethod == PeakIntegrationMethod.UseSmoothedData,
+                        parameters.getParameter(FIX_SCAN_OFFSET).getValue());
+
+        final Range<Double> peakDuration = parameters.getParameter(
+                PEAK_DURATION).getValue();
+
+        // Process peaks.
+        final List<ResolvedPeak> resolvedPeaks = new ArrayList<ResolvedPeak>(
+                peaks.size());
+
+        for (final CentWaveAlgorithm.Peak peak : peaks) {
+
+            // Get peak start and end.
+            final int peakLeft = peak.left;
+            final int peakRight = peak.right;
+
+            // Partition into sections bounded by null data points, creating
+            // a peak for each.
+            for (int start = peakLeft; start < peakRight; start++) {
+
+                if (chromatogram.getDataPoint(scanNumbers[start]) != null) {
+
+                    int end = start;
+
+                    while (end < peakRight
+                            && chromatogram.getDataPoint(scanNumbers[end + 1]) != null) {
+
+                        end++;
+                    }
+
+                    if ((end > start)
+                            && (peakDuration.contains(retentionTimes[end]
+                                    - retentionTimes[start]))) {
+
+                        resolvedPeaks.add(new ResolvedPeak(chromatogram,
+                                start, end));
+                    }
+
+                    start = end;
+                }
+            }
+        }
+
+        return resolvedPeaks.toArray(new ResolvedPeak[resolvedPeaks.size()]);
+    }
+}
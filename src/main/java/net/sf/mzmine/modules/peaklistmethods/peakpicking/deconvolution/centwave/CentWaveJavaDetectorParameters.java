@@ -0,0 +1,72 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import java.awt.Window;
+
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolverSetupDialog;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetectorParameters.PeakIntegrationMethod;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
+import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
+import net.sf.mzmine.parameters.parametertypes.ranges.DoubleRangeParameter;
+import net.sf.mzmine.util.ExitCode;
+
+/**
+ * Parameters used by CentWaveJavaDetector. These are copies of the parameters
+ * of CentWaveDetector, so both detectors keep their own values, and the option
+ * to fix the scan offset of the Java port.
+ */
+public class CentWaveJavaDetectorParameters extends SimpleParameterSet {
+
+    public static final DoubleRangeParameter PEAK_DURATION = CentWaveDetectorParameters.PEAK_DURATION
+	    .cloneParameter();
+
+    public static final DoubleRangeParameter PEAK_SCALES = CentWaveDetectorParameters.PEAK_SCALES
+	    .cloneParameter();
+
+    public static final DoubleParameter SN_THRESHOLD = CentWaveDetectorParameters.SN_THRESHOLD
+	    .cloneParameter();
+
+    public static final ComboParameter<PeakIntegrationMethod> INTEGRATION_METHOD = CentWaveDetectorParameters.INTEGRATION_METHOD
+	    .cloneParameter();
+
+    public static final BooleanParameter FIX_SCAN_OFFSET = new BooleanParameter(
+	    "Fix scan offset",
+	    "If checked, each scan is read from its own chromatogram point, rather than from the next one as in CentWaveDetector",
+	    false);
+
+    public CentWaveJavaDetectorParameters() {
+
+	super(new Parameter[] { SN_THRESHOLD, PEAK_SCALES, PEAK_DURATION,
+		INTEGRATION_METHOD, FIX_SCAN_OFFSET });
+    }
+
+    @Override
+    public ExitCode showSetupDialog(Window parent, boolean valueCheckRequired) {
+
+	final PeakResolverSetupDialog dialog = new PeakResolverSetupDialog(
+		parent, valueCheckRequired, this, CentWaveJavaDetector.class);
+	dialog.setVisible(true);
+	return dialog.getExitCode();
+    }
+}
@@ -68,6 +68,8 @@ public class ProjectOpeningTask extends AbstractTask {
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private File openFile;
+    private final boolean confirmReplace;
+    private final MZmineProjectImpl targetProject;
     private MZmineProjectImpl newProject;
 
     private RawDataFileOpenHandler rawDataFileOpenHandler;
@@ -84,8 +86,30 @@ public class ProjectOpeningTask extends AbstractTask {
     private final Hashtable<String, File> scanFilesIDMap = new Hashtable<>();
 
     public ProjectOpeningTask(ParameterSet parameters) {
-        this.openFile = parameters.getParameter(
-                ProjectLoaderParameters.projectFile).getValue();
+        this(parameters.getParameter(ProjectLoaderParameters.projectFile)
+                .getValue(), true);
+    }
+
+    /**
+     * @param confirmReplace
+     *            If true, the user must confirm replacing the current project
+     *            when it contains raw data files
+     */
+    public ProjectOpeningTask(File openFile, boolean confirmReplace) {
+        this.openFile = openFile;
+        this.confirmReplace = confirmReplace;
+        this.targetProject = null;
+    }
+
+    /**
+     * Adds the raw data files and peak lists of the project file to given
+     * project, instead of replacing the current project. The configuration
+     * saved in the project file is not loaded.
+     */
+    public ProjectOpeningTask(File openFile, MZmineProjectImpl targetProject) {
+        this.openFile = openFile;
+        this.confirmReplace = false;
+        this.targetProject = targetProject;
     }
 
     /**
@@ -125,7 +149,8 @@ public class ProjectOpeningTask extends AbstractTask {
         try {
             // Check if existing raw data files are present
             ProjectManager projectManager = MZmineCore.getProjectManager();
-            if (projectManager.getCurrentProject().getDataFiles().length > 0) {
+            if (confirmReplace
+                    && (projectManager.getCurrentProject().getDataFiles().length > 0)) {
                 int dialogResult = JOptionPane
                         .showConfirmDialog(
                                 null,
@@ -141,15 +166,24 @@ public class ProjectOpeningTask extends AbstractTask {
             logger.info("Started opening project " + openFile);
             setStatus(TaskStatus.PROCESSING);
 
-            // Create a new project
-            newProject = new MZmineProjectImpl();
-            newProject.setProjectFile(openFile);
+            if (targetProject != null) {
+
+                // Add the loaded items to the existing project
+                newProject = targetProject;
+
+            } else {
 
-            // Close all windows related to previous project
-            GUIUtils.closeAllWindows();
+                // Create a new project
+                newProject = new MZmineProjectImpl();
+                newProject.setProjectFile(openFile);
 
-            // Replace the current project with the new one
-            projectManager.setCurrentProject(newProject);
+                // Close all windows related to previous project
+                GUIUtils.closeAllWindows();
+
+                // Replace the current project with the new one
+                projectManager.setCurrentProject(newProject);
+
+            }
 
             // Open the ZIP file
             ZipFile zipFile = new ZipFile(openFile);
@@ -190,7 +224,8 @@ public class ProjectOpeningTask extends AbstractTask {
                 }
 
                 // Load configuration
-                if (entryName.equals(ProjectSavingTask.CONFIG_FILENAME))
+                if (entryName.equals(ProjectSavingTask.CONFIG_FILENAME)
+                        && (targetProject == null))
                     loadConfiguration(cis);
 
                 // Load user parameters
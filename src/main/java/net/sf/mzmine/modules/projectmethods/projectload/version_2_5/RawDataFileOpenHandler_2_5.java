@@ -23,7 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.SortedMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -64,8 +64,8 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler
     private int currentStorageID;
     private int storedDataID;
     private int storedDataNumDP;
-    private TreeMap<Integer, Long> dataPointsOffsets;
-    private TreeMap<Integer, Integer> dataPointsLengths;
+    private SortedMap<Integer, Long> dataPointsOffsets;
+    private SortedMap<Integer, Integer> dataPointsLengths;
     private ArrayList<StorableMassList> massLists;
     private PolarityType polarity = PolarityType.UNKNOWN;
     private String scanDescription = "";
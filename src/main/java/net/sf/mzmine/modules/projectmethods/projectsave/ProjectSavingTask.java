@@ -56,6 +56,7 @@ public class ProjectSavingTask extends AbstractTask {
 
     private File saveFile;
     private MZmineProjectImpl savedProject;
+    private final boolean updateProjectFile;
 
     private RawDataFileSaveHandler rawDataFileSaveHandler;
     private PeakListSaveHandler peakListSaveHandler;
@@ -69,9 +70,20 @@ public class ProjectSavingTask extends AbstractTask {
     private Hashtable<RawDataFile, String> dataFilesIDMap;
 
     public ProjectSavingTask(MZmineProject project, ParameterSet parameters) {
+        this(project, parameters.getParameter(
+                ProjectLoaderParameters.projectFile).getValue(), true);
+    }
+
+    /**
+     * @param updateProjectFile
+     *            If false, the project keeps its current file, e.g. when a
+     *            copy of the project is saved as a batch checkpoint
+     */
+    public ProjectSavingTask(MZmineProject project, File saveFile,
+            boolean updateProjectFile) {
         this.savedProject = (MZmineProjectImpl) project;
-        this.saveFile = parameters
-                .getParameter(ProjectLoaderParameters.projectFile).getValue();
+        this.saveFile = saveFile;
+        this.updateProjectFile = updateProjectFile;
         dataFilesIDMap = new Hashtable<RawDataFile, String>();
         this.totalSaveItems = project.getDataFiles().length
                 + project.getPeakLists().length;
@@ -218,13 +230,18 @@ public class ProjectSavingTask extends AbstractTask {
                         + tempFile + " to the final location " + saveFile);
             }
 
-            // Update the location of the project
-            savedProject.setProjectFile(saveFile);
+            if (updateProjectFile) {
+
+                // Update the location of the project
+                savedProject.setProjectFile(saveFile);
 
-            // Update the window title to reflect the new name of the project
-            if (MZmineCore.getDesktop() instanceof MainWindow) {
-                MainWindow mainWindow = (MainWindow) MZmineCore.getDesktop();
-                mainWindow.updateTitle();
+                // Update the window title to reflect the new name of the
+                // project
+                if (MZmineCore.getDesktop() instanceof MainWindow) {
+                    MainWindow mainWindow = (MainWindow) MZmineCore
+                            .getDesktop();
+                    mainWindow.updateTitle();
+                }
             }
 
             logger.info("Finished saving the project to " + saveFile);
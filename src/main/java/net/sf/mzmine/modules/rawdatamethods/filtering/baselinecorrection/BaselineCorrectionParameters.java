@@ -117,6 +117,15 @@ public class BaselineCorrectionParameters extends SimpleParameterSet {
     public static final IntegerParameter MS_LEVEL = new IntegerParameter(
             "MS level", "MS level of scans to apply this method to", 1, 1, null);
 
+    /**
+     * Compute baselines in Java.
+     */
+    public static final BooleanParameter COMPUTE_IN_JAVA = new BooleanParameter(
+            "Compute baselines in Java (experimental)",
+            "If checked, baselines are computed in parallel by MZmine's own implementation of the selected method, without R. "
+                    + "Results may differ slightly from the R packages. If unchecked, the R packages are used.",
+            false);
+
     /**
      * Remove original data file.
      */
@@ -132,7 +141,7 @@ public class BaselineCorrectionParameters extends SimpleParameterSet {
         super(new Parameter[] { dataFiles, SUFFIX,
                 // RENGINE_TYPE,
                 CHROMOTAGRAM_TYPE, MS_LEVEL, USE_MZ_BINS, MZ_BIN_WIDTH,
-                BASELINE_CORRECTORS, REMOVE_ORIGINAL });
+                BASELINE_CORRECTORS, COMPUTE_IN_JAVA, REMOVE_ORIGINAL });
         thisParameters = null;
     }
 
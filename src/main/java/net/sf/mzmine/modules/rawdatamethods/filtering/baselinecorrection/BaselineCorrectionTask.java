@@ -113,15 +113,20 @@ public class BaselineCorrectionTask extends AbstractTask {
 
         try {
 
-            // Check R availability, by trying to open the connection.
-            String[] reqPackages = this.baselineCorrectorProcStep.getModule()
-                    .getRequiredRPackages();
-            String callerFeatureName = this.baselineCorrectorProcStep
-                    .getModule().getName();
-            this.rSession = new RSessionWrapper(callerFeatureName, reqPackages,
-                    null);
-
-            this.rSession.open();
+            // Without R, the baselines are computed in Java.
+            final boolean computeInJava = this.commonParameters.getParameter(
+                    BaselineCorrectionParameters.COMPUTE_IN_JAVA).getValue();
+            if (!computeInJava) {
+                // Check R availability, by trying to open the connection.
+                String[] reqPackages = this.baselineCorrectorProcStep
+                        .getModule().getRequiredRPackages();
+                String callerFeatureName = this.baselineCorrectorProcStep
+                        .getModule().getName();
+                this.rSession = new RSessionWrapper(callerFeatureName,
+                        reqPackages, null);
+
+                this.rSession.open();
+            }
 
             this.baselineCorrectorProcStep.getModule().initProgress(
                     origDataFile);
@@ -149,40 +154,38 @@ public class BaselineCorrectionTask extends AbstractTask {
 
                 LOG.info("Baseline corrected " + origDataFile.getName());
             }
-            // Turn off R instance, once task ended gracefully.
-            if (!isCanceled())
-                this.rSession.close(false);
 
-        } catch (IOException | RSessionWrapperException e) {
+        } catch (RSessionWrapperException e) {
             if (!isCanceled()) {
                 errorMsg = "'R computing error' during baseline correction. \n"
                         + e.getMessage();
             }
+        } catch (IOException e) {
+            if (!isCanceled()) {
+                errorMsg = "'I/O error' during baseline correction. \n"
+                        + e.getMessage();
+            }
         } catch (Exception e) {
             if (!isCanceled()) {
                 errorMsg = "'Unknown error' during baseline correction. \n"
                         + e.getMessage();
             }
-        }
-
-        this.baselineCorrectorProcStep.getModule().setAbortProcessing(
-                origDataFile, true);
-
-        // Turn off R instance, once task ended UNgracefully.
-        try {
-            if (!isCanceled())
-                this.rSession.close(isCanceled());
-        } catch (RSessionWrapperException e) {
-            if (!isCanceled()) {
+        } finally {
+            // Turn off R instance (return it to the pool), whatever happened.
+            try {
+                if (this.rSession != null)
+                    this.rSession.close(isCanceled());
+            } catch (RSessionWrapperException e) {
                 // Do not override potential previous error message.
-                if (errorMsg == null) {
+                if (!isCanceled() && errorMsg == null) {
                     errorMsg = e.getMessage();
                 }
-            } else {
-                // User canceled: Silent.
             }
         }
 
+        this.baselineCorrectorProcStep.getModule().setAbortProcessing(
+                origDataFile, true);
+
         // Report error.
         if (errorMsg != null) {
             setErrorMessage(errorMsg);
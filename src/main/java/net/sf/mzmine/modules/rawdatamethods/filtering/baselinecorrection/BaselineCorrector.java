@@ -20,7 +20,13 @@
 package net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -29,9 +35,11 @@ import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.util.RangeUtils;
 import net.sf.mzmine.util.R.RSessionWrapper;
 import net.sf.mzmine.util.R.RSessionWrapperException;
@@ -65,6 +73,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
     private double binWidth;
     private boolean useBins;
     private int msLevel;
+    private boolean computeInJava;
 
     /**
      * Initialization
@@ -106,14 +115,32 @@ public abstract class BaselineCorrector implements BaselineProvider,
                 BaselineCorrectionParameters.USE_MZ_BINS).getValue();
         msLevel = generalParameters.getParameter(
                 BaselineCorrectionParameters.MS_LEVEL).getValue();
+        computeInJava = generalParameters.getParameter(
+                BaselineCorrectionParameters.COMPUTE_IN_JAVA).getValue();
     }
 
+    /**
+     * @return true if the baselines are to be computed in Java rather than
+     *         using R (see collectCommonParameters()).
+     */
+    public boolean getComputeInJava() {
+        return computeInJava;
+    }
+
+    /**
+     * Corrects the baselines of the given data file.
+     * 
+     * @param rSession
+     *            R session to compute the baselines with, one bin after
+     *            another, or null to compute them in Java, in parallel.
+     */
     public final RawDataFile correctDatafile(final RSessionWrapper rSession,
             final RawDataFile dataFile, final ParameterSet parameters,
             final ParameterSet commonParameters) throws IOException,
             RSessionWrapperException {
 
-        if (isAborted(dataFile) || !rSession.isSessionRunning())
+        if (isAborted(dataFile)
+                || (rSession != null && !rSession.isSessionRunning()))
             return null;
         // Get very last information from root module setup
         // this.setGeneralParameters(MZmineCore.getConfiguration().getModuleParameters(BaselineCorrectionModule.class));
@@ -256,8 +283,6 @@ public abstract class BaselineCorrector implements BaselineProvider,
      * @throws IOException
      *             if there are i/o problems.
      * @throws RSessionWrapperException
-     * @throws BaselineCorrectionException
-     * @throws InterruptedException
      */
     private void correctBasePeakBaselines(final RSessionWrapper rSession,
             final RawDataFile origDataFile, final RawDataFileWriter writer,
@@ -276,11 +301,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
         // Calculate baselines: done in-place, i.e. overwrite chromatograms to
         // save memory.
         LOG.finest("Calculating baselines.");
-        for (int binIndex = 0; !isAborted(origDataFile) && binIndex < numBins; binIndex++) {
-            baseChrom[binIndex] = computeBaseline(rSession, origDataFile,
-                    baseChrom[binIndex], parameters);
-            progressMap.get(origDataFile)[0]++;
-        }
+        computeBaselines(rSession, origDataFile, baseChrom, parameters, false);
 
         // Subtract baselines.
         LOG.finest("Subtracting baselines.");
@@ -319,7 +340,6 @@ public abstract class BaselineCorrector implements BaselineProvider,
      * @throws IOException
      *             if there are i/o problems.
      * @throws RSessionWrapperException
-     * @throws BaselineCorrectionException
      */
     private void correctTICBaselines(final RSessionWrapper rSession,
             final RawDataFile origDataFile, final RawDataFileWriter writer,
@@ -338,23 +358,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
         // Calculate baselines: done in-place, i.e. overwrite chromatograms to
         // save memory.
         LOG.finest("Calculating baselines.");
-        for (int binIndex = 0; !isAborted(origDataFile) && binIndex < numBins; binIndex++) {
-
-            // Calculate baseline.
-            // final double[] baseline = asymBaseline(baseChrom[binIndex]);
-            final double[] baseline = computeBaseline(rSession, origDataFile,
-                    baseChrom[binIndex], parameters);
-
-            // Normalize the baseline w.r.t. chromatogram (TIC).
-            for (int scanIndex = 0; !isAborted(origDataFile)
-                    && scanIndex < numScans; scanIndex++) {
-                final double bc = baseChrom[binIndex][scanIndex];
-                if (bc != 0.0) {
-                    baseChrom[binIndex][scanIndex] = baseline[scanIndex] / bc;
-                }
-            }
-            progressMap.get(origDataFile)[0]++;
-        }
+        computeBaselines(rSession, origDataFile, baseChrom, parameters, true);
 
         // Subtract baselines.
         LOG.finest("Subtracting baselines.");
@@ -377,6 +381,109 @@ public abstract class BaselineCorrector implements BaselineProvider,
 
     }
 
+    /**
+     * Computes the baselines of all m/z bins, one after another using R, or in
+     * parallel in Java. The baselines overwrite the chromatograms to save
+     * memory.
+     * 
+     * @param rSession
+     *            R session, or null to compute the baselines in Java.
+     * @param origDataFile
+     *            dataFile of concern.
+     * @param chromatograms
+     *            the chromatograms as double[number of bins][number of scans].
+     * @param parameters
+     *            parameters specific to the actual method for baseline
+     *            computing.
+     * @param normalize
+     *            if true, the baselines are normalized w.r.t. chromatograms
+     *            (TIC).
+     * @throws RSessionWrapperException
+     */
+    private void computeBaselines(final RSessionWrapper rSession,
+            final RawDataFile origDataFile, final double[][] chromatograms,
+            final ParameterSet parameters, final boolean normalize)
+            throws RSessionWrapperException {
+
+        final int[] progress = progressMap.get(origDataFile);
+
+        if (rSession != null) {
+            for (int binIndex = 0; !isAborted(origDataFile)
+                    && binIndex < chromatograms.length; binIndex++) {
+                final double[] baseline = computeBaseline(rSession,
+                        origDataFile, chromatograms[binIndex], parameters);
+                storeBaseline(chromatograms, binIndex, baseline, normalize);
+                synchronized (progress) {
+                    progress[0]++;
+                }
+            }
+            return;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                chromatograms.length);
+        for (int binIndex = 0; binIndex < chromatograms.length; binIndex++) {
+
+            final int bin = binIndex;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+
+                    if (isAborted(origDataFile))
+                        return null;
+
+                    // Calculate baseline.
+                    final double[] baseline = computeBaseline(
+                            chromatograms[bin], parameters);
+                    storeBaseline(chromatograms, bin, baseline, normalize);
+
+                    synchronized (progress) {
+                        progress[0]++;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        final int numOfThreads = MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        final ForkJoinPool pool = TaskMetrics.newForkJoinPool(numOfThreads);
+        try {
+            for (final Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error during baseline correction ("
+                    + getName() + ").", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            setAbortProcessing(origDataFile, true);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Stores the baseline of a bin in place of its chromatogram, or, if
+     * normalize is true, the baseline normalized w.r.t. the chromatogram (TIC).
+     */
+    private static void storeBaseline(final double[][] chromatograms,
+            final int bin, final double[] baseline, final boolean normalize) {
+
+        final double[] chromatogram = chromatograms[bin];
+        if (normalize) {
+            for (int scanIndex = 0; scanIndex < chromatogram.length; scanIndex++) {
+                final double bc = chromatogram[scanIndex];
+                if (bc != 0.0) {
+                    chromatogram[scanIndex] = baseline[scanIndex] / bc;
+                }
+            }
+        } else {
+            chromatograms[bin] = baseline;
+        }
+    }
+
     /**
      * Constructs base peak (max) chromatograms - one for each m/z bin.
      * 
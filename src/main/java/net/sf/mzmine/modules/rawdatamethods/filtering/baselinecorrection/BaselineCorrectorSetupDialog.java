@@ -212,16 +212,21 @@ public class BaselineCorrectorSetupDialog extends
             // Get parent module parameters
             baselineCorrector.collectCommonParameters(null);
 
-            // Check R availability, by trying to open the connection
-            try {
-                String[] reqPackages = baselineCorrector.getRequiredRPackages();
-                this.rSession = new RSessionWrapper(
-                        baselineCorrector.getName(), reqPackages, null);
-                this.rSession.open();
-            } catch (RSessionWrapperException e) {
-                errorMsg = e.getMessage();
-                updateStatus(TaskStatus.ERROR);
-                return;
+            // Check R availability, by trying to open the connection (unless
+            // the baselines are computed in Java)
+            if (!baselineCorrector.getComputeInJava()) {
+                try {
+                    String[] reqPackages = baselineCorrector
+                            .getRequiredRPackages();
+                    this.rSession = new RSessionWrapper(
+                            baselineCorrector.getName(), reqPackages, null);
+                    this.rSession.open();
+                } catch (RSessionWrapperException e) {
+                    errorMsg = e.getMessage();
+                    closeRSession();
+                    updateStatus(TaskStatus.ERROR);
+                    return;
+                }
             }
 
             // Set VK_ESCAPE KeyEvent listeners
@@ -262,24 +267,24 @@ public class BaselineCorrectorSetupDialog extends
                             newDataFile, getPlotType());
                     ticPlot.addTICDataset(tlDataset);
                 }
-            } catch (IOException | RSessionWrapperException e) {
+            } catch (RSessionWrapperException e) {
                 if (!this.userCanceled) {
                     errorMsg = "'R computing error' during baseline correction. \n"
                             + e.getMessage();
                 }
-            }
-
-            // Turn off R instance.
-            try {
-                if (!this.userCanceled)
-                    this.rSession.close(false);
-            } catch (RSessionWrapperException e) {
+            } catch (IOException e) {
                 if (!this.userCanceled) {
-                    if (errorMsg == null)
-                        errorMsg = e.getMessage();
-                } else {
-                    // User canceled: Silent.
+                    errorMsg = "'I/O error' during baseline correction. \n"
+                            + e.getMessage();
                 }
+            } catch (Exception e) {
+                if (!this.userCanceled) {
+                    errorMsg = "'Unknown error' during baseline correction. \n"
+                            + e.getMessage();
+                }
+            } finally {
+                // Turn off R instance.
+                closeRSession();
             }
 
             // Task is over: Restore "parametersChanged" listeners
@@ -295,6 +300,20 @@ public class BaselineCorrectorSetupDialog extends
 
         }
 
+        /**
+         * Returns the R session (if any) to the pool, or terminates it if the
+         * user canceled the preview.
+         */
+        private void closeRSession() {
+            try {
+                if (this.rSession != null)
+                    this.rSession.close(this.userCanceled);
+            } catch (RSessionWrapperException e) {
+                if (!this.userCanceled && errorMsg == null)
+                    errorMsg = e.getMessage();
+            }
+        }
+
         public void kill() {
 
             RawDataFile dataFile = getPreviewDataFile();
@@ -303,12 +322,7 @@ public class BaselineCorrectorSetupDialog extends
                 this.userCanceled = true;
 
                 // Turn off R instance.
-                try {
-                    if (this.rSession != null)
-                        this.rSession.close(true);
-                } catch (RSessionWrapperException e) {
-                    // User canceled: Silent.
-                }
+                closeRSession();
 
                 // Cancel task.
                 this.cancel();
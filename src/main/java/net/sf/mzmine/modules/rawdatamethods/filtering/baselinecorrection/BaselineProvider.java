@@ -44,4 +44,13 @@ public interface BaselineProvider {
             final RawDataFile origDataFile, final double[] chromatogram,
             ParameterSet parameters) throws RSessionWrapperException;
 
+    /**
+     * Returns a baseline for correcting the given chromatogram, computed in
+     * Java without R (see BaselineCorrectionParameters.COMPUTE_IN_JAVA). The baselines
+     * of several chromatograms (m/z bins) are computed in parallel, so this
+     * method must not modify the chromatogram nor any shared state.
+     */
+    public double[] computeBaseline(final double[] chromatogram,
+            ParameterSet parameters);
+
 }
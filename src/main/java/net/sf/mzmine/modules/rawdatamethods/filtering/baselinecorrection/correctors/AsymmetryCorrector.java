@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.correctors;
 
+import java.util.Arrays;
+
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -31,10 +33,14 @@ import net.sf.mzmine.util.R.RSessionWrapperException;
  * @description Asymmetric baseline corrector. Estimates a trend based on
  *              asymmetric least squares. Uses "asysm" feature from "ptw"
  *              R-package (http://cran.r-project.org/web/packages/ptw/ptw.pdf).
+ *              When computed in Java, a port of "asysm" is used instead.
  * 
  */
 public class AsymmetryCorrector extends BaselineCorrector {
 
+    // Maximum number of re-weighting iterations (as in "asysm").
+    private static final int MAX_ITERATIONS = 25;
+
     @Override
     public String[] getRequiredRPackages() {
         return new String[] { /* "rJava", "Rserve", */"ptw" };
@@ -74,6 +80,147 @@ public class AsymmetryCorrector extends BaselineCorrector {
         return baseline;
     }
 
+    @Override
+    public double[] computeBaseline(final double[] chromatogram,
+            ParameterSet parameters) {
+
+        // Smoothing and asymmetry parameters.
+        final double smoothing = parameters.getParameter(
+                AsymmetryCorrectorParameters.SMOOTHING).getValue();
+        final double asymmetry = parameters.getParameter(
+                AsymmetryCorrectorParameters.ASYMMETRY).getValue();
+
+        // Compute baseline.
+        return asymmetricBaseline(chromatogram, smoothing, asymmetry);
+    }
+
+    /**
+     * Asymmetric least squares baseline: Whittaker smoother (second order
+     * differences) whose weights are p for the points above the trend and 1-p
+     * for the points below it, re-weighted until the weights do not change
+     * any more.
+     * 
+     * @param y
+     *            the chromatogram.
+     * @param lambda
+     *            the smoothing factor.
+     * @param p
+     *            the asymmetry.
+     * @return the baseline.
+     */
+    static double[] asymmetricBaseline(final double[] y, final double lambda,
+            final double p) {
+
+        final int n = y.length;
+        final double[] z = new double[n];
+
+        // Nothing to smooth.
+        if (n < 3) {
+            System.arraycopy(y, 0, z, 0, n);
+            return z;
+        }
+
+        // Bands of the penalty matrix D'D (second order differences).
+        final double[] p0 = new double[n];
+        final double[] p1 = new double[n - 1];
+        final double[] p2 = new double[n - 2];
+        for (int k = 0; k < n - 2; k++) {
+            p0[k] += 1.0;
+            p0[k + 1] += 4.0;
+            p0[k + 2] += 1.0;
+            p1[k] -= 2.0;
+            p1[k + 1] -= 2.0;
+            p2[k] += 1.0;
+        }
+
+        // Working arrays of the pentadiagonal solver.
+        final double[] w = new double[n];
+        final double[] d = new double[n];
+        final double[] l1 = new double[n - 1];
+        final double[] l2 = new double[n - 2];
+
+        Arrays.fill(w, 1.0);
+        for (int it = 0; it < MAX_ITERATIONS; it++) {
+
+            // Solve (W + lambda D'D) z = W y.
+            for (int i = 0; i < n; i++) {
+                d[i] = w[i] + lambda * p0[i];
+                z[i] = w[i] * y[i];
+            }
+            for (int i = 0; i < n - 1; i++)
+                l1[i] = lambda * p1[i];
+            for (int i = 0; i < n - 2; i++)
+                l2[i] = lambda * p2[i];
+            solvePentadiagonal(d, l1, l2, z);
+
+            // Update weights.
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                final double weight = y[i] > z[i] ? p : 1.0 - p;
+                if (weight != w[i]) {
+                    w[i] = weight;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                break;
+        }
+
+        return z;
+    }
+
+    /**
+     * Solves a symmetric positive definite pentadiagonal system in-place,
+     * using its LDL' decomposition.
+     * 
+     * @param d
+     *            the diagonal, overwritten by D.
+     * @param l1
+     *            the first off-diagonal, overwritten by the first sub-diagonal
+     *            of L.
+     * @param l2
+     *            the second off-diagonal, overwritten by the second
+     *            sub-diagonal of L.
+     * @param b
+     *            the right-hand side, overwritten by the solution.
+     */
+    static void solvePentadiagonal(final double[] d, final double[] l1,
+            final double[] l2, final double[] b) {
+
+        final int n = d.length;
+
+        // Decomposition.
+        for (int i = 0; i < n; i++) {
+            if (i >= 1)
+                d[i] -= l1[i - 1] * l1[i - 1] * d[i - 1];
+            if (i >= 2)
+                d[i] -= l2[i - 2] * l2[i - 2] * d[i - 2];
+            if (i < n - 1) {
+                if (i >= 1)
+                    l1[i] -= l2[i - 1] * l1[i - 1] * d[i - 1];
+                l1[i] /= d[i];
+            }
+            if (i < n - 2)
+                l2[i] /= d[i];
+        }
+
+        // Forward substitution.
+        for (int i = 1; i < n; i++) {
+            b[i] -= l1[i - 1] * b[i - 1];
+            if (i >= 2)
+                b[i] -= l2[i - 2] * b[i - 2];
+        }
+
+        // Diagonal and backward substitution.
+        for (int i = n - 1; i >= 0; i--) {
+            b[i] /= d[i];
+            if (i < n - 1)
+                b[i] -= l1[i] * b[i + 1];
+            if (i < n - 2)
+                b[i] -= l2[i] * b[i + 2];
+        }
+    }
+
     @Override
     public @Nonnull
     String getName() {
@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.correctors;
 
+import java.util.Arrays;
+
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -33,6 +35,7 @@ import net.sf.mzmine.util.R.RSessionWrapperException;
  *              R/Bioconductor package
  *              (http://bioconductor.org/packages/release/
  *              bioc/manuals/PROcess/man/PROcess.pdf).
+ *              When computed in Java, a port of "bslnoff" is used instead.
  * 
  */
 public class LocMinLoessCorrector extends BaselineCorrector {
@@ -82,6 +85,194 @@ public class LocMinLoessCorrector extends BaselineCorrector {
         return baseline;
     }
 
+    @Override
+    public double[] computeBaseline(final double[] chromatogram,
+            ParameterSet parameters) {
+
+        // Local Minima parameters.
+        String method = parameters.getParameter(
+                LocMinLoessCorrectorParameters.METHOD).getValue();
+        double bw = parameters.getParameter(LocMinLoessCorrectorParameters.BW)
+                .getValue();
+        int breaks = parameters.getParameter(
+                LocMinLoessCorrectorParameters.BREAKS).getValue();
+        int breaks_width = parameters.getParameter(
+                LocMinLoessCorrectorParameters.BREAK_WIDTH).getValue();
+        double qntl = parameters.getParameter(
+                LocMinLoessCorrectorParameters.QNTL).getValue();
+
+        // Breaks
+        final int numBreaks = (breaks_width > 0) ? (int) Math
+                .round((double) (chromatogram.length - 1)
+                        / (double) breaks_width) : breaks;
+
+        return locMinBaseline(chromatogram, "loess".equals(method), bw,
+                numBreaks, qntl);
+    }
+
+    /**
+     * Local minima baseline: the scans (1 to n) are cut into breaks - 1
+     * intervals, equally spaced on the log scale. The baseline goes through
+     * the minimum of each interval (or through the points below the given
+     * quantile of each interval), either smoothed by local linear regression
+     * (loess) or linearly interpolated.
+     * 
+     * @param y
+     *            the chromatogram.
+     * @param loess
+     *            smooth by loess, or linear interpolation.
+     * @param bw
+     *            the span of loess (fraction of the points used for each
+     *            local regression).
+     * @param breaks
+     *            the number of interval limits.
+     * @param qntl
+     *            if 0, find local minima; otherwise find intensities below
+     *            this quantile locally.
+     * @return the baseline.
+     */
+    static double[] locMinBaseline(final double[] y, final boolean loess,
+            final double bw, final int breaks, final double qntl) {
+
+        final int n = y.length;
+        final double[] baseline = new double[n];
+        if (n == 0)
+            return baseline;
+
+        // Interval limits (first interval includes its lower limit).
+        final int numIntervals = Math.max(1, breaks - 1);
+        final double logMax = Math.log(n);
+
+        // Collect the baseline points (scan indices, ascending).
+        final int[] points = new int[n];
+        int m = 0;
+        final double[] sorted = new double[n];
+        int from = 0;
+        for (int interval = 1; interval <= numIntervals && from < n; interval++) {
+
+            final double upper = (interval == numIntervals) ? n : Math
+                    .exp(logMax * interval / numIntervals);
+            int to = from;
+            while (to < n && (to + 1) <= upper)
+                to++;
+            if (to == from)
+                continue;
+
+            if (qntl == 0.0) {
+                int minIndex = from;
+                for (int i = from + 1; i < to; i++) {
+                    if (y[i] < y[minIndex])
+                        minIndex = i;
+                }
+                points[m++] = minIndex;
+            } else {
+                final int len = to - from;
+                System.arraycopy(y, from, sorted, 0, len);
+                Arrays.sort(sorted, 0, len);
+                final double threshold = quantile(sorted, len, qntl);
+                for (int i = from; i < to; i++) {
+                    if (y[i] <= threshold)
+                        points[m++] = i;
+                }
+            }
+            from = to;
+        }
+
+        if (loess)
+            loess(points, m, y, bw, baseline);
+        else
+            interpolate(points, m, y, baseline);
+
+        return baseline;
+    }
+
+    /**
+     * Quantile of sorted values (linear interpolation between order
+     * statistics, as R "quantile" type 7).
+     */
+    private static double quantile(final double[] sorted, final int len,
+            final double probability) {
+        final double h = (len - 1) * Math.min(1.0, probability);
+        final int low = (int) Math.floor(h);
+        final int high = Math.min(len - 1, low + 1);
+        return sorted[low] + (h - low) * (sorted[high] - sorted[low]);
+    }
+
+    /**
+     * Linear interpolation through the given points, constant beyond the
+     * first and last one.
+     */
+    private static void interpolate(final int[] x, final int m,
+            final double[] y, final double[] result) {
+        int j = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (i <= x[0]) {
+                result[i] = y[x[0]];
+            } else if (i >= x[m - 1]) {
+                result[i] = y[x[m - 1]];
+            } else {
+                while (x[j + 1] < i)
+                    j++;
+                final double t = (double) (i - x[j]) / (x[j + 1] - x[j]);
+                result[i] = y[x[j]] + t * (y[x[j + 1]] - y[x[j]]);
+            }
+        }
+    }
+
+    /**
+     * Local linear regression with tricube weights over the nearest
+     * span * m points, evaluated at all scans.
+     */
+    private static void loess(final int[] x, final int m, final double[] y,
+            final double span, final double[] result) {
+
+        // Size of the neighborhoods (at least two points for a line).
+        final int q = Math.min(m, Math.max(2, (int) Math.floor(span * m)));
+
+        if (q < 2) {
+            Arrays.fill(result, y[x[0]]);
+            return;
+        }
+
+        int left = 0;
+        for (int i = 0; i < result.length; i++) {
+
+            // Slide the window of the q nearest points.
+            while (left + q < m && (i - x[left]) > (x[left + q] - i))
+                left++;
+            final int right = left + q - 1;
+
+            double maxDist = Math.max(i - x[left], x[right] - i);
+            if (span > 1.0)
+                maxDist *= span;
+
+            double sw = 0.0, swx = 0.0, swy = 0.0, swxx = 0.0, swxy = 0.0;
+            for (int j = left; j <= right; j++) {
+                final double dx = x[j] - i;
+                double w = 1.0;
+                if (maxDist > 0.0) {
+                    final double u = Math.abs(dx) / maxDist;
+                    w = (u < 1.0) ? Math.pow(1.0 - u * u * u, 3) : 0.0;
+                }
+                final double v = y[x[j]];
+                sw += w;
+                swx += w * dx;
+                swy += w * v;
+                swxx += w * dx * dx;
+                swxy += w * dx * v;
+            }
+
+            // Value of the weighted regression line at dx = 0.
+            final double det = sw * swxx - swx * swx;
+            if (sw == 0.0)
+                result[i] = y[x[left]];
+            else if (Math.abs(det) <= 1e-12 * sw * swxx)
+                result[i] = swy / sw;
+            else
+                result[i] = (swxx * swy - swx * swxy) / det;
+        }
+    }
+
     @Override
     public @Nonnull
     String getName() {
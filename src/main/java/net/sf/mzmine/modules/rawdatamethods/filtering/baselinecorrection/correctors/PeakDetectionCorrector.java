@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.correctors;
 
+import java.util.Arrays;
+
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -36,10 +38,15 @@ import net.sf.mzmine.util.R.RSessionWrapperException;
  *              (http://cran.r-project.org/web/packages/baseline/baseline.pdf).
  *              (A translation from Kevin R. Coombes et al.'s MATLAB code for
  *              detecting peaks and removing baselines).
+ *              When computed in Java, an implementation of the published
+ *              algorithm is used instead.
  * 
  */
 public class PeakDetectionCorrector extends BaselineCorrector {
 
+    // Scale factor of the median absolute deviation (normal distribution).
+    private static final double MAD_SCALE = 1.4826;
+
     @Override
     public String[] getRequiredRPackages() {
         return new String[] { /* "rJava", "Rserve", */"baseline" };
@@ -98,6 +105,178 @@ public class PeakDetectionCorrector extends BaselineCorrector {
         return baseline;
     }
 
+    @Override
+    public double[] computeBaseline(final double[] chromatogram,
+            ParameterSet parameters) {
+
+        // Peak Detection parameters.
+        int left = parameters.getParameter(
+                PeakDetectionCorrectorParameters.LEFT).getValue();
+        int right = parameters.getParameter(
+                PeakDetectionCorrectorParameters.RIGHT).getValue();
+        int lwin = parameters.getParameter(
+                PeakDetectionCorrectorParameters.LWIN).getValue();
+        int rwin = parameters.getParameter(
+                PeakDetectionCorrectorParameters.RWIN).getValue();
+        double snminimum = parameters.getParameter(
+                PeakDetectionCorrectorParameters.SNMINIMUM).getValue();
+        double mono = parameters.getParameter(
+                PeakDetectionCorrectorParameters.MONO).getValue();
+        double multiplier = parameters.getParameter(
+                PeakDetectionCorrectorParameters.MULTIPLIER).getValue();
+
+        return peakDetectionBaseline(chromatogram, left, right, lwin, rwin,
+                snminimum, mono, multiplier);
+    }
+
+    /**
+     * Peak detection baseline. The window sizes grow linearly from the first
+     * scan (left, lwin) to the last one (right, rwin).
+     * <ol>
+     * <li>A first baseline is estimated by local minima, smoothed by local
+     * medians (lwin to rwin).</li>
+     * <li>Peaks are local maxima (left to right) whose height above the first
+     * baseline exceeds snminimum times the noise (median absolute deviation
+     * of the signal above the baseline).</li>
+     * <li>The peaks (widened by the multiplier) are removed, and the final
+     * baseline is estimated by local minima and medians of the remaining
+     * points, linearly interpolated where no point remains.</li>
+     * <li>If mono > 0, the baseline is made monotonically decreasing.</li>
+     * </ol>
+     * 
+     * @return the baseline.
+     */
+    static double[] peakDetectionBaseline(final double[] y, final int left,
+            final int right, final int lwin, final int rwin,
+            final double snminimum, final double mono, final double multiplier) {
+
+        final int n = y.length;
+        if (n == 0)
+            return new double[0];
+
+        final int[] peakWindow = new int[n];
+        final int[] baseWindow = new int[n];
+        for (int i = 0; i < n; i++) {
+            final double t = (n > 1) ? (double) i / (n - 1) : 0.0;
+            peakWindow[i] = (int) Math.round(left + t * (right - left));
+            baseWindow[i] = Math.max(1,
+                    (int) Math.round(lwin + t * (rwin - lwin)));
+        }
+
+        final boolean[] kept = new boolean[n];
+        final double[] minima = new double[n];
+        final double[] buffer = new double[n];
+        final double[] baseline = new double[n];
+
+        // First baseline, over all points.
+        Arrays.fill(kept, true);
+        localMinMedian(y, kept, baseWindow, minima, buffer, baseline);
+
+        // Noise level.
+        for (int i = 0; i < n; i++)
+            buffer[i] = y[i] - baseline[i];
+        Arrays.sort(buffer);
+        final double median = buffer[n / 2];
+        for (int i = 0; i < n; i++)
+            buffer[i] = Math.abs(buffer[i] - median);
+        Arrays.sort(buffer);
+        final double noise = MAD_SCALE * buffer[n / 2];
+
+        // Detect and remove peaks.
+        boolean peakFound = false;
+        for (int i = 0; i < n; i++) {
+            final int w = peakWindow[i];
+            if (y[i] - baseline[i] <= snminimum * noise)
+                continue;
+            boolean isMaximum = true;
+            for (int j = Math.max(0, i - w); isMaximum
+                    && j <= Math.min(n - 1, i + w); j++) {
+                if (y[j] > y[i])
+                    isMaximum = false;
+            }
+            if (!isMaximum)
+                continue;
+            final int width = (int) Math.ceil(multiplier * w);
+            for (int j = Math.max(0, i - width); j <= Math.min(n - 1, i
+                    + width); j++)
+                kept[j] = false;
+            peakFound = true;
+        }
+
+        // Final baseline, over the remaining points.
+        if (peakFound)
+            localMinMedian(y, kept, baseWindow, minima, buffer, baseline);
+
+        // Monotonically decreasing baseline.
+        if (mono > 0.0) {
+            for (int i = 1; i < n; i++)
+                baseline[i] = Math.min(baseline[i], baseline[i - 1]);
+        }
+
+        return baseline;
+    }
+
+    /**
+     * Local minima of the kept points, smoothed by local medians (both within
+     * +/- window scans). Scans without kept points in their window are
+     * linearly interpolated.
+     */
+    private static void localMinMedian(final double[] y,
+            final boolean[] kept, final int[] window, final double[] minima,
+            final double[] buffer, final double[] result) {
+
+        final int n = y.length;
+        final double nan = Double.NaN;
+
+        // Local minima.
+        for (int i = 0; i < n; i++) {
+            double min = nan;
+            for (int j = Math.max(0, i - window[i]); j <= Math.min(n - 1, i
+                    + window[i]); j++) {
+                if (kept[j] && (Double.isNaN(min) || y[j] < min))
+                    min = y[j];
+            }
+            minima[i] = min;
+        }
+
+        // Local medians.
+        for (int i = 0; i < n; i++) {
+            int len = 0;
+            for (int j = Math.max(0, i - window[i]); j <= Math.min(n - 1, i
+                    + window[i]); j++) {
+                if (!Double.isNaN(minima[j]))
+                    buffer[len++] = minima[j];
+            }
+            if (len == 0) {
+                result[i] = nan;
+                continue;
+            }
+            Arrays.sort(buffer, 0, len);
+            result[i] = (len % 2 == 1) ? buffer[len / 2]
+                    : 0.5 * (buffer[len / 2 - 1] + buffer[len / 2]);
+        }
+
+        // Fill the gaps.
+        int last = -1;
+        for (int i = 0; i <= n; i++) {
+            if (i < n && Double.isNaN(result[i]))
+                continue;
+            final int gapStart = last + 1;
+            for (int j = gapStart; j < i; j++) {
+                if (last < 0 && i == n)
+                    result[j] = 0.0;
+                else if (last < 0)
+                    result[j] = result[i];
+                else if (i == n)
+                    result[j] = result[last];
+                else
+                    result[j] = result[last] + (result[i] - result[last])
+                            * (j - last) / (i - last);
+            }
+            last = i;
+        }
+    }
+
     @Override
     public @Nonnull
     String getName() {
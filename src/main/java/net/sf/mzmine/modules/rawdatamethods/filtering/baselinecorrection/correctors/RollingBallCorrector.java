@@ -35,6 +35,8 @@ import net.sf.mzmine.util.R.RSessionWrapperException;
  *              (Ideas from Rolling Ball algorithm for X-ray spectra by
  *              M.A.Kneen and H.J. Annegarn. Variable window width has been left
  *              out).
+ *              When computed in Java, a port of "rollingBall" is used
+ *              instead.
  * 
  */
 public class RollingBallCorrector extends BaselineCorrector {
@@ -86,6 +88,130 @@ public class RollingBallCorrector extends BaselineCorrector {
         return baseline;
     }
 
+    @Override
+    public double[] computeBaseline(final double[] chromatogram,
+            ParameterSet parameters) {
+
+        // Rolling Ball parameters.
+        int wm = parameters.getParameter(
+                RollingBallCorrectorParameters.MIN_MAX_WIDTH).getValue();
+        int ws = parameters.getParameter(
+                RollingBallCorrectorParameters.SMOOTHING).getValue();
+
+        return rollingBallBaseline(chromatogram, wm, ws);
+    }
+
+    /**
+     * Rolling ball baseline: local minima, then local maxima of the minima
+     * (both within +/- wm scans), then local means (within +/- ws scans).
+     * 
+     * As in "rollingBall" of the baseline R package, the windows are not
+     * simply truncated at the ends of the chromatogram. The window of the
+     * first point reaches ceiling((w + 1) / 2) points to the right, and each
+     * following point adds one or two points, alternately, until the full
+     * window of 2 * w + 1 points is reached. The end of the chromatogram is
+     * handled as the mirror image of the start.
+     * 
+     * @param y
+     *            the chromatogram.
+     * @param wm
+     *            half width of the minimization/maximization window.
+     * @param ws
+     *            half width of the smoothing window.
+     * @return the baseline.
+     */
+    static double[] rollingBallBaseline(final double[] y, final int wm,
+            final int ws) {
+
+        final int n = y.length;
+        final double[] t1 = new double[n];
+        final double[] t2 = new double[n];
+        final int[] queue = new int[n];
+
+        // Minimize, then maximize.
+        final int[] minMaxEnds = windowEnds(n, wm);
+        slidingExtremum(y, t1, minMaxEnds, queue, false);
+        slidingExtremum(t1, t2, minMaxEnds, queue, true);
+
+        // Smooth (reuse first buffer).
+        final int[] smoothingEnds = windowEnds(n, ws);
+        final double[] baseline = t1;
+        double sum = 0.0;
+        int from = 0, to = 0;
+        for (int i = 0; i < n; i++) {
+            final int windowFrom = windowStart(smoothingEnds, i);
+            final int windowTo = smoothingEnds[i] + 1;
+            while (to < windowTo)
+                sum += t2[to++];
+            while (from < windowFrom)
+                sum -= t2[from++];
+            baseline[i] = sum / (to - from);
+        }
+
+        return baseline;
+    }
+
+    /**
+     * Last index of the window of each point, for windows of +/- w points.
+     * Near the start of the chromatogram the windows grow as in
+     * "rollingBall", elsewhere they reach w points to the right, or to the
+     * end of the chromatogram.
+     */
+    static int[] windowEnds(final int n, final int w) {
+
+        final int[] ends = new int[n];
+        int end = (w == 0) ? 0 : (w + 2) / 2;
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                end = (i < w) ? end + 1 + (i + 1) % 2 : i + w;
+            ends[i] = Math.min(end, n - 1);
+        }
+        return ends;
+    }
+
+    /**
+     * First index of the window of given point, the mirror image of the
+     * window end of the point at the same distance from the other end of the
+     * chromatogram
+     */
+    private static int windowStart(final int[] ends, final int i) {
+        final int n = ends.length;
+        return n - 1 - ends[n - 1 - i];
+    }
+
+    /**
+     * Sliding window minimum or maximum over the windows given by their last
+     * indices, in linear time (monotonic queue of indices). Both ends of the
+     * windows never move backwards.
+     */
+    private static void slidingExtremum(final double[] values,
+            final double[] result, final int[] ends, final int[] queue,
+            final boolean max) {
+
+        final int n = values.length;
+        int head = 0, tail = 0;
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+
+            // Extend window to the right.
+            while (next <= ends[i]) {
+                final double v = values[next];
+                while (tail > head
+                        && (max ? values[queue[tail - 1]] <= v
+                                : values[queue[tail - 1]] >= v))
+                    tail--;
+                queue[tail++] = next++;
+            }
+
+            // Shrink window from the left.
+            final int windowFrom = windowStart(ends, i);
+            while (queue[head] < windowFrom)
+                head++;
+
+            result[i] = values[queue[head]];
+        }
+    }
+
     @Override
     public @Nonnull
     String getName() {
@@ -34,10 +34,19 @@ import net.sf.mzmine.util.R.RSessionWrapperException;
  *              from "hyperSpec" R-package
  *              (http://cran.r-project.org/web/packages
  *              /hyperSpec/vignettes/baseline.pdf).
+ *              When computed in Java, a port of "spc.rubberband" is used
+ *              instead (close to R but not identical in spline mode).
  * 
  */
 public class RubberBandCorrector extends BaselineCorrector {
 
+    // Search range of log10(lambda) for the smoothing spline (abscissa scaled
+    // to [0, 1]).
+    private static final double MIN_LOG_LAMBDA = -16.0, MAX_LOG_LAMBDA = 8.0;
+
+    // Number of steps of the lambda search.
+    private static final int LAMBDA_GRID_STEPS = 48, LAMBDA_SEARCH_STEPS = 60;
+
     @Override
     public String[] getRequiredRPackages() {
         return new String[] { /* "rJava", "Rserve", */"hyperSpec" };
@@ -82,6 +91,410 @@ public class RubberBandCorrector extends BaselineCorrector {
         return baseline;
     }
 
+    @Override
+    public double[] computeBaseline(final double[] chromatogram,
+            ParameterSet parameters) {
+
+        // Rubber Band parameters.
+        double noise = parameters.getParameter(
+                RubberBandCorrectorParameters.NOISE).getValue();
+        boolean autoNoise = parameters.getParameter(
+                RubberBandCorrectorParameters.AUTO_NOISE).getValue();
+        double df = parameters.getParameter(RubberBandCorrectorParameters.DF)
+                .getValue();
+        boolean spline = parameters.getParameter(
+                RubberBandCorrectorParameters.SPLINE).getValue();
+        double bend = parameters.getParameter(
+                RubberBandCorrectorParameters.BEND_FACTOR).getValue();
+
+        return rubberBandBaseline(chromatogram, noise, autoNoise, df, spline,
+                bend);
+    }
+
+    /**
+     * Rubber band baseline: lower convex hull of the chromatogram, optionally
+     * replaced by a smoothing spline through the points lying below the hull
+     * (plus noise).
+     * 
+     * @param y
+     *            the chromatogram.
+     * @param noise
+     *            noise level (points up to noise above the hull are used for
+     *            the spline).
+     * @param autoNoise
+     *            use the lowest intensity as noise level.
+     * @param df
+     *            degrees of freedom of the smoothing spline. Values outside
+     *            ]1, number of points] select the smoothing by generalized
+     *            cross-validation.
+     * @param spline
+     *            smoothing spline instead of piecewise linear hull.
+     * @param bend
+     *            bend factor: a parabola of this height is added to the
+     *            chromatogram before computing the hull, and subtracted from
+     *            the resulting baseline.
+     * @return the baseline.
+     */
+    static double[] rubberBandBaseline(final double[] y, double noise,
+            final boolean autoNoise, final double df, final boolean spline,
+            final double bend) {
+
+        final int n = y.length;
+        if (n == 0)
+            return new double[0];
+
+        // Bend (parabola over the abscissa normalized to [0, 1]).
+        final double[] bent = new double[n];
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            final double x = (n > 1) ? (double) i / (n - 1) : 0.0;
+            bent[i] = y[i] + bend * x * x;
+            min = Math.min(min, y[i]);
+        }
+        if (autoNoise)
+            noise = min;
+
+        // Lower convex hull (monotone chain).
+        final int[] hull = new int[n];
+        int hullSize = 0;
+        for (int i = 0; i < n; i++) {
+            while (hullSize >= 2) {
+                final int a = hull[hullSize - 2], b = hull[hullSize - 1];
+                final double cross = (b - a) * (bent[i] - bent[a])
+                        - (bent[b] - bent[a]) * (i - a);
+                if (cross > 0.0)
+                    break;
+                hullSize--;
+            }
+            hull[hullSize++] = i;
+        }
+
+        // Linear interpolation between the hull points.
+        final double[] baseline = new double[n];
+        baseline[0] = bent[0];
+        for (int h = 1; h < hullSize; h++) {
+            final int a = hull[h - 1], b = hull[h];
+            final double slope = (bent[b] - bent[a]) / (b - a);
+            for (int i = a + 1; i < b; i++)
+                baseline[i] = bent[a] + slope * (i - a);
+            baseline[b] = bent[b];
+        }
+
+        if (spline) {
+
+            // Support points: all points not above the hull (plus noise).
+            int m = 0;
+            final int[] support = hull;
+            for (int i = 0; i < n; i++) {
+                if (bent[i] <= baseline[i] + noise)
+                    support[m++] = i;
+            }
+
+            if (m > 3)
+                smoothingSpline(support, m, bent, df, baseline);
+            else
+                interpolatingSpline(support, m, bent, baseline);
+        }
+
+        // Remove bend.
+        for (int i = 0; i < n; i++) {
+            final double x = (n > 1) ? (double) i / (n - 1) : 0.0;
+            baseline[i] -= bend * x * x;
+        }
+
+        return baseline;
+    }
+
+    /**
+     * Interpolation of up to three points by a polynomial of the lowest
+     * sufficient degree, evaluated at all scans.
+     */
+    private static void interpolatingSpline(final int[] x, final int m,
+            final double[] y, final double[] result) {
+
+        for (int i = 0; i < result.length; i++) {
+            double value = 0.0;
+            // Lagrange form.
+            for (int j = 0; j < m; j++) {
+                double term = y[x[j]];
+                for (int k = 0; k < m; k++) {
+                    if (k != j)
+                        term *= (double) (i - x[k]) / (x[j] - x[k]);
+                }
+                value += term;
+            }
+            result[i] = value;
+        }
+    }
+
+    /**
+     * Natural cubic smoothing spline through the support points (Reinsch
+     * algorithm), evaluated at all scans. The smoothing parameter is chosen
+     * to match the given degrees of freedom (trace of the smoother matrix),
+     * or by generalized cross-validation if those are out of range.
+     * 
+     * @param support
+     *            indices of the support points (ascending).
+     * @param m
+     *            number of support points (at least 4).
+     * @param values
+     *            intensities.
+     * @param df
+     *            degrees of freedom.
+     * @param result
+     *            the spline evaluated at all scans.
+     */
+    private static void smoothingSpline(final int[] support, final int m,
+            final double[] values, final double df, final double[] result) {
+
+        final SmoothingSpline spline = new SmoothingSpline(support, m, values);
+
+        double logLambda;
+        if (df > 1.0 && df <= m) {
+
+            // Bisection on the (decreasing) degrees of freedom.
+            double low = MIN_LOG_LAMBDA, high = MAX_LOG_LAMBDA;
+            for (int step = 0; step < LAMBDA_SEARCH_STEPS; step++) {
+                final double mid = 0.5 * (low + high);
+                spline.fit(Math.pow(10.0, mid));
+                if (spline.trace > df)
+                    low = mid;
+                else
+                    high = mid;
+            }
+            logLambda = 0.5 * (low + high);
+
+        } else {
+
+            // Generalized cross-validation: coarse grid, then golden section
+            // search around the best grid point.
+            final double gridStep = (MAX_LOG_LAMBDA - MIN_LOG_LAMBDA)
+                    / LAMBDA_GRID_STEPS;
+            logLambda = MIN_LOG_LAMBDA;
+            double best = Double.MAX_VALUE;
+            for (int step = 0; step <= LAMBDA_GRID_STEPS; step++) {
+                final double l = MIN_LOG_LAMBDA + step * gridStep;
+                final double gcv = spline.gcv(Math.pow(10.0, l));
+                if (gcv < best) {
+                    best = gcv;
+                    logLambda = l;
+                }
+            }
+            final double ratio = (Math.sqrt(5.0) - 1.0) / 2.0;
+            double a = logLambda - gridStep, b = logLambda + gridStep;
+            double c = b - ratio * (b - a), d = a + ratio * (b - a);
+            double fc = spline.gcv(Math.pow(10.0, c));
+            double fd = spline.gcv(Math.pow(10.0, d));
+            for (int step = 0; step < LAMBDA_SEARCH_STEPS; step++) {
+                if (fc < fd) {
+                    b = d;
+                    d = c;
+                    fd = fc;
+                    c = b - ratio * (b - a);
+                    fc = spline.gcv(Math.pow(10.0, c));
+                } else {
+                    a = c;
+                    c = d;
+                    fc = fd;
+                    d = a + ratio * (b - a);
+                    fd = spline.gcv(Math.pow(10.0, d));
+                }
+            }
+            logLambda = 0.5 * (a + b);
+        }
+
+        spline.fit(Math.pow(10.0, logLambda));
+        spline.evaluate(result);
+    }
+
+    /**
+     * Natural cubic smoothing spline (Green & Silverman, "Nonparametric
+     * regression and generalized linear models", chapter 2). The abscissa is
+     * scaled to [0, 1]; all the band matrices are kept in arrays reused by
+     * the successive fits.
+     */
+    private static class SmoothingSpline {
+
+        private final int m;
+        private final int[] support;
+        private final double[] x, y, h;
+
+        // Columns of Q (three non-zero values each) and bands of R, Q'Q.
+        private final double[] qa, qb, qc;
+        private final double[] r0, r1;
+        private final double[] p0, p1, p2;
+        private final double[] qty;
+
+        // LDL' decomposition of R + lambda Q'Q and band of its inverse.
+        private final double[] d, l1, l2;
+        private final double[] s0, s1, s2;
+
+        // Fit: second derivatives and values at the support points.
+        private final double[] gamma, g;
+        private double trace, rss;
+
+        SmoothingSpline(final int[] support, final int m, final double[] values) {
+
+            this.m = m;
+            this.support = support;
+            final int k = m - 2;
+
+            x = new double[m];
+            y = new double[m];
+            h = new double[m - 1];
+            final double range = support[m - 1] - support[0];
+            for (int i = 0; i < m; i++) {
+                x[i] = (support[i] - support[0]) / range;
+                y[i] = values[support[i]];
+            }
+            for (int i = 0; i < m - 1; i++)
+                h[i] = x[i + 1] - x[i];
+
+            qa = new double[k];
+            qb = new double[k];
+            qc = new double[k];
+            r0 = new double[k];
+            r1 = new double[k];
+            qty = new double[k];
+            for (int j = 0; j < k; j++) {
+                qa[j] = 1.0 / h[j];
+                qc[j] = 1.0 / h[j + 1];
+                qb[j] = -qa[j] - qc[j];
+                r0[j] = (h[j] + h[j + 1]) / 3.0;
+                r1[j] = h[j + 1] / 6.0;
+                qty[j] = qa[j] * y[j] + qb[j] * y[j + 1] + qc[j] * y[j + 2];
+            }
+
+            p0 = new double[k];
+            p1 = new double[k];
+            p2 = new double[k];
+            for (int j = 0; j < k; j++) {
+                p0[j] = qa[j] * qa[j] + qb[j] * qb[j] + qc[j] * qc[j];
+                if (j + 1 < k)
+                    p1[j] = qb[j] * qa[j + 1] + qc[j] * qb[j + 1];
+                if (j + 2 < k)
+                    p2[j] = qc[j] * qa[j + 2];
+            }
+
+            d = new double[k];
+            l1 = new double[k];
+            l2 = new double[k];
+            s0 = new double[k];
+            s1 = new double[k];
+            s2 = new double[k];
+            gamma = new double[m];
+            g = new double[m];
+        }
+
+        /**
+         * Fits the spline for the given smoothing parameter, and computes the
+         * trace of the smoother matrix and the residual sum of squares.
+         */
+        void fit(final double lambda) {
+
+            final int k = m - 2;
+
+            // LDL' decomposition of B = R + lambda Q'Q.
+            for (int i = 0; i < k; i++) {
+                d[i] = r0[i] + lambda * p0[i];
+                if (i >= 1)
+                    d[i] -= l1[i - 1] * l1[i - 1] * d[i - 1];
+                if (i >= 2)
+                    d[i] -= l2[i - 2] * l2[i - 2] * d[i - 2];
+                if (i < k - 1) {
+                    l1[i] = r1[i] + lambda * p1[i];
+                    if (i >= 1)
+                        l1[i] -= l2[i - 1] * l1[i - 1] * d[i - 1];
+                    l1[i] /= d[i];
+                }
+                if (i < k - 2)
+                    l2[i] = lambda * p2[i] / d[i];
+            }
+
+            // Solve B gamma = Q'y (gamma is zero at both ends).
+            gamma[0] = gamma[m - 1] = 0.0;
+            for (int i = 0; i < k; i++) {
+                double v = qty[i];
+                if (i >= 1)
+                    v -= l1[i - 1] * gamma[i];
+                if (i >= 2)
+                    v -= l2[i - 2] * gamma[i - 1];
+                gamma[i + 1] = v;
+            }
+            for (int i = k - 1; i >= 0; i--) {
+                double v = gamma[i + 1] / d[i];
+                if (i < k - 1)
+                    v -= l1[i] * gamma[i + 2];
+                if (i < k - 2)
+                    v -= l2[i] * gamma[i + 3];
+                gamma[i + 1] = v;
+            }
+
+            // Values: g = y - lambda Q gamma.
+            rss = 0.0;
+            for (int i = 0; i < m; i++) {
+                double qg = 0.0;
+                if (i < k)
+                    qg += qa[i] * gamma[i + 1];
+                if (i >= 1 && i - 1 < k)
+                    qg += qb[i - 1] * gamma[i];
+                if (i >= 2)
+                    qg += qc[i - 2] * gamma[i - 1];
+                g[i] = y[i] - lambda * qg;
+                rss += (y[i] - g[i]) * (y[i] - g[i]);
+            }
+
+            // Band of B^-1 (Hutchinson & de Hoog), then
+            // trace = m - lambda tr(B^-1 Q'Q).
+            double tr = 0.0;
+            for (int i = k - 1; i >= 0; i--) {
+                final double a1 = (i < k - 1) ? l1[i] : 0.0;
+                final double a2 = (i < k - 2) ? l2[i] : 0.0;
+                final double s11 = (i + 1 < k) ? s0[i + 1] : 0.0;
+                final double s12 = (i + 1 < k) ? s1[i + 1] : 0.0;
+                final double s22 = (i + 2 < k) ? s0[i + 2] : 0.0;
+                s2[i] = -(a1 * s12 + a2 * s22);
+                s1[i] = -(a1 * s11 + a2 * s12);
+                s0[i] = 1.0 / d[i] - (a1 * s1[i] + a2 * s2[i]);
+                tr += s0[i] * p0[i] + 2.0 * s1[i] * p1[i] + 2.0 * s2[i]
+                        * p2[i];
+            }
+            trace = m - lambda * tr;
+        }
+
+        /**
+         * Generalized cross-validation score for the given smoothing
+         * parameter.
+         */
+        double gcv(final double lambda) {
+            fit(lambda);
+            final double denominator = 1.0 - trace / m;
+            if (denominator <= 1e-10)
+                return Double.MAX_VALUE;
+            return (rss / m) / (denominator * denominator);
+        }
+
+        /**
+         * Evaluates the last fit at all scans between the first and the last
+         * support point.
+         */
+        void evaluate(final double[] result) {
+            final double range = support[m - 1] - support[0];
+            int j = 0;
+            for (int i = support[0]; i <= support[m - 1]; i++) {
+                final double xi = (i - support[0]) / range;
+                while (j < m - 2 && xi > x[j + 1])
+                    j++;
+                final double dl = xi - x[j], dr = x[j + 1] - xi;
+                result[i] = (dl * g[j + 1] + dr * g[j]) / h[j] - dl * dr
+                        / 6.0
+                        * ((1.0 + dl / h[j]) * gamma[j + 1] + (1.0 + dr / h[j])
+                                * gamma[j]);
+            }
+        }
+
+    }
+
     @Override
     public @Nonnull
     String getName() {
@@ -21,9 +21,9 @@ package net.sf.mzmine.modules.rawdatamethods.filtering.scanfilters.resample;
 
 import javax.annotation.Nonnull;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
 import net.sf.mzmine.modules.rawdatamethods.filtering.scanfilters.ScanFilter;
@@ -47,15 +47,11 @@ public class ResampleFilter implements ScanFilter {
 	}
 
 	// ScanUtils.binValues needs arrays
-	DataPoint dps[] = scan.getDataPoints();
-	double[] x = new double[dps.length];
-	double[] y = new double[dps.length];
-	for (int i = 0; i < dps.length; i++) {
-	    x[i] = dps[i].getMZ();
-	    y[i] = dps[i].getIntensity();
-	}
+	SpectrumBuffer spectrum = new SpectrumBuffer(
+		scan.getNumberOfDataPoints());
+	scan.getDataPoints(spectrum);
 	// the new intensity values
-	double[] newY = ScanUtils.binValues(x, y, mzRange, numberOfBins,
+	double[] newY = ScanUtils.binValues(spectrum, mzRange, numberOfBins,
 		scan.getSpectrumType() == MassSpectrumType.PROFILE,
 		ScanUtils.BinningType.AVG);
 	SimpleDataPoint[] newPoints = new SimpleDataPoint[newY.length];
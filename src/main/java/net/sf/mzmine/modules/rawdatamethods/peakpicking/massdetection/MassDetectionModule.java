@@ -26,12 +26,12 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZminePerFileModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
 
-public class MassDetectionModule implements MZmineProcessingModule {
+public class MassDetectionModule implements MZminePerFileModule {
 
     private static final String MODULE_NAME = "Mass detection";
     private static final String MODULE_DESCRIPTION = "This module detects individual ions in each scan and builds a mass list for each scan.";
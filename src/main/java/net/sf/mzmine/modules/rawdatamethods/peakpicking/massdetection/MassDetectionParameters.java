@@ -32,6 +32,7 @@ import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive.
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet.WaveletMassDetector;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ModuleComboParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
@@ -64,6 +65,11 @@ public class MassDetectionParameters extends SimpleParameterSet {
             "Name of the new mass list. If the processed scans already have a mass list of that name, it will be replaced.",
             "masses");
 
+    public static final BooleanParameter parallel = new BooleanParameter(
+            "Parallel detection",
+            "Detect the masses of several scans at once, using the number of threads set in the preferences. The mass lists are the same as with sequential detection.",
+            true);
+
     public static final FileNameParameter outFilename = new FileNameParameter(
 	    "CDF Filename (optional)",
 	    "Name of the begining of the centroided CDF file. " +
@@ -75,7 +81,8 @@ public class MassDetectionParameters extends SimpleParameterSet {
             = new OptionalParameter <> (outFilename);
     
     public MassDetectionParameters() {
-        super(new Parameter[] { dataFiles, scanSelection, massDetector, name ,outFilenameOption});
+        super(new Parameter[] { dataFiles, scanSelection, massDetector, name,
+                parallel, outFilenameOption });
     }
 
     @Override
@@ -20,38 +20,63 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleMassList;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
-import ucar.nc2.NetcdfFileWriter;
-import ucar.nc2.Dimension;
-import ucar.nc2.Variable;
-import ucar.ma2.ArrayDouble;
-import ucar.ma2.InvalidRangeException;
-//import ucar.ma2.*;
+import ucar.ma2.Array;
 import ucar.ma2.DataType;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
+import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
 
+/**
+ * Detects the masses of the selected scans. The scans are split into chunks,
+ * which are processed in parallel in a ForkJoinPool (mass detectors keep no
+ * state between scans), or one after another on the task thread if parallel
+ * detection is disabled. The mass lists of each chunk are then written to the
+ * raw data file in one batch, in the order of the scans. The optional CDF file
+ * is written at the end from the stored mass lists, one block at a time.
+ */
 public class MassDetectionTask extends AbstractTask {
 
+    // Number of scans processed by one task of the ForkJoinPool
+    private static final int SCANS_PER_CHUNK = 32;
+
+    // Number of values written to the CDF file at once
+    private static final int CDF_WRITE_BLOCK = 65536;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
     private final RawDataFile dataFile;
 
     // scan counter
-    private int processedScans = 0, totalScans = 0;
+    private volatile int processedScans = 0;
+    private int totalScans = 0;
     private final ScanSelection scanSelection;
 
     // User parameters
@@ -60,10 +85,18 @@ public class MassDetectionTask extends AbstractTask {
     // Mass detector
     private MZmineProcessingStep<MassDetector> massDetector;
 
+    // Detect the masses of several chunks at once
+    private boolean parallel;
+
     // for outputting file 
     private File outFilename;
     private boolean saveToCDF;
 
+    // Per-scan values of the CDF file, only collected when saving to CDF
+    private int cdfNumOfMasses;
+    private int cdfScanIndex[];
+    private double cdfScanAcquisitionTime[], cdfTotalIntensity[];
+
     /**
      * @param dataFile
      * @param parameters
@@ -81,16 +114,15 @@ public class MassDetectionTask extends AbstractTask {
         this.name = parameters.getParameter(MassDetectionParameters.name)
                 .getValue();
 
+        this.parallel = parameters.getParameter(
+                MassDetectionParameters.parallel).getValue();
+
         this.saveToCDF = parameters.getParameter(
                 MassDetectionParameters.outFilenameOption).getValue();
         
         this.outFilename = MassDetectionParameters.outFilenameOption
                         .getEmbeddedParameter().getValue();
         
-//        this.outFilename = parameters.getParameter(
-//                MassDetectionParameters.outFilenameOption
-//                        .getEmbeddedParameter())
-//                .getValue();
     }
 
     /**
@@ -118,185 +150,282 @@ public class MassDetectionTask extends AbstractTask {
      * @see Runnable#run()
      */
     public void run() {
-        int indexOfPeriod = dataFile.getName().indexOf(".");
 
-        //String massOutLocation = outFilename.getPath()+dataFile.getName().substring(0,indexOfPeriod)+".CDF";
-        String massOutLocation = outFilename != null ? outFilename.getPath() : "";
+        setStatus(TaskStatus.PROCESSING);
 
-        boolean writeMasses = true;
-        // make arrays to contain everything you need
-        ArrayList<Integer> pointsInScans = new ArrayList<Integer>();
-        ArrayList<Double> allMZ = new ArrayList<Double>();
-        ArrayList<Double> allIntensities = new ArrayList<Double>();
-        //idecies of full mass list where scan starts?
-        ArrayList<Integer> startIndex = new ArrayList<Integer>();
-        ArrayList<Double> scanAcquisitionTime = new ArrayList<Double>();
-        // XCMS needs this one
-        ArrayList<Double> totalIntensity = new ArrayList<Double>();
+        logger.info("Started mass detector on " + dataFile);
 
+        final Scan scans[] = scanSelection.getMatchingScans(dataFile);
+        totalScans = scans.length;
 
-        NetcdfFileWriter writer = null;
-
-        double curTotalIntensity;
-        int lastPointCount = 0;
+        if (saveToCDF) {
+            cdfScanIndex = new int[totalScans];
+            cdfScanAcquisitionTime = new double[totalScans];
+            cdfTotalIntensity = new double[totalScans];
+        }
 
-        startIndex.add(0);
+        final int numOfThreads = parallel ? MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads() : 1;
+        final ForkJoinPool pool = parallel ? TaskMetrics
+                .newForkJoinPool(numOfThreads) : null;
 
         try {
 
+            // Keep at most a few chunks per thread in memory before their
+            // mass lists are written
+            final int scansPerRound = SCANS_PER_CHUNK * numOfThreads * 2;
 
-            setStatus(TaskStatus.PROCESSING);
-
-            logger.info("Started mass detector on " + dataFile);
-
-            final Scan scans[] = scanSelection.getMatchingScans(dataFile);
-            totalScans = scans.length;
-
-            // Process scans one by one
-            for (Scan scan : scans) {
+            for (int roundStart = 0; roundStart < scans.length; roundStart += scansPerRound) {
 
                 if (isCanceled())
                     return;
 
-                MassDetector detector = massDetector.getModule();
-                DataPoint mzPeaks[] = detector.getMassValues(scan,
-                        massDetector.getParameterSet());
-
-                SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
+                final int roundEnd = Math.min(roundStart + scansPerRound,
+                        scans.length);
 
-                // Add new mass list to the scan
-                scan.addMassList(newMassList);
+                if (pool == null) {
+                    storeMassLists(scans, roundStart,
+                            detectMasses(scans, roundStart, roundEnd));
+                    continue;
+                }
 
-                curTotalIntensity = 0;
-                for (int a=0;a<mzPeaks.length;a++){
-                    DataPoint curMzPeak = mzPeaks[a];
-                    allMZ.add(curMzPeak.getMZ());
-                    allIntensities.add(curMzPeak.getIntensity());
+                List<Callable<DataPoint[][]>> chunks = new ArrayList<Callable<DataPoint[][]>>();
+                for (int start = roundStart; start < roundEnd; start += SCANS_PER_CHUNK) {
+                    final int chunkStart = start;
+                    final int chunkEnd = Math.min(start + SCANS_PER_CHUNK,
+                            roundEnd);
+                    chunks.add(new Callable<DataPoint[][]>() {
+                        @Override
+                        public DataPoint[][] call() {
+                            return detectMasses(scans, chunkStart, chunkEnd);
+                        }
+                    });
+                }
 
-                    curTotalIntensity += curMzPeak.getIntensity();
+                int chunkStart = roundStart;
+                for (Future<DataPoint[][]> result : pool.invokeAll(chunks)) {
+                    if (isCanceled())
+                        return;
+                    DataPoint massValues[][] = result.get();
+                    storeMassLists(scans, chunkStart, massValues);
+                    chunkStart += massValues.length;
                 }
 
-                scanAcquisitionTime.add(scan.getRetentionTime());
-                pointsInScans.add(0);
-                startIndex.add(mzPeaks.length+lastPointCount);
-                totalIntensity.add(curTotalIntensity);
+            }
+
+            if (isCanceled())
+                return;
+
+            if (saveToCDF)
+                writeCDF(outFilename != null ? outFilename.getPath() : "",
+                        scans);
+
+        } catch (IOException | InvalidRangeException e) {
+            logger.log(Level.SEVERE, "Error while detecting masses", e);
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.toString());
+            return;
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Error while detecting masses", e);
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.getCause().toString());
+            return;
+        } catch (InterruptedException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage("Mass detection was interrupted");
+            return;
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+
+        setStatus(TaskStatus.FINISHED);
 
+        logger.info("Finished mass detector on " + dataFile);
 
-                lastPointCount = mzPeaks.length+lastPointCount;
+    }
 
-                processedScans++;
+    /**
+     * Detects the masses of the scans from chunkStart (inclusive) to chunkEnd
+     * (exclusive). Called by the worker threads, must not modify the scans.
+     */
+    private DataPoint[][] detectMasses(Scan scans[], int chunkStart,
+            int chunkEnd) {
+        final MassDetector detector = massDetector.getModule();
+        final ParameterSet detectorParameters = massDetector.getParameterSet();
+        DataPoint massValues[][] = new DataPoint[chunkEnd - chunkStart][];
+        for (int i = chunkStart; i < chunkEnd; i++) {
+            if (isCanceled())
+                return Arrays.copyOf(massValues, i - chunkStart);
+            massValues[i - chunkStart] = detector.getMassValues(scans[i],
+                    detectorParameters);
+        }
+        return massValues;
+    }
+
+    /**
+     * Adds the detected masses as mass lists to the scans starting at
+     * firstScan. The data points of the whole chunk are written to the raw
+     * data file at once.
+     */
+    private void storeMassLists(Scan scans[], int firstScan,
+            DataPoint massValues[][]) throws IOException {
+
+        if (dataFile instanceof RawDataFileImpl) {
+            RawDataFileImpl rawDataFile = (RawDataFileImpl) dataFile;
+            int storageIDs[] = rawDataFile.storeDataPoints(massValues);
+            for (int i = 0; i < massValues.length; i++) {
+                Scan scan = scans[firstScan + i];
+                scan.addMassList(new StorableMassList(rawDataFile,
+                        storageIDs[i], name, scan));
+            }
+        } else {
+            for (int i = 0; i < massValues.length; i++) {
+                Scan scan = scans[firstScan + i];
+                scan.addMassList(new SimpleMassList(name, scan, massValues[i]));
             }
+        }
 
-            setStatus(TaskStatus.FINISHED);
-
-            logger.info("Finished mass detector on " + dataFile);
-
-            if (this.saveToCDF)
-            {
-                // ************** write mass list *******************************
-                writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, massOutLocation , null);
-
-                Dimension dim_massValues = writer.addDimension(null, "mass_values", allMZ.size());
-                Dimension dim_intensityValues = writer.addDimension(null, "intensity_values", allIntensities.size());
-                Dimension dim_scanIndex = writer.addDimension(null, "scan_index", startIndex.size()-1);
-                Dimension dim_scanAcquisitionTime = writer.addDimension(null, "scan_acquisition_time", scanAcquisitionTime.size());
-                Dimension dim_totalIntensity = writer.addDimension(null, "total_intensity", totalIntensity.size());
-                Dimension dim_pointsInScans = writer.addDimension(null, "point_count", pointsInScans.size());
-
-                // add dimensions to list
-                List<Dimension> dims = new ArrayList<>();
-                dims.add(dim_massValues);
-                dims.add(dim_intensityValues);
-                dims.add(dim_scanIndex );
-                dims.add(dim_scanAcquisitionTime);
-                dims.add(dim_totalIntensity );
-                dims.add(dim_pointsInScans );
-
-                // make the variables that contain the actual data I think.
-                Variable var_massValues          = writer.addVariable(null, "mass_values", DataType.DOUBLE, "mass_values");
-                Variable var_intensityValues     = writer.addVariable(null, "intensity_values", DataType.DOUBLE, "intensity_values");
-                Variable var_scanIndex           = writer.addVariable(null, "scan_index", DataType.INT, "scan_index");
-                Variable var_scanAcquisitionTime = writer.addVariable(null, "scan_acquisition_time", DataType.DOUBLE, "scan_acquisition_time");
-                Variable var_totalIntensity      = writer.addVariable(null, "total_intensity", DataType.DOUBLE, "total_intensity");
-                Variable var_pointsInScans       = writer.addVariable(null, "point_count", DataType.INT, "point_count");
-
-                var_massValues         .addAttribute(new Attribute("units","M/Z"));
-                var_intensityValues    .addAttribute(new Attribute("units","Arbitrary Intensity Units"));
-                var_scanIndex          .addAttribute(new Attribute("units","index"));
-                var_scanAcquisitionTime.addAttribute(new Attribute("units","seconds"));
-                var_totalIntensity     .addAttribute(new Attribute("units","Arbitrary Intensity Units"));
-                var_pointsInScans      .addAttribute(new Attribute("units","count"));
-
-                var_massValues         .addAttribute(new Attribute("scale_factor",1.0));
-                var_intensityValues    .addAttribute(new Attribute("scale_factor",1.0));
-                var_scanIndex          .addAttribute(new Attribute("scale_factor",1.0));
-                var_scanAcquisitionTime.addAttribute(new Attribute("scale_factor",1.0));
-                var_totalIntensity     .addAttribute(new Attribute("scale_factor",1.0));
-                var_pointsInScans      .addAttribute(new Attribute("scale_factor",1.0));
-
-                // create file
-                writer.create();
-
-                ArrayDouble.D1  arr_massValues          = new ArrayDouble.D1(dim_massValues         .getLength()); 
-                ArrayDouble.D1  arr_intensityValues     = new ArrayDouble.D1(dim_intensityValues    .getLength()); 
-                ArrayDouble.D1  arr_scanIndex           = new ArrayDouble.D1(dim_scanIndex          .getLength()); 
-                ArrayDouble.D1  arr_scanAcquisitionTime = new ArrayDouble.D1(dim_scanAcquisitionTime.getLength()); 
-                ArrayDouble.D1  arr_totalIntensity      = new ArrayDouble.D1(dim_totalIntensity     .getLength()); 
-                ArrayDouble.D1  arr_pointsInScans       = new ArrayDouble.D1(dim_pointsInScans      .getLength()); 
-
-                for (int i = 0; i < allMZ.size(); i++ ){
-                    arr_massValues.set(i,allMZ.get(i));
-                    arr_intensityValues.set(i,allIntensities.get(i));
-                }
-                int i = 0;
-                for (; i < scanAcquisitionTime.size(); i++ ){
-                    arr_scanAcquisitionTime.set(i,scanAcquisitionTime.get(i)*60);
-                    arr_pointsInScans.set(i,pointsInScans.get(i));
-                    arr_scanIndex.set(i,startIndex.get(i));
-                    arr_totalIntensity.set(i,totalIntensity.get(i));
-                }
-                //arr_scanIndex.set(i,startIndex.get(i));
+        for (int i = 0; i < massValues.length; i++) {
+            if (saveToCDF)
+                appendToCDF(scans[firstScan + i], massValues[i]);
+            processedScans++;
+        }
+        TaskMetrics.addProcessedItems(massValues.length);
 
-                // For tiny test file
-                //arr_intensityValues     .set(0,200);
-                //arr_scanIndex           .set(0,0);
-                //arr_scanAcquisitionTime .set(0,10);
-                //arr_totalIntensity      .set(0,200);
-                //arr_pointsInScans       .set(0,0);
+    }
 
-                //arr_intensityValues     .set(1,300);
-                //arr_scanIndex           .set(1,1);
-                //arr_scanAcquisitionTime .set(1,20);
-                //arr_totalIntensity      .set(1,300);
-                //arr_pointsInScans       .set(1,0);
+    /**
+     * Records the per-scan values of the CDF file. The masses themselves are
+     * read from the stored mass lists when the file is written.
+     */
+    private void appendToCDF(Scan scan, DataPoint mzPeaks[]) {
+        final int scanNumber = processedScans;
+        cdfScanIndex[scanNumber] = cdfNumOfMasses;
+        cdfScanAcquisitionTime[scanNumber] = scan.getRetentionTime();
+        double curTotalIntensity = 0;
+        for (DataPoint curMzPeak : mzPeaks)
+            curTotalIntensity += curMzPeak.getIntensity();
+        cdfTotalIntensity[scanNumber] = curTotalIntensity;
+        cdfNumOfMasses += mzPeaks.length;
+    }
 
+    /**
+     * Writes the detected masses of all scans to an ANDI-MS (netCDF) file. The
+     * masses are read back from the mass lists scan by scan and written in
+     * blocks, so the masses of all scans are never held in memory at once.
+     */
+    private void writeCDF(String massOutLocation, Scan scans[])
+            throws IOException, InvalidRangeException {
 
+        final int numOfMasses = cdfNumOfMasses;
 
-                writer.write(var_massValues         ,arr_massValues         );
-                writer.write(var_intensityValues    ,arr_intensityValues    );
-                writer.write(var_scanIndex          ,arr_scanIndex          );
-                writer.write(var_scanAcquisitionTime,arr_scanAcquisitionTime);
-                writer.write(var_totalIntensity     ,arr_totalIntensity     );
-                writer.write(var_pointsInScans      ,arr_pointsInScans      );
-            }
-        }
-        catch (IOException e){
-            e.printStackTrace();
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(
+                NetcdfFileWriter.Version.netcdf3, massOutLocation, null);
+
+        try {
+
+            writer.addDimension(null, "mass_values", numOfMasses);
+            writer.addDimension(null, "intensity_values", numOfMasses);
+            writer.addDimension(null, "scan_index", totalScans);
+            writer.addDimension(null, "scan_acquisition_time", totalScans);
+            writer.addDimension(null, "total_intensity", totalScans);
+            writer.addDimension(null, "point_count", totalScans);
+
+            Variable var_massValues          = writer.addVariable(null, "mass_values", DataType.DOUBLE, "mass_values");
+            Variable var_intensityValues     = writer.addVariable(null, "intensity_values", DataType.DOUBLE, "intensity_values");
+            Variable var_scanIndex           = writer.addVariable(null, "scan_index", DataType.INT, "scan_index");
+            Variable var_scanAcquisitionTime = writer.addVariable(null, "scan_acquisition_time", DataType.DOUBLE, "scan_acquisition_time");
+            Variable var_totalIntensity      = writer.addVariable(null, "total_intensity", DataType.DOUBLE, "total_intensity");
+            Variable var_pointsInScans       = writer.addVariable(null, "point_count", DataType.INT, "point_count");
+
+            var_massValues         .addAttribute(new Attribute("units","M/Z"));
+            var_intensityValues    .addAttribute(new Attribute("units","Arbitrary Intensity Units"));
+            var_scanIndex          .addAttribute(new Attribute("units","index"));
+            var_scanAcquisitionTime.addAttribute(new Attribute("units","seconds"));
+            var_totalIntensity     .addAttribute(new Attribute("units","Arbitrary Intensity Units"));
+            var_pointsInScans      .addAttribute(new Attribute("units","count"));
+
+            var_massValues         .addAttribute(new Attribute("scale_factor",1.0));
+            var_intensityValues    .addAttribute(new Attribute("scale_factor",1.0));
+            var_scanIndex          .addAttribute(new Attribute("scale_factor",1.0));
+            var_scanAcquisitionTime.addAttribute(new Attribute("scale_factor",1.0));
+            var_totalIntensity     .addAttribute(new Attribute("scale_factor",1.0));
+            var_pointsInScans      .addAttribute(new Attribute("scale_factor",1.0));
+
+            // create file
+            writer.create();
+
+            writeMasses(writer, var_massValues, var_intensityValues, scans);
+
+            // Retention times are stored in minutes
+            double scanAcquisitionTime[] = new double[totalScans];
+            for (int i = 0; i < totalScans; i++)
+                scanAcquisitionTime[i] = cdfScanAcquisitionTime[i] * 60;
+
+            final int shape[] = { totalScans };
+            writer.write(var_scanIndex,
+                    Array.factory(DataType.INT, shape, cdfScanIndex));
+            writer.write(var_scanAcquisitionTime,
+                    Array.factory(DataType.DOUBLE, shape, scanAcquisitionTime));
+            writer.write(var_totalIntensity,
+                    Array.factory(DataType.DOUBLE, shape, cdfTotalIntensity));
+            writer.write(var_pointsInScans,
+                    Array.factory(DataType.INT, shape, new int[totalScans]));
+
+        } finally {
+            writer.close();
         }
-        catch (InvalidRangeException e) {
-        e.printStackTrace();
-        } 
-
-        finally {
-            if (null != writer){
-              try {
-                writer.close();
-              } 
-              catch (IOException ioe) {
-                ioe.printStackTrace();
-              }
+
+    }
+
+    /**
+     * Writes the masses of the mass lists of all scans, in blocks of
+     * CDF_WRITE_BLOCK values
+     */
+    private void writeMasses(NetcdfFileWriter writer, Variable mzVariable,
+            Variable intensityVariable, Scan scans[]) throws IOException,
+            InvalidRangeException {
+
+        final double mzBlock[] = new double[CDF_WRITE_BLOCK];
+        final double intensityBlock[] = new double[CDF_WRITE_BLOCK];
+        int blockStart = 0, blockLength = 0;
+
+        for (Scan scan : scans) {
+            final MassList massList = scan.getMassList(name);
+            if (massList == null)
+                throw new IOException("Mass list " + name
+                        + " not found in scan #" + scan.getScanNumber());
+            for (DataPoint dp : massList.getDataPoints()) {
+                if (blockLength == CDF_WRITE_BLOCK) {
+                    writeBlock(writer, mzVariable, mzBlock, blockStart,
+                            blockLength);
+                    writeBlock(writer, intensityVariable, intensityBlock,
+                            blockStart, blockLength);
+                    blockStart += blockLength;
+                    blockLength = 0;
+                }
+                mzBlock[blockLength] = dp.getMZ();
+                intensityBlock[blockLength] = dp.getIntensity();
+                blockLength++;
             }
         }
 
+        writeBlock(writer, mzVariable, mzBlock, blockStart, blockLength);
+        writeBlock(writer, intensityVariable, intensityBlock, blockStart,
+                blockLength);
+    }
+
+    private static void writeBlock(NetcdfFileWriter writer, Variable variable,
+            double block[], int start, int length) throws IOException,
+            InvalidRangeException {
+        if (length == 0)
+            return;
+        final double values[] = length == block.length ? block : Arrays
+                .copyOf(block, length);
+        writer.write(variable, new int[] { start },
+                Array.factory(DataType.DOUBLE, new int[] { length }, values));
     }
+
 }
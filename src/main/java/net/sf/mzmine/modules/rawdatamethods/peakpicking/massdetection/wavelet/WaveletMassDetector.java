@@ -19,13 +19,15 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
 
+import java.util.Arrays;
 import java.util.TreeSet;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
@@ -38,6 +40,11 @@ import net.sf.mzmine.util.SortingProperty;
  * over raw datapoints of a certain spectrum. After get the spectrum in the
  * wavelet's time domain, we use the local maxima to detect possible peaks in
  * the original raw datapoints.
+ * 
+ * The wavelet values used for one scale level and window are computed only
+ * once and cached. Each thread keeps its own buffers for the scan values, the
+ * wavelet transform and the detected peaks, so processing a scan does not
+ * create any objects except the returned data points.
  */
 public class WaveletMassDetector implements MassDetector {
 
@@ -49,6 +56,15 @@ public class WaveletMassDetector implements MassDetector {
     private static final int WAVELET_ESL = -5;
     private static final int WAVELET_ESR = 5;
 
+    private static final ConcurrentHashMap<KernelKey, double[]> kernels = new ConcurrentHashMap<KernelKey, double[]>();
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+	@Override
+	protected Buffers initialValue() {
+	    return new Buffers();
+	}
+    };
+
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
 	double noiseLevel = parameters.getParameter(
 		WaveletMassDetectorParameters.noiseLevel).getValue();
@@ -57,26 +73,59 @@ public class WaveletMassDetector implements MassDetector {
 	double waveletWindow = parameters.getParameter(
 		WaveletMassDetectorParameters.waveletWindow).getValue();
 
-	DataPoint originalDataPoints[] = scan.getDataPoints();
+	Buffers threadBuffers = buffers.get();
+	scan.getDataPoints(threadBuffers.spectrum);
 
-	DataPoint waveletDataPoints[] = performCWT(originalDataPoints,
-		waveletWindow, scaleLevel);
+	detectMasses(threadBuffers, noiseLevel, scaleLevel, waveletWindow);
 
-	DataPoint mzPeaks[] = getMzPeaks(noiseLevel, originalDataPoints,
-		waveletDataPoints);
+	final SpectrumBuffer peaks = threadBuffers.peaks;
+	DataPoint mzPeaks[] = new DataPoint[peaks.getSize()];
+	for (int i = 0; i < mzPeaks.length; i++)
+	    mzPeaks[i] = new SimpleDataPoint(peaks.getMZ(i),
+		    peaks.getIntensity(i));
 
-	return mzPeaks;
+	return sortByMZ(mzPeaks);
     }
 
     /**
-     * Perform the CWT over raw data points in the selected scale level
-     * 
-     * @param dataPoints
+     * Detects the peaks of the spectrum in buffers.spectrum and stores them in
+     * buffers.peaks, in the order in which they occur in the spectrum
      */
-    private SimpleDataPoint[] performCWT(DataPoint[] dataPoints,
-	    double waveletWindow, int scaleLevel) {
-	int length = dataPoints.length;
-	SimpleDataPoint[] cwtDataPoints = new SimpleDataPoint[length];
+    static void detectMasses(Buffers buffers, double noiseLevel,
+	    int scaleLevel, double waveletWindow) {
+
+	final SpectrumBuffer spectrum = buffers.spectrum;
+	final int length = spectrum.getSize();
+	if (buffers.cwtIntensities.length < length)
+	    buffers.cwtIntensities = new double[Math.max(length,
+		    buffers.cwtIntensities.length * 2)];
+
+	performCWT(spectrum.getIntensityValues(), length,
+		getKernel(scaleLevel, waveletWindow), scaleLevel,
+		buffers.cwtIntensities);
+
+	getMzPeaks(noiseLevel, spectrum.getMZValues(),
+		spectrum.getIntensityValues(), buffers.cwtIntensities, length,
+		buffers.peaks);
+    }
+
+    /**
+     * Returns the wavelet values for all translations used at given scale
+     * level, index 0 corresponds to the offset scaleLevel * WAVELET_ESL
+     */
+    static double[] getKernel(int scaleLevel, double waveletWindow) {
+	KernelKey key = new KernelKey(scaleLevel, waveletWindow);
+	double kernel[] = kernels.get(key);
+	if (kernel == null) {
+	    kernel = calculateKernel(scaleLevel, waveletWindow);
+	    kernels.putIfAbsent(key, kernel);
+	}
+	return kernel;
+    }
+
+    private static double[] calculateKernel(int scaleLevel,
+	    double waveletWindow) {
+
 	double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
 	double[] W = new double[(int) NPOINTS];
 
@@ -88,12 +137,41 @@ public class WaveletMassDetector implements MassDetector {
 	}
 
 	/*
-	 * We only perform Translation of the wavelet in the selected scale
+	 * We only perform Translation of the wavelet in the selected scale, so
+	 * only the wavelet values at the translations within the effective
+	 * support are kept
 	 */
 	int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
 	int a_esl = scaleLevel * WAVELET_ESL;
 	int a_esr = scaleLevel * WAVELET_ESR;
-	double sqrtScaleLevel = Math.sqrt(scaleLevel);
+	double kernel[] = new double[a_esr - a_esl + 1];
+	for (int offset = a_esl; offset <= a_esr; offset++) {
+	    int ind = (int) (NPOINTS / 2) + (d * offset / scaleLevel);
+	    if (ind < 0)
+		ind = 0;
+	    if (ind >= NPOINTS)
+		ind = (int) NPOINTS - 1;
+	    kernel[offset - a_esl] = W[ind];
+	}
+
+	return kernel;
+    }
+
+    /**
+     * Perform the CWT over raw data points in the selected scale level
+     * 
+     * @param intensities
+     *            Intensities of the raw data points
+     * @param cwtIntensities
+     *            Array to store the intensities of the wavelet transform
+     */
+    private static void performCWT(final double intensities[],
+	    final int length, final double kernel[], final int scaleLevel,
+	    final double cwtIntensities[]) {
+
+	final int a_esl = scaleLevel * WAVELET_ESL;
+	final int a_esr = scaleLevel * WAVELET_ESR;
+	final double sqrtScaleLevel = Math.sqrt(scaleLevel);
 	for (int dx = 0; dx < length; dx++) {
 
 	    /* Compute wavelet boundaries */
@@ -104,26 +182,24 @@ public class WaveletMassDetector implements MassDetector {
 	    if (t2 >= length)
 		t2 = (length - 1);
 
-	    /* Perform convolution */
+	    /*
+	     * Perform convolution. Both arrays are read with unit stride and
+	     * without any index calculation in the loop, the summation order is
+	     * kept to produce exactly the same values as before.
+	     */
+	    final int kernelStart = t1 - dx - a_esl;
+	    final int count = t2 - t1 + 1;
 	    double intensity = 0.0;
-	    for (int i = t1; i <= t2; i++) {
-		int ind = (int) (NPOINTS / 2)
-			- (((int) d * (i - dx) / scaleLevel) * (-1));
-		if (ind < 0)
-		    ind = 0;
-		if (ind >= NPOINTS)
-		    ind = (int) NPOINTS - 1;
-		intensity += dataPoints[i].getIntensity() * W[ind];
-	    }
+	    for (int i = 0; i < count; i++)
+		intensity += intensities[t1 + i] * kernel[kernelStart + i];
+
 	    intensity /= sqrtScaleLevel;
 	    // Eliminate the negative part of the wavelet map
 	    if (intensity < 0)
 		intensity = 0;
-	    cwtDataPoints[dx] = new SimpleDataPoint(dataPoints[dx].getMZ(),
-		    (double) intensity);
+	    cwtIntensities[dx] = intensity;
 	}
 
-	return cwtDataPoints;
     }
 
     /**
@@ -133,7 +209,7 @@ public class WaveletMassDetector implements MassDetector {
      * @param double a Window Width of the wavelet
      * @param double b Offset from the center of the peak
      */
-    private double cwtMEXHATreal(double x, double a, double b) {
+    private static double cwtMEXHATreal(double x, double a, double b) {
 	/* c = 2 / ( sqrt(3) * pi^(1/4) ) */
 	double c = 0.8673250705840776;
 	double TINY = 1E-200;
@@ -149,21 +225,18 @@ public class WaveletMassDetector implements MassDetector {
     /**
      * This function searches for maximums from wavelet data points
      */
-    private DataPoint[] getMzPeaks(double noiseLevel,
-	    DataPoint[] originalDataPoints, DataPoint[] waveletDataPoints) {
+    private static void getMzPeaks(double noiseLevel, double mzValues[],
+	    double intensities[], double cwtIntensities[], int length,
+	    SpectrumBuffer mzPeaks) {
 
-	TreeSet<DataPoint> mzPeaks = new TreeSet<DataPoint>(
-		new DataPointSorter(SortingProperty.MZ,
-			SortingDirection.Ascending));
+	mzPeaks.clear();
 
-	Vector<DataPoint> rawDataPoints = new Vector<DataPoint>();
 	int peakMaxInd = 0;
-	int stopInd = waveletDataPoints.length - 1;
+	int stopInd = length - 1;
 
 	for (int ind = 0; ind <= stopInd; ind++) {
 
-	    while ((ind <= stopInd)
-		    && (waveletDataPoints[ind].getIntensity() == 0)) {
+	    while ((ind <= stopInd) && (cwtIntensities[ind] == 0)) {
 		ind++;
 	    }
 	    peakMaxInd = ind;
@@ -171,15 +244,17 @@ public class WaveletMassDetector implements MassDetector {
 		break;
 	    }
 
+	    // Highest raw intensity within the peak
+	    double aproxIntensity = 0;
+
 	    // While peak is on
-	    while ((ind <= stopInd)
-		    && (waveletDataPoints[ind].getIntensity() > 0)) {
+	    while ((ind <= stopInd) && (cwtIntensities[ind] > 0)) {
 		// Check if this is the maximum point of the peak
-		if (waveletDataPoints[ind].getIntensity() > waveletDataPoints[peakMaxInd]
-			.getIntensity()) {
+		if (cwtIntensities[ind] > cwtIntensities[peakMaxInd]) {
 		    peakMaxInd = ind;
 		}
-		rawDataPoints.add(originalDataPoints[ind]);
+		if (intensities[ind] > aproxIntensity)
+		    aproxIntensity = intensities[ind];
 		ind++;
 	    }
 
@@ -187,32 +262,32 @@ public class WaveletMassDetector implements MassDetector {
 		break;
 	    }
 
-	    rawDataPoints.add(originalDataPoints[ind]);
-
-	    if (originalDataPoints[peakMaxInd].getIntensity() > noiseLevel) {
-		SimpleDataPoint peakDataPoint = new SimpleDataPoint(
-			originalDataPoints[peakMaxInd].getMZ(),
-			calcAproxIntensity(rawDataPoints));
-
-		mzPeaks.add(peakDataPoint);
+	    if (intensities[ind] > aproxIntensity)
+		aproxIntensity = intensities[ind];
 
+	    if (intensities[peakMaxInd] > noiseLevel) {
+		mzPeaks.add(mzValues[peakMaxInd], aproxIntensity);
 	    }
-	    rawDataPoints.clear();
 	}
 
-	return mzPeaks.toArray(new DataPoint[0]);
-
     }
 
-    private double calcAproxIntensity(Vector<DataPoint> rawDataPoints) {
-
-	double aproxIntensity = 0;
-
-	for (DataPoint d : rawDataPoints) {
-	    if (d.getIntensity() > aproxIntensity)
-		aproxIntensity = d.getIntensity();
+    /**
+     * The peaks are found in the order of the raw data points, which are
+     * normally sorted by m/z already. Only if they are not, the peaks are
+     * sorted (and duplicates removed) the same way as by a TreeSet.
+     */
+    private static DataPoint[] sortByMZ(DataPoint mzPeaks[]) {
+	DataPointSorter sorter = new DataPointSorter(SortingProperty.MZ,
+		SortingDirection.Ascending);
+	for (int i = 1; i < mzPeaks.length; i++) {
+	    if (sorter.compare(mzPeaks[i - 1], mzPeaks[i]) >= 0) {
+		TreeSet<DataPoint> sortedPeaks = new TreeSet<DataPoint>(sorter);
+		sortedPeaks.addAll(Arrays.asList(mzPeaks));
+		return sortedPeaks.toArray(new DataPoint[0]);
+	    }
 	}
-	return aproxIntensity;
+	return mzPeaks;
     }
 
     @Override
@@ -225,4 +300,40 @@ public class WaveletMassDetector implements MassDetector {
 	return WaveletMassDetectorParameters.class;
     }
 
+    /**
+     * Per-thread buffers, reused for all scans processed by the thread
+     */
+    static class Buffers {
+	final SpectrumBuffer spectrum = new SpectrumBuffer(1024);
+	final SpectrumBuffer peaks = new SpectrumBuffer();
+	double cwtIntensities[] = new double[1024];
+    }
+
+    private static class KernelKey {
+
+	private final int scaleLevel;
+	private final double waveletWindow;
+
+	KernelKey(int scaleLevel, double waveletWindow) {
+	    this.scaleLevel = scaleLevel;
+	    this.waveletWindow = waveletWindow;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (!(o instanceof KernelKey))
+		return false;
+	    KernelKey other = (KernelKey) o;
+	    return (scaleLevel == other.scaleLevel)
+		    && (Double.compare(waveletWindow, other.waveletWindow) == 0);
+	}
+
+	@Override
+	public int hashCode() {
+	    long bits = Double.doubleToLongBits(waveletWindow);
+	    return 31 * scaleLevel + (int) (bits ^ (bits >>> 32));
+	}
+
+    }
+
 }
@@ -27,6 +27,7 @@ import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.util.ScanUtils;
@@ -64,7 +65,12 @@ class Gap {
 	this.noiseLevel = noiseLevel;
     }
 
-    void offerNextScan(Scan scan) {
+    /**
+     * Offers the next scan to this gap. The data points of the scan must be
+     * already read into the scanData buffer, so that a scan is only decoded
+     * once for all gaps.
+     */
+    void offerNextScan(Scan scan, SpectrumBuffer scanData) {
 
 	double scanRT = scan.getRetentionTime();
 
@@ -80,12 +86,13 @@ class Gap {
 	}
 
 	// Find top m/z peak in our range
-	DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+	int basePeak = ScanUtils.findBasePeak(scanData, mzRange);
 
 	GapDataPoint currentDataPoint;
-	if (basePeak != null) {
+	if (basePeak >= 0) {
 	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
-		    basePeak.getMZ(), scanRT, basePeak.getIntensity());
+		    scanData.getMZ(basePeak), scanRT,
+		    scanData.getIntensity(basePeak));
 	} else {
 	    final double mzCenter = (mzRange.lowerEndpoint() + mzRange
 		    .upperEndpoint()) / 2.0;
@@ -30,6 +30,7 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
@@ -155,6 +156,7 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
 	int scanNumbers[] = dataFile.getScanNumbers(1);
 
 	// Process each scan
+	SpectrumBuffer scanData = new SpectrumBuffer();
 	for (int scanNumber : scanNumbers) {
 
 	    // Canceled?
@@ -164,10 +166,11 @@ class TargetedPeakDetectionModuleTask extends AbstractTask {
 
 	    // Get the scan
 	    Scan scan = dataFile.getScan(scanNumber);
+	    scan.getDataPoints(scanData);
 
 	    // Feed this scan to all gaps
 	    for (Gap gap : gaps) {
-		gap.offerNextScan(scan);
+		gap.offerNextScan(scan, scanData);
 	    }
 
 	    processedScans++;
@@ -27,6 +27,7 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.BoxLayout;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -34,12 +35,13 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Range;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZminePerFileModule;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.AgilentCsvReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzDataReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLReadTask;
@@ -54,7 +56,7 @@ import net.sf.mzmine.util.ExitCode;
 /**
  * Raw data import module
  */
-public class RawDataImportModule implements MZmineProcessingModule {
+public class RawDataImportModule implements MZminePerFileModule {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -79,6 +81,20 @@ public class RawDataImportModule implements MZmineProcessingModule {
         File fileNames[] = parameters
                 .getParameter(RawDataImportParameters.fileNames).getValue();
 
+        // Optional scan filters
+        Range<Integer> msLevels = null;
+        if (parameters.getParameter(RawDataImportParameters.msLevelFilter)
+                .getValue())
+            msLevels = parameters
+                    .getParameter(RawDataImportParameters.msLevelFilter)
+                    .getEmbeddedParameter().getValue();
+        Range<Double> rtRange = null;
+        if (parameters.getParameter(RawDataImportParameters.rtFilter)
+                .getValue())
+            rtRange = parameters
+                    .getParameter(RawDataImportParameters.rtFilter)
+                    .getEmbeddedParameter().getValue();
+
         // Find common prefix in raw file names if in GUI mode
         String commonPrefix = null;
         if (MZmineCore.getDesktop().getMainWindow() != null
@@ -176,7 +192,7 @@ public class RawDataImportModule implements MZmineProcessingModule {
             }
 
             Task newTask = createOpeningTask(fileType, project, fileNames[i],
-                    newMZmineFile);
+                    newMZmineFile, msLevels, rtRange);
 
             if (newTask == null) {
                 logger.warning("File type " + fileType + " of file "
@@ -204,13 +220,28 @@ public class RawDataImportModule implements MZmineProcessingModule {
     public static Task createOpeningTask(RawDataFileType fileType,
             MZmineProject project, File fileName,
             RawDataFileWriter newMZmineFile) {
+        return createOpeningTask(fileType, project, fileName, newMZmineFile,
+                null, null);
+    }
+
+    /**
+     * Creates the task for opening given file. The MS level and retention
+     * time filters are only supported for mzML files, and ignored for other
+     * file types.
+     */
+    public static Task createOpeningTask(RawDataFileType fileType,
+            MZmineProject project, File fileName,
+            RawDataFileWriter newMZmineFile,
+            @Nullable Range<Integer> msLevels,
+            @Nullable Range<Double> rtRange) {
         Task newTask = null;
         switch (fileType) {
         case MZDATA:
             newTask = new MzDataReadTask(project, fileName, newMZmineFile);
             break;
         case MZML:
-            newTask = new MzMLReadTask(project, fileName, newMZmineFile);
+            newTask = new MzMLReadTask(project, fileName, newMZmineFile,
+                    msLevels, rtRange);
             break;
         case MZXML:
             newTask = new MzXMLReadTask(project, fileName, newMZmineFile);
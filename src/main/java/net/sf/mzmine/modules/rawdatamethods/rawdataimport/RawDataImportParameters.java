@@ -28,6 +28,9 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
+import net.sf.mzmine.parameters.parametertypes.ranges.IntRangeParameter;
+import net.sf.mzmine.parameters.parametertypes.ranges.RTRangeParameter;
 import net.sf.mzmine.util.ExitCode;
 
 public class RawDataImportParameters extends SimpleParameterSet {
@@ -48,8 +51,17 @@ public class RawDataImportParameters extends SimpleParameterSet {
 
     public static final FileNamesParameter fileNames = new FileNamesParameter();
 
+    public static final OptionalParameter<IntRangeParameter> msLevelFilter = new OptionalParameter<>(
+            new IntRangeParameter("Import only MS levels",
+                    "Import only the scans of these MS levels (mzML files only)"));
+
+    public static final OptionalParameter<RTRangeParameter> rtFilter = new OptionalParameter<>(
+            new RTRangeParameter("Import only retention time",
+                    "Import only the scans in this retention time range (mzML files only)",
+                    true, null));
+
     public RawDataImportParameters() {
-        super(new Parameter[] { fileNames });
+        super(new Parameter[] { fileNames, msLevelFilter, rtFilter });
     }
 
     @Override
@@ -83,6 +95,12 @@ public class RawDataImportParameters extends SimpleParameterSet {
 
         getParameter(fileNames).setValue(selectedFiles);
 
+        // The scan filters are only supported for mzML files
+        for (File file : selectedFiles) {
+            if (file.getName().toLowerCase().endsWith(".mzml"))
+                return super.showSetupDialog(parent, valueCheckRequired);
+        }
+
         return ExitCode.OK;
 
     }
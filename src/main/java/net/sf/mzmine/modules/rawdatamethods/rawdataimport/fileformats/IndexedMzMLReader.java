@@ -0,0 +1,647 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.CompressionUtils;
+
+import org.apache.axis.encoding.Base64;
+
+/**
+ * Reads the spectra of an indexed mzML file directly, without the jmzml
+ * object model. The spectra are located by the offsets in the indexList at
+ * the end of the file, and only the elements used by MzMLReadTask are parsed
+ * by a streaming parser.
+ *
+ * Each spectrum is read in two steps. readSpectrumHeader() reads everything
+ * up to the binary data arrays, so that the caller can decide whether the
+ * spectrum should be imported. Only then readBinaryDataArrays() reads the
+ * encoded arrays. The arrays are decoded by MzMLSpectrum.decodeDataPoints(),
+ * which can run on another thread.
+ */
+class IndexedMzMLReader {
+
+    // The indexListOffset element is searched for in this many bytes at the
+    // end of the file
+    private static final int INDEX_LIST_OFFSET_SEARCH_LENGTH = 4096;
+
+    private static final Pattern INDEX_LIST_OFFSET_PATTERN = Pattern
+            .compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final File file;
+    private final XMLInputFactory inputFactory;
+
+    private RandomAccessFile randomAccessFile;
+    private long spectrumOffsets[];
+
+    // Contents of referenceableParamGroup elements, by id
+    private final Map<String, List<String[]>> paramGroups = new HashMap<String, List<String[]>>();
+
+    // Parser state of the spectrum which is being read
+    private XMLStreamReader spectrumReader;
+    private final Deque<String> openElements = new ArrayDeque<String>();
+    private MzMLBinaryDataArray currentArray;
+
+    IndexedMzMLReader(File file) {
+        this.file = file;
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /**
+     * Opens the file and reads its spectrum index
+     *
+     * @return false if the file has no valid spectrum index, and must be read
+     *         sequentially instead
+     */
+    boolean open() throws IOException {
+
+        randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            long indexListOffset = findIndexListOffset();
+            if (indexListOffset < 0)
+                return false;
+
+            List<Long> offsets = readSpectrumOffsets(indexListOffset);
+            if (offsets.isEmpty())
+                return false;
+
+            // The offsets are no longer valid if the file was modified after
+            // it was indexed
+            if (!checkSpectrumOffset(offsets.get(0))
+                    || !checkSpectrumOffset(offsets.get(offsets.size() - 1))) {
+                logger.info("Spectrum index of " + file
+                        + " does not match the file content");
+                return false;
+            }
+
+            spectrumOffsets = new long[offsets.size()];
+            for (int i = 0; i < spectrumOffsets.length; i++)
+                spectrumOffsets[i] = offsets.get(i);
+
+            readParamGroups();
+
+        } catch (XMLStreamException | NumberFormatException e) {
+            logger.info("Could not read spectrum index of " + file + ": " + e);
+            return false;
+        }
+
+        return true;
+    }
+
+    void close() {
+        try {
+            closeSpectrumReader();
+            if (randomAccessFile != null)
+                randomAccessFile.close();
+        } catch (Exception e) {
+            logger.warning("Could not close file " + file + ": " + e);
+        }
+    }
+
+    int getNumberOfSpectra() {
+        return spectrumOffsets.length;
+    }
+
+    /**
+     * Reads the spectrum with given index, up to its binary data arrays
+     */
+    MzMLSpectrum readSpectrumHeader(int index) throws IOException,
+            XMLStreamException {
+        closeSpectrumReader();
+        spectrumReader = createReader(spectrumOffsets[index]);
+        MzMLSpectrum spectrum = new MzMLSpectrum();
+        parseSpectrum(spectrum, true);
+        return spectrum;
+    }
+
+    /**
+     * Reads the binary data arrays of the spectrum returned by the last call
+     * of readSpectrumHeader()
+     */
+    void readBinaryDataArrays(MzMLSpectrum spectrum)
+            throws XMLStreamException {
+        if (spectrumReader != null)
+            parseSpectrum(spectrum, false);
+        closeSpectrumReader();
+    }
+
+    /**
+     * Parses the current spectrum element, until its end or until the start
+     * of the binary data arrays
+     */
+    private void parseSpectrum(MzMLSpectrum spectrum,
+            boolean stopAtBinaryData) throws XMLStreamException {
+
+        while (spectrumReader.hasNext()) {
+
+            int event = spectrumReader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                openElements.pop();
+                if (openElements.isEmpty()) {
+                    // End of the spectrum element
+                    closeSpectrumReader();
+                    return;
+                }
+                continue;
+            }
+
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = spectrumReader.getLocalName();
+            String parent = openElements.peek();
+
+            if (name.equals("spectrum")) {
+                spectrum.id = spectrumReader.getAttributeValue(null, "id");
+            } else if (name.equals("cvParam")) {
+                addCvParam(spectrum, parent,
+                        spectrumReader.getAttributeValue(null, "accession"),
+                        spectrumReader.getAttributeValue(null, "value"),
+                        spectrumReader.getAttributeValue(null,
+                                "unitAccession"));
+            } else if (name.equals("referenceableParamGroupRef")) {
+                List<String[]> group = paramGroups.get(spectrumReader
+                        .getAttributeValue(null, "ref"));
+                if (group != null) {
+                    for (String param[] : group)
+                        addCvParam(spectrum, parent, param[0], param[1],
+                                param[2]);
+                }
+            } else if (name.equals("precursor")) {
+                spectrum.precursorCount++;
+                if (spectrum.precursorCount == 1)
+                    spectrum.precursorScanId = spectrumReader
+                            .getAttributeValue(null, "spectrumRef");
+            } else if (name.equals("binaryDataArray")) {
+                currentArray = new MzMLBinaryDataArray();
+                spectrum.binaryDataArrays.add(currentArray);
+            } else if (name.equals("binary")) {
+                // getElementText() also consumes the end of the element
+                currentArray.binaryData = spectrumReader.getElementText();
+                continue;
+            }
+
+            openElements.push(name);
+
+            if (stopAtBinaryData && name.equals("binaryDataArrayList"))
+                return;
+        }
+
+    }
+
+    /**
+     * Processes a cvParam, or a cvParam of a referenced param group, which
+     * was found inside the parent element
+     */
+    private void addCvParam(MzMLSpectrum spectrum, String parent,
+            String accession, String value, String unitAccession) {
+
+        if ((parent == null) || (accession == null))
+            return;
+
+        if (parent.equals("spectrum")) {
+
+            // MS level MS:1000511
+            if (accession.equals("MS:1000511") && (value != null)
+                    && (spectrum.msLevel == 0))
+                spectrum.msLevel = Integer.parseInt(value);
+
+            if (spectrum.spectrumPolarity == PolarityType.UNKNOWN)
+                spectrum.spectrumPolarity = getPolarity(accession);
+
+            if (accession.equals("MS:1000512")
+                    && (spectrum.spectrumScanDefinition == null))
+                spectrum.spectrumScanDefinition = value;
+
+            // Electromagnetic radiation spectrum, e.g. UV
+            if (accession.equals("MS:1000804"))
+                spectrum.msSpectrum = false;
+
+            return;
+        }
+
+        if (parent.equals("scan")) {
+
+            // Retention time (actually "Scan start time") MS:1000016
+            if (accession.equals("MS:1000016") && (value != null)
+                    && (!spectrum.retentionTimeFound)) {
+                // MS:1000038 is used in mzML 1.0, while UO:0000031
+                // is used in mzML 1.1.0 :-/
+                if ((unitAccession == null)
+                        || (unitAccession.equals("MS:1000038"))
+                        || unitAccession.equals("UO:0000031")) {
+                    spectrum.retentionTime = Double.parseDouble(value);
+                } else {
+                    spectrum.retentionTime = Double.parseDouble(value) / 60d;
+                }
+                spectrum.retentionTimeFound = true;
+            }
+
+            if (spectrum.scanPolarity == PolarityType.UNKNOWN)
+                spectrum.scanPolarity = getPolarity(accession);
+
+            if (accession.equals("MS:1000512")
+                    && (spectrum.scanScanDefinition == null))
+                spectrum.scanScanDefinition = value;
+
+            return;
+        }
+
+        // Only the first precursor is used
+        if (parent.equals("selectedIon") && (spectrum.precursorCount == 1)
+                && (value != null)) {
+
+            // MS:1000040 is used in mzML 1.0,
+            // MS:1000744 is used in mzML 1.1.0
+            if ((accession.equals("MS:1000040") || accession
+                    .equals("MS:1000744")) && (spectrum.precursorMz == 0))
+                spectrum.precursorMz = Double.parseDouble(value);
+
+            if (accession.equals("MS:1000041")
+                    && (spectrum.precursorCharge == 0))
+                spectrum.precursorCharge = Integer.parseInt(value);
+
+            return;
+        }
+
+        if (parent.equals("binaryDataArray") && (currentArray != null)) {
+
+            switch (accession) {
+            case MzMLBinaryDataArray.FLOAT_32_BIT:
+            case MzMLBinaryDataArray.FLOAT_64_BIT:
+            case MzMLBinaryDataArray.INTEGER_32_BIT:
+            case MzMLBinaryDataArray.INTEGER_64_BIT:
+                currentArray.dataType = accession;
+                break;
+            case MzMLBinaryDataArray.NO_COMPRESSION:
+            case MzMLBinaryDataArray.ZLIB_COMPRESSION:
+                currentArray.compression = accession;
+                break;
+            case MzMLBinaryDataArray.MZ_ARRAY:
+            case MzMLBinaryDataArray.INTENSITY_ARRAY:
+                currentArray.arrayType = accession;
+                break;
+            case MzMLBinaryDataArray.NUMPRESS_LINEAR:
+            case MzMLBinaryDataArray.NUMPRESS_PIC:
+            case MzMLBinaryDataArray.NUMPRESS_SLOF:
+            case MzMLBinaryDataArray.NUMPRESS_LINEAR_ZLIB:
+            case MzMLBinaryDataArray.NUMPRESS_PIC_ZLIB:
+            case MzMLBinaryDataArray.NUMPRESS_SLOF_ZLIB:
+                // Not supported, decode() will fail
+                currentArray.compression = accession;
+                break;
+            }
+
+        }
+
+    }
+
+    private static PolarityType getPolarity(String accession) {
+        if (accession.equals("MS:1000130"))
+            return PolarityType.POSITIVE;
+        if (accession.equals("MS:1000129"))
+            return PolarityType.NEGATIVE;
+        return PolarityType.UNKNOWN;
+    }
+
+    /**
+     * Finds the offset of the indexList element, which is stored at the end
+     * of the file
+     *
+     * @return the offset, or -1 if the file is not indexed
+     */
+    private long findIndexListOffset() throws IOException {
+        long length = randomAccessFile.length();
+        int searchLength = (int) Math.min(length,
+                INDEX_LIST_OFFSET_SEARCH_LENGTH);
+        byte tail[] = new byte[searchLength];
+        randomAccessFile.seek(length - searchLength);
+        randomAccessFile.readFully(tail);
+
+        Matcher matcher = INDEX_LIST_OFFSET_PATTERN.matcher(new String(tail,
+                "ISO-8859-1"));
+        if (!matcher.find())
+            return -1;
+
+        long offset = Long.parseLong(matcher.group(1));
+        if ((offset <= 0) || (offset >= length))
+            return -1;
+        return offset;
+    }
+
+    private List<Long> readSpectrumOffsets(long indexListOffset)
+            throws IOException, XMLStreamException {
+
+        List<Long> offsets = new ArrayList<Long>();
+        XMLStreamReader reader = createReader(indexListOffset);
+        try {
+            boolean spectrumIndex = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("index"))
+                        spectrumIndex = "spectrum".equals(reader
+                                .getAttributeValue(null, "name"));
+                    if (name.equals("offset") && spectrumIndex)
+                        offsets.add(Long.parseLong(reader.getElementText()
+                                .trim()));
+                }
+                if ((event == XMLStreamConstants.END_ELEMENT)
+                        && reader.getLocalName().equals("indexList"))
+                    break;
+            }
+        } finally {
+            reader.close();
+        }
+
+        return offsets;
+    }
+
+    /**
+     * Checks that there is a spectrum element at given offset
+     */
+    private boolean checkSpectrumOffset(long offset) throws IOException {
+        final String expected = "<spectrum";
+        if (offset + expected.length() > randomAccessFile.length())
+            return false;
+        byte start[] = new byte[expected.length()];
+        randomAccessFile.seek(offset);
+        randomAccessFile.readFully(start);
+        return expected.equals(new String(start, "ISO-8859-1"));
+    }
+
+    /**
+     * Reads the referenceableParamGroup elements, which precede the run
+     */
+    private void readParamGroups() throws IOException, XMLStreamException {
+        XMLStreamReader reader = createReader(0);
+        try {
+            List<String[]> group = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                String name = reader.getLocalName();
+                if (name.equals("run") || name.equals("spectrumList"))
+                    break;
+                if (name.equals("referenceableParamGroup")) {
+                    group = new ArrayList<String[]>();
+                    paramGroups.put(reader.getAttributeValue(null, "id"),
+                            group);
+                }
+                if (name.equals("cvParam") && (group != null)) {
+                    group.add(new String[] {
+                            reader.getAttributeValue(null, "accession"),
+                            reader.getAttributeValue(null, "value"),
+                            reader.getAttributeValue(null, "unitAccession") });
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Creates a parser which starts at given offset of the file. The parser
+     * must be closed, but not the underlying stream, which would close the
+     * file.
+     */
+    private XMLStreamReader createReader(long offset) throws IOException,
+            XMLStreamException {
+        randomAccessFile.getChannel().position(offset);
+        InputStream inputStream = new BufferedInputStream(
+                Channels.newInputStream(randomAccessFile.getChannel()),
+                READ_BUFFER_SIZE);
+        return inputFactory.createXMLStreamReader(inputStream, "UTF-8");
+    }
+
+    private void closeSpectrumReader() throws XMLStreamException {
+        if (spectrumReader != null)
+            spectrumReader.close();
+        spectrumReader = null;
+        openElements.clear();
+        currentArray = null;
+    }
+
+    /**
+     * Content of one spectrum element
+     */
+    static class MzMLSpectrum {
+
+        private String id;
+        private int msLevel;
+        private boolean msSpectrum = true;
+        private double retentionTime;
+        private boolean retentionTimeFound;
+        private PolarityType spectrumPolarity = PolarityType.UNKNOWN,
+                scanPolarity = PolarityType.UNKNOWN;
+        private String spectrumScanDefinition, scanScanDefinition;
+        private int precursorCount;
+        private String precursorScanId;
+        private double precursorMz;
+        private int precursorCharge;
+        private final List<MzMLBinaryDataArray> binaryDataArrays = new ArrayList<MzMLBinaryDataArray>();
+
+        String getId() {
+            return id;
+        }
+
+        boolean isMsSpectrum() {
+            return msSpectrum;
+        }
+
+        int getMSLevel() {
+            return msLevel == 0 ? 1 : msLevel;
+        }
+
+        double getRetentionTime() {
+            return retentionTime;
+        }
+
+        PolarityType getPolarity() {
+            if (spectrumPolarity != PolarityType.UNKNOWN)
+                return spectrumPolarity;
+            return scanPolarity;
+        }
+
+        String getScanDefinition() {
+            if (spectrumScanDefinition != null)
+                return spectrumScanDefinition;
+            if (scanScanDefinition != null)
+                return scanScanDefinition;
+            return id;
+        }
+
+        /**
+         * @return Id of the precursor spectrum, or null
+         */
+        @Nullable
+        String getPrecursorScanId() {
+            return precursorScanId;
+        }
+
+        double getPrecursorMz() {
+            return precursorMz;
+        }
+
+        int getPrecursorCharge() {
+            return precursorCharge;
+        }
+
+        /**
+         * Decodes the m/z and intensity arrays. If the array types are not
+         * specified, the first array is used for m/z and the second one for
+         * intensities.
+         */
+        DataPoint[] decodeDataPoints() throws DataFormatException {
+
+            MzMLBinaryDataArray mzArray = null, intensityArray = null;
+            for (MzMLBinaryDataArray array : binaryDataArrays) {
+                if ((mzArray == null)
+                        && MzMLBinaryDataArray.MZ_ARRAY.equals(array.arrayType))
+                    mzArray = array;
+                if ((intensityArray == null)
+                        && MzMLBinaryDataArray.INTENSITY_ARRAY
+                                .equals(array.arrayType))
+                    intensityArray = array;
+            }
+            if ((mzArray == null) || (intensityArray == null)) {
+                if (binaryDataArrays.size() < 2)
+                    return new DataPoint[0];
+                mzArray = binaryDataArrays.get(0);
+                intensityArray = binaryDataArrays.get(1);
+            }
+
+            double mzValues[] = mzArray.decode();
+            double intensityValues[] = intensityArray.decode();
+            DataPoint dataPoints[] = new DataPoint[Math.min(mzValues.length,
+                    intensityValues.length)];
+            for (int i = 0; i < dataPoints.length; i++) {
+                dataPoints[i] = new SimpleDataPoint(mzValues[i],
+                        intensityValues[i]);
+            }
+            return dataPoints;
+        }
+
+    }
+
+    /**
+     * Content of one binaryDataArray element
+     */
+    private static class MzMLBinaryDataArray {
+
+        static final String FLOAT_32_BIT = "MS:1000521";
+        static final String FLOAT_64_BIT = "MS:1000523";
+        static final String INTEGER_32_BIT = "MS:1000519";
+        static final String INTEGER_64_BIT = "MS:1000522";
+        static final String NO_COMPRESSION = "MS:1000576";
+        static final String ZLIB_COMPRESSION = "MS:1000574";
+        static final String NUMPRESS_LINEAR = "MS:1002312";
+        static final String NUMPRESS_PIC = "MS:1002313";
+        static final String NUMPRESS_SLOF = "MS:1002314";
+        static final String NUMPRESS_LINEAR_ZLIB = "MS:1002746";
+        static final String NUMPRESS_PIC_ZLIB = "MS:1002747";
+        static final String NUMPRESS_SLOF_ZLIB = "MS:1002748";
+        static final String MZ_ARRAY = "MS:1000514";
+        static final String INTENSITY_ARRAY = "MS:1000515";
+
+        private String dataType = FLOAT_32_BIT;
+        private String compression = NO_COMPRESSION;
+        private String arrayType;
+        private String binaryData = "";
+
+        double[] decode() throws DataFormatException {
+
+            byte bytes[] = Base64.decode(binaryData);
+
+            if (compression.equals(ZLIB_COMPRESSION))
+                bytes = CompressionUtils.decompress(bytes);
+            else if (!compression.equals(NO_COMPRESSION))
+                throw new DataFormatException("Unsupported compression "
+                        + compression);
+
+            // Binary data in mzML are always little endian
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(
+                    ByteOrder.LITTLE_ENDIAN);
+
+            double values[];
+            switch (dataType) {
+            case FLOAT_64_BIT:
+                values = new double[bytes.length / 8];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = buffer.getDouble();
+                break;
+            case INTEGER_32_BIT:
+                values = new double[bytes.length / 4];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = buffer.getInt();
+                break;
+            case INTEGER_64_BIT:
+                values = new double[bytes.length / 8];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = buffer.getLong();
+                break;
+            default:
+                values = new double[bytes.length / 4];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = buffer.getFloat();
+            }
+
+            return values;
+        }
+
+    }
+
+}
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.SAXParser;
@@ -31,16 +32,16 @@ import javax.xml.parsers.SAXParserFactory;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils;
 
 import org.apache.axis.encoding.Base64;
 import org.xml.sax.Attributes;
@@ -77,10 +78,17 @@ public class MzDataReadTask extends AbstractTask {
 
     /*
      * The information of "m/z" & "int" is content in two arrays because the
-     * mzData standard manages this information in two different tags.
+     * mzData standard manages this information in two different tags. The
+     * arrays are kept encoded until the end of the spectrum, and decoded on a
+     * worker thread.
      */
-    private double[] mzDataPoints;
-    private double[] intensityDataPoints;
+    private String mzBinary, intensityBinary;
+    private String mzPrecision, intensityPrecision;
+    private String mzEndian, intensityEndian;
+    private int mzPeaksCount, intensityPeaksCount;
+
+    // Decodes the spectra on worker threads and writes the scans in order
+    private ParallelScanDecoder scanDecoder;
 
     /*
      * This variable hold the current scan or fragment, it is send to the stack
@@ -131,11 +139,19 @@ public class MzDataReadTask extends AbstractTask {
 	// Use the default (non-validating) parser
 	SAXParserFactory factory = SAXParserFactory.newInstance();
 
+	final int numOfThreads = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads)
+		.getNumberOfThreads();
+	scanDecoder = new ParallelScanDecoder(newMZmineFile, numOfThreads);
+
 	try {
 
 	    SAXParser saxParser = factory.newSAXParser();
 	    saxParser.parse(file, handler);
 
+	    // Write the scans which are still being decoded
+	    scanDecoder.finish();
+
 	    // Close file
 	    finalRawDataFile = newMZmineFile.finishWriting();
 	    project.addFile(finalRawDataFile);
@@ -148,6 +164,8 @@ public class MzDataReadTask extends AbstractTask {
 		setErrorMessage(ExceptionUtils.exceptionToString(e));
 	    }
 	    return;
+	} finally {
+	    scanDecoder.shutdown();
 	}
 
 	if (parsedScans == 0) {
@@ -309,23 +327,43 @@ public class MzDataReadTask extends AbstractTask {
 	    // <spectrum>
 	    if (qName.equalsIgnoreCase("spectrum")) {
 
-		DataPoint dataPoints[] = new DataPoint[peaksCount];
 		spectrumInstrumentFlag = false;
 
-		// Copy m/z and intensity data
-		for (int i = 0; i < dataPoints.length; i++) {
-		    dataPoints[i] = new SimpleDataPoint(
-			    (double) mzDataPoints[i],
-			    (double) intensityDataPoints[i]);
-		}
-
-		// Auto-detect whether this scan is centroided
-		MassSpectrumType spectrumType = ScanUtils
-			.detectSpectrumType(dataPoints);
-
 		buildingScan = new SimpleScan(null, scanNumber, msLevel,
 			retentionTime, precursorMz, precursorCharge, null,
-			dataPoints, spectrumType, polarity, "", null);
+			new DataPoint[0], null, polarity, "", null);
+
+		// Decode the m/z and intensity arrays on a worker thread
+		final String mzData = mzBinary;
+		final String mzDataPrecision = mzPrecision;
+		final String mzDataEndian = mzEndian;
+		final int mzDataCount = mzPeaksCount;
+		final String intensityData = intensityBinary;
+		final String intensityDataPrecision = intensityPrecision;
+		final String intensityDataEndian = intensityEndian;
+		final int intensityDataCount = intensityPeaksCount;
+		final int numOfPeaks = peaksCount;
+		scanDecoder.decode(buildingScan, new Callable<DataPoint[]>() {
+		    @Override
+		    public DataPoint[] call() {
+			double mzDataPoints[] = decodeArray(mzData,
+				mzDataCount, mzDataPrecision, mzDataEndian);
+			double intensityDataPoints[] = decodeArray(
+				intensityData, intensityDataCount,
+				intensityDataPrecision, intensityDataEndian);
+
+			DataPoint dataPoints[] = new DataPoint[numOfPeaks];
+
+			// Copy m/z and intensity data
+			for (int i = 0; i < dataPoints.length; i++) {
+			    dataPoints[i] = new SimpleDataPoint(
+				    (double) mzDataPoints[i],
+				    (double) intensityDataPoints[i]);
+			}
+
+			return dataPoints;
+		    }
+		});
 
 		/*
 		 * Update of fragmentScanNumbers of each Scan in the parentStack
@@ -344,14 +382,7 @@ public class MzDataReadTask extends AbstractTask {
 		 */
 		if (parentStack.size() > 10) {
 		    SimpleScan scan = parentStack.removeLast();
-		    try {
-			newMZmineFile.addScan(scan);
-		    } catch (IOException e) {
-			setStatus(TaskStatus.ERROR);
-			setErrorMessage("IO error: " + e);
-			throw new SAXException("Parsing cancelled");
-		    }
-		    parsedScans++;
+		    addScan(scan);
 		}
 
 		parentStack.addFirst(buildingScan);
@@ -361,55 +392,20 @@ public class MzDataReadTask extends AbstractTask {
 
 	    // <mzArrayBinary>
 	    if (qName.equalsIgnoreCase("mzArrayBinary")) {
-
 		mzArrayBinaryFlag = false;
-		mzDataPoints = new double[peaksCount];
-
-		byte[] peakBytes = Base64.decode(charBuffer.toString());
-
-		ByteBuffer currentMzBytes = ByteBuffer.wrap(peakBytes);
-
-		if (endian.equals("big")) {
-		    currentMzBytes = currentMzBytes.order(ByteOrder.BIG_ENDIAN);
-		} else {
-		    currentMzBytes = currentMzBytes
-			    .order(ByteOrder.LITTLE_ENDIAN);
-		}
-
-		for (int i = 0; i < mzDataPoints.length; i++) {
-		    if (precision == null || precision.equals("32"))
-			mzDataPoints[i] = (double) currentMzBytes.getFloat();
-		    else
-			mzDataPoints[i] = currentMzBytes.getDouble();
-		}
+		mzBinary = charBuffer.toString();
+		mzPrecision = precision;
+		mzEndian = endian;
+		mzPeaksCount = peaksCount;
 	    }
 
 	    // <intenArrayBinary>
 	    if (qName.equalsIgnoreCase("intenArrayBinary")) {
-
 		intenArrayBinaryFlag = false;
-		intensityDataPoints = new double[peaksCount];
-
-		byte[] peakBytes = Base64.decode(charBuffer.toString());
-
-		ByteBuffer currentIntensityBytes = ByteBuffer.wrap(peakBytes);
-
-		if (endian.equals("big")) {
-		    currentIntensityBytes = currentIntensityBytes
-			    .order(ByteOrder.BIG_ENDIAN);
-		} else {
-		    currentIntensityBytes = currentIntensityBytes
-			    .order(ByteOrder.LITTLE_ENDIAN);
-		}
-
-		for (int i = 0; i < intensityDataPoints.length; i++) {
-		    if (precision == null || precision.equals("32"))
-			intensityDataPoints[i] = (double) currentIntensityBytes
-				.getFloat();
-		    else
-			intensityDataPoints[i] = currentIntensityBytes
-				.getDouble();
-		}
+		intensityBinary = charBuffer.toString();
+		intensityPrecision = precision;
+		intensityEndian = endian;
+		intensityPeaksCount = peaksCount;
 	    }
 	}
 
@@ -426,17 +422,54 @@ public class MzDataReadTask extends AbstractTask {
 	public void endDocument() throws SAXException {
 	    while (!parentStack.isEmpty()) {
 		SimpleScan scan = parentStack.removeLast();
-		try {
-		    newMZmineFile.addScan(scan);
-		} catch (IOException e) {
-		    setStatus(TaskStatus.ERROR);
-		    setErrorMessage("IO error: " + e);
-		    throw new SAXException("Parsing cancelled");
-		}
-		parsedScans++;
+		addScan(scan);
+	    }
+	}
+
+	private void addScan(SimpleScan scan) throws SAXException {
+	    try {
+		scanDecoder.addScan(scan);
+	    } catch (IOException e) {
+		setStatus(TaskStatus.ERROR);
+		setErrorMessage("IO error: " + e);
+		throw new SAXException("Parsing cancelled");
+	    } catch (Exception e) {
+		setStatus(TaskStatus.ERROR);
+		setErrorMessage("Corrupt mzData file: " + e);
+		throw new SAXException("Parsing cancelled");
 	    }
+	    parsedScans++;
+	}
+
+    }
+
+    /**
+     * Decodes a Base64 encoded binary array. Called from the worker threads of
+     * the scan decoder.
+     */
+    private static double[] decodeArray(String binaryData, int length,
+	    String precision, String endian) {
+
+	double values[] = new double[length];
+
+	byte[] peakBytes = Base64.decode(binaryData);
+
+	ByteBuffer currentBytes = ByteBuffer.wrap(peakBytes);
+
+	if (endian.equals("big")) {
+	    currentBytes = currentBytes.order(ByteOrder.BIG_ENDIAN);
+	} else {
+	    currentBytes = currentBytes.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	for (int i = 0; i < values.length; i++) {
+	    if (precision == null || precision.equals("32"))
+		values[i] = (double) currentBytes.getFloat();
+	    else
+		values[i] = currentBytes.getDouble();
 	}
 
+	return values;
     }
 
 }
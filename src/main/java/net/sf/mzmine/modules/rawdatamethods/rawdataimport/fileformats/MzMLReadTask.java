@@ -24,9 +24,13 @@ import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nullable;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -36,6 +40,9 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzMLReader.MzMLSpectrum;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
@@ -53,9 +60,12 @@ import uk.ac.ebi.jmzml.model.mzml.Spectrum;
 import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
+import com.google.common.collect.Range;
+
 /**
  * This class reads mzML 1.0 and 1.1.0 files
- * (http://www.psidev.info/index.php?q=node/257) using the jmzml library
+ * (http://www.psidev.info/index.php?q=node/257). Indexed mzML files are read
+ * by IndexedMzMLReader, other files using the jmzml library
  * (http://code.google.com/p/jmzml/).
  */
 public class MzMLReadTask extends AbstractTask {
@@ -68,6 +78,16 @@ public class MzMLReadTask extends AbstractTask {
     private RawDataFile finalRawDataFile;
     private int totalScans = 0, parsedScans;
 
+    // Number of scans which passed the import filters
+    private int importedScans;
+
+    // Optional import filters, null to import all scans
+    private final Range<Integer> msLevels;
+    private final Range<Double> rtRange;
+
+    // Decodes the spectra on worker threads and writes the scans in order
+    private ParallelScanDecoder scanDecoder;
+
     private int lastScanNumber = 0;
 
     private Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
@@ -85,9 +105,25 @@ public class MzMLReadTask extends AbstractTask {
 
     public MzMLReadTask(MZmineProject project, File fileToOpen,
             RawDataFileWriter newMZmineFile) {
+        this(project, fileToOpen, newMZmineFile, null, null);
+    }
+
+    /**
+     * @param msLevels
+     *            MS levels of the scans to import, or null for all scans
+     * @param rtRange
+     *            Retention time range of the scans to import, or null for all
+     *            scans
+     */
+    public MzMLReadTask(MZmineProject project, File fileToOpen,
+            RawDataFileWriter newMZmineFile,
+            @Nullable Range<Integer> msLevels,
+            @Nullable Range<Double> rtRange) {
         this.project = project;
         this.file = fileToOpen;
         this.newMZmineFile = newMZmineFile;
+        this.msLevels = msLevels;
+        this.rtRange = rtRange;
     }
 
     /**
@@ -105,78 +141,42 @@ public class MzMLReadTask extends AbstractTask {
         setStatus(TaskStatus.PROCESSING);
         logger.info("Started parsing file " + file);
 
-        MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
+        final int numOfThreads = MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        scanDecoder = new ParallelScanDecoder(newMZmineFile, numOfThreads);
 
-        totalScans = unmarshaller
-                .getObjectCountForXpath("/run/spectrumList/spectrum");
+        IndexedMzMLReader indexedReader = new IndexedMzMLReader(file);
 
-        MzMLObjectIterator<Spectrum> spectrumIterator = unmarshaller
-                .unmarshalCollectionFromXpath("/run/spectrumList/spectrum",
-                        Spectrum.class);
         try {
 
-            while (spectrumIterator.hasNext()) {
-
-                if (isCanceled())
-                    return;
-
-                Spectrum spectrum = spectrumIterator.next();
-
-                // Ignore scans that are not MS, e.g. UV
-                if (!isMsSpectrum(spectrum)) {
-                    parsedScans++;
-                    continue;
-                }
-
-                String scanId = spectrum.getId();
-                int scanNumber = convertScanIdToScanNumber(scanId);
-
-                // Extract scan data
-                int msLevel = extractMSLevel(spectrum);
-                double retentionTime = extractRetentionTime(spectrum);
-                PolarityType polarity = extractPolarity(spectrum);
-                int parentScan = extractParentScanNumber(spectrum);
-                double precursorMz = extractPrecursorMz(spectrum);
-                int precursorCharge = extractPrecursorCharge(spectrum);
-                String scanDefinition = extractScanDefinition(spectrum);
-                DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-                // Auto-detect whether this scan is centroided
-                MassSpectrumType spectrumType = ScanUtils
-                        .detectSpectrumType(dataPoints);
-
-                SimpleScan scan = new SimpleScan(null, scanNumber, msLevel,
-                        retentionTime, precursorMz, precursorCharge, null,
-                        dataPoints, spectrumType, polarity, scanDefinition,
-                        null);
-
-                for (SimpleScan s : parentStack) {
-                    if (s.getScanNumber() == parentScan) {
-                        s.addFragmentScan(scanNumber);
-                    }
-                }
-
-                /*
-                 * Verify the size of parentStack. The actual size of the window
-                 * to cover possible candidates is defined by limitSize.
-                 */
-                if (parentStack.size() > PARENT_STACK_SIZE) {
-                    SimpleScan firstScan = parentStack.removeLast();
-                    newMZmineFile.addScan(firstScan);
-                }
-
-                parentStack.addFirst(scan);
+            if (indexedReader.open()) {
+                readIndexedSpectra(indexedReader);
+            } else {
+                logger.info("File " + file
+                        + " is not indexed, reading it with jmzml");
+                readSpectra();
+            }
 
-                parsedScans++;
+            if (isCanceled())
+                return;
 
+            // Do not add an empty file, e.g. if the filters removed all scans
+            if (importedScans == 0) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("No scans found");
+                return;
             }
 
             while (!parentStack.isEmpty()) {
                 SimpleScan scan = parentStack.removeLast();
-                newMZmineFile.addScan(scan);
+                scanDecoder.addScan(scan);
 
             }
 
+            // Write the scans which are still being decoded
+            scanDecoder.finish();
+
             finalRawDataFile = newMZmineFile.finishWriting();
             project.addFile(finalRawDataFile);
 
@@ -187,17 +187,172 @@ public class MzMLReadTask extends AbstractTask {
                     + ExceptionUtils.exceptionToString(e));
             e.printStackTrace();
             return;
+        } finally {
+            indexedReader.close();
+            scanDecoder.shutdown();
         }
 
-        if (parsedScans == 0) {
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("No scans found");
-            return;
+        logger.info("Finished parsing " + file + ", imported " + importedScans
+                + " of " + parsedScans + " scans");
+        setStatus(TaskStatus.FINISHED);
+
+    }
+
+    /**
+     * Reads the spectra of an indexed file. The header of each spectrum is
+     * read first, and its binary data only if the scan passes the import
+     * filters. The binary data are decoded on the worker threads of the scan
+     * decoder.
+     */
+    private void readIndexedSpectra(IndexedMzMLReader reader)
+            throws Exception {
+
+        totalScans = reader.getNumberOfSpectra();
+
+        for (int i = 0; i < totalScans; i++) {
+
+            if (isCanceled())
+                return;
+
+            final MzMLSpectrum spectrum = reader.readSpectrumHeader(i);
+
+            // Ignore scans that are not MS, e.g. UV
+            if (!spectrum.isMsSpectrum()) {
+                parsedScans++;
+                continue;
+            }
+
+            int scanNumber = convertScanIdToScanNumber(spectrum.getId());
+            int parentScan = -1;
+            if (spectrum.getPrecursorScanId() != null)
+                parentScan = convertScanIdToScanNumber(spectrum
+                        .getPrecursorScanId());
+
+            if (!isScanImported(spectrum.getMSLevel(),
+                    spectrum.getRetentionTime())) {
+                parsedScans++;
+                continue;
+            }
+
+            reader.readBinaryDataArrays(spectrum);
+
+            SimpleScan scan = new SimpleScan(null, scanNumber,
+                    spectrum.getMSLevel(), spectrum.getRetentionTime(),
+                    spectrum.getPrecursorMz(), spectrum.getPrecursorCharge(),
+                    null, new DataPoint[0], null, spectrum.getPolarity(),
+                    spectrum.getScanDefinition(), null);
+
+            scanDecoder.decode(scan, new Callable<DataPoint[]>() {
+                @Override
+                public DataPoint[] call() throws DataFormatException {
+                    return spectrum.decodeDataPoints();
+                }
+            });
+
+            addScan(scan, parentScan);
+
+            parsedScans++;
+
         }
 
-        logger.info("Finished parsing " + file + ", parsed " + parsedScans
-                + " scans");
-        setStatus(TaskStatus.FINISHED);
+    }
+
+    /**
+     * Reads the spectra using the jmzml object model
+     */
+    private void readSpectra() throws Exception {
+
+        MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
+
+        totalScans = unmarshaller
+                .getObjectCountForXpath("/run/spectrumList/spectrum");
+
+        MzMLObjectIterator<Spectrum> spectrumIterator = unmarshaller
+                .unmarshalCollectionFromXpath("/run/spectrumList/spectrum",
+                        Spectrum.class);
+
+        while (spectrumIterator.hasNext()) {
+
+            if (isCanceled())
+                return;
+
+            Spectrum spectrum = spectrumIterator.next();
+
+            // Ignore scans that are not MS, e.g. UV
+            if (!isMsSpectrum(spectrum)) {
+                parsedScans++;
+                continue;
+            }
+
+            String scanId = spectrum.getId();
+            int scanNumber = convertScanIdToScanNumber(scanId);
+
+            // Extract scan data
+            int msLevel = extractMSLevel(spectrum);
+            double retentionTime = extractRetentionTime(spectrum);
+            PolarityType polarity = extractPolarity(spectrum);
+            int parentScan = extractParentScanNumber(spectrum);
+            double precursorMz = extractPrecursorMz(spectrum);
+            int precursorCharge = extractPrecursorCharge(spectrum);
+            String scanDefinition = extractScanDefinition(spectrum);
+
+            if (!isScanImported(msLevel, retentionTime)) {
+                parsedScans++;
+                continue;
+            }
+
+            DataPoint dataPoints[] = extractDataPoints(spectrum);
+
+            // Auto-detect whether this scan is centroided
+            MassSpectrumType spectrumType = ScanUtils
+                    .detectSpectrumType(dataPoints);
+
+            SimpleScan scan = new SimpleScan(null, scanNumber, msLevel,
+                    retentionTime, precursorMz, precursorCharge, null,
+                    dataPoints, spectrumType, polarity, scanDefinition, null);
+
+            addScan(scan, parentScan);
+
+            parsedScans++;
+
+        }
+
+    }
+
+    /**
+     * Checks the import filters
+     */
+    private boolean isScanImported(int msLevel, double retentionTime) {
+        if ((msLevels != null) && (!msLevels.contains(msLevel)))
+            return false;
+        if ((rtRange != null) && (!rtRange.contains(retentionTime)))
+            return false;
+        return true;
+    }
+
+    /**
+     * Adds the scan to the parent stack, and passes the oldest scan of the
+     * stack on to be written
+     */
+    private void addScan(SimpleScan scan, int parentScan) throws Exception {
+
+        for (SimpleScan s : parentStack) {
+            if (s.getScanNumber() == parentScan) {
+                s.addFragmentScan(scan.getScanNumber());
+            }
+        }
+
+        /*
+         * Verify the size of parentStack. The actual size of the window to
+         * cover possible candidates is defined by limitSize.
+         */
+        if (parentStack.size() > PARENT_STACK_SIZE) {
+            SimpleScan firstScan = parentStack.removeLast();
+            scanDecoder.addScan(firstScan);
+        }
+
+        parentStack.addFirst(scan);
+        importedScans++;
 
     }
 
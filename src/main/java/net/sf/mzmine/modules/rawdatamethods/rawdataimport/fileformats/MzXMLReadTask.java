@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 
@@ -35,17 +36,17 @@ import javax.xml.parsers.SAXParserFactory;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.CompressionUtils;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils;
 
 import org.apache.axis.encoding.Base64;
 import org.xml.sax.Attributes;
@@ -72,6 +73,9 @@ public class MzXMLReadTask extends AbstractTask {
     private DefaultHandler handler = new MzXMLHandler();
     private String precision;
 
+    // Decodes the peaks on worker threads and writes the scans in order
+    private ParallelScanDecoder scanDecoder;
+
     // Retention time parser
     private DatatypeFactory dataTypeFactory;
 
@@ -124,6 +128,11 @@ public class MzXMLReadTask extends AbstractTask {
         // Use the default (non-validating) parser
         SAXParserFactory factory = SAXParserFactory.newInstance();
 
+        final int numOfThreads = MZmineCore.getConfiguration()
+                .getPreferences().getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+        scanDecoder = new ParallelScanDecoder(newMZmineFile, numOfThreads);
+
         try {
 
             dataTypeFactory = DatatypeFactory.newInstance();
@@ -131,6 +140,9 @@ public class MzXMLReadTask extends AbstractTask {
             SAXParser saxParser = factory.newSAXParser();
             saxParser.parse(file, handler);
 
+            // Write the scans which are still being decoded
+            scanDecoder.finish();
+
             // Close file
             finalRawDataFile = newMZmineFile.finishWriting();
             project.addFile(finalRawDataFile);
@@ -143,6 +155,8 @@ public class MzXMLReadTask extends AbstractTask {
                 setErrorMessage(ExceptionUtils.exceptionToString(e));
             }
             return;
+        } finally {
+            scanDecoder.shutdown();
         }
 
         if (isCanceled())
@@ -302,12 +316,16 @@ public class MzXMLReadTask extends AbstractTask {
                     while (!parentStack.isEmpty()) {
                         SimpleScan currentScan = parentStack.removeLast();
                         try {
-                            newMZmineFile.addScan(currentScan);
+                            scanDecoder.addScan(currentScan);
                         } catch (IOException e) {
                             e.printStackTrace();
                             setStatus(TaskStatus.ERROR);
                             setErrorMessage("IO error: " + e);
                             throw new SAXException("Parsing error: " + e);
+                        } catch (Exception e) {
+                            setStatus(TaskStatus.ERROR);
+                            setErrorMessage("Corrupt mzXML file: " + e);
+                            throw new SAXException("Parsing Cancelled");
                         }
                         parsedScans++;
                     }
@@ -336,59 +354,19 @@ public class MzXMLReadTask extends AbstractTask {
             // <peaks>
             if (qName.equalsIgnoreCase("peaks")) {
 
-                byte[] peakBytes = Base64.decode(charBuffer.toString());
-
-                if (compressFlag) {
-                    try {
-                        peakBytes = CompressionUtils.decompress(peakBytes);
-                    } catch (DataFormatException e) {
-                        setStatus(TaskStatus.ERROR);
-                        setErrorMessage("Corrupt compressed peak: "
-                                + e.toString());
-                        throw new SAXException("Parsing Cancelled");
+                // Decode the peaks on a worker thread
+                final String peakData = charBuffer.toString();
+                final boolean compressed = compressFlag;
+                final String peakPrecision = precision;
+                final int numOfPeaks = peaksCount;
+                scanDecoder.decode(buildingScan, new Callable<DataPoint[]>() {
+                    @Override
+                    public DataPoint[] call() throws IOException,
+                            DataFormatException {
+                        return decodePeaks(peakData, compressed,
+                                peakPrecision, numOfPeaks);
                     }
-                }
-
-                // make a data input stream
-                DataInputStream peakStream = new DataInputStream(
-                        new ByteArrayInputStream(peakBytes));
-
-                DataPoint dataPoints[] = new DataPoint[peaksCount];
-
-                try {
-                    for (int i = 0; i < dataPoints.length; i++) {
-
-                        // Always respect this order pairOrder="m/z-int"
-                        double massOverCharge;
-                        double intensity;
-                        if ("64".equals(precision)) {
-                            massOverCharge = peakStream.readDouble();
-                            intensity = peakStream.readDouble();
-                        } else {
-                            massOverCharge = (double) peakStream.readFloat();
-                            intensity = (double) peakStream.readFloat();
-                        }
-
-                        // Copy m/z and intensity data
-                        dataPoints[i] = new SimpleDataPoint(massOverCharge,
-                                intensity);
-
-                    }
-                } catch (IOException eof) {
-                    setStatus(TaskStatus.ERROR);
-                    setErrorMessage("Corrupt mzXML file");
-                    throw new SAXException("Parsing Cancelled");
-                }
-
-                // Auto-detect whether this scan is centroided
-                MassSpectrumType spectrumType = ScanUtils
-                        .detectSpectrumType(dataPoints);
-
-                // Set the centroided tag
-                buildingScan.setSpectrumType(spectrumType);
-
-                // Set the final data points to the scan
-                buildingScan.setDataPoints(dataPoints);
+                });
 
                 return;
             }
@@ -405,4 +383,44 @@ public class MzXMLReadTask extends AbstractTask {
         }
     }
 
+    /**
+     * Decodes the Base64 encoded, optionally compressed content of a peaks
+     * element. Called from the worker threads of the scan decoder.
+     */
+    private static DataPoint[] decodePeaks(String peakData, boolean compressed,
+            String precision, int peaksCount) throws IOException,
+            DataFormatException {
+
+        byte[] peakBytes = Base64.decode(peakData);
+
+        if (compressed)
+            peakBytes = CompressionUtils.decompress(peakBytes);
+
+        // make a data input stream
+        DataInputStream peakStream = new DataInputStream(
+                new ByteArrayInputStream(peakBytes));
+
+        DataPoint dataPoints[] = new DataPoint[peaksCount];
+
+        for (int i = 0; i < dataPoints.length; i++) {
+
+            // Always respect this order pairOrder="m/z-int"
+            double massOverCharge;
+            double intensity;
+            if ("64".equals(precision)) {
+                massOverCharge = peakStream.readDouble();
+                intensity = peakStream.readDouble();
+            } else {
+                massOverCharge = (double) peakStream.readFloat();
+                intensity = (double) peakStream.readFloat();
+            }
+
+            // Copy m/z and intensity data
+            dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
+
+        }
+
+        return dataPoints;
+    }
+
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
+import net.sf.mzmine.util.ScanUtils;
+
+/**
+ * Decodes the data points of parsed scans on a pool of worker threads, and
+ * writes the scans to the raw data file in the order in which they were
+ * added. The parser thread only collects the encoded peak data, while the
+ * Base64 decoding, decompression and conversion to data points of several
+ * scans run in parallel.
+ *
+ * All methods must be called from the parser thread. The worker threads never
+ * access the scans, they only return the decoded data points, which are set
+ * to the scan by the parser thread right before the scan is written.
+ */
+class ParallelScanDecoder {
+
+    // Number of scans waiting to be written per worker thread, before
+    // addScan() waits for the oldest one
+    private static final int PENDING_SCANS_PER_THREAD = 8;
+
+    private final RawDataFileWriter writer;
+    private final ExecutorService executor;
+    private final int maxPendingScans;
+
+    private final Map<SimpleScan, Future<DecodedDataPoints>> decodedScans = new IdentityHashMap<SimpleScan, Future<DecodedDataPoints>>();
+    private final LinkedList<SimpleScan> pendingScans = new LinkedList<SimpleScan>();
+
+    ParallelScanDecoder(RawDataFileWriter writer, int numOfThreads) {
+        this.writer = writer;
+        this.executor = Executors.newFixedThreadPool(numOfThreads,
+                TaskMetrics.newThreadFactory());
+        this.maxPendingScans = numOfThreads * PENDING_SCANS_PER_THREAD;
+    }
+
+    /**
+     * Starts decoding the data points of given scan. The data points and the
+     * detected spectrum type are set to the scan before it is written.
+     */
+    void decode(SimpleScan scan, final Callable<DataPoint[]> decoder) {
+        Future<DecodedDataPoints> result = executor
+                .submit(new Callable<DecodedDataPoints>() {
+                    @Override
+                    public DecodedDataPoints call() throws Exception {
+                        DataPoint dataPoints[] = decoder.call();
+                        // Auto-detect whether this scan is centroided
+                        MassSpectrumType spectrumType = ScanUtils
+                                .detectSpectrumType(dataPoints);
+                        return new DecodedDataPoints(dataPoints, spectrumType);
+                    }
+                });
+        decodedScans.put(scan, result);
+    }
+
+    /**
+     * Adds a scan to be written after all previously added scans. Writes the
+     * scans which are already decoded, and waits for the oldest scan if too
+     * many scans are waiting.
+     *
+     * @throws ExecutionException
+     *             if decoding the data points of a scan failed
+     */
+    void addScan(SimpleScan scan) throws IOException, InterruptedException,
+            ExecutionException {
+        pendingScans.addLast(scan);
+        while (!pendingScans.isEmpty()) {
+            Future<DecodedDataPoints> result = decodedScans.get(pendingScans
+                    .getFirst());
+            if ((pendingScans.size() <= maxPendingScans) && (result != null)
+                    && (!result.isDone()))
+                break;
+            writeFirstScan();
+        }
+    }
+
+    /**
+     * Waits for all scans to be decoded and writes them
+     */
+    void finish() throws IOException, InterruptedException,
+            ExecutionException {
+        while (!pendingScans.isEmpty())
+            writeFirstScan();
+    }
+
+    /**
+     * Stops the worker threads. Must be called when the parsing is finished,
+     * also if it failed or was canceled.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void writeFirstScan() throws IOException, InterruptedException,
+            ExecutionException {
+        SimpleScan scan = pendingScans.removeFirst();
+        Future<DecodedDataPoints> result = decodedScans.remove(scan);
+        if (result != null) {
+            DecodedDataPoints decoded = result.get();
+            scan.setSpectrumType(decoded.spectrumType);
+            scan.setDataPoints(decoded.dataPoints);
+        }
+        writer.addScan(scan);
+    }
+
+    private static class DecodedDataPoints {
+
+        private final DataPoint dataPoints[];
+        private final MassSpectrumType spectrumType;
+
+        DecodedDataPoints(DataPoint dataPoints[],
+                MassSpectrumType spectrumType) {
+            this.dataPoints = dataPoints;
+            this.spectrumType = spectrumType;
+        }
+
+    }
+
+}
@@ -21,10 +21,10 @@ package net.sf.mzmine.modules.visualization.threed;
 
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
@@ -120,6 +120,9 @@ class ThreeDSamplingTask extends AbstractTask {
                     * rtResolution];
             boolean rtDataSet[] = new boolean[rtResolution];
 
+            // one buffer is reused for all scans
+            SpectrumBuffer spectrum = new SpectrumBuffer();
+
             // load scans
             for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
 
@@ -128,16 +131,10 @@ class ThreeDSamplingTask extends AbstractTask {
 
                 Scan scan = scans[scanIndex];
 
-                DataPoint dataPoints[] = scan.getDataPoints();
-                double[] scanMZValues = new double[dataPoints.length];
-                double[] scanIntensityValues = new double[dataPoints.length];
-                for (int dp = 0; dp < dataPoints.length; dp++) {
-                    scanMZValues[dp] = dataPoints[dp].getMZ();
-                    scanIntensityValues[dp] = dataPoints[dp].getIntensity();
-                }
+                scan.getDataPoints(spectrum);
 
-                double[] binnedIntensities = ScanUtils.binValues(scanMZValues,
-                        scanIntensityValues, mzRange, mzResolution,
+                double[] binnedIntensities = ScanUtils.binValues(spectrum,
+                        mzRange, mzResolution,
                         scan.getSpectrumType() != MassSpectrumType.CENTROIDED,
                         BinningType.MAX);
 
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of decoded data points (scans and mass lists),
+ * shared by all RawDataFileImpl instances. Each entry is keyed by the raw data
+ * file and the storage ID, and holds the m/z and intensity values interleaved
+ * in a float array, exactly as they are stored in the data points file. The
+ * total size of the cached arrays is limited by a maximum number of bytes,
+ * which can be changed in the MZmine preferences. A maximum size of 0 disables
+ * the cache. All methods are thread-safe.
+ * 
+ * The entries are spread over independently locked segments by their key, so
+ * that threads reading different scans rarely wait for each other. Each
+ * segment evicts its own least recently used entries and may use an equal
+ * part of the maximum size, so arrays larger than that part are not cached.
+ */
+public class DataPointsCache {
+
+    // Approximate memory used by the map entry, key and array header
+    private static final int ENTRY_OVERHEAD = 80;
+
+    // Number of segments, must be a power of two
+    private static final int NUM_SEGMENTS = 16;
+
+    private final Segment segments[] = new Segment[NUM_SEGMENTS];
+    private volatile long maxSize;
+
+    DataPointsCache(long maxSize) {
+	for (int i = 0; i < NUM_SEGMENTS; i++)
+	    segments[i] = new Segment();
+	setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the cached values, or null if they are not in the cache. The
+     * returned array must not be modified.
+     */
+    float[] get(RawDataFileImpl dataFile, int storageID) {
+	if (maxSize == 0)
+	    return null;
+	final CacheKey key = new CacheKey(dataFile, storageID);
+	return getSegment(key).get(key);
+    }
+
+    /**
+     * Stores the values in the cache, evicting the least recently used
+     * entries of the same segment if necessary. The array must not be modified
+     * after it was stored.
+     */
+    void put(RawDataFileImpl dataFile, int storageID, float values[]) {
+	final CacheKey key = new CacheKey(dataFile, storageID);
+	getSegment(key).put(key, values);
+    }
+
+    /**
+     * Removes the values stored under given storage ID. Must be called
+     * whenever the storage ID is removed from the data file, so that the
+     * values do not take up the cache until they are evicted.
+     */
+    void remove(RawDataFileImpl dataFile, int storageID) {
+	final CacheKey key = new CacheKey(dataFile, storageID);
+	getSegment(key).remove(key);
+    }
+
+    /**
+     * Removes all entries of given data file
+     */
+    void removeAll(RawDataFileImpl dataFile) {
+	for (Segment segment : segments)
+	    segment.removeAll(dataFile);
+    }
+
+    /**
+     * Sets the maximum size of the cache in bytes. 0 disables the cache.
+     */
+    public void setMaxSize(long maxSize) {
+	if (maxSize < 0)
+	    throw new IllegalArgumentException("Invalid cache size " + maxSize);
+	this.maxSize = maxSize;
+	for (Segment segment : segments)
+	    segment.setMaxSize(maxSize / NUM_SEGMENTS);
+    }
+
+    public long getMaxSize() {
+	return maxSize;
+    }
+
+    /**
+     * @return Approximate number of bytes currently used by the cache
+     */
+    public long getSize() {
+	long size = 0;
+	for (Segment segment : segments)
+	    size += segment.getSize();
+	return size;
+    }
+
+    public int getNumberOfEntries() {
+	int numOfEntries = 0;
+	for (Segment segment : segments)
+	    numOfEntries += segment.getNumberOfEntries();
+	return numOfEntries;
+    }
+
+    public long getHits() {
+	long hits = 0;
+	for (Segment segment : segments)
+	    hits += segment.getHits();
+	return hits;
+    }
+
+    public long getMisses() {
+	long misses = 0;
+	for (Segment segment : segments)
+	    misses += segment.getMisses();
+	return misses;
+    }
+
+    public long getEvictions() {
+	long evictions = 0;
+	for (Segment segment : segments)
+	    evictions += segment.getEvictions();
+	return evictions;
+    }
+
+    /**
+     * @return Ratio of cache hits to all cache lookups, or 0 if there were no
+     *         lookups yet
+     */
+    public double getHitRate() {
+	final long hits = getHits();
+	final long lookups = hits + getMisses();
+	if (lookups == 0)
+	    return 0;
+	return (double) hits / lookups;
+    }
+
+    private Segment getSegment(CacheKey key) {
+	final int hash = key.hashCode();
+	return segments[(hash ^ (hash >>> 16)) & (NUM_SEGMENTS - 1)];
+    }
+
+    private static long getEntrySize(float values[]) {
+	return 4L * values.length + ENTRY_OVERHEAD;
+    }
+
+    @Override
+    public String toString() {
+	return "Spectra cache: " + (getSize() / (1024 * 1024)) + "MB of "
+		+ (maxSize / (1024 * 1024)) + "MB used, "
+		+ Math.round(getHitRate() * 100) + "% hits, " + getEvictions()
+		+ " evictions";
+    }
+
+    /**
+     * Part of the cache with its own lock and least-recently-used order
+     */
+    private static final class Segment {
+
+	// Access-ordered map, so the eldest entry is the least recently used
+	private final LinkedHashMap<CacheKey, float[]> entries = new LinkedHashMap<CacheKey, float[]>(
+		64, 0.75f, true);
+	private long maxSize, currentSize;
+	private long hits, misses, evictions;
+
+	synchronized float[] get(CacheKey key) {
+	    float values[] = entries.get(key);
+	    if (values != null)
+		hits++;
+	    else
+		misses++;
+	    return values;
+	}
+
+	synchronized void put(CacheKey key, float values[]) {
+
+	    final long entrySize = getEntrySize(values);
+	    if (entrySize > maxSize)
+		return;
+
+	    float previous[] = entries.put(key, values);
+	    if (previous != null)
+		currentSize -= getEntrySize(previous);
+	    currentSize += entrySize;
+
+	    evict();
+	}
+
+	synchronized void remove(CacheKey key) {
+	    float previous[] = entries.remove(key);
+	    if (previous != null)
+		currentSize -= getEntrySize(previous);
+	}
+
+	synchronized void removeAll(RawDataFileImpl dataFile) {
+	    Iterator<Map.Entry<CacheKey, float[]>> iterator = entries
+		    .entrySet().iterator();
+	    while (iterator.hasNext()) {
+		Map.Entry<CacheKey, float[]> entry = iterator.next();
+		if (entry.getKey().dataFile == dataFile) {
+		    currentSize -= getEntrySize(entry.getValue());
+		    iterator.remove();
+		}
+	    }
+	}
+
+	synchronized void setMaxSize(long maxSize) {
+	    this.maxSize = maxSize;
+	    evict();
+	}
+
+	synchronized long getSize() {
+	    return currentSize;
+	}
+
+	synchronized int getNumberOfEntries() {
+	    return entries.size();
+	}
+
+	synchronized long getHits() {
+	    return hits;
+	}
+
+	synchronized long getMisses() {
+	    return misses;
+	}
+
+	synchronized long getEvictions() {
+	    return evictions;
+	}
+
+	private void evict() {
+	    Iterator<float[]> iterator = entries.values().iterator();
+	    while ((currentSize > maxSize) && iterator.hasNext()) {
+		currentSize -= getEntrySize(iterator.next());
+		iterator.remove();
+		evictions++;
+	    }
+	}
+
+    }
+
+    private static final class CacheKey {
+
+	private final RawDataFileImpl dataFile;
+	private final int storageID;
+
+	CacheKey(RawDataFileImpl dataFile, int storageID) {
+	    this.dataFile = dataFile;
+	    this.storageID = storageID;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof CacheKey))
+		return false;
+	    CacheKey key = (CacheKey) obj;
+	    return (dataFile == key.dataFile) && (storageID == key.storageID);
+	}
+
+	@Override
+	public int hashCode() {
+	    return 31 * System.identityHashCode(dataFile) + storageID;
+	}
+
+    }
+
+}
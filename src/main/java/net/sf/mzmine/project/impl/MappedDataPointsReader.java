@@ -0,0 +1,243 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read access to the temporary data points file of a RawDataFileImpl. The file
+ * is mapped into memory in chunks of at most CHUNK_SIZE bytes (a single mapping
+ * cannot exceed 2 GB), so that any number of threads can read data points
+ * concurrently without seeking a shared RandomAccessFile.
+ * 
+ * The data points file is append-only and may still be growing while it is
+ * read. The mapping of the last chunk is therefore only replaced when the file
+ * has grown to at least twice the mapped length (or the chunk is complete), so
+ * a chunk is re-mapped a logarithmic number of times while it is being
+ * written. Data beyond the current mapping, small files and records crossing a
+ * chunk boundary are read using a positional FileChannel read, which is also
+ * safe for concurrent use.
+ * 
+ * Readers hold a shared read lock only while copying the values out of the
+ * mapping, so close() can release the mappings before the file is deleted
+ * (a mapped file cannot be deleted on Windows).
+ */
+class MappedDataPointsReader {
+
+    static final long CHUNK_SIZE = 1L << 30;
+
+    // Files smaller than this are read directly, without mapping
+    static final long MIN_MAPPING_SIZE = 1L << 20;
+
+    private static final Logger logger = Logger
+	    .getLogger(MappedDataPointsReader.class.getName());
+
+    private final FileChannel channel;
+
+    // Copy-on-write array of mapped chunks, replaced as a whole when a chunk
+    // is (re)mapped
+    private volatile MappedByteBuffer chunks[] = new MappedByteBuffer[0];
+
+    // Mappings replaced by a longer mapping of the same chunk, which may still
+    // be in use by concurrent readers; released in close()
+    private final List<MappedByteBuffer> retiredChunks = new ArrayList<MappedByteBuffer>();
+
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    MappedDataPointsReader(FileChannel channel) {
+	this.channel = channel;
+    }
+
+    /**
+     * Reads values.length float values stored at the given offset of the data
+     * points file into the given array.
+     */
+    void read(long offset, float values[]) throws IOException {
+
+	final int numOfBytes = values.length * 4;
+	final int chunkIndex = (int) (offset / CHUNK_SIZE);
+	final int chunkOffset = (int) (offset - chunkIndex * CHUNK_SIZE);
+	final long chunkEnd = (long) chunkOffset + numOfBytes;
+
+	closeLock.readLock().lock();
+	try {
+
+	    if (closed)
+		throw new IOException("Data points file is closed");
+
+	    MappedByteBuffer chunk = null;
+	    if (chunkEnd <= CHUNK_SIZE)
+		chunk = getChunk(chunkIndex, chunkEnd);
+
+	    if (chunk == null) {
+		readDirectly(offset, numOfBytes).asFloatBuffer().get(values);
+		return;
+	    }
+
+	    ByteBuffer view = chunk.duplicate();
+	    view.position(chunkOffset);
+	    view.limit((int) chunkEnd);
+	    view.slice().asFloatBuffer().get(values);
+
+	} finally {
+	    closeLock.readLock().unlock();
+	}
+
+    }
+
+    /**
+     * Returns a mapping of the given chunk which contains at least
+     * requiredLength bytes, or null if the data should be read directly
+     * because the file has not grown enough since the chunk was last mapped.
+     */
+    private MappedByteBuffer getChunk(int chunkIndex, long requiredLength)
+	    throws IOException {
+
+	MappedByteBuffer currentChunks[] = chunks;
+	if ((chunkIndex < currentChunks.length)
+		&& (currentChunks[chunkIndex] != null)
+		&& (currentChunks[chunkIndex].capacity() >= requiredLength))
+	    return currentChunks[chunkIndex];
+
+	synchronized (this) {
+
+	    // Another thread may have mapped the chunk in the meantime
+	    currentChunks = chunks;
+	    final MappedByteBuffer oldChunk = chunkIndex < currentChunks.length ? currentChunks[chunkIndex]
+		    : null;
+	    if ((oldChunk != null) && (oldChunk.capacity() >= requiredLength))
+		return oldChunk;
+
+	    final long chunkStart = chunkIndex * CHUNK_SIZE;
+	    final long availableLength = Math.min(CHUNK_SIZE, channel.size()
+		    - chunkStart);
+	    if (availableLength < requiredLength) {
+		throw new IOException("Data points file is shorter than "
+			+ (chunkStart + requiredLength) + " bytes");
+	    }
+
+	    // Grow the mapping geometrically while the chunk is being written
+	    final long oldLength = oldChunk == null ? 0 : oldChunk.capacity();
+	    if ((availableLength < CHUNK_SIZE)
+		    && (availableLength < Math.max(MIN_MAPPING_SIZE,
+			    2 * oldLength)))
+		return null;
+
+	    // Never map beyond the current end of the file - the channel is
+	    // writable, so that would extend the file
+	    MappedByteBuffer newChunk = channel.map(MapMode.READ_ONLY,
+		    chunkStart, availableLength);
+
+	    MappedByteBuffer newChunks[] = new MappedByteBuffer[Math.max(
+		    currentChunks.length, chunkIndex + 1)];
+	    System.arraycopy(currentChunks, 0, newChunks, 0,
+		    currentChunks.length);
+	    newChunks[chunkIndex] = newChunk;
+	    chunks = newChunks;
+
+	    if (oldChunk != null)
+		retiredChunks.add(oldChunk);
+
+	    return newChunk;
+	}
+
+    }
+
+    private ByteBuffer readDirectly(long offset, int numOfBytes)
+	    throws IOException {
+	ByteBuffer buffer = ByteBuffer.allocate(numOfBytes);
+	while (buffer.hasRemaining()) {
+	    int read = channel.read(buffer, offset + buffer.position());
+	    if (read < 0) {
+		throw new IOException("Unexpected end of data points file at "
+			+ (offset + buffer.position()));
+	    }
+	}
+	buffer.flip();
+	return buffer;
+    }
+
+    /**
+     * Waits for running reads to finish and releases all mappings of the file,
+     * so that the file can be deleted. Further reads throw an IOException.
+     */
+    void close() {
+	closeLock.writeLock().lock();
+	try {
+	    synchronized (this) {
+		closed = true;
+		for (MappedByteBuffer chunk : chunks)
+		    unmap(chunk);
+		for (MappedByteBuffer chunk : retiredChunks)
+		    unmap(chunk);
+		chunks = new MappedByteBuffer[0];
+		retiredChunks.clear();
+	    }
+	} finally {
+	    closeLock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Releases the given mapping immediately instead of waiting for the
+     * garbage collector. There is no public API for this, so the cleaner of
+     * the buffer is invoked by reflection (sun.misc.Unsafe.invokeCleaner on
+     * Java 9 and newer). If that fails, the mapping is left to the garbage
+     * collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+	if (buffer == null)
+	    return;
+	try {
+	    try {
+		Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+		Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+			ByteBuffer.class);
+		Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+		theUnsafe.setAccessible(true);
+		invokeCleaner.invoke(theUnsafe.get(null), buffer);
+	    } catch (NoSuchMethodException e) {
+		// Java 8 and older
+		Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+		cleanerMethod.setAccessible(true);
+		Object cleaner = cleanerMethod.invoke(buffer);
+		if (cleaner != null)
+		    cleaner.getClass().getMethod("clean").invoke(cleaner);
+	    }
+	} catch (Exception e) {
+	    logger.log(Level.FINE, "Could not release the data points mapping",
+		    e);
+	}
+    }
+
+}
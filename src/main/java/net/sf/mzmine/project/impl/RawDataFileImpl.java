@@ -31,7 +31,8 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +42,9 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 
 import com.google.common.collect.Range;
 import com.google.common.primitives.Ints;
@@ -52,9 +55,13 @@ import com.google.common.primitives.Ints;
  * points are stored in a temporary file (dataPointsFile) and the structure of
  * the file is stored in two TreeMaps. The dataPointsOffsets maps storage ID to
  * the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
- * the number of data points stored under this ID. When stored data points are
- * deleted using removeStoredDataPoints(), the dataPointsFile is not modified,
- * the storage ID is just deleted from the two TreeMaps. When the project is
+ * the number of data points stored under this ID. Data points are appended to
+ * the dataPointsFile under a lock, but they are read through a memory mapping
+ * of the file (see MappedDataPointsReader), so concurrent readers do not block
+ * each other. Recently read data points are kept in a DataPointsCache shared by
+ * all raw data files. When stored data points are deleted using
+ * removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID
+ * is just deleted from the two TreeMaps and from the cache. When the project is
  * saved, the contents of the dataPointsFile are consolidated - only data points
  * referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
  */
@@ -62,6 +69,14 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     private final Logger logger = Logger.getLogger(this.getClass().getName());
 
+    // Default size of the data points cache (256 MB), used until the
+    // preferences are loaded
+    public static final int DEFAULT_CACHE_SIZE_MB = 256;
+
+    // Decoded data points of all raw data files
+    private static final DataPointsCache dataPointsCache = new DataPointsCache(
+	    DEFAULT_CACHE_SIZE_MB * 1024L * 1024L);
+
     // Name of this raw data file - may be changed by the user
     private String dataFileName;
 
@@ -71,12 +86,17 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     private final Hashtable<Integer, int[]> scanNumbersCache;
 
     private ByteBuffer buffer = ByteBuffer.allocate(20000);
-    private final TreeMap<Integer, Long> dataPointsOffsets;
-    private final TreeMap<Integer, Integer> dataPointsLengths;
+    private final ConcurrentSkipListMap<Integer, Long> dataPointsOffsets;
+    private final ConcurrentSkipListMap<Integer, Integer> dataPointsLengths;
+
+    // Storage IDs are never reused, so that a reader which looked up a removed
+    // ID cannot put its values into the cache under a new ID
+    private int nextStorageID = 1;
 
     // Temporary file for scan data storage
     private File dataPointsFileName;
     private RandomAccessFile dataPointsFile;
+    private volatile MappedDataPointsReader dataPointsReader;
 
     /**
      * Scans
@@ -94,8 +114,8 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
 	dataMaxTIC = new Hashtable<Integer, Double>();
 	scans = new Hashtable<Integer, StorableScan>();
-	dataPointsOffsets = new TreeMap<Integer, Long>();
-	dataPointsLengths = new TreeMap<Integer, Integer>();
+	dataPointsOffsets = new ConcurrentSkipListMap<Integer, Long>();
+	dataPointsLengths = new ConcurrentSkipListMap<Integer, Integer>();
 
     }
 
@@ -134,6 +154,8 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	this.dataPointsFileName = dataPointsFileName;
 	this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+	this.dataPointsReader = new MappedDataPointsReader(
+		dataPointsFile.getChannel());
 
 	// Locks the temporary file so it is not removed when another instance
 	// of MZmine is starting. Lock will be automatically released when this
@@ -318,26 +340,40 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     public synchronized int storeDataPoints(DataPoint dataPoints[])
 	    throws IOException {
+	return storeDataPoints(new DataPoint[][] { dataPoints })[0];
+    }
+
+    /**
+     * Stores several arrays of data points with a single write to the data
+     * points file, so that the lock of this file is acquired only once for the
+     * whole batch.
+     * 
+     * @return Storage IDs of the data points, in the order of the given arrays
+     */
+    public synchronized int[] storeDataPoints(DataPoint dataPointsBatch[][])
+	    throws IOException {
 
 	if (dataPointsFile == null) {
 	    File newFile = RawDataFileImpl.createNewDataPointsFile();
 	    openDataPointsFile(newFile);
 	}
 
-	final long currentOffset = dataPointsFile.length();
+	final long startOffset = dataPointsFile.length();
 
-	final int currentID;
+	// IDs may also have been added directly to dataPointsOffsets when
+	// loading a project
+	int nextID = nextStorageID;
 	if (!dataPointsOffsets.isEmpty())
-	    currentID = dataPointsOffsets.lastKey() + 1;
-	else
-	    currentID = 1;
+	    nextID = Math.max(nextID, dataPointsOffsets.lastKey() + 1);
 
-	final int numOfDataPoints = dataPoints.length;
+	int totalDataPoints = 0;
+	for (DataPoint dataPoints[] : dataPointsBatch)
+	    totalDataPoints += dataPoints.length;
 
 	// Convert the dataPoints into a byte array. Each float takes 4 bytes,
 	// so we get the current float offset by dividing the size of the file
 	// by 4
-	final int numOfBytes = numOfDataPoints * 2 * 4;
+	final int numOfBytes = totalDataPoints * 2 * 4;
 
 	if (buffer.capacity() < numOfBytes) {
 	    buffer = ByteBuffer.allocate(numOfBytes * 2);
@@ -345,59 +381,123 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    buffer.clear();
 	}
 
+	final int storageIDs[] = new int[dataPointsBatch.length];
+	long currentOffset = startOffset;
 	FloatBuffer floatBuffer = buffer.asFloatBuffer();
-	for (DataPoint dp : dataPoints) {
-	    floatBuffer.put((float) dp.getMZ());
-	    floatBuffer.put((float) dp.getIntensity());
+	for (int i = 0; i < dataPointsBatch.length; i++) {
+	    final DataPoint dataPoints[] = dataPointsBatch[i];
+	    for (DataPoint dp : dataPoints) {
+		floatBuffer.put((float) dp.getMZ());
+		floatBuffer.put((float) dp.getIntensity());
+	    }
+	    storageIDs[i] = nextID;
+	    dataPointsOffsets.put(nextID, currentOffset);
+	    dataPointsLengths.put(nextID, dataPoints.length);
+	    currentOffset += dataPoints.length * 2 * 4;
+	    nextID++;
 	}
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.write(buffer.array(), 0, numOfBytes);
+	nextStorageID = nextID;
 
-	dataPointsOffsets.put(currentID, currentOffset);
-	dataPointsLengths.put(currentID, numOfDataPoints);
+	dataPointsFile.seek(startOffset);
+	dataPointsFile.write(buffer.array(), 0, numOfBytes);
 
-	return currentID;
+	return storageIDs;
 
     }
 
-    public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+    /**
+     * Reads the data points stored under given storage ID. This method is not
+     * synchronized, it may be called by many threads at once.
+     */
+    public DataPoint[] readDataPoints(int ID) throws IOException {
+
+	final float storedValues[] = readStoredValues(ID);
+	final int numOfDataPoints = storedValues.length / 2;
 
-	final Long currentOffset = dataPointsOffsets.get(ID);
-	final Integer numOfDataPoints = dataPointsLengths.get(ID);
+	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
 
-	if ((currentOffset == null) || (numOfDataPoints == null)) {
-	    throw new IllegalArgumentException("Unknown storage ID " + ID);
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    float mz = storedValues[i * 2];
+	    float intensity = storedValues[i * 2 + 1];
+	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
 	}
 
-	final int numOfBytes = numOfDataPoints * 2 * 4;
+	return dataPoints;
 
-	if (buffer.capacity() < numOfBytes) {
-	    buffer = ByteBuffer.allocate(numOfBytes * 2);
-	} else {
-	    buffer.clear();
-	}
+    }
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.read(buffer.array(), 0, numOfBytes);
+    /**
+     * Reads the data points stored under given storage ID into the given
+     * buffer, without creating a DataPoint object for each value. This method
+     * is not synchronized, it may be called by many threads at once.
+     */
+    public void readDataPoints(int ID, SpectrumBuffer buffer)
+	    throws IOException {
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	final float storedValues[] = readStoredValues(ID);
+	final int numOfDataPoints = storedValues.length / 2;
 
-	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+	buffer.clear();
+	buffer.ensureCapacity(numOfDataPoints);
+	final double mzValues[] = buffer.getMZValues();
+	final double intensityValues[] = buffer.getIntensityValues();
 
 	for (int i = 0; i < numOfDataPoints; i++) {
-	    float mz = floatBuffer.get();
-	    float intensity = floatBuffer.get();
-	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
+	    mzValues[i] = storedValues[i * 2];
+	    intensityValues[i] = storedValues[i * 2 + 1];
 	}
+	buffer.setSize(numOfDataPoints);
 
-	return dataPoints;
+    }
+
+    /**
+     * Returns the interleaved m/z and intensity values stored under given
+     * storage ID, either from the data points cache or from the data points
+     * file. The returned array is shared with the cache and must not be
+     * modified.
+     */
+    private float[] readStoredValues(int ID) throws IOException {
 
+	float storedValues[] = dataPointsCache.get(this, ID);
+	if (storedValues != null)
+	    return storedValues;
+
+	final Long currentOffset = dataPointsOffsets.get(ID);
+	final Integer numOfDataPoints = dataPointsLengths.get(ID);
+	final MappedDataPointsReader reader = dataPointsReader;
+
+	if ((currentOffset == null) || (numOfDataPoints == null)
+		|| (reader == null)) {
+	    throw new IllegalArgumentException("Unknown storage ID " + ID);
+	}
+
+	storedValues = new float[numOfDataPoints * 2];
+	reader.read(currentOffset, storedValues);
+	TaskMetrics.addReadBytes(storedValues.length * 4);
+
+	dataPointsCache.put(this, ID, storedValues);
+
+	// The data points may have been removed while we were reading them
+	if (!dataPointsOffsets.containsKey(ID))
+	    dataPointsCache.remove(this, ID);
+
+	return storedValues;
+
+    }
+
+    /**
+     * Returns the cache of decoded data points, shared by all raw data files
+     */
+    public static DataPointsCache getDataPointsCache() {
+	return dataPointsCache;
     }
 
     public synchronized void removeStoredDataPoints(int ID) throws IOException {
+	nextStorageID = Math.max(nextStorageID, ID + 1);
 	dataPointsOffsets.remove(ID);
 	dataPointsLengths.remove(ID);
+	dataPointsCache.remove(this, ID);
     }
 
     public synchronized void addScan(Scan newScan) throws IOException {
@@ -514,19 +614,27 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return getScanNumbers(msLevel).length;
     }
 
-    public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
+    public SortedMap<Integer, Long> getDataPointsOffsets() {
 	return dataPointsOffsets;
     }
 
-    public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
+    public SortedMap<Integer, Integer> getDataPointsLengths() {
 	return dataPointsLengths;
     }
 
     public synchronized void close() {
+	dataPointsCache.removeAll(this);
 	try {
+	    if (dataPointsReader != null) {
+		dataPointsReader.close();
+		dataPointsReader = null;
+	    }
+	    // The mappings are released above, so the file can be deleted
+	    // also on Windows
 	    if(dataPointsFileName != null) {
     	    	dataPointsFile.close();
-    	    	dataPointsFileName.delete();
+    	    	if (!dataPointsFileName.delete())
+    	    	    logger.warning("Could not delete file " + dataPointsFileName);
 	    }
 	} catch (IOException e) {
 	    logger.warning("Could not close file " + dataPointsFileName + ": "
@@ -27,6 +27,7 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 
 /**
  * Implementation of the Scan interface which stores raw data points in a
@@ -76,6 +77,17 @@ public class StorableMassList implements MassList {
 	}
     }
 
+    @Override
+    public void getDataPoints(@Nonnull SpectrumBuffer buffer) {
+	try {
+	    rawDataFile.readDataPoints(storageID, buffer);
+	} catch (IOException e) {
+	    logger.severe("Could not read data from temporary file "
+		    + e.toString());
+	    buffer.clear();
+	}
+    }
+
     public void removeStoredData() {
 	try {
 	    rawDataFile.removeStoredDataPoints(storageID);
@@ -34,6 +34,8 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.ScanUtils;
@@ -131,6 +133,21 @@ public class StorableScan implements Scan {
 
     }
 
+    /**
+     * Reads the scan's data points from temporary file into given buffer.
+     */
+    public void getDataPoints(@Nonnull SpectrumBuffer buffer) {
+
+	try {
+	    rawDataFile.readDataPoints(storageID, buffer);
+	} catch (IOException e) {
+	    logger.severe("Could not read data from temporary file "
+		    + e.toString());
+	    buffer.clear();
+	}
+
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
@@ -231,26 +248,37 @@ public class StorableScan implements Scan {
     }
 
     void updateValues() {
-	DataPoint dataPoints[] = getDataPoints();
+	SpectrumBuffer buffer = new SpectrumBuffer(numberOfDataPoints);
+	getDataPoints(buffer);
+
+	final int size = buffer.getSize();
+	final double mzValues[] = buffer.getMZValues();
+	final double intensityValues[] = buffer.getIntensityValues();
 
 	// find m/z range and base peak
-	if (dataPoints.length > 0) {
+	if (size > 0) {
 
-	    basePeak = dataPoints[0];
-	    mzRange = Range.singleton(dataPoints[0].getMZ());
+	    int basePeakIndex = 0;
+	    double mzMin = mzValues[0], mzMax = mzValues[0];
 	    double tic = 0;
 
-	    for (DataPoint dp : dataPoints) {
+	    for (int i = 0; i < size; i++) {
 
-		if (dp.getIntensity() > basePeak.getIntensity())
-		    basePeak = dp;
+		if (intensityValues[i] > intensityValues[basePeakIndex])
+		    basePeakIndex = i;
 
-		mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+		if (mzValues[i] < mzMin)
+		    mzMin = mzValues[i];
+		if (mzValues[i] > mzMax)
+		    mzMax = mzValues[i];
 
-		tic += dp.getIntensity();
+		tic += intensityValues[i];
 
 	    }
 
+	    basePeak = new SimpleDataPoint(mzValues[basePeakIndex],
+		    intensityValues[basePeakIndex]);
+	    mzRange = Range.closed(mzMin, mzMax);
 	    totalIonCurrent = new Double(tic);
 
 	} else {
@@ -19,8 +19,25 @@
 
 package net.sf.mzmine.taskcontrol;
 
+/**
+ * Listener of the task controller. The methods are called from the task
+ * controller thread or from the threads running the tasks, not from the Swing
+ * event dispatch thread.
+ */
 public interface TaskControlListener {
 
     public void numberOfWaitingTasksChanged(int numOfTasks);
 
+    /**
+     * Called when a task is started (status PROCESSING) and when a task is
+     * finished, with the final status of the task
+     */
+    public void taskStatusChanged(Task task, TaskStatus newStatus);
+
+    /**
+     * Called when a task which was started is finished, with its resource
+     * usage
+     */
+    public void taskFinished(Task task, TaskMetrics metrics);
+
 }
@@ -38,6 +38,8 @@ public interface TaskController {
 
     public void addTaskControlListener(TaskControlListener listener);
 
+    public void removeTaskControlListener(TaskControlListener listener);
+
     public TaskQueue getTaskQueue();
 
 }
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.taskcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource usage of one task, recorded by the task controller. CPU time,
+ * allocated bytes, processed items and bytes read from raw data files are
+ * measured in the thread running the task and in the worker threads of the
+ * pools the task created with newForkJoinPool() or newThreadFactory(). Work
+ * done in other threads is not included. The peak heap is the largest heap
+ * usage of the whole JVM seen while the task was running.
+ * 
+ * Tasks report the number of processed scans or rows by calling
+ * addProcessedItems() from their run() method or from their pool threads.
+ */
+public class TaskMetrics {
+
+    private static final ThreadLocal<TaskMetrics> currentMetrics = new ThreadLocal<TaskMetrics>();
+
+    private static final ThreadMXBean threadBean = ManagementFactory
+	    .getThreadMXBean();
+    private static final MemoryMXBean memoryBean = ManagementFactory
+	    .getMemoryMXBean();
+
+    /**
+     * Start values of a pool worker thread
+     */
+    private static class PoolThread {
+	private final long threadId, startCpuTime, startAllocatedBytes;
+
+	private PoolThread(long threadId) {
+	    this.threadId = threadId;
+	    this.startCpuTime = getThreadCpuTime(threadId);
+	    this.startAllocatedBytes = getThreadAllocatedBytes(threadId);
+	}
+    }
+
+    /**
+     * Worker thread of a ForkJoinPool, which counts for given metrics
+     */
+    private static class MeasuredWorkerThread extends ForkJoinWorkerThread {
+
+	private final TaskMetrics metrics;
+	private PoolThread poolThread;
+
+	private MeasuredWorkerThread(ForkJoinPool pool, TaskMetrics metrics) {
+	    super(pool);
+	    this.metrics = metrics;
+	}
+
+	@Override
+	protected void onStart() {
+	    super.onStart();
+	    poolThread = metrics.poolThreadStarted();
+	}
+
+	@Override
+	protected void onTermination(Throwable exception) {
+	    metrics.poolThreadFinished(poolThread);
+	    super.onTermination(exception);
+	}
+    }
+
+    private final String taskDescription;
+    private final String taskClass;
+
+    private volatile TaskStatus status = TaskStatus.WAITING;
+    private volatile long threadId = -1;
+    private volatile long startTime;
+    private long startNanos, startCpuTime, startAllocatedBytes;
+    private volatile long wallTime, cpuTime = -1, allocatedBytes = -1;
+    private volatile long peakHeap;
+    private final AtomicLong processedItems = new AtomicLong(),
+	    readBytes = new AtomicLong();
+
+    // Pool threads which are running, and the usage of the finished ones,
+    // guarded by this
+    private final List<PoolThread> poolThreads = new ArrayList<PoolThread>();
+    private long poolCpuTime, poolAllocatedBytes;
+
+    public TaskMetrics(Task task) {
+	this.taskDescription = task.getTaskDescription();
+	// Record the class of the task doing the work, not of its wrapper
+	Task actualTask = task;
+	while (actualTask instanceof TaskWrapper)
+	    actualTask = ((TaskWrapper) actualTask).getWrappedTask();
+	this.taskClass = actualTask.getClass().getName();
+    }
+
+    /**
+     * Creates a ForkJoinPool whose worker threads count for the task running
+     * in the current thread. If no task is running in the current thread, the
+     * pool is a plain ForkJoinPool.
+     */
+    public static ForkJoinPool newForkJoinPool(int parallelism) {
+	final TaskMetrics metrics = currentMetrics.get();
+	if (metrics == null)
+	    return new ForkJoinPool(parallelism);
+	ForkJoinPool.ForkJoinWorkerThreadFactory factory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+	    @Override
+	    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+		return new MeasuredWorkerThread(pool, metrics);
+	    }
+	};
+	return new ForkJoinPool(parallelism, factory, null, false);
+    }
+
+    /**
+     * Creates a thread factory for an executor, whose threads count for the
+     * task running in the current thread. If no task is running in the
+     * current thread, the default thread factory is returned.
+     */
+    public static ThreadFactory newThreadFactory() {
+	final TaskMetrics metrics = currentMetrics.get();
+	final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+	if (metrics == null)
+	    return defaultFactory;
+	return new ThreadFactory() {
+	    @Override
+	    public Thread newThread(final Runnable runnable) {
+		return defaultFactory.newThread(new Runnable() {
+		    @Override
+		    public void run() {
+			PoolThread poolThread = metrics.poolThreadStarted();
+			try {
+			    runnable.run();
+			} finally {
+			    metrics.poolThreadFinished(poolThread);
+			}
+		    }
+		});
+	    }
+	};
+    }
+
+    /**
+     * Adds to the number of scans or rows processed by the task running in the
+     * current thread, if any
+     */
+    public static void addProcessedItems(long items) {
+	TaskMetrics metrics = currentMetrics.get();
+	if (metrics != null)
+	    metrics.processedItems.addAndGet(items);
+    }
+
+    /**
+     * Adds to the number of bytes read by the task running in the current
+     * thread, if any
+     */
+    public static void addReadBytes(long bytes) {
+	TaskMetrics metrics = currentMetrics.get();
+	if (metrics != null)
+	    metrics.readBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Called by the task controller in the thread running the task, right
+     * before the task is started
+     */
+    public void start() {
+	threadId = Thread.currentThread().getId();
+	startTime = System.currentTimeMillis();
+	startNanos = System.nanoTime();
+	startCpuTime = getThreadCpuTime(threadId);
+	startAllocatedBytes = getThreadAllocatedBytes(threadId);
+	status = TaskStatus.PROCESSING;
+	sampleHeap();
+	currentMetrics.set(this);
+    }
+
+    /**
+     * Called by the task controller in the thread running the task, when the
+     * task is finished
+     */
+    public synchronized void finish(TaskStatus finalStatus) {
+	currentMetrics.remove();
+	sampleHeap();
+	wallTime = System.nanoTime() - startNanos;
+	cpuTime = getCpuTime();
+	allocatedBytes = getAllocatedBytes();
+	// Pool threads which are still alive do not count any more
+	poolThreads.clear();
+	threadId = -1;
+	status = finalStatus;
+    }
+
+    /**
+     * Called in a pool thread when it starts
+     */
+    private synchronized PoolThread poolThreadStarted() {
+	if (!isRunning())
+	    return null;
+	PoolThread poolThread = new PoolThread(Thread.currentThread().getId());
+	poolThreads.add(poolThread);
+	currentMetrics.set(this);
+	return poolThread;
+    }
+
+    /**
+     * Called in a pool thread when it terminates, adds its usage to the
+     * task if the task is still running
+     */
+    private synchronized void poolThreadFinished(PoolThread poolThread) {
+	currentMetrics.remove();
+	if ((poolThread == null) || !poolThreads.remove(poolThread))
+	    return;
+	poolCpuTime = add(poolCpuTime, subtract(
+		getThreadCpuTime(poolThread.threadId), poolThread.startCpuTime));
+	poolAllocatedBytes = add(poolAllocatedBytes, subtract(
+		getThreadAllocatedBytes(poolThread.threadId),
+		poolThread.startAllocatedBytes));
+    }
+
+    /**
+     * Updates the peak heap usage. Called by the task controller while the
+     * task is running.
+     */
+    public void sampleHeap() {
+	long used = memoryBean.getHeapMemoryUsage().getUsed();
+	if (used > peakHeap)
+	    peakHeap = used;
+    }
+
+    public String getTaskDescription() {
+	return taskDescription;
+    }
+
+    public String getTaskClass() {
+	return taskClass;
+    }
+
+    public TaskStatus getStatus() {
+	return status;
+    }
+
+    /**
+     * @return True if the task is currently running
+     */
+    public boolean isRunning() {
+	return threadId >= 0;
+    }
+
+    /**
+     * @return Start of the task in milliseconds since the epoch, or 0 if the
+     *         task was not started
+     */
+    public long getStartTime() {
+	return startTime;
+    }
+
+    /**
+     * @return Wall time of the task in nanoseconds, so far if it is running
+     */
+    public long getWallTime() {
+	if (isRunning())
+	    return System.nanoTime() - startNanos;
+	return wallTime;
+    }
+
+    /**
+     * @return CPU time of the task and its pool threads in nanoseconds, or -1
+     *         if the JVM does not measure thread CPU time
+     */
+    public synchronized long getCpuTime() {
+	long id = threadId;
+	if (id < 0)
+	    return cpuTime;
+	long total = add(poolCpuTime,
+		subtract(getThreadCpuTime(id), startCpuTime));
+	for (PoolThread poolThread : poolThreads)
+	    total = add(total, subtract(getThreadCpuTime(poolThread.threadId),
+		    poolThread.startCpuTime));
+	return total;
+    }
+
+    /**
+     * @return Bytes allocated by the task and its pool threads, or -1 if the
+     *         JVM does not measure thread allocation
+     */
+    public synchronized long getAllocatedBytes() {
+	long id = threadId;
+	if (id < 0)
+	    return allocatedBytes;
+	long total = add(poolAllocatedBytes,
+		subtract(getThreadAllocatedBytes(id), startAllocatedBytes));
+	for (PoolThread poolThread : poolThreads)
+	    total = add(total, subtract(
+		    getThreadAllocatedBytes(poolThread.threadId),
+		    poolThread.startAllocatedBytes));
+	return total;
+    }
+
+    public long getPeakHeap() {
+	return peakHeap;
+    }
+
+    public long getProcessedItems() {
+	return processedItems.get();
+    }
+
+    /**
+     * @return Processed items per second of wall time, or 0 if the task did
+     *         not report any items
+     */
+    public double getItemsPerSecond() {
+	long time = getWallTime();
+	long items = processedItems.get();
+	if ((items == 0) || (time <= 0))
+	    return 0;
+	return items * 1e9 / time;
+    }
+
+    public long getReadBytes() {
+	return readBytes.get();
+    }
+
+    /**
+     * @return Difference of two measured values, or -1 if one of them is not
+     *         measured
+     */
+    private static long subtract(long current, long start) {
+	if ((current < 0) || (start < 0))
+	    return -1;
+	return current - start;
+    }
+
+    /**
+     * @return Sum of two measured values, or -1 if one of them is not measured
+     */
+    private static long add(long a, long b) {
+	if ((a < 0) || (b < 0))
+	    return -1;
+	return a + b;
+    }
+
+    private static long getThreadCpuTime(long id) {
+	if (!threadBean.isThreadCpuTimeSupported()
+		|| !threadBean.isThreadCpuTimeEnabled())
+	    return -1;
+	return threadBean.getThreadCpuTime(id);
+    }
+
+    private static long getThreadAllocatedBytes(long id) {
+	// Only available in the HotSpot extension of the thread MXBean
+	if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+	    return -1;
+	com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) threadBean;
+	if (!hotSpotBean.isThreadAllocatedMemorySupported()
+		|| !hotSpotBean.isThreadAllocatedMemoryEnabled())
+	    return -1;
+	return hotSpotBean.getThreadAllocatedBytes(id);
+    }
+
+}
@@ -21,10 +21,16 @@ package net.sf.mzmine.taskcontrol.impl;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
@@ -34,33 +40,48 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskControlListener;
 import net.sf.mzmine.taskcontrol.TaskController;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
 /**
- * Task controller implementation
+ * Task controller implementation. Tasks of NORMAL priority are executed by a
+ * thread pool limited to the number of threads set in the preferences, in the
+ * order in which they were added. Tasks of HIGH priority are started
+ * immediately in a separate pool without limit. Tasks are started as soon as
+ * they are added or a thread becomes free, the controller thread only updates
+ * the task progress window.
  */
 public class TaskControllerImpl implements TaskController, Runnable {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    ArrayList<TaskControlListener> listeners = new ArrayList<TaskControlListener>();
+    private final List<TaskControlListener> listeners = new CopyOnWriteArrayList<TaskControlListener>();
 
     /**
      * Update the task progress window every 300 ms
      */
     private final int TASKCONTROLLER_THREAD_SLEEP = 300;
 
+    /**
+     * Idle threads of the HIGH priority pool are stopped after 60 s
+     */
+    private final long HIGH_PRIORITY_KEEP_ALIVE = 60;
+
     private Thread taskControllerThread;
 
     private TaskQueue taskQueue;
 
     /**
-     * This vector contains references to all running threads of NORMAL
-     * priority. Maximum number of concurrent threads is specified in the
-     * preferences dialog.
+     * Executes the tasks of NORMAL priority. Maximum number of concurrent
+     * threads is specified in the preferences dialog.
+     */
+    private ThreadPoolExecutor normalPriorityExecutor;
+
+    /**
+     * Executes the tasks of HIGH priority, each in its own thread
      */
-    private Vector<WorkerThread> runningThreads;
+    private ThreadPoolExecutor highPriorityExecutor;
 
     /**
      * Initialize the task controller
@@ -69,10 +90,19 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
 	taskQueue = new TaskQueue();
 
-	runningThreads = new Vector<WorkerThread>();
+	int numOfThreads = getMaxRunningThreads();
+	normalPriorityExecutor = new ThreadPoolExecutor(numOfThreads,
+		numOfThreads, 0L, TimeUnit.MILLISECONDS,
+		new LinkedBlockingQueue<Runnable>(), new TaskThreadFactory(
+			"Task thread"));
 
-	// Create a low-priority thread that will manage the queue and start
-	// worker threads for tasks
+	highPriorityExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+		HIGH_PRIORITY_KEEP_ALIVE, TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(), new TaskThreadFactory(
+			"High priority task thread"));
+
+	// Create a low-priority thread that will update the task progress
+	// window
 	taskControllerThread = new Thread(this, "Task controller thread");
 	taskControllerThread.setPriority(Thread.MIN_PRIORITY);
 	taskControllerThread.start();
@@ -101,6 +131,9 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	if ((tasks == null) || (tasks.length == 0))
 	    return;
 
+	// The number of threads may have been changed in the preferences
+	updatePoolSize();
+
 	List<String> taskClass = new ArrayList<String>();
 	String taskClassName;
 	for (Task task : tasks) {
@@ -108,7 +141,9 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	    taskClassName = taskClassName.substring(taskClassName.lastIndexOf(".") + 1);
 	    taskClass.add(taskClassName);
 	    WrappedTask newQueueEntry = new WrappedTask(task, priority);
+	    newQueueEntry.setRunner(new TaskRunner(newQueueEntry, this));
 	    taskQueue.addWrappedTask(newQueueEntry);
+	    execute(newQueueEntry);
 	}
 
 	// Track module usage
@@ -129,7 +164,8 @@ public class TaskControllerImpl implements TaskController, Runnable {
     }
 
     /**
-     * Task controller thread main method.
+     * Task controller thread main method. Refreshes the task progress window
+     * while there are tasks in the queue.
      * 
      * @see java.lang.Runnable#run()
      */
@@ -164,57 +200,22 @@ public class TaskControllerImpl implements TaskController, Runnable {
 		continue;
 	    }
 
-	    // Remove already finished threads from runningThreads
-	    Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-	    while (threadIterator.hasNext()) {
-		WorkerThread thread = threadIterator.next();
-		if (thread.isFinished())
-		    threadIterator.remove();
-	    }
-
-	    // Get a snapshot of the queue
-	    WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
-
-	    // Obtain the settings of max concurrent threads
-	    NumOfThreadsParameter parameter = MZmineCore.getConfiguration()
-		    .getPreferences()
-		    .getParameter(MZminePreferences.numOfThreads);
-	    int maxRunningThreads;
-	    if (parameter.isAutomatic() || (parameter.getValue() == null))
-		maxRunningThreads = Runtime.getRuntime().availableProcessors();
-	    else
-		maxRunningThreads = parameter.getValue();
-
-	    // Check all tasks in the queue
-	    for (WrappedTask task : queueSnapshot) {
-
-		// Skip assigned and canceled tasks
-		if (task.isAssigned()
-			|| (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-		    continue;
-
-		// Create a new thread if the task is high-priority or if we
-		// have less then maximum # of threads running
-		if ((task.getPriority() == TaskPriority.HIGH)
-			|| (runningThreads.size() < maxRunningThreads)) {
-		    WorkerThread newThread = new WorkerThread(task);
-
-		    if (task.getPriority() == TaskPriority.NORMAL) {
-			runningThreads.add(newThread);
-		    }
-
-		    newThread.start();
-		}
+	    // Record the heap usage of running tasks
+	    for (WrappedTask wrappedTask : taskQueue.getQueueSnapshot()) {
+		if (wrappedTask.getMetrics().isRunning())
+		    wrappedTask.getMetrics().sampleHeap();
 	    }
 
 	    // Tell the queue to refresh the Task progress window
 	    taskQueue.refresh();
 
-	    // Sleep for a while until next update
-	    try {
-		Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-	    } catch (InterruptedException e) {
-		// Ignore
+	    // Sleep for a while until next update, or until a task finishes
+	    synchronized (this) {
+		try {
+		    this.wait(TASKCONTROLLER_THREAD_SLEEP);
+		} catch (InterruptedException e) {
+		    // Ignore
+		}
 	    }
 
 	}
@@ -234,6 +235,14 @@ public class TaskControllerImpl implements TaskController, Runnable {
 			+ task.getTaskDescription() + "\" to " + priority);
 		wrappedTask.setPriority(priority);
 
+		// A waiting task raised to HIGH priority does not wait for a
+		// free thread anymore
+		if ((priority == TaskPriority.HIGH)
+			&& normalPriorityExecutor.remove(wrappedTask
+				.getRunner())) {
+		    highPriorityExecutor.execute(wrappedTask.getRunner());
+		}
+
 		// Call refresh to re-sort the queue according to new priority
 		// and update the Task progress window
 		taskQueue.refresh();
@@ -246,4 +255,99 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	listeners.add(listener);
     }
 
+    @Override
+    public void removeTaskControlListener(TaskControlListener listener) {
+	listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners that given task was started or finished. Called
+     * from the thread running the task.
+     */
+    void fireTaskStatusChanged(Task task, TaskStatus newStatus) {
+	for (TaskControlListener listener : listeners) {
+	    try {
+		listener.taskStatusChanged(task, newStatus);
+	    } catch (Exception e) {
+		logger.log(Level.WARNING, "Error in task control listener", e);
+	    }
+	}
+    }
+
+    /**
+     * Passes the resource usage of a finished task to the listeners. Called
+     * from the thread which was running the task.
+     */
+    void fireTaskFinished(Task task, TaskMetrics metrics) {
+	for (TaskControlListener listener : listeners) {
+	    try {
+		listener.taskFinished(task, metrics);
+	    } catch (Exception e) {
+		logger.log(Level.WARNING, "Error in task control listener", e);
+	    }
+	}
+    }
+
+    /**
+     * Called from the thread running a task, when the task is finished
+     */
+    void taskFinished() {
+	// Wake up the task controller thread to update the progress window
+	synchronized (this) {
+	    this.notifyAll();
+	}
+    }
+
+    private void execute(WrappedTask wrappedTask) {
+	if (wrappedTask.getPriority() == TaskPriority.HIGH)
+	    highPriorityExecutor.execute(wrappedTask.getRunner());
+	else
+	    normalPriorityExecutor.execute(wrappedTask.getRunner());
+    }
+
+    private int getMaxRunningThreads() {
+	// Obtain the settings of max concurrent threads
+	NumOfThreadsParameter parameter = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads);
+	return Math.max(1, parameter.getNumberOfThreads());
+    }
+
+    private synchronized void updatePoolSize() {
+	int maxRunningThreads = getMaxRunningThreads();
+	if (maxRunningThreads == normalPriorityExecutor.getCorePoolSize())
+	    return;
+	// The core size must never exceed the maximum size
+	if (maxRunningThreads > normalPriorityExecutor.getMaximumPoolSize()) {
+	    normalPriorityExecutor.setMaximumPoolSize(maxRunningThreads);
+	    normalPriorityExecutor.setCorePoolSize(maxRunningThreads);
+	} else {
+	    normalPriorityExecutor.setCorePoolSize(maxRunningThreads);
+	    normalPriorityExecutor.setMaximumPoolSize(maxRunningThreads);
+	}
+    }
+
+    /**
+     * Creates the threads of the task pools. The threads are not daemon
+     * threads, so that MZmine does not exit while tasks are running.
+     */
+    private static class TaskThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	TaskThreadFactory(String namePrefix) {
+	    this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+	    Thread thread = new Thread(runnable, namePrefix + " "
+		    + threadNumber.getAndIncrement());
+	    thread.setDaemon(false);
+	    thread.setPriority(Thread.NORM_PRIORITY);
+	    return thread;
+	}
+
+    }
+
 }
@@ -26,6 +26,7 @@ import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.components.LabeledProgressBar;
@@ -153,7 +154,7 @@ public class TaskQueue extends AbstractTableModel {
     /* TableModel implementation */
 
     private static final String columns[] = { "Item", "Priority", "Status",
-	    "% done" };
+	    "% done", "Time", "CPU time", "Allocated", "Items/s", "Read" };
 
     /**
      * @see javax.swing.table.TableModel#getRowCount()
@@ -201,12 +202,43 @@ public class TaskQueue extends AbstractTableModel {
 		}
 		return progressBar;
 	    }
+
+	    TaskMetrics metrics = wrappedTask.getMetrics();
+	    if (metrics.getStartTime() == 0)
+		return null;
+
+	    switch (column) {
+	    case 4:
+		return formatTime(metrics.getWallTime());
+	    case 5:
+		return formatTime(metrics.getCpuTime());
+	    case 6:
+		return formatBytes(metrics.getAllocatedBytes());
+	    case 7:
+		if (metrics.getProcessedItems() == 0)
+		    return null;
+		return String.format("%.1f", metrics.getItemsPerSecond());
+	    case 8:
+		return formatBytes(metrics.getReadBytes());
+	    }
 	}
 
 	return null;
 
     }
 
+    private static String formatTime(long nanos) {
+	if (nanos < 0)
+	    return null;
+	return String.format("%.1f s", nanos / 1e9);
+    }
+
+    private static String formatBytes(long bytes) {
+	if (bytes < 0)
+	    return null;
+	return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
     /**
      * @see javax.swing.table.TableModel#getColumnClass(int)
      */
@@ -220,6 +252,8 @@ public class TaskQueue extends AbstractTableModel {
 	    return TaskStatus.class;
 	case 3:
 	    return LabeledProgressBar.class;
+	default:
+	    return String.class;
 	}
 	return null;
 
@@ -19,40 +19,61 @@
 
 package net.sf.mzmine.taskcontrol.impl;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then
- * finish
+ * Processes one task in a thread of the task controller's thread pools. The
+ * future is completed with the final status of the task, when the task is
+ * finished.
  */
-class WorkerThread extends Thread {
+class TaskRunner extends FutureTask<TaskStatus> {
+
+    TaskRunner(final WrappedTask wrappedTask,
+	    final TaskControllerImpl taskController) {
+	super(new Callable<TaskStatus>() {
+	    @Override
+	    public TaskStatus call() {
+		return runTask(wrappedTask, taskController);
+	    }
+	});
+    }
 
-    private Logger logger = Logger.getLogger(this.getClass().getName());
+    private static TaskStatus runTask(WrappedTask wrappedTask,
+	    TaskControllerImpl taskController) {
 
-    private WrappedTask wrappedTask;
-    private boolean finished = false;
+	Logger logger = Logger.getLogger(TaskRunner.class.getName());
 
-    WorkerThread(WrappedTask wrappedTask) {
-	super("Thread executing task " + wrappedTask);
-	this.wrappedTask = wrappedTask;
-	wrappedTask.assignTo(this);
-    }
+	Task actualTask = wrappedTask.getActualTask();
 
-    /**
-     * @see java.lang.Runnable#run()
-     */
-    public void run() {
+	// Tasks canceled while waiting in the queue are not started
+	if (actualTask.getStatus() == TaskStatus.CANCELED) {
+	    taskController.fireTaskStatusChanged(actualTask,
+		    TaskStatus.CANCELED);
+	    return TaskStatus.CANCELED;
+	}
 
-	Task actualTask = wrappedTask.getActualTask();
+	Thread thread = Thread.currentThread();
+	String threadName = thread.getName();
+	thread.setName("Thread executing task " + wrappedTask);
+	wrappedTask.assignTo(thread);
+
+	TaskMetrics metrics = wrappedTask.getMetrics();
+	metrics.start();
 
 	try {
 
+	    taskController.fireTaskStatusChanged(actualTask,
+		    TaskStatus.PROCESSING);
+
 	    // Log the start (INFO level events go to the Status bar, too)
 	    logger.info("Starting processing of task "
 		    + actualTask.getTaskDescription());
@@ -82,13 +103,6 @@ class WorkerThread extends Thread {
 			+ actualTask.getStatus());
 	    }
 
-	    /*
-	     * This is important to allow the garbage collector to remove the
-	     * task, while keeping the task description in the
-	     * "Tasks in progress" window
-	     */
-	    wrappedTask.removeTaskReference();
-
 	} catch (Throwable e) {
 
 	    /*
@@ -109,17 +123,31 @@ class WorkerThread extends Thread {
 			    + actualTask.getTaskDescription() + ": "
 			    + ExceptionUtils.exceptionToString(e));
 
+	} finally {
+
+	    metrics.finish(actualTask.getStatus());
+
+	    // Release the pool thread for the next task
+	    wrappedTask.assignTo(null);
+	    thread.setPriority(Thread.NORM_PRIORITY);
+	    thread.setName(threadName);
+
 	}
 
+	TaskStatus finalStatus = actualTask.getStatus();
+	taskController.fireTaskFinished(actualTask, metrics);
+	taskController.fireTaskStatusChanged(actualTask, finalStatus);
+
 	/*
-	 * Mark this thread as finished
+	 * This is important to allow the garbage collector to remove the task,
+	 * while keeping the task description in the "Tasks in progress" window
 	 */
-	finished = true;
+	wrappedTask.removeTaskReference();
 
-    }
+	taskController.taskFinished();
+
+	return finalStatus;
 
-    boolean isFinished() {
-	return finished;
     }
 
 }
@@ -19,8 +19,12 @@
 
 package net.sf.mzmine.taskcontrol.impl;
 
+import java.util.concurrent.Future;
+
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskPriority;
+import net.sf.mzmine.taskcontrol.TaskStatus;
 
 /**
  * Wrapper class for Tasks that stores additional information
@@ -29,17 +33,43 @@ public class WrappedTask {
 
     private Task task;
     private TaskPriority priority;
-    private WorkerThread assignedTo;
+    private Thread assignedTo;
+    private TaskRunner runner;
+    private final TaskMetrics metrics;
 
     WrappedTask(Task task, TaskPriority priority) {
 	this.task = task;
 	this.priority = priority;
+	this.metrics = new TaskMetrics(task);
+    }
+
+    /**
+     * @return Resource usage of the task, updated while the task is running
+     */
+    public TaskMetrics getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * @return Future which is completed with the final status of the task,
+     *         when the task is finished
+     */
+    public synchronized Future<TaskStatus> getFuture() {
+	return runner;
+    }
+
+    synchronized TaskRunner getRunner() {
+	return runner;
+    }
+
+    synchronized void setRunner(TaskRunner runner) {
+	this.runner = runner;
     }
 
     /**
      * @return Returns the priority.
      */
-    TaskPriority getPriority() {
+    synchronized TaskPriority getPriority() {
 	return priority;
     }
 
@@ -47,7 +77,7 @@ public class WrappedTask {
      * @param priority
      *            The priority to set.
      */
-    void setPriority(TaskPriority priority) {
+    synchronized void setPriority(TaskPriority priority) {
 	this.priority = priority;
 	if (assignedTo != null) {
 	    switch (priority) {
@@ -62,14 +92,19 @@ public class WrappedTask {
     }
 
     /**
-     * @return Returns the assigned.
+     * @return True if the task is currently running in a thread
      */
-    boolean isAssigned() {
+    synchronized boolean isAssigned() {
 	return assignedTo != null;
     }
 
-    void assignTo(WorkerThread thread) {
+    /**
+     * Sets the thread which runs the task, or null when the task is done
+     */
+    synchronized void assignTo(Thread thread) {
 	assignedTo = thread;
+	if ((thread != null) && (priority == TaskPriority.HIGH))
+	    thread.setPriority(Thread.MAX_PRIORITY);
     }
 
     /**
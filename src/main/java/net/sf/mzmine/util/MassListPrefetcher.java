@@ -0,0 +1,182 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
+
+/**
+ * Reads the mass lists of given scans on a background thread, ahead of the
+ * thread which processes them. This way, reading and decoding the mass list
+ * of the next scans overlaps with the processing of the current scan.
+ *
+ * The mass lists are returned by next() in the order of the scans. Each
+ * returned buffer must be handed back by release() once it is no longer
+ * needed, because the prefetcher only uses a fixed number of buffers. The
+ * number of buffers limits how far the background thread can read ahead.
+ *
+ * Usage:
+ *
+ * <pre>
+ * MassListPrefetcher prefetcher = new MassListPrefetcher(scans, massListName);
+ * prefetcher.start();
+ * try {
+ *     for (Scan scan : scans) {
+ *         SpectrumBuffer massValues = prefetcher.next();
+ *         ...
+ *         prefetcher.release(massValues);
+ *     }
+ * } finally {
+ *     prefetcher.stop();
+ * }
+ * </pre>
+ */
+public class MassListPrefetcher implements Runnable {
+
+    public static final int DEFAULT_NUMBER_OF_BUFFERS = 16;
+
+    // Marks a scan without the requested mass list
+    private static final SpectrumBuffer MISSING_MASS_LIST = new SpectrumBuffer(
+            0);
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final Scan scans[];
+    private final String massListName;
+
+    // Buffers which can be filled by the background thread
+    private final BlockingQueue<SpectrumBuffer> freeBuffers;
+
+    // Filled buffers, in the order of the scans
+    private final BlockingQueue<SpectrumBuffer> filledBuffers;
+
+    private Thread prefetchThread;
+    private volatile boolean stopped = false;
+    private volatile Throwable error;
+
+    public MassListPrefetcher(@Nonnull Scan scans[],
+            @Nonnull String massListName) {
+        this(scans, massListName, DEFAULT_NUMBER_OF_BUFFERS);
+    }
+
+    public MassListPrefetcher(@Nonnull Scan scans[],
+            @Nonnull String massListName, int numberOfBuffers) {
+        if (numberOfBuffers < 2)
+            throw new IllegalArgumentException(
+                    "At least 2 buffers are needed for prefetching");
+        this.scans = scans;
+        this.massListName = massListName;
+        freeBuffers = new ArrayBlockingQueue<SpectrumBuffer>(numberOfBuffers);
+        // One extra slot for the missing mass list or error marker
+        filledBuffers = new ArrayBlockingQueue<SpectrumBuffer>(
+                numberOfBuffers + 1);
+        for (int i = 0; i < numberOfBuffers; i++)
+            freeBuffers.add(new SpectrumBuffer());
+    }
+
+    /**
+     * Starts the background thread
+     */
+    public void start() {
+        prefetchThread = new Thread(this,
+                "Mass list prefetch (" + massListName + ")");
+        prefetchThread.setDaemon(true);
+        prefetchThread.start();
+    }
+
+    /**
+     * Returns the mass list of the next scan, in the order of the scans given
+     * to the constructor, waiting until it is read.
+     *
+     * @return The mass list values, or null if the scan does not have a mass
+     *         list of the given name. After null is returned, no more scans
+     *         are read.
+     * @throws IllegalStateException
+     *             if reading the mass list failed
+     */
+    public @Nullable SpectrumBuffer next() throws InterruptedException {
+        SpectrumBuffer buffer = filledBuffers.take();
+        if (buffer == MISSING_MASS_LIST) {
+            if (error != null)
+                throw new IllegalStateException(
+                        "Error reading mass list " + massListName, error);
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from next(), so that it can be filled with
+     * the mass list of another scan
+     */
+    public void release(@Nonnull SpectrumBuffer buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    /**
+     * Stops the background thread, e.g. when the processing was canceled
+     */
+    public void stop() {
+        stopped = true;
+        if (prefetchThread != null)
+            prefetchThread.interrupt();
+    }
+
+    /**
+     * Reads the mass lists, runs on the background thread
+     */
+    public void run() {
+        try {
+            for (Scan scan : scans) {
+
+                if (stopped)
+                    return;
+
+                SpectrumBuffer buffer = freeBuffers.take();
+
+                MassList massList = scan.getMassList(massListName);
+                if (massList == null) {
+                    filledBuffers.put(MISSING_MASS_LIST);
+                    return;
+                }
+
+                massList.getDataPoints(buffer);
+                filledBuffers.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            // Stopped while waiting for a free buffer
+        } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Error reading mass list " + massListName,
+                    e);
+            error = e;
+            filledBuffers.offer(MISSING_MASS_LIST);
+        }
+    }
+
+}
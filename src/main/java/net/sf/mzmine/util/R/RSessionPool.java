@@ -0,0 +1,331 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util.R;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.R.Rsession.Rsession;
+
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * Bounded pool of R sessions, shared by all RSessionWrapper instances.
+ * Starting Rserve and loading packages such as xcms or CAMERA takes several
+ * seconds, so a session is not terminated when its task finishes normally.
+ * Instead, its workspace is cleared and the session is kept (with its
+ * packages still loaded) for the next task. Sessions are checked before they
+ * are leased again, and broken or canceled sessions are terminated.
+ * 
+ * The number of sessions (leased and idle) is limited by the "Number of
+ * concurrently running tasks" preference. A task asking for a session while
+ * all sessions are leased waits until one is released, for at most
+ * LEASE_TIMEOUT.
+ */
+public class RSessionPool {
+
+    private static final Logger LOG = Logger.getLogger(RSessionPool.class
+            .getName());
+
+    private static final RSessionPool INSTANCE = new RSessionPool();
+
+    // Maximum time to wait for a session (ms).
+    private static final long LEASE_TIMEOUT = 10 * 60 * 1000L;
+
+    // R code run when a session is returned to the pool.
+    private static final String RESET_CODE = "rm(list = ls(all.names = TRUE)); "
+            + "graphics.off(); invisible(gc())";
+
+    private final LinkedList<PooledSession> idleSessions = new LinkedList<PooledSession>();
+    private int leasedSessions = 0;
+    private boolean shutdown = false;
+
+    public static RSessionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * R session managed by the pool, with its usage metrics.
+     */
+    public static class PooledSession {
+
+        private final Rsession session;
+        private final int pid;
+
+        // Loaded packages and checked package versions.
+        private final Set<String> checkedRequirements = new HashSet<String>();
+
+        // Metrics of the current lease.
+        private long leaseStart;
+        private int evalCount;
+        private long bytesSent;
+        private long bytesReceived;
+
+        // Metrics of all leases.
+        private int leaseCount;
+        private long totalLeaseTime;
+        private int totalEvalCount;
+        private long totalBytesSent;
+        private long totalBytesReceived;
+
+        PooledSession(Rsession session, int pid) {
+            this.session = session;
+            this.pid = pid;
+        }
+
+        public Rsession getSession() {
+            return session;
+        }
+
+        public int getPID() {
+            return pid;
+        }
+
+        /**
+         * @return true if the requirement (a package name, or a package name
+         *         with a version) was already met by this session
+         */
+        synchronized boolean isRequirementChecked(String requirement) {
+            return checkedRequirements.contains(requirement);
+        }
+
+        synchronized void setRequirementChecked(String requirement) {
+            checkedRequirements.add(requirement);
+        }
+
+        /**
+         * Counts an evaluation of R code or a transfer of an object to or
+         * from R. The sizes are estimates of the transferred data.
+         */
+        synchronized void recordEval(long sent, long received) {
+            evalCount++;
+            bytesSent += sent;
+            bytesReceived += received;
+        }
+
+        synchronized void startLease() {
+            leaseStart = System.currentTimeMillis();
+            evalCount = 0;
+            bytesSent = 0;
+            bytesReceived = 0;
+        }
+
+        synchronized void endLease() {
+            leaseCount++;
+            totalLeaseTime += System.currentTimeMillis() - leaseStart;
+            totalEvalCount += evalCount;
+            totalBytesSent += bytesSent;
+            totalBytesReceived += bytesReceived;
+        }
+
+        /**
+         * @return metrics of the current (or last) lease and of all leases
+         */
+        public synchronized String getMetrics() {
+            return "pid " + pid + ": lease time "
+                    + (System.currentTimeMillis() - leaseStart) + " ms, "
+                    + evalCount + " evals, " + bytesSent + " bytes sent, "
+                    + bytesReceived + " bytes received (total " + leaseCount
+                    + " leases, " + totalLeaseTime + " ms, " + totalEvalCount
+                    + " evals, " + totalBytesSent + " bytes sent, "
+                    + totalBytesReceived + " bytes received)";
+        }
+
+        /**
+         * Checks whether the session still responds.
+         */
+        boolean isHealthy() {
+            RConnection connection = session.connection;
+            if ((connection == null) || !connection.isConnected())
+                return false;
+            try {
+                return connection.eval("Sys.getpid()").asInteger() == pid;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        /**
+         * Clears the workspace and closes graphics devices.
+         * 
+         * @return true if successful
+         */
+        boolean reset() {
+            RConnection connection = session.connection;
+            if ((connection == null) || !connection.isConnected())
+                return false;
+            try {
+                connection.voidEval(RESET_CODE);
+                return true;
+            } catch (RserveException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Leases an idle session, or starts a new one if the maximum number of
+     * sessions is not reached. Otherwise waits until a session is released.
+     * 
+     * @throws RSessionWrapperException
+     *             if no session was released within LEASE_TIMEOUT
+     */
+    PooledSession lease() throws RSessionWrapperException {
+
+        final long deadline = System.currentTimeMillis() + LEASE_TIMEOUT;
+        while (true) {
+
+            PooledSession candidate;
+            synchronized (this) {
+                try {
+                    while (!shutdown && idleSessions.isEmpty()
+                            && (leasedSessions >= getMaxSessions())) {
+                        final long remaining = deadline
+                                - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new RSessionWrapperException(
+                                    "Timed out waiting for an R session: all "
+                                            + leasedSessions
+                                            + " sessions are in use.");
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RSessionWrapperException(
+                            "Interrupted while waiting for an R session.");
+                }
+                if (shutdown)
+                    throw new RSessionWrapperException(
+                            "R sessions are shut down.");
+                candidate = idleSessions.pollFirst();
+                leasedSessions++;
+            }
+
+            // Reuse an idle session if it still works.
+            if (candidate != null) {
+                if (candidate.isHealthy()) {
+                    candidate.startLease();
+                    LOG.finest("Reusing R session (pid " + candidate.getPID()
+                            + ")");
+                    return candidate;
+                }
+                LOG.info("R session (pid " + candidate.getPID()
+                        + ") is not responding, terminating it");
+                terminate(candidate);
+                discard();
+                continue;
+            }
+
+            // Start a new session.
+            try {
+                Rsession session = RSessionWrapper.startSession();
+                int pid = session.connection.eval("Sys.getpid()").asInteger();
+                PooledSession newSession = new PooledSession(session, pid);
+                newSession.startLease();
+                return newSession;
+            } catch (RSessionWrapperException e) {
+                discard();
+                throw e;
+            } catch (Exception e) {
+                discard();
+                throw new RSessionWrapperException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns a leased session to the pool, after clearing its workspace.
+     * 
+     * @return false if the session could not be reset, in that case it must
+     *         be terminated and discarded by the caller
+     */
+    boolean release(PooledSession session, String callerName) {
+
+        session.endLease();
+        LOG.log(Level.FINE, "R session released by " + callerName + ", "
+                + session.getMetrics());
+
+        if (!session.reset())
+            return false;
+
+        synchronized (this) {
+            if (shutdown)
+                return false;
+            leasedSessions--;
+            // Most recently used first
+            idleSessions.addFirst(session);
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a terminated (or never started) session from the pool.
+     */
+    synchronized void discard() {
+        leasedSessions--;
+        notifyAll();
+    }
+
+    /**
+     * Terminates all idle sessions, and makes sure no more sessions are
+     * leased. Sessions which are currently leased are terminated by their
+     * RSessionWrapper.
+     */
+    public void shutdown() {
+
+        LinkedList<PooledSession> sessions;
+        synchronized (this) {
+            shutdown = true;
+            sessions = new LinkedList<PooledSession>(idleSessions);
+            idleSessions.clear();
+            notifyAll();
+        }
+        for (PooledSession session : sessions) {
+            LOG.finest("Terminating R session, " + session.getMetrics());
+            terminate(session);
+        }
+    }
+
+    private static void terminate(PooledSession session) {
+        try {
+            RSessionWrapper.killRserveInstance(session.getPID());
+            session.getSession().end();
+        } catch (Throwable t) {
+            // Silent, the session is not used anymore.
+        }
+    }
+
+    private static int getMaxSessions() {
+        if (MZmineCore.getConfiguration() == null)
+            return Runtime.getRuntime().availableProcessors();
+        return MZmineCore.getConfiguration().getPreferences()
+                .getParameter(MZminePreferences.numOfThreads)
+                .getNumberOfThreads();
+    }
+
+}
@@ -63,8 +63,6 @@ public class RSessionWrapper {
     private static int MASTER_PORT = -1;
     public static final ArrayList<RSessionWrapper> R_SESSIONS_REG = new ArrayList<RSessionWrapper>();
 
-    private final Object R_DUMMY_SEMAPHORE = new Object();
-
     private static final Level rsLogLvl = Level.FINEST;
     private static final Level logLvl = Level.FINEST;
     private static PrintStream logStream = new LoggerStream(LOG, rsLogLvl);
@@ -85,6 +83,7 @@ public class RSessionWrapper {
     private String[] reqPackagesVersions;
 
     private Rsession session;
+    private RSessionPool.PooledSession pooledSession;
     // Debug? (shows R eval errors feedback)
     final static private boolean TRY_MODE = false;
 
@@ -191,6 +190,32 @@ public class RSessionWrapper {
 
     private void getRengineInstance() throws RSessionWrapperException {
 
+        if (this.rEngine == null) {
+
+            // Lease a (possibly warm) session from the pool.
+            this.pooledSession = RSessionPool.getInstance().lease();
+            this.session = this.pooledSession.getSession();
+            this.rServePid = this.pooledSession.getPID();
+            this.rEngine = this.session.connection;
+            this.register();
+
+            LOG.log(logLvl, "Rserve: leased instance (pid: '" + this.rServePid
+                    + "' | port: '" + this.session.rServeConf.port + "').");
+
+            // The session may have been canceled while waiting for the
+            // instance.
+            if (this.userCanceled) {
+                this.close(true);
+            }
+        }
+    }
+
+    /**
+     * Starts a new Rserve instance. Called by the RSessionPool when no idle
+     * session is available.
+     */
+    static Rsession startSession() throws RSessionWrapperException {
+
         try {
 
             final String globalFailureMsg = "Could not start Rserve ( R> install.packages(c('Rserve')) ). "
@@ -208,160 +233,119 @@ public class RSessionWrapper {
                     + RLocationDetection.R_HOME_ENV_KEY
                     + "' environment variable can also be used).";
 
-            if (this.rEngine == null) {
-
-                boolean isWindows = RSessionWrapper.isWindows();
+            Rsession session;
+            boolean isWindows = RSessionWrapper.isWindows();
 
-                try {
-
-                    synchronized (RSessionWrapper.R_SESSION_SEMAPHORE) {
-
-                        final String rLocation = RLocationDetection.getRExecutablePath();
-                         
-                        if (rLocation == null)
-                            throw new RSessionWrapperException(
-                                    r_homeFailureMsg);
-
-                        // // Security...
-                        // Properties props = new Properties();
-                        // props.setProperty("remote", "enable");
-                        // props.setProperty("auth", "required");
-
-                        // Under *NUX, create the very first Rserve instance
-                        // (kind of proxy), designed only to spawn other
-                        // (computing) instances (Released at app. exit - see
-                        // note below).
-                        if (!isWindows
-                                && (RSessionWrapper.MASTER_SESSION == null
-                                        || !checkMasterConnectivity())) {
-
-                            // We absolutely need real new instance on a new
-                            // port here (in case other Rserve, not spawned by
-                            // MZmine, are running already).
-                            // Note: this also fixes potential issues when
-                            // running several instances of MZmine concurrently.
-                            int port = RserverConf.getNewAvailablePort();
-                            RserverConf conf = new RserverConf("localhost",
-                                    port, RS_LOGIN, RS_DYN_PWD, null); // props);
-                            RSessionWrapper.MASTER_PORT = port;
-                            RSessionWrapper.MASTER_SESSION = Rsession
-                                    .newInstanceTry(logStream, conf, TMP_DIR);
-                            int masterPID = RSessionWrapper.MASTER_SESSION.connection
-                                    .eval("Sys.getpid()").asInteger();
-
-                            LOG.log(logLvl,
-                                    ">> MASTER Rserve instance created (pid: '"
-                                            + masterPID + "' | port '"
-                                            + RSessionWrapper.MASTER_PORT
-                                            + "').");
-
-                            // Note: no need to 'register()' that particular
-                            // instance. It is attached to the Rdaemon which
-                            // will die/stop with the app. anyway.
-                        }
-                    }
-
-
-                    // Need a new session to be completely instantiated before
-                    // asking for another one.
-                    // Otherwise, under Windows, the "multi-instance emulation"
-                    // system will try several session startup on same port
-                    // (aka: each new session port has to be in use/unavailable
-                    // before trying to get another one).
-                    // Win: Synch with any previous session, if applicable.
-                    // *NUX: Synch with nothing that matters.
-                    Object rSemaphore = (isWindows)
-                            ? RSessionWrapper.R_SESSION_SEMAPHORE
-                            : this.R_DUMMY_SEMAPHORE;
-                    synchronized (rSemaphore) {
-
-                        RserverConf conf;
-                        if (isWindows) {
-                            // Win: Need to get a new port every time.
-                            int port = RserverConf.getNewAvailablePort();
-                            conf = new RserverConf("localhost", port, RS_LOGIN,
-                                    RS_DYN_PWD, null); // props);
-                        } else {
-                            // *NUX: Just fit/target the MASTER instance.
-                            conf = RSessionWrapper.MASTER_SESSION.rServeConf;
-                        }
-
-                        // Then, spawn a new computing instance.
-                        if (isWindows) {
-                            // Win: Figure out a new standalone instance every
-                            // time.
-                            this.session = Rsession.newInstanceTry(logStream,
-                                    conf, TMP_DIR);
-                        } else {
-                            // *NUX: Just spawn a new connection on MASTER
-                            // instance.
-                            // Need to target the same port, in case another
-                            // Rserve (not started by this MZmine instance) is
-                            // running.
-                            // We need to keep constantly a hand on what is
-                            // spawned by the app. to remain able to shutdown
-                            // everything related to it and it only when exiting
-                            // (gracefully or not).
-                            // Rsession.newLocalInstance(logStream, null);
-                            this.session = Rsession.newRemoteInstance(logStream,
-                                    conf, TMP_DIR);
-                        }
+            try {
 
-                        if (this.session == null)
-                            throw new IllegalArgumentException(
-                                    globalFailureMsg);
+                synchronized (RSessionWrapper.R_SESSION_SEMAPHORE) {
+
+                    final String rLocation = RLocationDetection
+                            .getRExecutablePath();
+
+                    if (rLocation == null)
+                        throw new RSessionWrapperException(r_homeFailureMsg);
+
+                    // Under *NUX, create the very first Rserve instance
+                    // (kind of proxy), designed only to spawn other
+                    // (computing) instances (Released at app. exit - see
+                    // note below).
+                    if (!isWindows
+                            && (RSessionWrapper.MASTER_SESSION == null || !checkMasterConnectivity())) {
+
+                        // We absolutely need real new instance on a new
+                        // port here (in case other Rserve, not spawned by
+                        // MZmine, are running already).
+                        // Note: this also fixes potential issues when
+                        // running several instances of MZmine concurrently.
+                        int port = RserverConf.getNewAvailablePort();
+                        RserverConf conf = new RserverConf("localhost", port,
+                                RS_LOGIN, RS_DYN_PWD, null); // props);
+                        RSessionWrapper.MASTER_PORT = port;
+                        RSessionWrapper.MASTER_SESSION = Rsession
+                                .newInstanceTry(logStream, conf, TMP_DIR);
+                        int masterPID = RSessionWrapper.MASTER_SESSION.connection
+                                .eval("Sys.getpid()").asInteger();
 
-                        this.register();
+                        LOG.log(logLvl,
+                                ">> MASTER Rserve instance created (pid: '"
+                                        + masterPID + "' | port '"
+                                        + RSessionWrapper.MASTER_PORT + "').");
 
+                        // Note: no need to 'register()' that particular
+                        // instance. It is attached to the Rdaemon which
+                        // will die/stop with the app. anyway.
                     }
-
-                } catch (IllegalArgumentException e) {
-                    e.printStackTrace();
-                    // Redirect undeclared exceptions thrown by "Rsession"
-                    // library to regular one.
-                    throw new RSessionWrapperException(globalFailureMsg);
                 }
 
-                // As "Rsession.newInstanceTry()" runs an Rdaemon Thread. It is
-                // scheduled already, meaning the session will be opened even
-                // for "WAITING" tasks, in any case, and even if it's been
-                // meanwhile canceled.
-                // Consequently, we need to kill it after the instance has been
-                // created, since trying to abort the instance (close the
-                // session) before it exists would result in no termination at
-                // all.
-                if (this.session != null) {
-
-                    if (this.session.connection != null) {
-                        // Keep an opened instance and store the related PID.
-                        this.rServePid = this.session.connection
-                                .eval("Sys.getpid()").asInteger();
-                        this.rEngine = this.session.connection;
-                        LOG.log(logLvl,
-                                "Rserve: started instance (pid: '"
-                                        + this.rServePid + "' | port: '"
-                                        + this.session.rServeConf.port + "').");
-
-                        // Quick test
-                        LOG.log(logLvl, ((RConnection) this.rEngine)
-                                .eval("R.version.string").asString());
-                        LOG.log(logLvl,
-                                ((RConnection) this.rEngine).getServerVersion()
-                                        + "");
-                        LOG.log(logLvl, RConnection.transferCharset);
+                // Need a new session to be completely instantiated before
+                // asking for another one.
+                // Otherwise, under Windows, the "multi-instance emulation"
+                // system will try several session startup on same port
+                // (aka: each new session port has to be in use/unavailable
+                // before trying to get another one).
+                // Win: Synch with any previous session, if applicable.
+                // *NUX: Synch with nothing that matters.
+                Object rSemaphore = (isWindows) ? RSessionWrapper.R_SESSION_SEMAPHORE
+                        : new Object();
+                synchronized (rSemaphore) {
+
+                    RserverConf conf;
+                    if (isWindows) {
+                        // Win: Need to get a new port every time.
+                        int port = RserverConf.getNewAvailablePort();
+                        conf = new RserverConf("localhost", port, RS_LOGIN,
+                                RS_DYN_PWD, null); // props);
+                    } else {
+                        // *NUX: Just fit/target the MASTER instance.
+                        conf = RSessionWrapper.MASTER_SESSION.rServeConf;
                     }
-                    if (this.userCanceled) {
-                        this.close(true);
-                        return;
+
+                    // Then, spawn a new computing instance.
+                    if (isWindows) {
+                        // Win: Figure out a new standalone instance every
+                        // time.
+                        session = Rsession.newInstanceTry(logStream, conf,
+                                TMP_DIR);
+                    } else {
+                        // *NUX: Just spawn a new connection on MASTER
+                        // instance.
+                        // Need to target the same port, in case another
+                        // Rserve (not started by this MZmine instance) is
+                        // running.
+                        session = Rsession.newRemoteInstance(logStream, conf,
+                                TMP_DIR);
                     }
 
+                    if (session == null || session.connection == null)
+                        throw new IllegalArgumentException(globalFailureMsg);
+
                 }
 
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                // Redirect undeclared exceptions thrown by "Rsession"
+                // library to regular one.
+                throw new RSessionWrapperException(globalFailureMsg);
             }
+
+            // Quick test
+            RConnection connection = session.connection;
+            LOG.log(logLvl, "Rserve: started instance (pid: '"
+                    + connection.eval("Sys.getpid()").asInteger()
+                    + "' | port: '" + session.rServeConf.port + "').");
+            LOG.log(logLvl, connection.eval("R.version.string").asString());
+            LOG.log(logLvl, connection.getServerVersion() + "");
+            LOG.log(logLvl, RConnection.transferCharset);
+
+            return session;
+
+        } catch (RSessionWrapperException e) {
+            throw e;
         } catch (Throwable t) {
             t.printStackTrace();
-            throw new RSessionWrapperException(
-                    TextUtils.wrapText(t.getMessage(), 80));
+            throw new RSessionWrapperException(TextUtils.wrapText(
+                    t.getMessage(), 80));
         }
     }
 
@@ -377,6 +361,11 @@ public class RSessionWrapper {
                 + "the \"" + packageName
                 + "\" R package, which couldn't be loaded - is it installed in R?";
 
+        // Packages stay loaded in pooled sessions.
+        if (this.pooledSession != null
+                && this.pooledSession.isRequirementChecked(packageName))
+            return;
+
         if (this.session != null && !this.userCanceled) {
             LOG.log(logLvl, "Loading package '" + packageName + "'...");
             int loaded = 0;
@@ -404,6 +393,8 @@ public class RSessionWrapper {
                     throw new RSessionWrapperException(errorMsg);
 
             LOG.log(logLvl, "Loaded package: '" + packageName + "'.");
+            if (loaded > 0 && this.pooledSession != null)
+                this.pooledSession.setRequirementChecked(packageName);
         }
     }
 
@@ -421,6 +412,11 @@ public class RSessionWrapper {
                 + "\" R package, which was found, but is too old? - please update '"
                 + packageName + "' to version " + version + " or later.";
 
+        final String requirement = packageName + " >= " + version;
+        if (this.pooledSession != null
+                && this.pooledSession.isRequirementChecked(requirement))
+            return;
+
         if (this.session != null && !this.userCanceled) {
             LOG.log(logLvl, "Checking package version: '" + packageName
                     + "' for version '" + version + "'...");
@@ -441,6 +437,8 @@ public class RSessionWrapper {
 
             LOG.log(logLvl, "Checked package version: '" + packageName
                     + "' for version '" + version + "'.");
+            if (version_ok > 0 && this.pooledSession != null)
+                this.pooledSession.setRequirementChecked(requirement);
         }
     }
 
@@ -570,6 +568,39 @@ public class RSessionWrapper {
         }
     }
 
+    // Count an R call in the metrics of the pooled session.
+    private void recordEval(long bytesSent, long bytesReceived) {
+        if (this.pooledSession != null)
+            this.pooledSession.recordEval(bytesSent, bytesReceived);
+    }
+
+    // Approximate size of an object transferred to or from R.
+    private static long estimateSize(Object object) {
+        if (object instanceof double[])
+            return 8L * ((double[]) object).length;
+        if (object instanceof int[])
+            return 4L * ((int[]) object).length;
+        if (object instanceof double[][]) {
+            long size = 0;
+            for (double[] row : (double[][]) object)
+                size += 8L * row.length;
+            return size;
+        }
+        if (object instanceof String)
+            return ((String) object).length();
+        if (object instanceof String[]) {
+            long size = 0;
+            for (String str : (String[]) object)
+                size += (str == null) ? 0 : str.length();
+            return size;
+        }
+        if (object instanceof Double)
+            return 8L;
+        if (object instanceof Integer)
+            return 4L;
+        return 0L;
+    }
+
     public <T> void assign(String objName, T object)
             throws RSessionWrapperException {
 
@@ -579,6 +610,7 @@ public class RSessionWrapper {
             try {
                 ((RConnection) this.rEngine).assign(objName,
                         InputREXPFactory.getREXP(object));
+                recordEval(objName.length() + estimateSize(object), 0);
             } catch (REngineException e) {
                 throw new RSessionWrapperException(msg);
             } catch (Exception e) {
@@ -598,12 +630,13 @@ public class RSessionWrapper {
         checkConnectivity(((RConnection) this.rEngine));
     }
 
-    private boolean checkMasterConnectivity() throws RSessionWrapperException {
+    private static boolean checkMasterConnectivity() {
 
         try {
-            checkConnectivity(RSessionWrapper.MASTER_SESSION.connection);
+            RSessionWrapper.MASTER_SESSION.connection.assign("dummy",
+                    new REXPNull());
             return true;
-        } catch (RSessionWrapperException e) {
+        } catch (Exception e) {
             return false;
         }
     }
@@ -664,6 +697,7 @@ public class RSessionWrapper {
             // }
 
             ok = this.session.voidEval(rCode, true); // TRY_MODE);
+            recordEval(rCode.length(), 0);
             if (!ok) {
                 if (stopOnError)
                     throw new RSessionWrapperException(msg);
@@ -718,6 +752,7 @@ public class RSessionWrapper {
                 }
 
                 object = OutputObjectFactory.getObject(r);
+                recordEval(obj.length(), estimateSize(object));
             } catch (/* RserveException | */REXPMismatchException e) {
                 LOG.severe(this.getErrMessage());
                 throw new RSessionWrapperException(msg);
@@ -759,10 +794,25 @@ public class RSessionWrapper {
      *            rather than from an unknown source error.
      * @throws RSessionWrapperException
      */
-    public void close(boolean userCanceled) throws RSessionWrapperException {
+    public synchronized void close(boolean userCanceled)
+            throws RSessionWrapperException {
 
         this.userCanceled = userCanceled;
 
+        // Regular end of the task: return the session to the pool, unless
+        // it is broken.
+        if (this.session != null && !userCanceled
+                && this.pooledSession != null
+                && RSessionPool.getInstance().release(this.pooledSession,
+                        this.callerFeatureName)) {
+            LOG.log(logLvl, "Rserve: released instance (pid: '"
+                    + this.rServePid + "').");
+            this.session = null;
+            this.pooledSession = null;
+            this.unRegister();
+            return;
+        }
+
         if (this.session != null) {
 
             try {
@@ -820,6 +870,12 @@ public class RSessionWrapper {
                 // Make sure to restore standard outputs.
                 System.setOut(System.out);
                 System.setErr(System.err);
+
+                // The instance is not returned to the pool.
+                if (this.pooledSession != null) {
+                    this.pooledSession = null;
+                    RSessionPool.getInstance().discard();
+                }
             }
         }
 
@@ -856,7 +912,13 @@ public class RSessionWrapper {
     public static void killRserveInstance(RSessionWrapper rSession)
             throws RSessionWrapperException {
 
-        if (rSession != null && rSession.getPID() != -1) {
+        if (rSession != null)
+            killRserveInstance(rSession.getPID());
+    }
+
+    static void killRserveInstance(int pid) throws RSessionWrapperException {
+
+        if (pid != -1) {
             // Win: faster to brute force kill the process (avoids
             // "Rsession.newInstanceTry()"
             // to attempt to recover the connection).
@@ -891,7 +953,7 @@ public class RSessionWrapper {
                     };
 
                     Process proc = new ProcessBuilder("TASKKILL", "/PID",
-                            "" + rSession.getPID(), "/F").start();
+                            "" + pid, "/F").start();
                     StreamGobbler errorGobbler = new StreamGobbler(
                             proc.getErrorStream(), "Error", os_err); // ,
                     // fos_err);
@@ -909,7 +971,7 @@ public class RSessionWrapper {
                     if (exitVal != 0)
                         throw new RSessionWrapperException(
                                 "Killing Rserve instance of PID '"
-                                        + rSession.getPID() + "'"
+                                        + pid + "'"
                                         + " failed. \n" + os_err.toString());
                     // fos_out.flush(); fos_out.close();
                     // fos_err.flush(); fos_err.close();
@@ -927,8 +989,8 @@ public class RSessionWrapper {
                     // SIGTERM might not be understood everywhere: so using
                     // explicitly SIGKILL signal, as well.
                     if (c2 != null && c2.isConnected()) {
-                        c2.eval("tools::pskill(" + rSession.getPID() + ")"); // win
-                        c2.eval("tools::pskill(" + rSession.getPID()
+                        c2.eval("tools::pskill(" + pid + ")"); // win
+                        c2.eval("tools::pskill(" + pid
                                 + ", tools::SIGKILL)"); // *nux
                         c2.close();
                     }
@@ -953,6 +1015,9 @@ public class RSessionWrapper {
 
     public static void CleanAll() {
 
+        // Terminate the idle pooled instances.
+        RSessionPool.getInstance().shutdown();
+
         // Cleanup Rserve instances.
         for (int i = RSessionWrapper.R_SESSIONS_REG.size() - 1; i >= 0; --i) {
             try {
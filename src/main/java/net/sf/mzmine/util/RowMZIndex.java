@@ -0,0 +1,233 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+
+/**
+ * Read-only index of peak list rows for the search of related rows (adducts,
+ * fragments, complexes). The rows are split into retention time buckets about
+ * as wide as the RT tolerance, and sorted by average m/z inside each bucket,
+ * so rows within given m/z and RT ranges are found without comparing all
+ * rows.
+ * 
+ * Rows are identified by their position in the array the index was built
+ * from. The average m/z and RT are copied when the index is built, so the
+ * rows must not be modified while the index is used. Queries do not modify
+ * the index and may run in many threads at once.
+ */
+public class RowMZIndex {
+
+    private final PeakListRow rows[];
+    private final double mzValues[], rtValues[];
+
+    // Positions sorted by bucket and m/z, with the corresponding values
+    private final int sortedPositions[];
+    private final double sortedMZValues[], sortedRTValues[];
+
+    // Start of each bucket in the sorted arrays, bucketStart[numOfBuckets]
+    // is the number of rows
+    private final int bucketStart[];
+    private final double minRT, bucketWidth;
+
+    /**
+     * @param rows
+     *            Rows to index, in the order which defines their positions
+     * @param rtTolerance
+     *            RT tolerance of the searches, used to choose the width of the
+     *            RT buckets
+     */
+    public RowMZIndex(@Nonnull PeakListRow rows[],
+	    @Nonnull RTTolerance rtTolerance) {
+
+	final int size = rows.length;
+	this.rows = rows.clone();
+	mzValues = new double[size];
+	rtValues = new double[size];
+	double lowestRT = Double.POSITIVE_INFINITY, highestRT = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < size; i++) {
+	    mzValues[i] = rows[i].getAverageMZ();
+	    rtValues[i] = rows[i].getAverageRT();
+	    lowestRT = Math.min(lowestRT, rtValues[i]);
+	    highestRT = Math.max(highestRT, rtValues[i]);
+	}
+
+	// Widest tolerance range of all rows, relative tolerances grow with RT
+	int numOfBuckets = 1;
+	double width = Double.POSITIVE_INFINITY;
+	if (size > 0) {
+	    final double toleranceWidth = RangeUtils.rangeLength(rtTolerance
+		    .getToleranceRange(Math.max(Math.abs(lowestRT),
+			    Math.abs(highestRT))));
+	    final double rtSpan = highestRT - lowestRT;
+	    if ((toleranceWidth > 0) && (rtSpan > 0)
+		    && !Double.isInfinite(rtSpan) && !Double.isNaN(rtSpan)) {
+		numOfBuckets = (int) Math.min(size,
+			Math.ceil(rtSpan / toleranceWidth));
+		numOfBuckets = Math.max(numOfBuckets, 1);
+		width = rtSpan / numOfBuckets;
+	    }
+	}
+	minRT = lowestRT;
+	bucketWidth = width;
+
+	// Sort by m/z, then distribute to the buckets keeping the m/z order
+	final int mzOrder[] = new int[size];
+	for (int i = 0; i < size; i++)
+	    mzOrder[i] = i;
+	mergeSort(mzValues, mzOrder, new int[size], 0, size);
+
+	bucketStart = new int[numOfBuckets + 1];
+	for (int i = 0; i < size; i++)
+	    bucketStart[getBucket(rtValues[i]) + 1]++;
+	for (int b = 0; b < numOfBuckets; b++)
+	    bucketStart[b + 1] += bucketStart[b];
+
+	sortedPositions = new int[size];
+	sortedMZValues = new double[size];
+	sortedRTValues = new double[size];
+	final int nextInBucket[] = Arrays.copyOf(bucketStart, numOfBuckets);
+	for (int position : mzOrder) {
+	    final int target = nextInBucket[getBucket(rtValues[position])]++;
+	    sortedPositions[target] = position;
+	    sortedMZValues[target] = mzValues[position];
+	    sortedRTValues[target] = rtValues[position];
+	}
+
+    }
+
+    /**
+     * @return Number of indexed rows
+     */
+    public int size() {
+	return rows.length;
+    }
+
+    public @Nonnull PeakListRow getRow(int position) {
+	return rows[position];
+    }
+
+    /**
+     * @return Average m/z of the row when the index was built
+     */
+    public double getMZ(int position) {
+	return mzValues[position];
+    }
+
+    /**
+     * @return Average RT of the row when the index was built
+     */
+    public double getRT(int position) {
+	return rtValues[position];
+    }
+
+    /**
+     * Finds the rows whose average m/z and RT are inside given closed ranges.
+     * 
+     * @return Positions of the found rows, in ascending order
+     */
+    public @Nonnull int[] findRows(double mzMin, double mzMax, double rtMin,
+	    double rtMax) {
+
+	int result[] = new int[16];
+	int found = 0;
+
+	if ((rows.length == 0) || !(mzMin <= mzMax) || !(rtMin <= rtMax))
+	    return new int[0];
+
+	final int firstBucket = getBucket(rtMin);
+	final int lastBucket = getBucket(rtMax);
+	for (int b = firstBucket; b <= lastBucket; b++) {
+	    final int end = bucketStart[b + 1];
+	    for (int i = lowerBound(mzMin, bucketStart[b], end); i < end; i++) {
+		if (sortedMZValues[i] > mzMax)
+		    break;
+		final double rt = sortedRTValues[i];
+		if ((rt < rtMin) || (rt > rtMax))
+		    continue;
+		if (found == result.length)
+		    result = Arrays.copyOf(result, found * 2);
+		result[found++] = sortedPositions[i];
+	    }
+	}
+
+	result = Arrays.copyOf(result, found);
+	Arrays.sort(result);
+	return result;
+    }
+
+    private int getBucket(double rt) {
+	final int lastBucket = bucketStart.length - 2;
+	if (Double.isInfinite(bucketWidth) || !(rt > minRT))
+	    return 0;
+	final double bucket = (rt - minRT) / bucketWidth;
+	if (!(bucket < lastBucket))
+	    return lastBucket;
+	return (int) bucket;
+    }
+
+    /**
+     * Returns the first position in the range from start to end whose m/z is
+     * not smaller than given value
+     */
+    private int lowerBound(double mz, int start, int end) {
+	int low = start, high = end;
+	while (low < high) {
+	    final int middle = (low + high) >>> 1;
+	    if (sortedMZValues[middle] < mz)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    private static void mergeSort(double values[], int positions[],
+	    int temp[], int from, int to) {
+
+	if (to - from < 2)
+	    return;
+
+	final int middle = (from + to) >>> 1;
+	mergeSort(values, positions, temp, from, middle);
+	mergeSort(values, positions, temp, middle, to);
+
+	int left = from, right = middle, target = from;
+	while ((left < middle) && (right < to)) {
+	    if (Double.compare(values[positions[right]],
+		    values[positions[left]]) < 0)
+		temp[target++] = positions[right++];
+	    else
+		temp[target++] = positions[left++];
+	}
+	while (left < middle)
+	    temp[target++] = positions[left++];
+	while (right < to)
+	    temp[target++] = positions[right++];
+
+	System.arraycopy(temp, from, positions, from, to - from);
+    }
+
+}
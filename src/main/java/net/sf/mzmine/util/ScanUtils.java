@@ -34,6 +34,7 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.main.MZmineCore;
 
@@ -117,6 +118,40 @@ public class ScanUtils {
 	return basePeak;
     }
 
+    /**
+     * Find a base peak in a given m/z range of a spectrum stored in the given
+     * buffer. The m/z values of the buffer must be sorted.
+     * 
+     * @return index of the base peak in the buffer, or -1 if there are no
+     *         data points in the m/z range
+     */
+    public static int findBasePeak(@Nonnull SpectrumBuffer spectrum,
+	    @Nonnull Range<Double> mzRange) {
+
+	final int size = spectrum.getSize();
+	final double mzValues[] = spectrum.getMZValues();
+	final double intensityValues[] = spectrum.getIntensityValues();
+
+	int index = Arrays.binarySearch(mzValues, 0, size,
+		mzRange.lowerEndpoint());
+	if (index < 0)
+	    index = -index - 1;
+
+	// binarySearch may return any of several equal values, so go back to
+	// the first one
+	while ((index > 0) && (mzValues[index - 1] >= mzRange.lowerEndpoint()))
+	    index--;
+
+	int basePeakIndex = -1;
+	for (; (index < size) && (mzValues[index] <= mzRange.upperEndpoint()); index++) {
+	    if ((basePeakIndex == -1)
+		    || (intensityValues[index] > intensityValues[basePeakIndex]))
+		basePeakIndex = index;
+	}
+
+	return basePeakIndex;
+    }
+
     /**
      * Calculate the total ion count of a scan within a given mass range.
      * 
@@ -195,10 +230,32 @@ public class ScanUtils {
     public static double[] binValues(double[] x, double[] y,
 	    Range<Double> binRange, int numberOfBins, boolean interpolate,
 	    BinningType binningType) {
+	return binValues(x, y, x.length, binRange, numberOfBins, interpolate,
+		binningType);
+    }
 
-	Double[] binValues = new Double[numberOfBins];
-	double binWidth = (binRange.upperEndpoint() - binRange.lowerEndpoint())
-		/ numberOfBins;
+    /**
+     * This method bins the values stored in given spectrum buffer, see
+     * binValues(double[], double[], Range, int, boolean, BinningType).
+     */
+    public static double[] binValues(@Nonnull SpectrumBuffer spectrum,
+	    Range<Double> binRange, int numberOfBins, boolean interpolate,
+	    BinningType binningType) {
+	return binValues(spectrum.getMZValues(),
+		spectrum.getIntensityValues(), spectrum.getSize(), binRange,
+		numberOfBins, interpolate, binningType);
+    }
+
+    private static double[] binValues(double[] x, double[] y, int size,
+	    Range<Double> binRange, int numberOfBins, boolean interpolate,
+	    BinningType binningType) {
+
+	final double binRangeStart = binRange.lowerEndpoint();
+	final double binRangeEnd = binRange.upperEndpoint();
+
+	double[] binValues = new double[numberOfBins];
+	boolean[] binHasValue = new boolean[numberOfBins];
+	double binWidth = (binRangeEnd - binRangeStart) / numberOfBins;
 
 	double beforeX = Double.MIN_VALUE;
 	double beforeY = 0.0f;
@@ -208,10 +265,10 @@ public class ScanUtils {
 	double[] noOfEntries = null;
 
 	// Binnings
-	for (int valueIndex = 0; valueIndex < x.length; valueIndex++) {
+	for (int valueIndex = 0; valueIndex < size; valueIndex++) {
 
 	    // Before first bin?
-	    if ((x[valueIndex] - binRange.lowerEndpoint()) < 0) {
+	    if ((x[valueIndex] - binRangeStart) < 0) {
 		if (x[valueIndex] > beforeX) {
 		    beforeX = x[valueIndex];
 		    beforeY = y[valueIndex];
@@ -220,7 +277,7 @@ public class ScanUtils {
 	    }
 
 	    // After last bin?
-	    if ((binRange.upperEndpoint() - x[valueIndex]) < 0) {
+	    if ((binRangeEnd - x[valueIndex]) < 0) {
 		if (x[valueIndex] < afterX) {
 		    afterX = x[valueIndex];
 		    afterY = y[valueIndex];
@@ -228,7 +285,7 @@ public class ScanUtils {
 		continue;
 	    }
 
-	    int binIndex = (int) ((x[valueIndex] - binRange.lowerEndpoint()) / binWidth);
+	    int binIndex = (int) ((x[valueIndex] - binRangeStart) / binWidth);
 
 	    // in case x[valueIndex] is exactly lastBinStop, we would overflow
 	    // the array
@@ -237,7 +294,7 @@ public class ScanUtils {
 
 	    switch (binningType) {
 	    case MAX:
-		if (binValues[binIndex] == null) {
+		if (!binHasValue[binIndex]) {
 		    binValues[binIndex] = y[valueIndex];
 		} else {
 		    if (binValues[binIndex] < y[valueIndex]) {
@@ -246,7 +303,7 @@ public class ScanUtils {
 		}
 		break;
 	    case MIN:
-		if (binValues[binIndex] == null) {
+		if (!binHasValue[binIndex]) {
 		    binValues[binIndex] = y[valueIndex];
 		} else {
 		    if (binValues[binIndex] > y[valueIndex]) {
@@ -258,7 +315,7 @@ public class ScanUtils {
 		if (noOfEntries == null) {
 		    noOfEntries = new double[binValues.length];
 		}
-		if (binValues[binIndex] == null) {
+		if (!binHasValue[binIndex]) {
 		    noOfEntries[binIndex] = 1;
 		    binValues[binIndex] = y[valueIndex];
 		} else {
@@ -269,7 +326,7 @@ public class ScanUtils {
 
 	    case SUM:
 	    default:
-		if (binValues[binIndex] == null) {
+		if (!binHasValue[binIndex]) {
 		    binValues[binIndex] = y[valueIndex];
 		} else {
 		    binValues[binIndex] += y[valueIndex];
@@ -277,14 +334,14 @@ public class ScanUtils {
 		break;
 
 	    }
+	    binHasValue[binIndex] = true;
 
 	}
 
 	// calculate the AVG
-	if (binningType.equals(BinningType.AVG)) {
-	    assert noOfEntries != null;
+	if (binningType.equals(BinningType.AVG) && (noOfEntries != null)) {
 	    for (int binIndex = 0; binIndex < binValues.length; binIndex++) {
-		if (binValues[binIndex] != null) {
+		if (binHasValue[binIndex]) {
 		    binValues[binIndex] /= noOfEntries[binIndex];
 		}
 	    }
@@ -294,15 +351,14 @@ public class ScanUtils {
 	if (interpolate) {
 
 	    for (int binIndex = 0; binIndex < binValues.length; binIndex++) {
-		if (binValues[binIndex] == null) {
+		if (!binHasValue[binIndex]) {
 
 		    // Find exisiting left neighbour
 		    double leftNeighbourValue = beforeY;
 		    int leftNeighbourBinIndex = (int) Math
-			    .floor((beforeX - binRange.lowerEndpoint())
-				    / binWidth);
+			    .floor((beforeX - binRangeStart) / binWidth);
 		    for (int anotherBinIndex = binIndex - 1; anotherBinIndex >= 0; anotherBinIndex--) {
-			if (binValues[anotherBinIndex] != null) {
+			if (binHasValue[anotherBinIndex]) {
 			    leftNeighbourValue = binValues[anotherBinIndex];
 			    leftNeighbourBinIndex = anotherBinIndex;
 			    break;
@@ -312,10 +368,10 @@ public class ScanUtils {
 		    // Find existing right neighbour
 		    double rightNeighbourValue = afterY;
 		    int rightNeighbourBinIndex = (binValues.length - 1)
-			    + (int) Math.ceil((afterX - binRange
-				    .upperEndpoint()) / binWidth);
+			    + (int) Math.ceil((afterX - binRangeEnd)
+				    / binWidth);
 		    for (int anotherBinIndex = binIndex + 1; anotherBinIndex < binValues.length; anotherBinIndex++) {
-			if (binValues[anotherBinIndex] != null) {
+			if (binHasValue[anotherBinIndex]) {
 			    rightNeighbourValue = binValues[anotherBinIndex];
 			    rightNeighbourBinIndex = anotherBinIndex;
 			    break;
@@ -324,8 +380,9 @@ public class ScanUtils {
 
 		    double slope = (rightNeighbourValue - leftNeighbourValue)
 			    / (rightNeighbourBinIndex - leftNeighbourBinIndex);
-		    binValues[binIndex] = new Double(leftNeighbourValue + slope
-			    * (binIndex - leftNeighbourBinIndex));
+		    binValues[binIndex] = leftNeighbourValue + slope
+			    * (binIndex - leftNeighbourBinIndex);
+		    binHasValue[binIndex] = true;
 
 		}
 
@@ -333,12 +390,8 @@ public class ScanUtils {
 
 	}
 
-	double[] res = new double[binValues.length];
-	for (int binIndex = 0; binIndex < binValues.length; binIndex++) {
-	    res[binIndex] = binValues[binIndex] == null ? 0
-		    : binValues[binIndex];
-	}
-	return res;
+	// Bins without any value are left at 0
+	return binValues;
 
     }
 
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.modules.MZmineModuleCategory;
+import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.impl.MZmineProcessingStepImpl;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.util.ExitCode;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchCheckpointsTest {
+
+    private static final int NUM_OF_STEPS = 16;
+
+    private static class TestModule implements MZmineProcessingModule {
+
+	@Override
+	public @Nonnull String getName() {
+	    return "Test step";
+	}
+
+	@Override
+	public @Nonnull Class<? extends ParameterSet> getParameterSetClass() {
+	    return SimpleParameterSet.class;
+	}
+
+	@Override
+	public @Nonnull String getDescription() {
+	    return "Test step";
+	}
+
+	@Override
+	public @Nonnull ExitCode runModule(@Nonnull MZmineProject project,
+		@Nonnull ParameterSet parameters,
+		@Nonnull Collection<Task> tasks) {
+	    return ExitCode.OK;
+	}
+
+	@Override
+	public @Nonnull MZmineModuleCategory getModuleCategory() {
+	    return MZmineModuleCategory.PROJECT;
+	}
+
+    }
+
+    private static BatchQueue createQueue() {
+	BatchQueue queue = new BatchQueue();
+	TestModule module = new TestModule();
+	for (int i = 0; i < NUM_OF_STEPS; i++) {
+	    DoubleParameter parameter = new DoubleParameter("Value", "Value");
+	    parameter.setValue((double) i);
+	    queue.add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
+		    module, new SimpleParameterSet(
+			    new Parameter<?>[] { parameter })));
+	}
+	return queue;
+    }
+
+    /**
+     * Writes the files of a checkpoint like BatchCheckpoints.save(), without
+     * saving a project
+     */
+    private static void saveCheckpoint(BatchCheckpoints checkpoints,
+	    int stepNumber, String key) throws IOException {
+	Assert.assertTrue(checkpoints.getProjectFile(stepNumber, key)
+		.createNewFile());
+	Assert.assertTrue(checkpoints.getItemsFile(stepNumber, key)
+		.createNewFile());
+	checkpoints.deleteOlderCheckpoints(stepNumber, key);
+    }
+
+    /**
+     * After changing a parameter of a late step, the batch resumes after the
+     * step before it, and saving the following steps replaces only their own
+     * checkpoints
+     */
+    @Test
+    public void testResumeAfterChangedLateStep() throws IOException {
+
+	File directory = Files.createTempDirectory("mzmine_checkpoints")
+		.toFile();
+	try {
+	    BatchCheckpoints checkpoints = new BatchCheckpoints(directory);
+	    MZmineProject project = new MZmineProjectImpl();
+	    BatchQueue queue = createQueue();
+
+	    String keys[] = checkpoints.getStepKeys(project, queue);
+	    Assert.assertEquals(-1, checkpoints.getLastValidStep(keys));
+	    for (int i = 0; i < NUM_OF_STEPS; i++)
+		saveCheckpoint(checkpoints, i, keys[i]);
+	    Assert.assertEquals(NUM_OF_STEPS - 1,
+		    checkpoints.getLastValidStep(keys));
+
+	    // Change the parameter of step # 14
+	    int changedStep = 13;
+	    ((DoubleParameter) queue.get(changedStep).getParameterSet()
+		    .getParameters()[0]).setValue(100.0);
+	    String changedKeys[] = checkpoints.getStepKeys(project, queue);
+	    for (int i = 0; i < changedStep; i++)
+		Assert.assertEquals(keys[i], changedKeys[i]);
+	    Assert.assertEquals(changedStep - 1,
+		    checkpoints.getLastValidStep(changedKeys));
+
+	    // Process the changed step and the following steps again
+	    for (int i = changedStep; i < NUM_OF_STEPS; i++)
+		saveCheckpoint(checkpoints, i, changedKeys[i]);
+	    Assert.assertEquals(NUM_OF_STEPS - 1,
+		    checkpoints.getLastValidStep(changedKeys));
+	    for (int i = 0; i < NUM_OF_STEPS; i++)
+		Assert.assertTrue(checkpoints.isValid(i, changedKeys[i]));
+	    for (int i = changedStep; i < NUM_OF_STEPS; i++) {
+		Assert.assertFalse(checkpoints.getProjectFile(i, keys[i])
+			.exists());
+		Assert.assertFalse(checkpoints.getItemsFile(i, keys[i])
+			.exists());
+	    }
+	    Assert.assertEquals(2 * NUM_OF_STEPS, directory.list().length);
+
+	} finally {
+	    for (File file : directory.listFiles())
+		file.delete();
+	    directory.delete();
+	}
+
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class HighestDataPointConnectorTest {
+
+    private static final int NUMBER_OF_SCANS = 150;
+    private static final double MIN_TIME_SPAN = 0.05, MIN_HEIGHT = 0;
+
+    /**
+     * Compares the chromatograms built by HighestDataPointConnector with those
+     * built by the original nested-loop algorithm, on synthetic mass lists
+     * with overlapping tolerance windows and equal intensities
+     */
+    @Test
+    public void testSameResultAsLinearSearch() throws Exception {
+        compareWithLinearSearch(new MZTolerance(0.002, 5), 1);
+        compareWithLinearSearch(new MZTolerance(0.05, 0), 2);
+        compareWithLinearSearch(new MZTolerance(0, 50), 3);
+    }
+
+    private void compareWithLinearSearch(MZTolerance mzTolerance, long seed)
+            throws Exception {
+
+        RawDataFileImpl dataFile = new RawDataFileImpl("test");
+        Random random = new Random(seed);
+
+        int scanNumbers[] = new int[NUMBER_OF_SCANS];
+        DataPoint massLists[][] = new DataPoint[NUMBER_OF_SCANS][];
+        for (int i = 0; i < NUMBER_OF_SCANS; i++) {
+            scanNumbers[i] = i + 1;
+            massLists[i] = generateMassList(random);
+            dataFile.addScan(new SimpleScan(dataFile, scanNumbers[i], 1,
+                    i * 0.01, 0, 0, new int[0], massLists[i],
+                    MassSpectrumType.CENTROIDED, PolarityType.POSITIVE, "",
+                    Range.closed(100.0, 1000.0)));
+        }
+        dataFile.finishWriting();
+
+        try {
+            HighestDataPointConnector connector = new HighestDataPointConnector(
+                    dataFile, scanNumbers, MIN_TIME_SPAN, MIN_HEIGHT,
+                    mzTolerance);
+            LinearSearchConnector reference = new LinearSearchConnector(
+                    dataFile, scanNumbers, MIN_TIME_SPAN, MIN_HEIGHT,
+                    mzTolerance);
+
+            for (int i = 0; i < NUMBER_OF_SCANS; i++) {
+                connector.addScan(scanNumbers[i], massLists[i]);
+                reference.addScan(scanNumbers[i], massLists[i]);
+            }
+
+            Chromatogram chromatograms[] = connector.finishChromatograms();
+            Chromatogram expected[] = reference.finishChromatograms();
+
+            Assert.assertNotEquals(0, expected.length);
+            Assert.assertEquals(expected.length, chromatograms.length);
+
+            for (int i = 0; i < expected.length; i++) {
+                for (int scanNumber : scanNumbers) {
+                    DataPoint expectedDataPoint = expected[i]
+                            .getDataPoint(scanNumber);
+                    DataPoint dataPoint = chromatograms[i]
+                            .getDataPoint(scanNumber);
+                    if (expectedDataPoint == null) {
+                        Assert.assertNull(dataPoint);
+                        continue;
+                    }
+                    Assert.assertNotNull(dataPoint);
+                    Assert.assertEquals(expectedDataPoint.getMZ(),
+                            dataPoint.getMZ(), 0);
+                    Assert.assertEquals(expectedDataPoint.getIntensity(),
+                            dataPoint.getIntensity(), 0);
+                }
+            }
+        } finally {
+            dataFile.close();
+        }
+
+    }
+
+    /**
+     * Generates a mass list of slowly drifting m/z values, which form
+     * chromatograms, and random noise. Intensities are rounded to produce
+     * ties.
+     */
+    private DataPoint[] generateMassList(Random random) {
+        final int numOfPeaks = 200 + random.nextInt(100);
+        DataPoint dataPoints[] = new DataPoint[numOfPeaks];
+        for (int i = 0; i < numOfPeaks; i++) {
+            double mz;
+            if (i % 2 == 0)
+                mz = 100 + (i * 3) + random.nextGaussian() * 0.002;
+            else
+                mz = 100 + random.nextDouble() * 900;
+            double intensity = Math.round(random.nextDouble() * 20) * 1000;
+            dataPoints[i] = new SimpleDataPoint(mz, intensity);
+        }
+        Arrays.sort(dataPoints, new DataPointSorter(SortingProperty.MZ,
+                SortingDirection.Ascending));
+        return dataPoints;
+    }
+
+    /**
+     * The original HighestDataPointConnector algorithm, which tests all
+     * building chromatograms for each m/z value
+     */
+    private static class LinearSearchConnector {
+
+        private final MZTolerance mzTolerance;
+        private final double minimumTimeSpan, minimumHeight;
+        private final RawDataFile dataFile;
+        private final int allScanNumbers[];
+
+        private Set<Chromatogram> buildingChromatograms = new LinkedHashSet<Chromatogram>();
+
+        LinearSearchConnector(RawDataFile dataFile, int allScanNumbers[],
+                double minimumTimeSpan, double minimumHeight,
+                MZTolerance mzTolerance) {
+            this.mzTolerance = mzTolerance;
+            this.minimumHeight = minimumHeight;
+            this.minimumTimeSpan = minimumTimeSpan;
+            this.dataFile = dataFile;
+            this.allScanNumbers = allScanNumbers;
+        }
+
+        void addScan(int scanNumber, DataPoint mzValues[]) {
+
+            DataPoint sortedMzValues[] = mzValues.clone();
+            Arrays.sort(sortedMzValues, new DataPointSorter(
+                    SortingProperty.Intensity, SortingDirection.Descending));
+
+            Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+
+            for (DataPoint mzPeak : sortedMzValues) {
+
+                Chromatogram bestChromatogram = null;
+
+                for (Chromatogram testChrom : buildingChromatograms) {
+                    DataPoint lastMzPeak = testChrom.getLastMzPeak();
+                    Range<Double> toleranceRange = mzTolerance
+                            .getToleranceRange(lastMzPeak.getMZ());
+                    if (toleranceRange.contains(mzPeak.getMZ())) {
+                        if ((bestChromatogram == null)
+                                || (testChrom.getLastMzPeak().getIntensity() > bestChromatogram
+                                        .getLastMzPeak().getIntensity())) {
+                            bestChromatogram = testChrom;
+                        }
+                    }
+                }
+
+                if (bestChromatogram != null) {
+                    if (connectedChromatograms.contains(bestChromatogram))
+                        continue;
+                } else {
+                    bestChromatogram = new Chromatogram(dataFile,
+                            allScanNumbers);
+                }
+
+                bestChromatogram.addMzPeak(scanNumber, mzPeak);
+                connectedChromatograms.add(bestChromatogram);
+            }
+
+            for (Chromatogram testChrom : buildingChromatograms) {
+                if (connectedChromatograms.contains(testChrom))
+                    continue;
+                if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
+                    testChrom.commitBuildingSegment();
+                    connectedChromatograms.add(testChrom);
+                    continue;
+                }
+                if (testChrom.getNumberOfCommittedSegments() > 0) {
+                    testChrom.removeBuildingSegment();
+                    connectedChromatograms.add(testChrom);
+                    continue;
+                }
+            }
+
+            buildingChromatograms = connectedChromatograms;
+        }
+
+        Chromatogram[] finishChromatograms() {
+            Iterator<Chromatogram> chromIterator = buildingChromatograms
+                    .iterator();
+            while (chromIterator.hasNext()) {
+                Chromatogram chromatogram = chromIterator.next();
+                if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
+                    chromatogram.commitBuildingSegment();
+                    chromatogram.finishChromatogram();
+                } else {
+                    if (chromatogram.getNumberOfCommittedSegments() == 0) {
+                        chromIterator.remove();
+                        continue;
+                    } else {
+                        chromatogram.removeBuildingSegment();
+                        chromatogram.finishChromatogram();
+                    }
+                }
+                if (chromatogram.getHeight() < minimumHeight)
+                    chromIterator.remove();
+            }
+            return buildingChromatograms.toArray(new Chromatogram[0]);
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment.join;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+/**
+ * Benchmark of the join aligner score calculation on synthetic peak lists,
+ * with increasing number of threads. Not run as a unit test, start the main()
+ * method with the test classpath, optionally with the numbers of rows as
+ * arguments (default 10000 30000 100000).
+ */
+public class JoinAlignerBenchmark {
+
+    private static final int REPETITIONS = 3;
+
+    public static void main(String args[]) throws Exception {
+
+        int rowCounts[] = { 10000, 30000, 100000 };
+        if (args.length > 0) {
+            rowCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                rowCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        final int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        RowVsRowScoreCalculator calculator = new RowVsRowScoreCalculator(
+                new MZTolerance(0.005, 10), new RTTolerance(true, 0.5), 75,
+                25, false, false, null);
+
+        for (int numOfRows : rowCounts) {
+
+            Random random = new Random(numOfRows);
+            SimplePeakList alignedPeakList = createPeakList(numOfRows, random,
+                    null);
+            PeakListRow rows[] = createPeakList(numOfRows, random,
+                    alignedPeakList).getRows();
+
+            TreeSet<RowVsRowScore> reference = null;
+            long singleThreadTime = 0;
+
+            for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(
+                    threads, maxThreads)) {
+
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                long bestTime = Long.MAX_VALUE;
+                TreeSet<RowVsRowScore> scores = null;
+                for (int i = 0; i < REPETITIONS; i++) {
+                    long startTime = System.nanoTime();
+                    scores = calculator.calculateScores(rows, alignedPeakList,
+                            pool, null);
+                    bestTime = Math.min(bestTime, System.nanoTime()
+                            - startTime);
+                }
+                pool.shutdown();
+
+                if (reference == null) {
+                    reference = scores;
+                    singleThreadTime = bestTime;
+                } else if (!sameOrder(reference, scores)) {
+                    throw new IllegalStateException("Scores calculated with "
+                            + threads + " threads differ from single thread");
+                }
+
+                System.out.printf("%7d rows, %2d threads: %8.1f ms, "
+                        + "speedup %.2f, %d scores%n", numOfRows, threads,
+                        bestTime / 1e6, (double) singleThreadTime / bestTime,
+                        scores.size());
+            }
+        }
+
+    }
+
+    /**
+     * Doubles the number of threads, but makes sure the maximum is also tested
+     */
+    private static int nextThreadCount(int threads, int maxThreads) {
+        if ((threads < maxThreads) && (threads * 2 > maxThreads))
+            return maxThreads;
+        return threads * 2;
+    }
+
+    /**
+     * Creates a peak list with random m/z and RT values. If alignedPeakList is
+     * given, each row is placed close to a row of the aligned peak list.
+     */
+    private static SimplePeakList createPeakList(int numOfRows, Random random,
+            SimplePeakList alignedPeakList) throws Exception {
+        SimplePeakList peakList = new SimplePeakList("Benchmark",
+                new RawDataFileImpl("Benchmark"));
+        for (int i = 0; i < numOfRows; i++) {
+            SimplePeakListRow row = new SimplePeakListRow(i + 1);
+            if (alignedPeakList == null) {
+                row.setAverageMZ(100 + random.nextDouble() * 900);
+                row.setAverageRT(random.nextDouble() * 60);
+            } else {
+                PeakListRow alignedRow = alignedPeakList.getRow(i);
+                row.setAverageMZ(alignedRow.getAverageMZ()
+                        + random.nextGaussian() * 0.002);
+                row.setAverageRT(alignedRow.getAverageRT()
+                        + random.nextGaussian() * 0.1);
+            }
+            peakList.addRow(row);
+        }
+        return peakList;
+    }
+
+    private static boolean sameOrder(TreeSet<RowVsRowScore> scores1,
+            TreeSet<RowVsRowScore> scores2) {
+        if (scores1.size() != scores2.size())
+            return false;
+        Iterator<RowVsRowScore> iterator1 = scores1.iterator();
+        Iterator<RowVsRowScore> iterator2 = scores2.iterator();
+        while (iterator1.hasNext()) {
+            RowVsRowScore score1 = iterator1.next();
+            RowVsRowScore score2 = iterator2.next();
+            if ((score1.getPeakListRow() != score2.getPeakListRow())
+                    || (score1.getAlignedRow() != score2.getAlignedRow())
+                    || (score1.getScore() != score2.getScore()))
+                return false;
+        }
+        return true;
+    }
+
+}
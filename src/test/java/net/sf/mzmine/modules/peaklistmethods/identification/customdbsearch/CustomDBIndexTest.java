@@ -0,0 +1,122 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class CustomDBIndexTest {
+
+    private static final FieldItem FIELD_ORDER[] = { FieldItem.FIELD_ID,
+	    FieldItem.FIELD_MZ, FieldItem.FIELD_RT, FieldItem.FIELD_NAME,
+	    FieldItem.FIELD_FORMULA };
+
+    /**
+     * Test the found compounds against checking all lines, including lines
+     * without m/z or RT
+     */
+    @Test
+    public void testFindCompounds() {
+
+	final Random random = new Random(18);
+	final String lines[][] = new String[2001][];
+	lines[0] = new String[] { "ID", "m/z", "RT", "Name", "Formula" };
+	for (int i = 1; i < lines.length; i++) {
+	    final double mz = random.nextInt(10) == 0 ? 0 : 100 + random
+		    .nextDouble() * 900;
+	    final double rt = random.nextInt(10) == 0 ? 0 : random
+		    .nextDouble() * 60;
+	    lines[i] = new String[] { "C" + i, String.valueOf(mz),
+		    String.valueOf(rt), "Compound " + i, "C" + i + "H" };
+	}
+
+	final CustomDBIndex index = new CustomDBIndex(lines, FIELD_ORDER, true);
+	Assert.assertEquals(lines.length - 1, index.size());
+
+	for (int query = 0; query < 500; query++) {
+	    final double mz = 100 + random.nextDouble() * 900;
+	    final double rt = random.nextDouble() * 60;
+	    final Range<Double> mzRange = Range.closed(mz - 2, mz + 2);
+	    final Range<Double> rtRange = Range.closed(rt - 1, rt + 1);
+
+	    final int found[] = index.findCompounds(mzRange, rtRange);
+	    final int expected[] = findCompounds(index, mzRange, rtRange);
+	    Assert.assertArrayEquals(expected, found);
+	}
+
+	// Compound at the bounds of the ranges
+	final double mz = index.getMZ(5), rt = index.getRT(5);
+	if ((mz != 0) && (rt != 0)) {
+	    final int found[] = index.findCompounds(Range.closed(mz, mz),
+		    Range.closed(rt, rt));
+	    Assert.assertTrue(found.length > 0);
+	}
+    }
+
+    /**
+     * Test that invalid lines and lines without name are skipped, and the
+     * values of the remaining lines are kept in the order of the file
+     */
+    @Test
+    public void testInvalidLines() {
+
+	final String lines[][] = {
+		{ "1", "100.5", "10", "Alanine", "C3H7NO2" },
+		{ "2", "not a number", "10", "Invalid", "" },
+		{ "3", "200.5" },
+		{ "4", "0", "0", "Anything", "" } };
+
+	final CustomDBIndex index = new CustomDBIndex(lines, FIELD_ORDER,
+		false);
+	Assert.assertEquals(2, index.size());
+	Assert.assertEquals("1", index.getID(0));
+	Assert.assertEquals("Alanine", index.getName(0));
+	Assert.assertEquals("C3H7NO2", index.getFormula(0));
+	Assert.assertEquals(100.5, index.getMZ(0), 0);
+	Assert.assertEquals(10, index.getRT(0), 0);
+	Assert.assertEquals("Anything", index.getName(1));
+
+	Assert.assertArrayEquals(new int[] { 0, 1 }, index.findCompounds(
+		Range.closed(100d, 101d), Range.closed(9d, 11d)));
+	Assert.assertArrayEquals(new int[] { 1 }, index.findCompounds(
+		Range.closed(100d, 101d), Range.closed(20d, 21d)));
+    }
+
+    private static int[] findCompounds(CustomDBIndex index,
+	    Range<Double> mzRange, Range<Double> rtRange) {
+	int result[] = new int[index.size()];
+	int found = 0;
+	for (int i = 0; i < index.size(); i++) {
+	    final boolean mzMatches = (index.getMZ(i) == 0d)
+		    || mzRange.contains(index.getMZ(i));
+	    final boolean rtMatches = (index.getRT(i) == 0d)
+		    || rtRange.contains(index.getRT(i));
+	    if (mzMatches && rtMatches)
+		result[found++] = i;
+	}
+	return Arrays.copyOf(result, found);
+    }
+
+}
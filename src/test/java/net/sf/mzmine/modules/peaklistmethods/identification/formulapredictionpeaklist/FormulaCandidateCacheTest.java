@@ -0,0 +1,156 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.formulapredictionpeaklist;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscience.cdk.config.IsotopeFactory;
+import org.openscience.cdk.config.Isotopes;
+import org.openscience.cdk.formula.MolecularFormulaRange;
+import org.openscience.cdk.interfaces.IMolecularFormula;
+import org.openscience.cdk.silent.MolecularFormula;
+
+import com.google.common.collect.Range;
+
+/**
+ * The cache is shared by all tests, so each test uses its own masses
+ */
+public class FormulaCandidateCacheTest {
+
+    private static MolecularFormulaRange createElementCounts(int maxCarbons)
+            throws IOException {
+        IsotopeFactory iFac = Isotopes.getInstance();
+        MolecularFormulaRange elementCounts = new MolecularFormulaRange();
+        elementCounts.addIsotope(iFac.getMajorIsotope("C"), 0, maxCarbons);
+        elementCounts.addIsotope(iFac.getMajorIsotope("H"), 0, 100);
+        return elementCounts;
+    }
+
+    private static List<IMolecularFormula> createCandidates(int count) {
+        return Collections.<IMolecularFormula> nCopies(count,
+                new MolecularFormula());
+    }
+
+    /**
+     * The cached window contains the mass range and is at most five times
+     * wider, and close ranges share the window
+     */
+    @Test
+    public void testCachedRange() {
+        for (double mass = 100; mass < 1000; mass += 7.3) {
+            for (double width = 0.001; width < 0.1; width *= 1.7) {
+                Range<Double> massRange = Range.closed(mass, mass + width);
+                Range<Double> cachedRange = FormulaCandidateCache
+                        .getCachedRange(massRange);
+                Assert.assertTrue(cachedRange.encloses(massRange));
+                Assert.assertTrue(cachedRange.upperEndpoint()
+                        - cachedRange.lowerEndpoint() <= 5 * width + 1e-9);
+            }
+        }
+        Assert.assertEquals(
+                FormulaCandidateCache.getCachedRange(
+                        Range.closed(200.0012, 200.0032)),
+                FormulaCandidateCache.getCachedRange(
+                        Range.closed(200.0011, 200.0031)));
+    }
+
+    /**
+     * Candidates are found again for the same window and element counts
+     */
+    @Test
+    public void testHit() throws IOException {
+        Range<Double> cachedRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(300.0012, 300.0032));
+        List<IMolecularFormula> candidates = createCandidates(
+                FormulaCandidateCache.MAX_CANDIDATES);
+        FormulaCandidateCache.put(
+                FormulaCandidateCache.createKey(cachedRange,
+                        createElementCounts(20)), candidates);
+
+        Range<Double> closeRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(300.0011, 300.0031));
+        Assert.assertSame(candidates, FormulaCandidateCache
+                .get(FormulaCandidateCache.createKey(closeRange,
+                        createElementCounts(20))));
+    }
+
+    /**
+     * Candidates are not found for another window or other element counts
+     */
+    @Test
+    public void testMiss() throws IOException {
+        Range<Double> cachedRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(400.0012, 400.0032));
+        FormulaCandidateCache.put(
+                FormulaCandidateCache.createKey(cachedRange,
+                        createElementCounts(20)), createCandidates(10));
+
+        Assert.assertNull(FormulaCandidateCache.get(FormulaCandidateCache
+                .createKey(cachedRange, createElementCounts(30))));
+        Range<Double> otherRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(400.0112, 400.0132));
+        Assert.assertNull(FormulaCandidateCache.get(FormulaCandidateCache
+                .createKey(otherRange, createElementCounts(20))));
+    }
+
+    /**
+     * Windows with more than MAX_CANDIDATES candidates are not cached, and
+     * windows of the same width at the same or a higher mass are not generated
+     */
+    @Test
+    public void testOverCap() throws IOException {
+        MolecularFormulaRange elementCounts = createElementCounts(40);
+        Range<Double> cachedRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(500.0012, 500.0032));
+        String key = FormulaCandidateCache.createKey(cachedRange,
+                elementCounts);
+        FormulaCandidateCache.put(key,
+                createCandidates(FormulaCandidateCache.MAX_CANDIDATES + 1));
+        Assert.assertNull(FormulaCandidateCache.get(key));
+
+        Assert.assertFalse(
+                FormulaCandidateCache.isTooLarge(cachedRange, elementCounts));
+        FormulaCandidateCache.putTooLarge(cachedRange, elementCounts);
+        Assert.assertTrue(
+                FormulaCandidateCache.isTooLarge(cachedRange, elementCounts));
+
+        Range<Double> higherRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(812.3412, 812.3432));
+        Assert.assertTrue(
+                FormulaCandidateCache.isTooLarge(higherRange, elementCounts));
+
+        Range<Double> lowerRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(250.0012, 250.0032));
+        Assert.assertFalse(
+                FormulaCandidateCache.isTooLarge(lowerRange, elementCounts));
+        Assert.assertFalse(FormulaCandidateCache.isTooLarge(higherRange,
+                createElementCounts(50)));
+
+        Range<Double> widerRange = FormulaCandidateCache
+                .getCachedRange(Range.closed(812.3412, 812.3632));
+        Assert.assertFalse(
+                FormulaCandidateCache.isTooLarge(widerRange, elementCounts));
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Ms2SpectrumTest {
+
+    /**
+     * Test the score, the number of matched ions and the matched ions against
+     * comparing each ion of one spectrum with each ion of the other spectrum
+     */
+    @Test
+    public void testMatchAgainstAllPairs() {
+
+        final Random random = new Random(17);
+        final Ms2Spectrum.Match match = new Ms2Spectrum.Match();
+
+        for (int test = 0; test < 200; test++) {
+
+            final SpectrumBuffer ionsA = createSpectrum(random);
+            final SpectrumBuffer ionsB = createSpectrum(random);
+            // Some ions close to the ions of the other spectrum
+            for (int i = 0; i < ionsA.getSize(); i += 3)
+                ionsB.add(ionsA.getMZ(i) + random.nextGaussian() * 0.002, 50);
+            sort(ionsB);
+
+            final double ppmTolerance = 1 + random.nextDouble() * 20;
+            final List<DataPoint> expectedIons = new ArrayList<DataPoint>();
+            final double expectedScore = matchAllPairs(ionsA, ionsB,
+                    ppmTolerance, expectedIons);
+
+            final Ms2Spectrum spectrumA = new Ms2Spectrum(null, ionsA);
+            final Ms2Spectrum spectrumB = new Ms2Spectrum(null, ionsB);
+
+            spectrumA.match(spectrumB, ppmTolerance, match, null);
+            Assert.assertEquals(expectedScore, match.score, 0.0);
+            Assert.assertEquals(expectedIons.size(), match.numIonsMatched);
+
+            final List<DataPoint> matchedIons = new ArrayList<DataPoint>();
+            spectrumA.match(spectrumB, ppmTolerance, match, matchedIons);
+            Assert.assertEquals(expectedIons.size(), matchedIons.size());
+            for (int i = 0; i < matchedIons.size(); i++) {
+                Assert.assertEquals(expectedIons.get(i).getMZ(), matchedIons
+                        .get(i).getMZ(), 0.0);
+                Assert.assertEquals(expectedIons.get(i).getIntensity(),
+                        matchedIons.get(i).getIntensity(), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Test that ions which are not sorted by m/z are sorted
+     */
+    @Test
+    public void testUnsortedIons() {
+
+        final SpectrumBuffer unsorted = new SpectrumBuffer();
+        unsorted.add(300.0, 3);
+        unsorted.add(100.0, 1);
+        unsorted.add(200.0, 2);
+        final SpectrumBuffer sorted = new SpectrumBuffer();
+        sorted.add(100.0, 10);
+        sorted.add(200.0, 20);
+        sorted.add(300.0, 30);
+
+        final Ms2Spectrum.Match match = new Ms2Spectrum.Match();
+        new Ms2Spectrum(null, unsorted).match(new Ms2Spectrum(null, sorted),
+                10, match, null);
+        Assert.assertEquals(3, match.numIonsMatched);
+        Assert.assertEquals(1 * 10 + 2 * 20 + 3 * 30, match.score, 0.0);
+    }
+
+    private static SpectrumBuffer createSpectrum(Random random) {
+        final SpectrumBuffer ions = new SpectrumBuffer();
+        final int numOfIons = random.nextInt(60);
+        for (int i = 0; i < numOfIons; i++)
+            ions.add(50 + random.nextDouble() * 500,
+                    random.nextDouble() * 1000);
+        sort(ions);
+        return ions;
+    }
+
+    private static void sort(SpectrumBuffer ions) {
+        final double mz[] = ions.getMZValues();
+        final double intensity[] = ions.getIntensityValues();
+        for (int i = 1; i < ions.getSize(); i++) {
+            for (int j = i; (j > 0) && (mz[j - 1] > mz[j]); j--) {
+                double swap = mz[j];
+                mz[j] = mz[j - 1];
+                mz[j - 1] = swap;
+                swap = intensity[j];
+                intensity[j] = intensity[j - 1];
+                intensity[j - 1] = swap;
+            }
+        }
+    }
+
+    /**
+     * The nested loop previously used by Ms2SearchTask
+     */
+    private static double matchAllPairs(SpectrumBuffer ionsA,
+            SpectrumBuffer ionsB, double ppmTolerance,
+            List<DataPoint> matchedIons) {
+        double runningScoreTotal = 0.0;
+        for (int i = 0; i < ionsA.getSize(); i++) {
+            final double iMZ = ionsA.getMZ(i);
+            final double mzRangeAbsolute = iMZ * 1e-6 * ppmTolerance;
+            for (int j = 0; j < ionsB.getSize(); j++) {
+                if (Math.abs(iMZ - ionsB.getMZ(j)) < mzRangeAbsolute) {
+                    runningScoreTotal += ionsA.getIntensity(i)
+                            * ionsB.getIntensity(j);
+                    matchedIons.add(new TestDataPoint(iMZ, ionsA
+                            .getIntensity(i)));
+                }
+            }
+        }
+        return runningScoreTotal;
+    }
+
+    private static class TestDataPoint implements DataPoint {
+
+        private final double mz, intensity;
+
+        TestDataPoint(double mz, double intensity) {
+            this.mz = mz;
+            this.intensity = intensity;
+        }
+
+        @Override
+        public double getMZ() {
+            return mz;
+        }
+
+        @Override
+        public double getIntensity() {
+            return intensity;
+        }
+
+    }
+
+}
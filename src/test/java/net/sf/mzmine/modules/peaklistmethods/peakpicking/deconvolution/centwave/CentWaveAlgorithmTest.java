@@ -0,0 +1,270 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CentWaveAlgorithmTest {
+
+    private static final String CHROMATOGRAM_FILE = "src/test/resources/centwave_chromatogram.csv";
+    private static final String PEAKS_FILE = "src/test/resources/centwave_peaks.csv";
+
+    /**
+     * Regression test of the detected peaks of the reference chromatogram,
+     * with both integration methods. The expected peaks were recorded from
+     * this implementation, not from XCMS, so this test does not show that the
+     * results match XCMS. centwave_peaks.R captures them from XCMS.
+     */
+    @Test
+    public void testReferenceChromatogram() throws IOException {
+
+        final List<double[]> points = readCsv(CHROMATOGRAM_FILE);
+        final double scanTime[] = new double[points.size()];
+        final double intensity[] = new double[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            scanTime[i] = points.get(i)[0] * 60.0;
+            intensity[i] = points.get(i)[1];
+        }
+
+        final List<double[]> expected = readCsv(PEAKS_FILE);
+        final List<CentWaveAlgorithm.Peak> peaks = new ArrayList<CentWaveAlgorithm.Peak>();
+        peaks.addAll(CentWaveAlgorithm.findPeaks(scanTime, intensity, 3.0,
+                3.0, 18.0, true, false));
+        final int smoothedPeaks = peaks.size();
+        peaks.addAll(CentWaveAlgorithm.findPeaks(scanTime, intensity, 3.0,
+                3.0, 18.0, false, false));
+
+        Assert.assertEquals(expected.size(), peaks.size());
+        for (int i = 0; i < peaks.size(); i++) {
+            final double[] expectedPeak = expected.get(i);
+            final CentWaveAlgorithm.Peak peak = peaks.get(i);
+            Assert.assertEquals(expectedPeak[0], i < smoothedPeaks ? 1 : 2,
+                    0.0);
+            Assert.assertEquals(expectedPeak[1], peak.rtMin / 60.0, 1e-4);
+            Assert.assertEquals(expectedPeak[2], peak.rtMax / 60.0, 1e-4);
+            Assert.assertEquals(expectedPeak[3], peak.area,
+                    expectedPeak[3] * 1e-5);
+        }
+    }
+
+    /**
+     * Test that no peaks are detected in noise
+     */
+    @Test
+    public void testNoise() {
+
+        final Random random = new Random(1);
+        final double scanTime[] = new double[500];
+        final double intensity[] = new double[500];
+        for (int i = 0; i < intensity.length; i++) {
+            scanTime[i] = i;
+            intensity[i] = 1000.0 + 100.0 * random.nextGaussian();
+        }
+
+        Assert.assertTrue(CentWaveAlgorithm.findPeaks(scanTime, intensity,
+                10.0, 5.0, 30.0, true, false).isEmpty());
+    }
+
+    /**
+     * Test that the peak of a symmetric chromatogram is centered on its apex
+     * only with the fixed scan offset
+     */
+    @Test
+    public void testScanOffset() {
+
+        final double scanTime[] = new double[200];
+        final double intensity[] = new double[200];
+        for (int i = 0; i < intensity.length; i++) {
+            scanTime[i] = i;
+            intensity[i] = 10.0 + 1000.0 * Math.exp(-(i - 100) * (i - 100)
+                    / 50.0);
+        }
+
+        for (final boolean fixScanOffset : new boolean[] { false, true }) {
+            final List<CentWaveAlgorithm.Peak> peaks = CentWaveAlgorithm
+                    .findPeaks(scanTime, intensity, 3.0, 10.0, 30.0, true,
+                            fixScanOffset);
+            Assert.assertEquals(1, peaks.size());
+            Assert.assertEquals(fixScanOffset ? 200 : 198,
+                    peaks.get(0).left + peaks.get(0).right);
+        }
+    }
+
+    /**
+     * Test the wavelet scales calculated from the peak widths
+     */
+    @Test
+    public void testGetScales() {
+
+        final double scanTime[] = new double[100];
+        for (int i = 0; i < scanTime.length; i++) {
+            scanTime[i] = i;
+        }
+
+        Assert.assertArrayEquals(new int[] { 10, 12, 14, 16, 18, 20, 22, 24 },
+                CentWaveAlgorithm.getScales(scanTime, 20.0, 50.0));
+        Assert.assertArrayEquals(new int[] { 2 },
+                CentWaveAlgorithm.getScales(scanTime, 1.0, 3.0));
+        Assert.assertNull(CentWaveAlgorithm.getScales(scanTime, 0.5, 1.0));
+    }
+
+    /**
+     * Test the wavelet transform of constant data and of a single peak
+     */
+    @Test
+    public void testCwt() {
+
+        final double constant[] = new double[100];
+        final double peak[] = new double[100];
+        for (int i = 0; i < constant.length; i++) {
+            constant[i] = 100.0;
+            peak[i] = Math.exp(-(i - 40) * (i - 40) / 50.0);
+        }
+
+        final int scales[] = { 2, 4, 6 };
+        for (final double[] coefs : CentWaveAlgorithm.cwt(constant, scales)) {
+            for (final double coef : coefs) {
+                Assert.assertEquals(0.0, coef, 1e-9);
+            }
+        }
+        for (final double[] coefs : CentWaveAlgorithm.cwt(peak, scales)) {
+            int max = 0;
+            for (int i = 1; i < coefs.length; i++) {
+                if (coefs[i] > coefs[max])
+                    max = i;
+            }
+            Assert.assertEquals(40, max, 1);
+        }
+
+        // Wavelet longer than the data
+        Assert.assertNull(CentWaveAlgorithm.cwt(new double[10],
+                new int[] { 2 }));
+
+        // Only the scales up to the first one that is too large
+        Assert.assertEquals(1, CentWaveAlgorithm.cwt(new double[20],
+                new int[] { 2, 3 }).length);
+    }
+
+    /**
+     * Test that no peaks are detected when the smallest wavelet is longer than
+     * a region of interest, as XCMS stops in that case
+     */
+    @Test
+    public void testScaleTooLarge() {
+
+        for (final int length : new int[] { 30, 100 }) {
+            final double scanTime[] = new double[length];
+            final double intensity[] = new double[length];
+            for (int i = 0; i < length; i++) {
+                scanTime[i] = i;
+                intensity[i] = 10.0 + 1000.0 * Math.exp(-(i - 15) * (i - 15)
+                        / 8.0);
+            }
+            Assert.assertEquals(length == 30 ? 0 : 1, CentWaveAlgorithm
+                    .findPeaks(scanTime, intensity, 3.0, 6.0, 6.0, true, false)
+                    .size());
+        }
+    }
+
+    /**
+     * Test the local maxima, as found by MSW.localMaximum
+     */
+    @Test
+    public void testLocalMaximum() {
+
+        final double x[] = { 0, 1, 2, 5, 2, 1, 0, 0, 0, 3, 1, 0 };
+        final boolean localMax[] = CentWaveAlgorithm.localMaximum(x, 5);
+        for (int i = 0; i < x.length; i++) {
+            Assert.assertEquals(i == 3 || i == 9, localMax[i]);
+        }
+
+        // Maxima closer than the window size
+        final double y[] = { 0, 4, 0, 0, 5, 0, 0, 0, 0, 0, 0 };
+        final boolean localMaxY[] = CentWaveAlgorithm.localMaximum(y, 5);
+        for (int i = 0; i < y.length; i++) {
+            Assert.assertEquals(i == 4, localMaxY[i]);
+        }
+    }
+
+    /**
+     * Test the descent to the peak boundaries
+     */
+    @Test
+    public void testDescend() {
+
+        Assert.assertArrayEquals(new int[] { 0, 4 }, CentWaveAlgorithm
+                .descendMin(new double[] { 1, 2, 3, 2, 1, 2 }, 2));
+
+        final double d[] = { 0, 1, 2, 5, 3, 4, 2, 0 };
+        Assert.assertArrayEquals(new int[] { 0, 4 },
+                CentWaveAlgorithm.descendMinTol(d, 3, 3, 0));
+        Assert.assertArrayEquals(new int[] { 0, 7 },
+                CentWaveAlgorithm.descendMinTol(d, 3, 3, 1));
+    }
+
+    /**
+     * Test the trimmed mean noise estimate
+     */
+    @Test
+    public void testEstimateChromNoise() {
+
+        final double x[] = new double[21];
+        x[1] = 100.0;
+        for (int i = 2; i < x.length; i++) {
+            x[i] = i - 1;
+        }
+
+        // 20 positive values, the smallest and largest are trimmed
+        Assert.assertEquals(10.5,
+                CentWaveAlgorithm.estimateChromNoise(x, 0.05, 3), 1e-12);
+
+        // Not enough positive values, mean of all values
+        Assert.assertEquals((100.0 + 190.0) / 21.0,
+                CentWaveAlgorithm.estimateChromNoise(x, 0.05, 30), 1e-12);
+    }
+
+    private static List<double[]> readCsv(final String fileName)
+            throws IOException {
+
+        final List<double[]> rows = new ArrayList<double[]>();
+        for (final String line : Files.readAllLines(Paths.get(fileName),
+                StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty())
+                continue;
+            final String fields[] = line.split(",");
+            final double row[] = new double[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                row[i] = Double.parseDouble(fields[i]);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+}
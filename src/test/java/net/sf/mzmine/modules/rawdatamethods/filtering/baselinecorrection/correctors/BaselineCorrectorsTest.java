@@ -0,0 +1,468 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.correctors;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Checks the Java baseline correctors against the definitions of the R
+ * functions they replace ("asysm" from ptw, "rollingBall" and "peakDetection"
+ * from baseline, "spc.rubberband" from hyperSpec, "bslnoff" from PROcess):
+ * reference values computed by hand on small chromatograms, or by
+ * straightforward (dense, quadratic) implementations of the same definitions
+ * on larger ones, and baselines recorded from R by baseline_correctors.R.
+ */
+public class BaselineCorrectorsTest {
+
+    private static final double EPSILON = 1e-9;
+
+    private static final String CHROMATOGRAM_FILE = "src/test/resources/baseline_chromatogram.csv";
+    private static final String R_BASELINES_FILE = "src/test/resources/baseline_correctors_r.csv";
+
+    // Relative tolerance of the comparison with the baselines recorded from R
+    private static final double R_TOLERANCE = 1e-6;
+
+    /**
+     * Baseline of a chromatogram with fixed parameters
+     */
+    private interface BaselineCase {
+        double[] computeBaseline(double chromatogram[]);
+    }
+
+    /**
+     * The cases of baseline_correctors.R, in the order of the columns of the
+     * recorded file
+     */
+    private static final BaselineCase R_CASES[] = { new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return AsymmetryCorrector.asymmetricBaseline(y, 1e5, 0.001);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return AsymmetryCorrector.asymmetricBaseline(y, 1e3, 0.05);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return RollingBallCorrector.rollingBallBaseline(y, 1, 1);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return RollingBallCorrector.rollingBallBaseline(y, 7, 4);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return RollingBallCorrector.rollingBallBaseline(y, 20, 15);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return RubberBandCorrector.rubberBandBaseline(y, 0.0, true, 0.0,
+                    false, 0.0);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return RubberBandCorrector.rubberBandBaseline(y, 0.0, true, 10.0,
+                    true, 0.0);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return RubberBandCorrector.rubberBandBaseline(y, 0.0, true, 0.0,
+                    false, 500.0);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return LocMinLoessCorrector.locMinBaseline(y, false, 0.3, 10, 0.0);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return LocMinLoessCorrector.locMinBaseline(y, true, 0.3, 10, 0.0);
+        }
+    }, new BaselineCase() {
+        @Override
+        public double[] computeBaseline(double y[]) {
+            return PeakDetectionCorrector.peakDetectionBaseline(y, 30, 30, 20,
+                    20, 3.0, 0.0, 2.0);
+        }
+    } };
+
+    /**
+     * Compares the Java baselines with the baselines recorded from R. The
+     * test is skipped until baseline_correctors.R has been run.
+     */
+    @Test
+    public void testMatchesRecordedR() throws IOException {
+
+        final Path recordedFile = Paths.get(R_BASELINES_FILE);
+        Assume.assumeTrue(Files.isRegularFile(recordedFile));
+
+        final List<double[]> chromatogramRows = readCsv(Paths
+                .get(CHROMATOGRAM_FILE));
+        final double chromatogram[] = new double[chromatogramRows.size()];
+        for (int i = 0; i < chromatogram.length; i++)
+            chromatogram[i] = chromatogramRows.get(i)[0];
+
+        final List<double[]> recorded = readCsv(recordedFile);
+        Assert.assertEquals(chromatogram.length, recorded.size());
+        for (int c = 0; c < R_CASES.length; c++) {
+            final double expected[] = new double[chromatogram.length];
+            for (int i = 0; i < expected.length; i++)
+                expected[i] = recorded.get(i)[c];
+            assertClose(expected, R_CASES[c].computeBaseline(chromatogram),
+                    R_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void testAsymmetryMatchesDenseSolution() {
+        final double chromatogram[] = syntheticChromatogram(60, 1);
+        for (double lambda : new double[] { 10.0, 1e3, 1e5 }) {
+            for (double p : new double[] { 0.001, 0.05 }) {
+                assertClose(denseAsymmetricBaseline(chromatogram, lambda, p),
+                        AsymmetryCorrector.asymmetricBaseline(chromatogram,
+                                lambda, p), 1e-7);
+            }
+        }
+    }
+
+    @Test
+    public void testAsymmetryKeepsLinearTrend() {
+        final double line[] = new double[50];
+        for (int i = 0; i < line.length; i++)
+            line[i] = 100.0 - 1.5 * i;
+        assertClose(line,
+                AsymmetryCorrector.asymmetricBaseline(line, 1e5, 0.001), 1e-6);
+    }
+
+    @Test
+    public void testRollingBall() {
+        final double chromatogram[] = { 5, 3, 4, 1, 2, 6, 7 };
+        assertClose(new double[] { 3, 3, 7.0 / 3, 2, 3, 14.0 / 3, 6 },
+                RollingBallCorrector.rollingBallBaseline(chromatogram, 1, 1),
+                EPSILON);
+    }
+
+    /**
+     * Windows at the ends of the chromatogram grow by one or two points per
+     * scan, as in "rollingBall", rather than being truncated
+     */
+    @Test
+    public void testRollingBallEdgeWindows() {
+        final double ramp[] = new double[10];
+        final double reverseRamp[] = new double[10];
+        for (int i = 0; i < ramp.length; i++) {
+            ramp[i] = i;
+            reverseRamp[i] = ramp.length - 1 - i;
+        }
+        assertClose(new double[] { 7, 7, 7, 7, 6, 4, 3, 2, 0, 0 },
+                RollingBallCorrector.rollingBallBaseline(reverseRamp, 3, 0),
+                EPSILON);
+        assertClose(new double[] { 1, 1.5, 2.5, 3, 4, 5, 6, 6.5, 7.5, 8 },
+                RollingBallCorrector.rollingBallBaseline(ramp, 0, 3), EPSILON);
+    }
+
+    @Test
+    public void testRollingBallMatchesNaiveWindows() {
+        final double chromatogram[] = syntheticChromatogram(200, 2);
+        for (int wm : new int[] { 0, 3, 20, 250 }) {
+            for (int ws : new int[] { 0, 5, 300 }) {
+                assertClose(naiveRollingBall(chromatogram, wm, ws),
+                        RollingBallCorrector.rollingBallBaseline(chromatogram,
+                                wm, ws), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testRubberBandLinear() {
+        final double chromatogram[] = { 4, 1, 3, 0, 2, 5 };
+        assertClose(new double[] { 4, 1, 0.5, 0, 2, 5 },
+                RubberBandCorrector.rubberBandBaseline(chromatogram, 0.0,
+                        false, 0.0, false, 0.0), EPSILON);
+    }
+
+    @Test
+    public void testRubberBandBend() {
+        // Bent by the bend factor, this chromatogram is flat: the baseline
+        // is the chromatogram itself
+        final int n = 30;
+        final double bend = 625.0;
+        final double chromatogram[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            final double x = (double) i / (n - 1);
+            chromatogram[i] = 1000.0 - bend * x * x;
+        }
+        assertClose(chromatogram, RubberBandCorrector.rubberBandBaseline(
+                chromatogram, 0.0, false, 0.0, false, bend), 1e-9);
+    }
+
+    @Test
+    public void testRubberBandSpline() {
+        // Peaks on a linear trend: the support points of the spline are on
+        // the trend, which is reproduced for any smoothing
+        final int n = 120;
+        final double trend[] = new double[n];
+        final double chromatogram[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            trend[i] = 200.0 + 0.75 * i;
+            chromatogram[i] = trend[i];
+        }
+        chromatogram[30] += 500.0;
+        chromatogram[31] += 800.0;
+        chromatogram[75] += 300.0;
+        for (double df : new double[] { 0.0, 3.0, 10.0 }) {
+            assertClose(trend, RubberBandCorrector.rubberBandBaseline(
+                    chromatogram, 0.0, false, df, true, 0.0), 1e-6);
+        }
+    }
+
+    @Test
+    public void testLocMinApprox() {
+        // Intervals (log scale, 3 breaks): [1, 3], ]3, 9]
+        final double chromatogram[] = { 5, 2, 4, 6, 3, 7, 1, 8, 9 };
+        assertClose(new double[] { 2, 2, 1.8, 1.6, 1.4, 1.2, 1, 1, 1 },
+                LocMinLoessCorrector.locMinBaseline(chromatogram, false, 0.0,
+                        3, 0.0), EPSILON);
+    }
+
+    @Test
+    public void testLocMinLoessKeepsLinearTrend() {
+        // Peaks only where the intervals are wide enough to contain points
+        // of the trend
+        final int n = 200;
+        final double trend[] = new double[n];
+        final double chromatogram[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            trend[i] = 50.0 + 0.2 * i;
+            chromatogram[i] = trend[i]
+                    + ((i > 100 && i % 7 == 3) ? 400.0 : 0.0);
+        }
+        assertClose(trend, LocMinLoessCorrector.locMinBaseline(chromatogram,
+                true, 0.3, 40, 0.0), 1e-6);
+    }
+
+    @Test
+    public void testPeakDetection() {
+        final int n = 300;
+        final Random random = new Random(3);
+        final double chromatogram[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            chromatogram[i] = 100.0 + random.nextDouble() + 5000.0
+                    * Math.exp(-0.5 * Math.pow((i - 150) / 4.0, 2));
+        }
+        final double baseline[] = PeakDetectionCorrector
+                .peakDetectionBaseline(chromatogram, 5, 10, 20, 30, 3.0, 0.0,
+                        2.0);
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(100.5, baseline[i], 0.5);
+        }
+    }
+
+    /**
+     * Peaks of random height and width on a sloped trend
+     */
+    private static double[] syntheticChromatogram(int n, long seed) {
+        final Random random = new Random(seed);
+        final double chromatogram[] = new double[n];
+        for (int i = 0; i < n; i++)
+            chromatogram[i] = 100.0 + 0.3 * i + 5.0 * random.nextDouble();
+        for (int peak = 0; peak < n / 15; peak++) {
+            final double center = random.nextDouble() * n;
+            final double width = 1.0 + random.nextDouble() * 3.0;
+            final double height = 50.0 + random.nextDouble() * 1000.0;
+            for (int i = 0; i < n; i++) {
+                chromatogram[i] += height
+                        * Math.exp(-0.5 * Math.pow((i - center) / width, 2));
+            }
+        }
+        return chromatogram;
+    }
+
+    /**
+     * asysm: iterated solution of (W + lambda D'D) z = W y by Gaussian
+     * elimination of the dense matrix
+     */
+    private static double[] denseAsymmetricBaseline(double y[],
+            double lambda, double p) {
+        final int n = y.length;
+        final double w[] = new double[n];
+        Arrays.fill(w, 1.0);
+        double z[] = null;
+        for (int it = 0; it < 25; it++) {
+            final double a[][] = new double[n][n];
+            final double b[] = new double[n];
+            for (int k = 0; k < n - 2; k++) {
+                final double d[] = { 1.0, -2.0, 1.0 };
+                for (int i = 0; i < 3; i++)
+                    for (int j = 0; j < 3; j++)
+                        a[k + i][k + j] += lambda * d[i] * d[j];
+            }
+            for (int i = 0; i < n; i++) {
+                a[i][i] += w[i];
+                b[i] = w[i] * y[i];
+            }
+            z = gaussianElimination(a, b);
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                final double weight = y[i] > z[i] ? p : 1.0 - p;
+                changed |= (weight != w[i]);
+                w[i] = weight;
+            }
+            if (!changed)
+                break;
+        }
+        return z;
+    }
+
+    private static double[] gaussianElimination(double a[][], double b[]) {
+        final int n = b.length;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+                    pivot = row;
+            }
+            final double tmp[] = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            final double t = b[col];
+            b[col] = b[pivot];
+            b[pivot] = t;
+            for (int row = col + 1; row < n; row++) {
+                final double factor = a[row][col] / a[col][col];
+                for (int k = col; k < n; k++)
+                    a[row][k] -= factor * a[col][k];
+                b[row] -= factor * b[col];
+            }
+        }
+        final double x[] = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < n; k++)
+                sum -= a[row][k] * x[k];
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+
+    /**
+     * rollingBall: minimum, maximum and mean over explicit windows. The
+     * windows are given by their first and last point (1-based, as in R): at
+     * the start, the first window ends at ceiling((w + 1) / 2) + 1 and the
+     * end moves by 1 + (i %% 2) points, the end of the chromatogram is the
+     * mirror image of the start
+     */
+    private static double[] naiveRollingBall(double y[], int wm, int ws) {
+        final int n = y.length;
+        final int minMaxWindows[][] = naiveWindows(n, wm);
+        final int smoothingWindows[][] = naiveWindows(n, ws);
+        final double t1[] = new double[n], t2[] = new double[n], baseline[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            t1[i] = Double.MAX_VALUE;
+            for (int j = minMaxWindows[i][0]; j <= minMaxWindows[i][1]; j++)
+                t1[i] = Math.min(t1[i], y[j - 1]);
+        }
+        for (int i = 0; i < n; i++) {
+            t2[i] = -Double.MAX_VALUE;
+            for (int j = minMaxWindows[i][0]; j <= minMaxWindows[i][1]; j++)
+                t2[i] = Math.max(t2[i], t1[j - 1]);
+        }
+        for (int i = 0; i < n; i++) {
+            double sum = 0.0;
+            int count = 0;
+            for (int j = smoothingWindows[i][0]; j <= smoothingWindows[i][1]; j++) {
+                sum += t2[j - 1];
+                count++;
+            }
+            baseline[i] = sum / count;
+        }
+        return baseline;
+    }
+
+    private static int[][] naiveWindows(int n, int w) {
+        final int ends[] = new int[n + 1];
+        for (int i = 1; i <= n; i++) {
+            if (w == 0)
+                ends[i] = i;
+            else if (i == 1)
+                ends[i] = (int) Math.ceil((w + 1) / 2.0) + 1;
+            else if (i <= w)
+                ends[i] = ends[i - 1] + 1 + (i % 2);
+            else
+                ends[i] = i + w;
+        }
+        final int windows[][] = new int[n][2];
+        for (int i = 1; i <= n; i++) {
+            windows[i - 1][0] = Math.max(1, n + 1 - Math.min(n, ends[n + 1 - i]));
+            windows[i - 1][1] = Math.min(n, ends[i]);
+        }
+        return windows;
+    }
+
+    /**
+     * Reads the numbers of a CSV file, skipping comment lines
+     */
+    private static List<double[]> readCsv(Path file) throws IOException {
+        final List<double[]> rows = new ArrayList<double[]>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            final String fields[] = line.split(",");
+            final double row[] = new double[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                row[i] = Double.parseDouble(fields[i].trim());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void assertClose(double expected[], double actual[],
+            double relativeTolerance) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            final double tolerance = relativeTolerance
+                    * Math.max(1.0, Math.abs(expected[i]));
+            Assert.assertEquals("Value " + i, expected[i], actual[i],
+                    tolerance);
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.SpectrumBuffer;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WaveletMassDetectorTest {
+
+    private static final int SCALE_LEVELS[] = { 1, 3, 5, 12 };
+    private static final double WAVELET_WINDOWS[] = { 0.3, 0.6, 1.0 };
+
+    /**
+     * Test that the detected masses of synthetic profile scans are exactly the
+     * same as those of the previous implementation, which used a DataPoint
+     * array for the wavelet transform and computed the wavelet for each scan
+     */
+    @Test
+    public void testReferenceScans() {
+
+	final Random random = new Random(15);
+	final WaveletMassDetector.Buffers buffers = new WaveletMassDetector.Buffers();
+
+	for (int scanIndex = 0; scanIndex < 6; scanIndex++) {
+
+	    final DataPoint dataPoints[] = createProfileScan(random,
+		    500 + scanIndex * 2000, 5 + scanIndex * 10);
+
+	    for (int scaleLevel : SCALE_LEVELS) {
+		for (double waveletWindow : WAVELET_WINDOWS) {
+
+		    final double noiseLevel = 50;
+		    final DataPoint expected[] = ReferenceWavelet
+			    .getMassValues(dataPoints, noiseLevel, scaleLevel,
+				    waveletWindow);
+
+		    buffers.spectrum.setDataPoints(dataPoints);
+		    WaveletMassDetector.detectMasses(buffers, noiseLevel,
+			    scaleLevel, waveletWindow);
+
+		    final String message = "scan " + scanIndex + ", scale "
+			    + scaleLevel + ", window " + waveletWindow;
+		    Assert.assertEquals(message, expected.length,
+			    buffers.peaks.getSize());
+		    for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(message, expected[i].getMZ(),
+				buffers.peaks.getMZ(i), 0.0);
+			Assert.assertEquals(message, expected[i].getIntensity(),
+				buffers.peaks.getIntensity(i), 0.0);
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Test that reusing the buffers for a shorter scan gives the same result
+     * as fresh buffers
+     */
+    @Test
+    public void testBufferReuse() {
+
+	final Random random = new Random(3);
+	final DataPoint longScan[] = createProfileScan(random, 20000, 80);
+	final DataPoint shortScan[] = createProfileScan(random, 300, 4);
+
+	final WaveletMassDetector.Buffers reused = new WaveletMassDetector.Buffers();
+	reused.spectrum.setDataPoints(longScan);
+	WaveletMassDetector.detectMasses(reused, 10, 5, 0.6);
+	Assert.assertTrue(reused.peaks.getSize() > 0);
+	reused.spectrum.setDataPoints(shortScan);
+	WaveletMassDetector.detectMasses(reused, 10, 5, 0.6);
+
+	final WaveletMassDetector.Buffers fresh = new WaveletMassDetector.Buffers();
+	fresh.spectrum.setDataPoints(shortScan);
+	WaveletMassDetector.detectMasses(fresh, 10, 5, 0.6);
+
+	Assert.assertEquals(fresh.peaks.getSize(), reused.peaks.getSize());
+	for (int i = 0; i < fresh.peaks.getSize(); i++) {
+	    Assert.assertEquals(fresh.peaks.getMZ(i), reused.peaks.getMZ(i),
+		    0.0);
+	    Assert.assertEquals(fresh.peaks.getIntensity(i),
+		    reused.peaks.getIntensity(i), 0.0);
+	}
+    }
+
+    /**
+     * Test that the wavelet values are cached per scale level and window
+     */
+    @Test
+    public void testKernelCache() {
+	double kernel[] = WaveletMassDetector.getKernel(7, 0.45);
+	Assert.assertEquals(71, kernel.length);
+	Assert.assertSame(kernel, WaveletMassDetector.getKernel(7, 0.45));
+	Assert.assertNotSame(kernel, WaveletMassDetector.getKernel(7, 0.5));
+	Assert.assertNotSame(kernel, WaveletMassDetector.getKernel(8, 0.45));
+    }
+
+    /**
+     * Creates a profile scan with Gaussian peaks of random m/z, width and
+     * height on a noisy baseline
+     */
+    private static DataPoint[] createProfileScan(Random random,
+	    int numOfPoints, int numOfPeaks) {
+
+	final double mzStep = 0.005;
+	final double intensities[] = new double[numOfPoints];
+	for (int i = 0; i < numOfPoints; i++)
+	    intensities[i] = random.nextDouble() * 20;
+
+	for (int p = 0; p < numOfPeaks; p++) {
+	    final double center = random.nextDouble() * numOfPoints;
+	    final double sigma = 1 + random.nextDouble() * 6;
+	    final double height = 20 + random.nextDouble() * 5000;
+	    final int from = Math.max(0, (int) (center - 5 * sigma));
+	    final int to = Math.min(numOfPoints - 1,
+		    (int) (center + 5 * sigma));
+	    for (int i = from; i <= to; i++) {
+		final double x = (i - center) / sigma;
+		intensities[i] += height * Math.exp(-x * x / 2);
+	    }
+	}
+
+	final DataPoint dataPoints[] = new DataPoint[numOfPoints];
+	for (int i = 0; i < numOfPoints; i++)
+	    dataPoints[i] = new TestDataPoint(100 + i * mzStep, intensities[i]);
+	return dataPoints;
+    }
+
+    private static class TestDataPoint implements DataPoint {
+
+	private final double mz, intensity;
+
+	TestDataPoint(double mz, double intensity) {
+	    this.mz = mz;
+	    this.intensity = intensity;
+	}
+
+	@Override
+	public double getMZ() {
+	    return mz;
+	}
+
+	@Override
+	public double getIntensity() {
+	    return intensity;
+	}
+
+    }
+
+    /**
+     * The previous implementation of WaveletMassDetector, kept to verify that
+     * the optimized implementation gives the same results
+     */
+    private static class ReferenceWavelet {
+
+	private static final double NPOINTS = 60000;
+	private static final int WAVELET_ESL = -5;
+	private static final int WAVELET_ESR = 5;
+
+	static DataPoint[] getMassValues(DataPoint originalDataPoints[],
+		double noiseLevel, int scaleLevel, double waveletWindow) {
+	    DataPoint waveletDataPoints[] = performCWT(originalDataPoints,
+		    waveletWindow, scaleLevel);
+	    return getMzPeaks(noiseLevel, originalDataPoints,
+		    waveletDataPoints);
+	}
+
+	private static DataPoint[] performCWT(DataPoint[] dataPoints,
+		double waveletWindow, int scaleLevel) {
+	    int length = dataPoints.length;
+	    DataPoint[] cwtDataPoints = new DataPoint[length];
+	    double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
+	    double[] W = new double[(int) NPOINTS];
+
+	    double waveletIndex = WAVELET_ESL;
+	    for (int j = 0; j < NPOINTS; j++) {
+		W[j] = cwtMEXHATreal(waveletIndex, waveletWindow, 0.0);
+		waveletIndex += wstep;
+	    }
+
+	    int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
+	    int a_esl = scaleLevel * WAVELET_ESL;
+	    int a_esr = scaleLevel * WAVELET_ESR;
+	    double sqrtScaleLevel = Math.sqrt(scaleLevel);
+	    for (int dx = 0; dx < length; dx++) {
+
+		int t1 = a_esl + dx;
+		if (t1 < 0)
+		    t1 = 0;
+		int t2 = a_esr + dx;
+		if (t2 >= length)
+		    t2 = (length - 1);
+
+		double intensity = 0.0;
+		for (int i = t1; i <= t2; i++) {
+		    int ind = (int) (NPOINTS / 2)
+			    - (((int) d * (i - dx) / scaleLevel) * (-1));
+		    if (ind < 0)
+			ind = 0;
+		    if (ind >= NPOINTS)
+			ind = (int) NPOINTS - 1;
+		    intensity += dataPoints[i].getIntensity() * W[ind];
+		}
+		intensity /= sqrtScaleLevel;
+		if (intensity < 0)
+		    intensity = 0;
+		cwtDataPoints[dx] = new TestDataPoint(dataPoints[dx].getMZ(),
+			intensity);
+	    }
+
+	    return cwtDataPoints;
+	}
+
+	private static double cwtMEXHATreal(double x, double a, double b) {
+	    double c = 0.8673250705840776;
+	    double TINY = 1E-200;
+	    double x2;
+
+	    if (a == 0.0)
+		a = TINY;
+	    x = (x - b) / a;
+	    x2 = x * x;
+	    return c * (1.0 - x2) * Math.exp(-x2 / 2);
+	}
+
+	private static DataPoint[] getMzPeaks(double noiseLevel,
+		DataPoint[] originalDataPoints, DataPoint[] waveletDataPoints) {
+
+	    TreeSet<DataPoint> mzPeaks = new TreeSet<DataPoint>(
+		    new DataPointSorter(SortingProperty.MZ,
+			    SortingDirection.Ascending));
+
+	    Vector<DataPoint> rawDataPoints = new Vector<DataPoint>();
+	    int peakMaxInd = 0;
+	    int stopInd = waveletDataPoints.length - 1;
+
+	    for (int ind = 0; ind <= stopInd; ind++) {
+
+		while ((ind <= stopInd)
+			&& (waveletDataPoints[ind].getIntensity() == 0)) {
+		    ind++;
+		}
+		peakMaxInd = ind;
+		if (ind >= stopInd) {
+		    break;
+		}
+
+		while ((ind <= stopInd)
+			&& (waveletDataPoints[ind].getIntensity() > 0)) {
+		    if (waveletDataPoints[ind].getIntensity() > waveletDataPoints[peakMaxInd]
+			    .getIntensity()) {
+			peakMaxInd = ind;
+		    }
+		    rawDataPoints.add(originalDataPoints[ind]);
+		    ind++;
+		}
+
+		if (ind >= stopInd) {
+		    break;
+		}
+
+		rawDataPoints.add(originalDataPoints[ind]);
+
+		if (originalDataPoints[peakMaxInd].getIntensity() > noiseLevel) {
+		    double aproxIntensity = 0;
+		    for (DataPoint d : rawDataPoints) {
+			if (d.getIntensity() > aproxIntensity)
+			    aproxIntensity = d.getIntensity();
+		    }
+		    mzPeaks.add(new TestDataPoint(
+			    originalDataPoints[peakMaxInd].getMZ(),
+			    aproxIntensity));
+		}
+		rawDataPoints.clear();
+	    }
+
+	    return mzPeaks.toArray(new DataPoint[0]);
+	}
+
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.taskcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TaskMetricsTest {
+
+    private static class CountingTask extends AbstractTask {
+
+	@Override
+	public String getTaskDescription() {
+	    return "Counting task";
+	}
+
+	@Override
+	public double getFinishedPercentage() {
+	    return 0;
+	}
+
+	@Override
+	public void run() {
+	    TaskMetrics.addProcessedItems(10);
+	    TaskMetrics.addReadBytes(800);
+	}
+
+    }
+
+    private static class CountingTaskWrapper extends CountingTask implements
+	    TaskWrapper {
+
+	private final Task task;
+
+	private CountingTaskWrapper(Task task) {
+	    this.task = task;
+	}
+
+	@Override
+	public Task getWrappedTask() {
+	    return task;
+	}
+
+    }
+
+    private static Callable<Long> createWork() {
+	return new Callable<Long>() {
+	    @Override
+	    public Long call() {
+		TaskMetrics.addProcessedItems(1);
+		// Allocate and spend some CPU time
+		long sum = 0;
+		for (int i = 0; i < 200; i++) {
+		    long values[] = new long[10000];
+		    for (int j = 0; j < values.length; j++)
+			sum += values[j] + j;
+		}
+		return sum;
+	    }
+	};
+    }
+
+    /**
+     * Items and bytes are only counted for the task running in the current
+     * thread, between start() and finish()
+     */
+    @Test
+    public void testCountsOfCurrentThread() {
+
+	CountingTask task = new CountingTask();
+	TaskMetrics metrics = new TaskMetrics(task);
+	Assert.assertFalse(metrics.isRunning());
+	Assert.assertEquals("Counting task", metrics.getTaskDescription());
+
+	// Nothing is counted before the task starts
+	task.run();
+	Assert.assertEquals(0, metrics.getProcessedItems());
+
+	metrics.start();
+	Assert.assertTrue(metrics.isRunning());
+	task.run();
+	task.run();
+	metrics.finish(TaskStatus.FINISHED);
+
+	Assert.assertFalse(metrics.isRunning());
+	Assert.assertEquals(TaskStatus.FINISHED, metrics.getStatus());
+	Assert.assertEquals(20, metrics.getProcessedItems());
+	Assert.assertEquals(1600, metrics.getReadBytes());
+	Assert.assertTrue(metrics.getWallTime() >= 0);
+	Assert.assertTrue(metrics.getPeakHeap() > 0);
+
+	// Nothing is counted after the task finished
+	task.run();
+	Assert.assertEquals(20, metrics.getProcessedItems());
+
+    }
+
+    @Test
+    public void testFinishedValuesDoNotChange() throws InterruptedException {
+
+	TaskMetrics metrics = new TaskMetrics(new CountingTask());
+	metrics.start();
+	metrics.finish(TaskStatus.CANCELED);
+
+	long wallTime = metrics.getWallTime();
+	long cpuTime = metrics.getCpuTime();
+	Thread.sleep(20);
+	Assert.assertEquals(wallTime, metrics.getWallTime());
+	Assert.assertEquals(cpuTime, metrics.getCpuTime());
+	Assert.assertEquals(TaskStatus.CANCELED, metrics.getStatus());
+
+    }
+
+    @Test
+    public void testClassOfWrappedTask() {
+	TaskMetrics metrics = new TaskMetrics(new CountingTaskWrapper(
+		new CountingTaskWrapper(new CountingTask())));
+	Assert.assertEquals(CountingTask.class.getName(),
+		metrics.getTaskClass());
+    }
+
+    /**
+     * Work done in the threads of pools created by the task counts for the
+     * task
+     */
+    @Test
+    public void testPoolThreads() throws Exception {
+
+	List<Callable<Long>> work = new ArrayList<Callable<Long>>();
+	for (int i = 0; i < 8; i++)
+	    work.add(createWork());
+
+	TaskMetrics metrics = new TaskMetrics(new CountingTask());
+	metrics.start();
+	long ownCpuTime = metrics.getCpuTime();
+
+	ForkJoinPool pool = TaskMetrics.newForkJoinPool(2);
+	ExecutorService executor = Executors.newFixedThreadPool(2,
+		TaskMetrics.newThreadFactory());
+	try {
+	    for (Future<Long> result : pool.invokeAll(work))
+		result.get();
+	    for (Future<Long> result : executor.invokeAll(work))
+		result.get();
+	} finally {
+	    pool.shutdown();
+	    executor.shutdown();
+	}
+	metrics.finish(TaskStatus.FINISHED);
+
+	Assert.assertEquals(16, metrics.getProcessedItems());
+	if (ownCpuTime >= 0)
+	    Assert.assertTrue(metrics.getCpuTime() > 0);
+	if (metrics.getAllocatedBytes() >= 0)
+	    Assert.assertTrue(metrics.getAllocatedBytes() > 16 * 200 * 10000
+		    * 8L);
+
+	// Without a running task, the pools do not count
+	pool = TaskMetrics.newForkJoinPool(2);
+	try {
+	    for (Future<Long> result : pool.invokeAll(work))
+		result.get();
+	} finally {
+	    pool.shutdown();
+	}
+	Assert.assertEquals(16, metrics.getProcessedItems());
+
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RowMZIndexTest {
+
+    /**
+     * Test the found rows against checking all rows, with absolute and
+     * relative RT tolerances
+     */
+    @Test
+    public void testFindRows() {
+
+	final Random random = new Random(16);
+	final PeakListRow rows[] = createRows(random, 3000);
+
+	for (RTTolerance rtTolerance : new RTTolerance[] {
+		new RTTolerance(true, 0.2), new RTTolerance(false, 0.01),
+		new RTTolerance(true, 0) }) {
+
+	    final RowMZIndex index = new RowMZIndex(rows, rtTolerance);
+	    Assert.assertEquals(rows.length, index.size());
+
+	    for (int query = 0; query < 500; query++) {
+		final double mzMin = 100 + random.nextDouble() * 900;
+		final double mzMax = mzMin + random.nextDouble() * 5;
+		final double rtMin = random.nextDouble() * 60;
+		final double rtMax = rtMin + random.nextDouble() * 2;
+
+		Assert.assertArrayEquals(
+			findRows(rows, mzMin, mzMax, rtMin, rtMax),
+			index.findRows(mzMin, mzMax, rtMin, rtMax));
+	    }
+
+	    // Bounds are inclusive
+	    final double mz = rows[7].getAverageMZ();
+	    final double rt = rows[7].getAverageRT();
+	    Assert.assertTrue(Arrays.binarySearch(
+		    index.findRows(mz, mz, rt, rt), 7) >= 0);
+
+	    // Whole peak list
+	    Assert.assertEquals(rows.length, index.findRows(
+		    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+		    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY).length);
+	}
+    }
+
+    /**
+     * Test an index without rows, and rows with the same RT
+     */
+    @Test
+    public void testDegenerateRows() {
+
+	RowMZIndex empty = new RowMZIndex(new PeakListRow[0], new RTTolerance(
+		true, 0.1));
+	Assert.assertEquals(0, empty.findRows(0, 1000, 0, 100).length);
+
+	final Random random = new Random(4);
+	final PeakListRow rows[] = createRows(random, 100);
+	for (PeakListRow row : rows)
+	    row.setAverageRT(12.5);
+	RowMZIndex index = new RowMZIndex(rows, new RTTolerance(true, 0.1));
+	Assert.assertArrayEquals(findRows(rows, 200, 600, 12, 13),
+		index.findRows(200, 600, 12, 13));
+	Assert.assertEquals(0, index.findRows(200, 600, 13, 14).length);
+    }
+
+    private static PeakListRow[] createRows(Random random, int numOfRows) {
+	PeakListRow rows[] = new PeakListRow[numOfRows];
+	for (int i = 0; i < numOfRows; i++) {
+	    SimplePeakListRow row = new SimplePeakListRow(i + 1);
+	    row.setAverageMZ(100 + random.nextDouble() * 900);
+	    row.setAverageRT(random.nextDouble() * 60);
+	    rows[i] = row;
+	}
+	return rows;
+    }
+
+    private static int[] findRows(PeakListRow rows[], double mzMin,
+	    double mzMax, double rtMin, double rtMax) {
+	int found[] = new int[rows.length];
+	int numOfRows = 0;
+	for (int i = 0; i < rows.length; i++) {
+	    double mz = rows[i].getAverageMZ(), rt = rows[i].getAverageRT();
+	    if ((mz >= mzMin) && (mz <= mzMax) && (rt >= rtMin)
+		    && (rt <= rtMax))
+		found[numOfRows++] = i;
+	}
+	return Arrays.copyOf(found, numOfRows);
+    }
+
+}